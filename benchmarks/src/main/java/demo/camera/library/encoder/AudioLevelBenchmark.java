@@ -0,0 +1,51 @@
+package demo.camera.library.encoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link AudioLevelMeter#analyze}, run by the capture thread on every frame it reads, on a
+ * frame of 1024 stereo samples in a direct buffer as the capture ring holds them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class AudioLevelBenchmark {
+    private static final int FRAME_SIZE = MicrophoneEncoder.SAMPLES_PER_FRAME * 2 * 2;
+
+    private AudioLevelMeter mMeter;
+    private ByteBuffer mFrame;
+    private long mPtsUs;
+
+    @Setup
+    public void setUp() {
+        mMeter = new AudioLevelMeter();
+        mFrame = ByteBuffer.allocateDirect(FRAME_SIZE);
+        byte[] noise = new byte[FRAME_SIZE];
+        new Random(42).nextBytes(noise);
+        mFrame.put(noise);
+        mFrame.flip();
+    }
+
+    @Benchmark
+    public long analyzeFrame() {
+        mMeter.analyze(mFrame, FRAME_SIZE, mPtsUs, 21333);
+        mPtsUs += 21333;
+        return mMeter.getSnapshot();
+    }
+}
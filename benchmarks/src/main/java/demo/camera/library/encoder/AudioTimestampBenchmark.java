@@ -0,0 +1,59 @@
+package demo.camera.library.encoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link AudioTimestampEngine#onRead(int, long)}, called once per audio frame, on read
+ * times with up to a millisecond of jitter and a dropout every 500 frames that makes it
+ * skip ahead.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class AudioTimestampBenchmark {
+    private static final int SAMPLE_RATE = 44100;
+    private static final int TIMESTAMPS = 4096;
+
+    private AudioTimestampEngine mEngine;
+    private final long[] mReadTimesNs = new long[TIMESTAMPS];
+    private long mLapNs;
+    private long mNext;
+
+    @Setup
+    public void setUp() {
+        mEngine = new AudioTimestampEngine(SAMPLE_RATE);
+
+        // Precomputed so the benchmark only measures the timestamping
+        Random random = new Random(42);
+        long frameNs = MicrophoneEncoder.SAMPLES_PER_FRAME * 1000000000L / SAMPLE_RATE;
+        long readTimeNs = 0;
+        for (int i = 0; i < TIMESTAMPS; i++) {
+            readTimeNs += frameNs + (i % 500 == 499 ? 6 * frameNs : 0);
+            mReadTimesNs[i] = readTimeNs + random.nextInt(1000000);
+        }
+        mLapNs = readTimeNs + frameNs;
+    }
+
+    @Benchmark
+    public long timestampRead() {
+        long next = mNext++;
+        // Later laps through the read times carry on where the last left off
+        long readTimeNs = mReadTimesNs[(int) (next % TIMESTAMPS)] + next / TIMESTAMPS * mLapNs;
+        return mEngine.onRead(MicrophoneEncoder.SAMPLES_PER_FRAME, readTimeNs);
+    }
+}
@@ -0,0 +1,66 @@
+package demo.camera.library.encoder;
+
+import android.media.MediaFormat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records one three second chunk through capture, encoding and muxing of both tracks on
+ * their real threads, with the microphone, codecs and MediaMuxer replaced by fakes, as
+ * {@link CaptureEncodeMuxPipelineTest} does, at speedup times real time.  Scores are per
+ * chunk, including starting and releasing the microphone's threads.  A pipeline that keeps
+ * up takes three seconds divided by speedup; the more it takes beyond that, the further
+ * it fell behind.  A chunk that drops samples fails the run, as its score would flatter it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+public class CaptureEncodeMuxBenchmark {
+    private static final long RELEASE_TIMEOUT_MS = 5000;
+
+    @Param({"10", "50"})
+    public int speedup;
+
+    @Benchmark
+    public long recordChunk() throws InterruptedException {
+        InMemoryMuxerSink sink = new InMemoryMuxerSink();
+        Muxer muxer = AndroidMuxer.create("pipeline.mp4", Muxer.FORMAT.MPEG4, sink);
+        LoopbackEncoderCodec videoCodec = new LoopbackEncoderCodec(4,
+                CaptureEncodeMuxPipelineTest.VIDEO_FRAME_SIZE, new MediaFormat());
+        LoopbackEncoderCodec audioCodec = new LoopbackEncoderCodec(4, 8192, new MediaFormat());
+        FakeAudioSource audioSource = new FakeAudioSource(CaptureEncodeMuxPipelineTest.SAMPLE_RATE,
+                CaptureEncodeMuxPipelineTest.START_TIME_NS, speedup);
+        MicrophoneEncoder microphone = new MicrophoneEncoder(new AudioEncoderCore(1,
+                CaptureEncodeMuxPipelineTest.SAMPLE_RATE, muxer, audioCodec), audioSource);
+        try {
+            CaptureEncodeMuxPipelineTest.recordChunk(microphone, muxer,
+                    new FakeEncoder(muxer, videoCodec, true),
+                    videoCodec, speedup);
+            if (!sink.awaitRelease(RELEASE_TIMEOUT_MS)) {
+                throw new IllegalStateException("Chunk not finished after " + RELEASE_TIMEOUT_MS
+                        + "ms");
+            }
+        } finally {
+            microphone.release();
+        }
+        if (muxer.getDroppedSampleCount() > 0) {
+            throw new IllegalStateException("Pipeline dropped " + muxer.getDroppedSampleCount()
+                    + " samples at " + speedup + "x");
+        }
+        return sink.getBytesWritten(0);
+    }
+}
@@ -0,0 +1,49 @@
+package demo.camera.library.encoder;
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Muxer that goes through the usual sample hand-off, optionally via its writer thread, but
+ * writes nowhere.  For benchmarking what feeds a muxer.  Stops once every track it was
+ * given has ended.
+ */
+class DiscardingMuxer extends Muxer {
+    private final boolean mBuffered;
+    private final CountDownLatch mStopped = new CountDownLatch(1);
+
+    DiscardingMuxer(boolean buffered) {
+        super("discard.mp4", FORMAT.MPEG4);
+        mBuffered = buffered;
+    }
+
+    @Override
+    public void writeSampleData(EncoderCodec encoder, int trackIndex, int bufferIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+        writeOrBufferSample(encoder, trackIndex, bufferIndex, encodedData, bufferInfo);
+    }
+
+    @Override
+    protected void writeSample(int trackIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+    }
+
+    @Override
+    protected boolean formatRequiresBuffering() {
+        return mBuffered;
+    }
+
+    @Override
+    public void forceStop() {
+        requestStop();
+    }
+
+    @Override
+    protected void stop() {
+        mStopped.countDown();
+    }
+
+    void awaitStop() throws InterruptedException {
+        mStopped.await();
+    }
+}
@@ -0,0 +1,69 @@
+package demo.camera.library.encoder;
+
+import android.media.MediaCodec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link AndroidEncoder#drainEncoder(boolean)} moving a stream of samples from a fake codec
+ * into a muxer that discards them, either written on the draining thread or handed to the
+ * muxer's writer thread.  Scores are per sample.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DrainBenchmark {
+    private static final int SAMPLES = 300;
+
+    @Param({"4096", "65536"})
+    public int sampleSize;
+
+    @Param({"false", "true"})
+    public boolean buffered;
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public int drainStream() throws InterruptedException {
+        DiscardingMuxer muxer = new DiscardingMuxer(buffered);
+        FakeEncoderCodec codec = new FakeEncoderCodec(SAMPLES, sampleSize, 0);
+        Encoder encoder = new Encoder(muxer, codec);
+        // The first drain also sees the format change.  The last sample comes with end of
+        // stream
+        for (int i = 0; i < SAMPLES - 1; i++) {
+            encoder.drainEncoder(false);
+        }
+        encoder.drainEncoder(true);
+        muxer.awaitStop();
+        return codec.getReleasedCount();
+    }
+
+    private static class Encoder extends AndroidEncoder {
+
+        Encoder(Muxer muxer, EncoderCodec codec) {
+            mMuxer = muxer;
+            mCodec = codec;
+            mBufferInfo = new MediaCodec.BufferInfo();
+            mTrackIndex = -1;
+        }
+
+        @Override
+        protected boolean isSurfaceInputEncoder() {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package demo.camera.library.encoder;
+
+import android.media.MediaCodec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A video and an audio track draining fake codecs on their own threads into a muxer that
+ * discards their samples, each dequeue waiting as a codec waits on its hardware.  Either
+ * each drain holds the muxer's lock throughout, as drainEncoder used to, or not, as it does
+ * now: with the lock the two tracks' waits add up, without it they overlap.  Scores are
+ * per recording of both tracks.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DrainContentionBenchmark {
+    private static final int SAMPLES = 200;
+    private static final int SAMPLE_SIZE = 4096;
+    private static final long DEQUEUE_WAIT_US = 500;
+
+    @Param({"false", "true"})
+    public boolean holdMuxerLock;
+
+    @Benchmark
+    public int drainBothTracks() throws InterruptedException {
+        DiscardingMuxer muxer = new DiscardingMuxer(false);
+        FakeEncoderCodec videoCodec = new FakeEncoderCodec(SAMPLES, SAMPLE_SIZE, DEQUEUE_WAIT_US);
+        FakeEncoderCodec audioCodec =
+                new FakeEncoderCodec(SAMPLES, SAMPLE_SIZE / 16, DEQUEUE_WAIT_US);
+        Thread videoThread = startDraining(new Encoder(muxer, videoCodec, holdMuxerLock));
+        Thread audioThread = startDraining(new Encoder(muxer, audioCodec, holdMuxerLock));
+        videoThread.join();
+        audioThread.join();
+        muxer.awaitStop();
+        return videoCodec.getReleasedCount() + audioCodec.getReleasedCount();
+    }
+
+    private static Thread startDraining(final Encoder encoder) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // The first drain also sees the format change.  The last sample comes with
+                // end of stream
+                for (int i = 0; i < SAMPLES - 1; i++) {
+                    encoder.drainEncoder(false);
+                }
+                encoder.drainEncoder(true);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static class Encoder extends AndroidEncoder {
+        private final boolean mHoldMuxerLock;
+
+        Encoder(Muxer muxer, EncoderCodec codec, boolean holdMuxerLock) {
+            mMuxer = muxer;
+            mCodec = codec;
+            mBufferInfo = new MediaCodec.BufferInfo();
+            mTrackIndex = -1;
+            mHoldMuxerLock = holdMuxerLock;
+        }
+
+        @Override
+        public void drainEncoder(boolean endOfStream) {
+            if (mHoldMuxerLock) {
+                synchronized (mMuxer) {
+                    super.drainEncoder(endOfStream);
+                }
+            } else {
+                super.drainEncoder(endOfStream);
+            }
+        }
+
+        @Override
+        protected boolean isSurfaceInputEncoder() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package demo.camera.library.encoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Muxer#getNextRelativePts(long, int)}, called once per sample written, alternating
+ * between a video and an audio track.  Every sixteenth video timestamp repeats the last
+ * one, as some encoders emit, to exercise the non-increasing path.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class MuxerPtsBenchmark {
+    private static final long START_US = 1000000000L;
+    private static final long VIDEO_INTERVAL_US = 33333;
+    private static final long AUDIO_INTERVAL_US = 23220;
+
+    private Muxer mMuxer;
+    private long mVideoPtsUs;
+    private long mAudioPtsUs;
+    private int mSample;
+
+    @Setup
+    public void setUp() {
+        mMuxer = new DiscardingMuxer(false);
+        mVideoPtsUs = START_US;
+        mAudioPtsUs = START_US;
+    }
+
+    @Benchmark
+    public long videoThenAudio() {
+        int sample = mSample++;
+        if ((sample & 1) == 0) {
+            if ((sample & 31) != 0) {
+                mVideoPtsUs += VIDEO_INTERVAL_US;
+            }
+            return mMuxer.getNextRelativePts(mVideoPtsUs, 0);
+        }
+        mAudioPtsUs += AUDIO_INTERVAL_US;
+        return mMuxer.getNextRelativePts(mAudioPtsUs, 1);
+    }
+}
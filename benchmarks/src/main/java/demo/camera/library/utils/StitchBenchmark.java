@@ -0,0 +1,78 @@
+package demo.camera.library.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stitches N synthetic one second chunks, laid out the way MediaMuxer writes them, with
+ * {@link Mp4ParserUtility} and with {@link Mp4Stitcher}.  Scores are per stitch, so
+ * include writing the output.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class StitchBenchmark {
+
+    @Param({"5", "20"})
+    public int chunks;
+
+    private File mDir;
+    private File mOutput;
+    private final ArrayList<String> mChunkPaths = new ArrayList<>();
+    private final List<File> mChunkFiles = new ArrayList<>();
+
+    @Setup
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("stitch", "");
+        if (!mDir.delete() || !mDir.mkdirs()) {
+            throw new IOException("Couldn't create " + mDir);
+        }
+        for (int i = 0; i < chunks; i++) {
+            File chunk = Mp4StitcherTest.writeChunk(mDir, i);
+            mChunkFiles.add(chunk);
+            mChunkPaths.add(chunk.getPath());
+        }
+        mOutput = new File(mDir, "stitched.mp4");
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (File file : mDir.listFiles()) {
+            file.delete();
+        }
+        mDir.delete();
+    }
+
+    @Benchmark
+    public long mp4ParserUtility() throws IOException {
+        // Writes into an existing file without truncating it
+        mOutput.delete();
+        Mp4ParserUtility.stitchVideos(mOutput.getPath(), mChunkPaths);
+        return mOutput.length();
+    }
+
+    @Benchmark
+    public long mp4Stitcher() throws IOException {
+        Mp4Stitcher.stitch(mOutput, mChunkFiles);
+        return mOutput.length();
+    }
+}
@@ -5,9 +5,11 @@ import android.media.MediaCodec;
 import android.media.MediaFormat;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import android.util.Log;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
 
 import static demo.camera.library.utils.CameraUtils.isKitKat;
 
@@ -22,32 +24,175 @@ public abstract class AndroidEncoder {
 
     protected Muxer mMuxer;
     protected MediaCodec mEncoder;
+    protected EncoderCodec mCodec;
+    protected MediaFormat mFormat;                      // What the codec is configured with
+    String mPoolKey;                                    // Set if from an EncoderPool
     protected MediaCodec.BufferInfo mBufferInfo;
     protected int mTrackIndex;
     protected volatile boolean mForceEos = false;
-    int mEosSpinCount = 0;
-    final int MAX_EOS_SPINS = 10;
+    private volatile boolean mEndOfInputSignalled;      // Surface encoders, see signalEndOfStream
+    final int TIMEOUT_USEC = 1000;
+    // How long a surface encoder told to end its input may go without output before its
+    // final drain gives up, for devices that ignore signalEndOfInputStream
+    private static final long EOS_IDLE_NS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    // Callback mode, see enableCallbacks
+    private boolean mCallbackDriven;
+    private final Object mCallbackFence = new Object();     // guards mEosReached and the codec's lifetime
+    private boolean mEosReached;
+    private long mLastOutputNs;
+
+    /**
+     * Starts the clock on the muxer's finalize, for an encoder that has more to do before
+     * its final drain.  See {@link Muxer#beginFinalize()}.
+     *
+     * @return the deadline for every track's final drain, on the {@link System#nanoTime()}
+     * timebase
+     */
+    long beginFinalize() {
+        return mMuxer.beginFinalize();
+    }
 
     /**
-     * This method should be called before the last input packet is queued
-     * Some devices don't honor MediaCodec#signalEndOfInputStream
-     * e.g: Google Glass
+     * This method should be called before the last input packet is queued, or for a surface
+     * input encoder before its final drain.
+     * <p>
+     * A surface input encoder is told to end its input, so it flushes and ends the stream
+     * itself.  Some devices don't honor MediaCodec#signalEndOfInputStream, e.g: Google
+     * Glass, so its final drain also gives up once the encoder has gone quiet.  Otherwise,
+     * and if the codec won't take the signal, the next output buffer is marked as the end
+     * of stream.
      */
     public void signalEndOfStream() {
+        if (isSurfaceInputEncoder()) {
+            EncoderCodec codec = getCodec();
+            try {
+                codec.signalEndOfInputStream();
+                mEndOfInputSignalled = true;
+                if (VERBOSE) Log.i(TAG, "signalEndOfInputStream for track " + mTrackIndex);
+                return;
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "signalEndOfInputStream failed, forcing EOS instead", e);
+            }
+        }
         mForceEos = true;
     }
 
     public void release(){
         if(mMuxer != null)
             mMuxer.onEncoderReleased(mTrackIndex);
-        if (mEncoder != null) {
-            mEncoder.stop();
-            mEncoder.release();
-            mEncoder = null;
-            if (VERBOSE) Log.i(TAG, "Released encoder");
+        // Waits out any output callback in progress
+        synchronized (mCallbackFence) {
+            if (mEncoder != null) {
+                mEncoder.stop();
+                mEncoder.release();
+                mEncoder = null;
+                if (VERBOSE) Log.i(TAG, "Released encoder");
+            }
+            mCodec = null;
         }
     }
 
+    /**
+     * Sets the muxer the next recording is written to.  For an encoder from
+     * {@link EncoderPool}, which is created or recycled without one.
+     */
+    public void setMuxer(Muxer muxer) {
+        mMuxer = muxer;
+    }
+
+    /**
+     * Readies the encoder for another recording instead of releasing it at the end of
+     * this one: stops the codec, then configures and starts it again with the same format,
+     * which is much cheaper than creating a new codec.  The muxer is detached, so
+     * {@link #setMuxer(Muxer)} must be called before the encoder is used again.
+     * <p>
+     * Call once the final drain is done, from a thread that isn't using the encoder.
+     */
+    void recycle() {
+        if (mMuxer != null) {
+            mMuxer.onEncoderReleased(mTrackIndex);
+        }
+        // Waits out any output callback in progress
+        synchronized (mCallbackFence) {
+            EncoderCodec codec = getCodec();
+            if (codec == null) {
+                throw new IllegalStateException("Encoder was released");
+            }
+            codec.stop();
+            mEosReached = false;
+            restart(codec);
+        }
+        mMuxer = null;
+        mTrackIndex = -1;
+        mForceEos = false;
+        mEndOfInputSignalled = false;
+        if (VERBOSE) Log.i(TAG, "Recycled encoder");
+    }
+
+    /**
+     * Configures and starts the stopped codec again for {@link #recycle()}.
+     */
+    protected void restart(EncoderCodec codec) {
+        codec.configure(mFormat);
+        codec.start();
+    }
+
+    /**
+     * Has the codec push each output buffer to the muxer as soon as it's ready, instead of
+     * waiting for {@link #drainEncoder(boolean)} to poll for it.  Must be called before the
+     * codec is configured, and only for encoders fed by an input Surface: in callback mode
+     * the codec's input buffers can't be dequeued.
+     *
+     * @param handler handler for the thread to deliver output on, or null for the codec's
+     *                default looper
+     * @return false if the codec doesn't support callbacks, in which case output still has
+     * to be drained by polling
+     */
+    protected boolean enableCallbacks(Handler handler) {
+        final EncoderCodec codec = getCodec();
+        mCallbackDriven = codec.setCallback(new EncoderCodec.Callback() {
+            @Override
+            public void onOutputBufferAvailable(int index, MediaCodec.BufferInfo info) {
+                synchronized (mCallbackFence) {
+                    if (mCodec != codec) {
+                        return;     // released
+                    }
+                    ByteBuffer encodedData = codec.getOutputBuffer(index);
+                    if (encodedData == null) {
+                        throw new RuntimeException("encoderOutputBuffer " + index + " was null");
+                    }
+                    mLastOutputNs = System.nanoTime();
+                    if (writeOutputBuffer(codec, index, encodedData, info)) {
+                        if (VERBOSE) Log.d(TAG, "end of stream reached for track " + mTrackIndex);
+                        mEosReached = true;
+                        mCallbackFence.notifyAll();
+                    }
+                }
+            }
+
+            @Override
+            public void onOutputFormatChanged(MediaFormat format) {
+                addTrack(format);
+            }
+
+            @Override
+            public void onError(Exception e) {
+                Log.e(TAG, "Encoder error on track " + mTrackIndex, e);
+            }
+        }, handler);
+        Log.i(TAG, mCallbackDriven ? "Encoder output is callback driven" : "Encoder output is polled");
+        return mCallbackDriven;
+    }
+
+    /**
+     * Whether output reaches the muxer through codec callbacks, so that
+     * {@link #drainEncoder(boolean)} only has to be called at end of stream.
+     */
+    public boolean isCallbackDriven() {
+        return mCallbackDriven;
+    }
+
     @TargetApi(Build.VERSION_CODES.KITKAT)
     public void adjustBitrate(int targetBitrate){
         if(isKitKat() && mEncoder != null){
@@ -59,7 +204,40 @@ public abstract class AndroidEncoder {
         }
     }
 
+    /**
+     * Returns mEncoder wrapped as an EncoderCodec, unless mCodec was set to something else.
+     *
+     * @return null once released
+     */
+    protected EncoderCodec getCodec() {
+        if (mCodec == null && mEncoder != null) {
+            mCodec = new MediaCodecWrapper(mEncoder);
+        }
+        return mCodec;
+    }
+
+    /**
+     * Moves any available output from the encoder to the muxer.
+     * <p>
+     * Each track drains on its own thread without holding the muxer's lock, so one track
+     * waiting in dequeueOutputBuffer never holds up the other.  Samples are handed to
+     * the muxer's writer thread through a per-track ring.
+     * <p>
+     * If {@link #isCallbackDriven()} output is already on its way, so this returns at once,
+     * or at end of stream waits for the last buffer.
+     * <p>
+     * At end of stream the last buffer is waited for until the deadline the muxer gives
+     * every track, see {@link Muxer#beginFinalize()}.  Past it the muxer is force stopped
+     * without the rest of this track.  So it is once a surface encoder told to
+     * {@link #signalEndOfStream()} has gone EOS_IDLE_NS without output.
+     */
     public void drainEncoder(boolean endOfStream) {
+        if (mCallbackDriven) {
+            if (endOfStream) {
+                awaitEndOfStream();
+            }
+            return;
+        }
         if (endOfStream && VERBOSE) {
             if (isSurfaceInputEncoder()) {
                 Log.i(TAG, "final video drain");
@@ -67,94 +245,143 @@ public abstract class AndroidEncoder {
                 Log.i(TAG, "final audio drain");
             }
         }
-        synchronized (mMuxer){
-            final int TIMEOUT_USEC = 1000;
-            if (VERBOSE) Log.d(TAG, "drainEncoder(" + endOfStream + ") track: " + mTrackIndex);
+        if (VERBOSE) Log.d(TAG, "drainEncoder(" + endOfStream + ") track: " + mTrackIndex);
 
-            if (endOfStream) {
-                if (VERBOSE) Log.d(TAG, "sending EOS to encoder for track " + mTrackIndex);
-//                When all target devices honor MediaCodec#signalEndOfInputStream, return to this method
-//                if(isSurfaceInputEncoder()){
-//                    if (VERBOSE) Log.i(TAG, "signalEndOfInputStream for track " + mTrackIndex);
-//                    mEncoder.signalEndOfInputStream();
-//                    // Note: This method isn't honored on certain devices including Google Glass
-//                }
-            }
-
-            ByteBuffer[] encoderOutputBuffers = mEncoder.getOutputBuffers();
-            while (true) {
-                int encoderStatus = mEncoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
-                if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                    // no output available yet
-                    if (!endOfStream) {
-                        break;      // out of while
-                    } else {
-                        mEosSpinCount++;
-                        if (mEosSpinCount > MAX_EOS_SPINS) {
-                            if (VERBOSE) Log.i(TAG, "Force shutting down Muxer");
-                            mMuxer.forceStop();
-                            break;
-                        }
-                        if (VERBOSE) Log.d(TAG, "no output available, spinning to await EOS");
-                    }
-                } else if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                    // not expected for an encoder
-                    encoderOutputBuffers = mEncoder.getOutputBuffers();
-                 } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                    // should happen before receiving buffers, and should only happen once
-                    MediaFormat newFormat = mEncoder.getOutputFormat();
-                    if (VERBOSE) Log.d(TAG, "encoder output format changed: " + newFormat);
-
-                    // now that we have the Magic Goodies, start the muxer
-                    mTrackIndex = mMuxer.addTrack(newFormat);
-                    // Muxer is responsible for starting/stopping itself
-                    // based on knowledge of expected # tracks
-                } else if (encoderStatus < 0) {
-                    Log.w(TAG, "unexpected result from encoder.dequeueOutputBuffer: " +
-                            encoderStatus);
-                    // let's ignore it
+        long deadlineNs = endOfStream ? mMuxer.beginFinalize() : 0;
+        long lastOutputNs = System.nanoTime();
+        EncoderCodec codec = getCodec();
+        ByteBuffer[] encoderOutputBuffers = codec.getOutputBuffers();
+        while (true) {
+            int encoderStatus = codec.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
+            if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                // no output available yet
+                if (!endOfStream) {
+                    break;      // out of while
                 } else {
-                    ByteBuffer encodedData = encoderOutputBuffers[encoderStatus];
-                    if (encodedData == null) {
-                        throw new RuntimeException("encoderOutputBuffer " + encoderStatus +
-                                " was null");
+                    long nowNs = System.nanoTime();
+                    if (nowNs - deadlineNs >= 0) {
+                        Log.w(TAG, "Track " + mTrackIndex + " missed the finalize deadline, force stopping Muxer");
+                        mMuxer.forceStop();
+                        break;
                     }
-
-                    if (mBufferInfo.size >= 0) {    // Allow zero length buffer for purpose of sending 0 size video EOS Flag
-                        // adjust the ByteBuffer values to match BufferInfo (not needed?)
-                        encodedData.position(mBufferInfo.offset);
-                        encodedData.limit(mBufferInfo.offset + mBufferInfo.size);
-                        if (mForceEos) {
-                            mBufferInfo.flags = mBufferInfo.flags | MediaCodec.BUFFER_FLAG_END_OF_STREAM;
-                            Log.i(TAG, "Forcing EOS");
-                        }
-                        // It is the muxer's responsibility to release encodedData
-                        mMuxer.writeSampleData(mEncoder, mTrackIndex, encoderStatus, encodedData, mBufferInfo);
-                        if (VERBOSE) {
-                            Log.d(TAG, "sent " + mBufferInfo.size + " bytes to muxer, \t ts=" +
-                                    mBufferInfo.presentationTimeUs + "track " + mTrackIndex);
-                        }
+                    if (mEndOfInputSignalled && nowNs - lastOutputNs >= EOS_IDLE_NS) {
+                        Log.w(TAG, "Track " + mTrackIndex + " went quiet without EOS, force stopping Muxer");
+                        mMuxer.forceStop();
+                        break;
                     }
+                    if (VERBOSE) Log.d(TAG, "no output available, spinning to await EOS");
+                }
+            } else if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                // not expected for an encoder
+                encoderOutputBuffers = codec.getOutputBuffers();
+             } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                // should happen before receiving buffers, and should only happen once
+                addTrack(codec.getOutputFormat());
+            } else if (encoderStatus < 0) {
+                Log.w(TAG, "unexpected result from encoder.dequeueOutputBuffer: " +
+                        encoderStatus);
+                // let's ignore it
+            } else {
+                ByteBuffer encodedData = encoderOutputBuffers[encoderStatus];
+                if (encodedData == null) {
+                    throw new RuntimeException("encoderOutputBuffer " + encoderStatus +
+                            " was null");
+                }
+                lastOutputNs = System.nanoTime();
 
-                    if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                        if (!endOfStream) {
-                            Log.w(TAG, "reached end of stream unexpectedly");
-                        } else {
-                            if (VERBOSE) Log.d(TAG, "end of stream reached for track " + mTrackIndex);
-                        }
-                        break;      // out of while
+                if (writeOutputBuffer(codec, encoderStatus, encodedData, mBufferInfo)) {
+                    if (!endOfStream) {
+                        Log.w(TAG, "reached end of stream unexpectedly");
+                    } else {
+                        if (VERBOSE) Log.d(TAG, "end of stream reached for track " + mTrackIndex);
                     }
+                    break;      // out of while
                 }
             }
-            if (endOfStream && VERBOSE ) {
-                if (isSurfaceInputEncoder()) {
-                    Log.i(TAG, "final video drain complete");
-                } else {
-                    Log.i(TAG, "final audio drain complete");
+        }
+        if (endOfStream && VERBOSE ) {
+            if (isSurfaceInputEncoder()) {
+                Log.i(TAG, "final video drain complete");
+            } else {
+                Log.i(TAG, "final audio drain complete");
+            }
+        }
+    }
+
+    private void addTrack(MediaFormat newFormat) {
+        if (VERBOSE) Log.d(TAG, "encoder output format changed: " + newFormat);
+
+        // now that we have the Magic Goodies, start the muxer.
+        // This is the only call into the muxer that needs its lock
+        synchronized (mMuxer) {
+            mTrackIndex = mMuxer.addTrack(newFormat);
+        }
+        // Muxer is responsible for starting/stopping itself
+        // based on knowledge of expected # tracks
+    }
+
+    /**
+     * Passes one output buffer to the muxer, which releases it.
+     *
+     * @return whether it was the end of stream
+     */
+    private boolean writeOutputBuffer(EncoderCodec codec, int index, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+        if (bufferInfo.size >= 0) {    // Allow zero length buffer for purpose of sending 0 size video EOS Flag
+            // adjust the ByteBuffer values to match BufferInfo (not needed?)
+            encodedData.position(bufferInfo.offset);
+            encodedData.limit(bufferInfo.offset + bufferInfo.size);
+            if (mForceEos) {
+                bufferInfo.flags = bufferInfo.flags | MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+                Log.i(TAG, "Forcing EOS");
+            }
+            // It is the muxer's responsibility to release encodedData
+            mMuxer.writeSampleData(codec, mTrackIndex, index, encodedData, bufferInfo);
+            if (VERBOSE) {
+                Log.d(TAG, "sent " + bufferInfo.size + " bytes to muxer, \t ts=" +
+                        bufferInfo.presentationTimeUs + "track " + mTrackIndex);
+            }
+        }
+        return (bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+    }
+
+    /**
+     * Callback mode's final drain: waits until the muxer's finalize deadline for the end of
+     * stream buffer, and otherwise shuts the muxer down.  As when polling, a surface encoder
+     * told to end its input is given up on once it has gone EOS_IDLE_NS without output.
+     */
+    private void awaitEndOfStream() {
+        long deadlineNs = mMuxer.beginFinalize();
+        synchronized (mCallbackFence) {
+            mLastOutputNs = System.nanoTime();
+            long remainingNs = remainingNs(deadlineNs);
+            while (!mEosReached && remainingNs > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(mCallbackFence, remainingNs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
                 }
+                remainingNs = remainingNs(deadlineNs);
+            }
+            if (!mEosReached) {
+                Log.w(TAG, "Track " + mTrackIndex + " missed the finalize deadline, force stopping Muxer");
+                mMuxer.forceStop();
             }
         }
     }
 
+    /**
+     * Time left for awaitEndOfStream to wait, until the deadline or, for a surface encoder
+     * told to end its input, until it has been idle for EOS_IDLE_NS.  Holding mCallbackFence.
+     */
+    private long remainingNs(long deadlineNs) {
+        long nowNs = System.nanoTime();
+        long remainingNs = deadlineNs - nowNs;
+        if (mEndOfInputSignalled) {
+            remainingNs = Math.min(remainingNs, mLastOutputNs + EOS_IDLE_NS - nowNs);
+        }
+        return remainingNs;
+    }
+
     protected abstract boolean isSurfaceInputEncoder();
 }
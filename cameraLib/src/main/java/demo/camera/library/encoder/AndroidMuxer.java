@@ -3,7 +3,6 @@ package demo.camera.library.encoder;
 import android.annotation.TargetApi;
 import android.media.MediaCodec;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
 import android.os.Build;
 import android.util.Log;
 
@@ -11,6 +10,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 
 /**
+ * Muxes into a {@link MuxerSink}, by default a {@link MediaMuxerSink}.
  * @hide
  */
 @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
@@ -18,28 +18,42 @@ public class AndroidMuxer extends Muxer {
     private static final String TAG = "AndroidMuxer";
     private static final boolean VERBOSE = false;
 
-    private MediaMuxer mMuxer;
-    private boolean mStarted;
+    private MuxerSink mMuxer;
+    private volatile boolean mStarted;
 
 
     private AndroidMuxer(String outputFile, FORMAT format){
+        this(outputFile, format, createSink(outputFile, format));
+    }
+
+    private AndroidMuxer(String outputFile, FORMAT format, MuxerSink sink){
         super(outputFile, format);
+        mMuxer = sink;
+        mStarted = false;
+    }
+
+    public static AndroidMuxer create(String outputFile, FORMAT format) {
+        return new AndroidMuxer(outputFile, format);
+    }
+
+    /**
+     * Creates a muxer writing to sink rather than to outputFile, which is only reported.
+     */
+    public static AndroidMuxer create(String outputFile, FORMAT format, MuxerSink sink) {
+        return new AndroidMuxer(outputFile, format, sink);
+    }
+
+    private static MuxerSink createSink(String outputFile, FORMAT format) {
         try {
             switch(format){
                 case MPEG4:
-                    mMuxer = new MediaMuxer(outputFile, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
-                    break;
+                    return new MediaMuxerSink(outputFile);
                 default:
                     throw new IllegalArgumentException("Unrecognized format!");
             }
         } catch (IOException e) {
             throw new RuntimeException("MediaMuxer creation failed", e);
         }
-        mStarted = false;
-    }
-
-    public static AndroidMuxer create(String outputFile, FORMAT format) {
-        return new AndroidMuxer(outputFile, format);
     }
 
     @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
@@ -56,17 +70,25 @@ public class AndroidMuxer extends Muxer {
         return track;
     }
 
+    @Override
     protected void start() {
         mMuxer.start();
         mStarted = true;
         Log.d(TAG, "Android muxer start");
     }
 
+    @Override
     protected void stop() {
-        mMuxer.stop();
-        mStarted = false;
+        if (mMuxer == null) {
+            Log.d(TAG, "Android muxer already released");
+            return;
+        }
+        if (mStarted) {
+            mMuxer.stop();
+            mStarted = false;
+        }
         Log.d(TAG, "Android muxer stop");
-        release();;
+        release();
     }
 
     @Override
@@ -88,41 +110,39 @@ public class AndroidMuxer extends Muxer {
     }
 
     @Override
-    public void writeSampleData(MediaCodec encoder, int trackIndex, int bufferIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
-        super.writeSampleData(encoder, trackIndex, bufferIndex, encodedData, bufferInfo);
+    public void writeSampleData(EncoderCodec encoder, int trackIndex, int bufferIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
         if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
             // MediaMuxer gets the codec config info via the addTrack command
             if (VERBOSE) Log.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
-            encoder.releaseOutputBuffer(bufferIndex, false);
+            skipSample(encoder, bufferIndex, bufferInfo);
             return;
         }
 
         if(bufferInfo.size == 0){
             if(VERBOSE) Log.d(TAG, "ignoring zero size buffer");
-            encoder.releaseOutputBuffer(bufferIndex, false);
+            skipSample(encoder, bufferIndex, bufferInfo);
             return;
         }
 
         if (!mStarted) {
             Log.e(TAG, "writeSampleData called before muxer started. Ignoring packet. Track index: " + trackIndex + " tracks added: " + mNumTracks);
-            encoder.releaseOutputBuffer(bufferIndex, false);
+            skipSample(encoder, bufferIndex, bufferInfo);
             return;
         }
 
+        writeOrBufferSample(encoder, trackIndex, bufferIndex, encodedData, bufferInfo);
+    }
+
+    @Override
+    protected void writeSample(int trackIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
         bufferInfo.presentationTimeUs = getNextRelativePts(bufferInfo.presentationTimeUs, trackIndex);
 
         mMuxer.writeSampleData(trackIndex, encodedData, bufferInfo);
-
-        encoder.releaseOutputBuffer(bufferIndex, false);
-
-        if(allTracksFinished()){
-            stop();
-        }
     }
 
     @Override
     public void forceStop() {
-        stop();
+        requestStop();
         Log.d(TAG, "forceStop");
     }
 }
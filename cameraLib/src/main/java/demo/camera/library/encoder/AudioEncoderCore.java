@@ -21,6 +21,7 @@ public class AudioEncoderCore extends AndroidEncoder {
     protected static final String MIME_TYPE = "audio/mp4a-latm";                    // AAC Low Overhead Audio Transport Multiplex
 
     // Configurable options
+    protected int mNumChannels;
     protected int mChannelConfig;
     protected int mSampleRate;
 
@@ -28,19 +29,7 @@ public class AudioEncoderCore extends AndroidEncoder {
      * Configures encoder and muxer state, and prepares the input Surface.
      */
     public AudioEncoderCore(int numChannels, int bitRate, int sampleRate, Muxer muxer) throws IOException {
-        switch (numChannels) {
-            case 1:
-                mChannelConfig = AudioFormat.CHANNEL_IN_MONO;
-                break;
-            case 2:
-                mChannelConfig = AudioFormat.CHANNEL_IN_STEREO;
-                break;
-            default:
-                throw new IllegalArgumentException("Invalid channel count. Must be 1 or 2");
-        }
-        mSampleRate = sampleRate;
-        mMuxer = muxer;
-        mBufferInfo = new MediaCodec.BufferInfo();
+        init(numChannels, sampleRate, muxer);
 
         MediaFormat format = MediaFormat.createAudioFormat(MIME_TYPE, mSampleRate, mChannelConfig);
 
@@ -51,13 +40,39 @@ public class AudioEncoderCore extends AndroidEncoder {
         format.setInteger(MediaFormat.KEY_CHANNEL_COUNT, numChannels);
         format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
         format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, 16384);
+        mFormat = format;
 
         // Create a MediaCodec encoder, and configure it with our format.  Get a Surface
         // we can use for input and wrap it with a class that handles the EGL work.
         mEncoder = MediaCodec.createEncoderByType(MIME_TYPE);
         mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         mEncoder.start();
+    }
 
+    /**
+     * Encodes with codec, which is already configured and started, instead of a
+     * MediaCodec.  For running the pipeline against a fake codec.
+     */
+    AudioEncoderCore(int numChannels, int sampleRate, Muxer muxer, EncoderCodec codec) {
+        init(numChannels, sampleRate, muxer);
+        mCodec = codec;
+    }
+
+    private void init(int numChannels, int sampleRate, Muxer muxer) {
+        switch (numChannels) {
+            case 1:
+                mChannelConfig = AudioFormat.CHANNEL_IN_MONO;
+                break;
+            case 2:
+                mChannelConfig = AudioFormat.CHANNEL_IN_STEREO;
+                break;
+            default:
+                throw new IllegalArgumentException("Invalid channel count. Must be 1 or 2");
+        }
+        mNumChannels = numChannels;
+        mSampleRate = sampleRate;
+        mMuxer = muxer;
+        mBufferInfo = new MediaCodec.BufferInfo();
         mTrackIndex = -1;
     }
 
@@ -68,7 +83,8 @@ public class AudioEncoderCore extends AndroidEncoder {
      * However, when reading AudioRecord samples directly
      * to MediaCode's input ByteBuffer we can avoid a memory copy
      * TODO: Measure performance gain and remove if negligible
-     * @return
+     * @return the MediaCodec, or null if a different codec was given
+     * @see #getCodec()
      */
     public MediaCodec getMediaCodec(){
         return mEncoder;
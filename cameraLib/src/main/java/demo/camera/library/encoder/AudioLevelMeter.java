@@ -0,0 +1,115 @@
+package demo.camera.library.encoder;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RMS and peak level of each captured frame of 16 bit PCM, for a VU meter, and how long the
+ * audio has been silent, for trimming silent tails.
+ * <p>
+ * {@link #analyze} runs on the capture thread straight on the frame just read, before it is
+ * handed to the encoder, and allocates nothing.  Each frame's RMS and peak are published
+ * together in one volatile long, so any thread can read a consistent pair without locking:
+ * take a {@link #getSnapshot()} and unpack it with {@link #rmsOf} and {@link #peakOf}.
+ * Levels are linear, 1 being full scale.
+ * @hide
+ */
+public class AudioLevelMeter {
+    // RMS under this, about -50dBFS, is silence
+    public static final float DEFAULT_SILENCE_THRESHOLD = 0.003f;
+    static final long NOT_SILENT = Long.MIN_VALUE;
+
+    private final float mSilenceThreshold;
+    private volatile long mSnapshot;
+    private volatile long mSilentSinceUs = NOT_SILENT;
+    private volatile long mLastFrameEndUs;
+
+    public AudioLevelMeter() {
+        this(DEFAULT_SILENCE_THRESHOLD);
+    }
+
+    /**
+     * @param silenceThreshold RMS below which a frame is silent
+     */
+    public AudioLevelMeter(float silenceThreshold) {
+        mSilenceThreshold = silenceThreshold;
+    }
+
+    /**
+     * Measures the little endian 16 bit samples from the start of frame up to length bytes,
+     * of all channels together, without changing frame's position or limit.  Call from one
+     * thread.
+     *
+     * @param ptsUs timestamp of the frame's first sample
+     * @param durationUs duration of the frame
+     */
+    void analyze(ByteBuffer frame, int length, long ptsUs, long durationUs) {
+        int samples = length / 2;
+        if (samples == 0) {
+            return;
+        }
+        long sumOfSquares = 0;
+        int peak = 0;
+        for (int i = 0; i < samples * 2; i += 2) {
+            int sample = (frame.get(i) & 0xff) | (frame.get(i + 1) << 8);
+            sumOfSquares += sample * sample;
+            int magnitude = sample < 0 ? -sample : sample;
+            if (magnitude > peak) {
+                peak = magnitude;
+            }
+        }
+        float rms = (float) (Math.sqrt((double) sumOfSquares / samples) / 32768);
+        mSnapshot = pack(rms, peak / 32768f);
+        if (rms >= mSilenceThreshold) {
+            mSilentSinceUs = NOT_SILENT;
+        } else if (mSilentSinceUs == NOT_SILENT) {
+            mSilentSinceUs = ptsUs;
+        }
+        mLastFrameEndUs = ptsUs + durationUs;
+    }
+
+    /**
+     * The RMS and peak of the latest frame, packed together.
+     */
+    public long getSnapshot() {
+        return mSnapshot;
+    }
+
+    public static float rmsOf(long snapshot) {
+        return Float.intBitsToFloat((int) (snapshot >>> 32));
+    }
+
+    public static float peakOf(long snapshot) {
+        return Float.intBitsToFloat((int) snapshot);
+    }
+
+    /**
+     * A linear level in decibels relative to full scale.
+     */
+    public static float toDbfs(float level) {
+        return level <= 0 ? Float.NEGATIVE_INFINITY : (float) (20 * Math.log10(level));
+    }
+
+    /**
+     * When the silence the latest frames are part of began, as an audio timestamp in
+     * microseconds, or {@link Long#MIN_VALUE} if the latest frame wasn't silent.
+     */
+    public long getSilentSinceUs() {
+        return mSilentSinceUs;
+    }
+
+    /**
+     * How long the audio has been silent up to the end of the latest frame.
+     */
+    public long getSilenceDuration(TimeUnit unit) {
+        long silentSinceUs = mSilentSinceUs;
+        if (silentSinceUs == NOT_SILENT) {
+            return 0;
+        }
+        return unit.convert(mLastFrameEndUs - silentSinceUs, TimeUnit.MICROSECONDS);
+    }
+
+    private static long pack(float rms, float peak) {
+        return ((long) Float.floatToRawIntBits(rms) << 32) | (Float.floatToRawIntBits(peak) & 0xffffffffL);
+    }
+}
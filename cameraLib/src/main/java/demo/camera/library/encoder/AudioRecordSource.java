@@ -0,0 +1,58 @@
+package demo.camera.library.encoder;
+
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link AudioSource} backed by an {@link AudioRecord} on the camcorder microphone.
+ * @hide
+ */
+public class AudioRecordSource implements AudioSource {
+    private final AudioRecord mAudioRecord;
+    private long mLastReadTimeNs;
+
+    /**
+     * @param channelConfig one of AudioFormat.CHANNEL_IN_*
+     * @param audioFormat one of AudioFormat.ENCODING_PCM_*
+     */
+    public AudioRecordSource(int sampleRate, int channelConfig, int audioFormat) {
+        int minBufferSize = AudioRecord.getMinBufferSize(sampleRate, channelConfig, audioFormat);
+
+        mAudioRecord = new AudioRecord(
+                MediaRecorder.AudioSource.CAMCORDER, // source
+                sampleRate,                          // sample rate, hz
+                channelConfig,                       // channels
+                audioFormat,                         // audio format
+                minBufferSize * 4);                  // buffer size (bytes)
+    }
+
+    @Override
+    public void startRecording() {
+        mAudioRecord.startRecording();
+    }
+
+    @Override
+    public int read(ByteBuffer audioBuffer, int sizeInBytes) {
+        int read = mAudioRecord.read(audioBuffer, sizeInBytes);
+        // A read returns as soon as its last sample arrives
+        mLastReadTimeNs = System.nanoTime();
+        return read;
+    }
+
+    @Override
+    public long getLastReadTimeNs() {
+        return mLastReadTimeNs;
+    }
+
+    @Override
+    public void stop() {
+        mAudioRecord.stop();
+    }
+
+    @Override
+    public void release() {
+        mAudioRecord.release();
+    }
+}
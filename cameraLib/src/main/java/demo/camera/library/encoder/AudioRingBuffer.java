@@ -0,0 +1,219 @@
+package demo.camera.library.encoder;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Fixed number of PCM frames, preallocated in one direct buffer, passed from a capture
+ * thread to an encoder feeding thread.
+ * <p>
+ * Exactly one thread writes and one reads, so like {@link SpscRing} neither side locks.
+ * The writer reads audio straight into a claimed slot and commits it with its capture
+ * time; the reader copies committed frames out into codec input buffers.  When the reader
+ * falls behind the ring fills up and further frames are overruns, which the writer must
+ * discard to keep the microphone read going.  When the writer falls behind the reader
+ * waits, and a wait longer than it was prepared to is an underrun.
+ */
+class AudioRingBuffer {
+    private final int mMask;
+    private final int mFrameCapacity;
+    // Each slot has a view for the writer and one for the reader, so their positions and
+    // limits are independent
+    private final ByteBuffer[] mWriteSlots;
+    private final ByteBuffer[] mReadSlots;
+    private final int[] mLengths;
+    private final long[] mTimestampsNs;
+    private final AtomicLong mTail = new AtomicLong();
+    private final AtomicLong mHead = new AtomicLong();
+    private final AtomicLong mOverruns = new AtomicLong();
+    private final AtomicLong mUnderruns = new AtomicLong();
+    private volatile Thread mWaiter;
+    private volatile boolean mWoken;
+
+    // Only touched by the reader
+    private long mLastTimestampNs;
+
+    /**
+     * @param frames minimum number of frames held, rounded up to a power of two
+     * @param frameCapacity most bytes in a frame
+     */
+    AudioRingBuffer(int frames, int frameCapacity) {
+        if (frames < 1 || frameCapacity < 1) {
+            throw new IllegalArgumentException("frames and frameCapacity must be positive");
+        }
+        int size = Integer.highestOneBit(frames);
+        if (size < frames) {
+            size <<= 1;
+        }
+        mMask = size - 1;
+        mFrameCapacity = frameCapacity;
+        mWriteSlots = new ByteBuffer[size];
+        mReadSlots = new ByteBuffer[size];
+        mLengths = new int[size];
+        mTimestampsNs = new long[size];
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size * frameCapacity);
+        for (int i = 0; i < size; i++) {
+            buffer.limit((i + 1) * frameCapacity);
+            buffer.position(i * frameCapacity);
+            mWriteSlots[i] = buffer.slice();
+            mReadSlots[i] = mWriteSlots[i].duplicate();
+        }
+    }
+
+    int capacity() {
+        return mMask + 1;
+    }
+
+    int frameCapacity() {
+        return mFrameCapacity;
+    }
+
+    /**
+     * Returns an empty slot to read the next frame into, or null if the ring is full, which
+     * is counted as an overrun.  Only call from the writer thread.
+     */
+    ByteBuffer claim() {
+        long tail = mTail.get();
+        if (tail - mHead.get() > mMask) {
+            mOverruns.incrementAndGet();
+            return null;
+        }
+        ByteBuffer slot = mWriteSlots[(int) tail & mMask];
+        slot.clear();
+        return slot;
+    }
+
+    /**
+     * Publishes the slot returned by the last {@link #claim()}, holding its first length
+     * bytes.  The slot's position is ignored, as AudioRecord doesn't move it when reading
+     * into the slot.  Only call from the writer thread.
+     *
+     * @param length number of bytes read into the slot
+     * @param timestampNs when the frame was captured
+     */
+    void commit(int length, long timestampNs) {
+        if (length < 0 || length > mFrameCapacity) {
+            throw new IllegalArgumentException("length " + length + " doesn't fit a frame");
+        }
+        long tail = mTail.get();
+        int index = (int) tail & mMask;
+        mLengths[index] = length;
+        mTimestampsNs[index] = timestampNs;
+        // A full volatile write, so the reader sees the slot, and can't be missed if it's
+        // about to park
+        mTail.set(tail + 1);
+        Thread waiter = mWaiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    /**
+     * Waits up to timeoutNs for a frame to read.  Only call from the reader thread.
+     *
+     * @return false if none arrived in time, which is counted as an underrun unless
+     * timeoutNs was 0, or if {@link #wakeReader()} cut the wait short
+     */
+    boolean await(long timeoutNs) {
+        if (!isEmpty()) {
+            return true;
+        }
+        if (mWoken) {
+            mWoken = false;
+            return false;
+        }
+        long deadline = System.nanoTime() + timeoutNs;
+        mWaiter = Thread.currentThread();
+        try {
+            long remaining = timeoutNs;
+            // Checked again after mWaiter is set, in case a frame was committed before
+            while (isEmpty() && remaining > 0 && !mWoken) {
+                LockSupport.parkNanos(this, remaining);
+                remaining = deadline - System.nanoTime();
+            }
+        } finally {
+            mWaiter = null;
+        }
+        if (mWoken) {
+            mWoken = false;
+            return !isEmpty();
+        }
+        if (isEmpty()) {
+            if (timeoutNs > 0) {
+                mUnderruns.incrementAndGet();
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Ends the reader's current or next {@link #await} early, without an underrun, e.g.
+     * because the writer has stopped.  Can be called from any thread.
+     */
+    void wakeReader() {
+        mWoken = true;
+        Thread waiter = mWaiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    /**
+     * Copies the oldest frame into dst at its position, without blocking.  Only call from
+     * the reader thread.
+     *
+     * @return the number of bytes copied, 0 if the ring is empty
+     * @throws java.nio.BufferOverflowException if the frame doesn't fit in dst
+     */
+    int read(ByteBuffer dst) {
+        long head = mHead.get();
+        if (head == mTail.get()) {
+            return 0;
+        }
+        int index = (int) head & mMask;
+        ByteBuffer slot = mReadSlots[index];
+        int length = mLengths[index];
+        slot.clear();
+        slot.limit(length);
+        dst.put(slot);
+        mLastTimestampNs = mTimestampsNs[index];
+        // Ordered after the copy, which hands the slot back to the writer
+        mHead.lazySet(head + 1);
+        return length;
+    }
+
+    /**
+     * Capture time of the frame returned by the last {@link #read}.
+     */
+    long getLastTimestampNs() {
+        return mLastTimestampNs;
+    }
+
+    /**
+     * Number of frames committed but not yet read.  Only a snapshot while the other thread
+     * is active.
+     */
+    int size() {
+        return (int) (mTail.get() - mHead.get());
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Number of frames the writer had to discard because the ring was full.
+     */
+    long getOverrunCount() {
+        return mOverruns.get();
+    }
+
+    /**
+     * Number of times the reader gave up waiting for a frame.
+     */
+    long getUnderrunCount() {
+        return mUnderruns.get();
+    }
+}
@@ -0,0 +1,36 @@
+package demo.camera.library.encoder;
+
+import android.media.AudioRecord;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Where {@link MicrophoneEncoder} captures PCM audio from.
+ * <p>
+ * Mirrors the {@link AudioRecord} methods it uses, see {@link AudioRecordSource}, so that
+ * capture can be simulated in unit tests.  Since a simulated source may run faster than
+ * real time, it also says when each read's audio was captured.
+ * @hide
+ */
+public interface AudioSource {
+
+    void startRecording();
+
+    /**
+     * Blocks until sizeInBytes of audio are read into audioBuffer, starting at its
+     * position.
+     *
+     * @return the number of bytes read, or a negative AudioRecord error code
+     */
+    int read(ByteBuffer audioBuffer, int sizeInBytes);
+
+    /**
+     * When the end of the audio returned by the last {@link #read} was captured, on the
+     * {@link System#nanoTime()} timebase.
+     */
+    long getLastReadTimeNs();
+
+    void stop();
+
+    void release();
+}
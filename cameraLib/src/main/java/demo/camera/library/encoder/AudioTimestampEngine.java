@@ -0,0 +1,139 @@
+package demo.camera.library.encoder;
+
+import android.util.Log;
+
+/**
+ * Timestamps captured PCM by counting samples from a single anchor, so that consecutive
+ * frames are exactly their duration apart however late each read returned.
+ * <p>
+ * The anchor is the capture time of the first sample read.  From then on a read's
+ * timestamp is the anchor plus the duration of every sample read before it, and the clock
+ * is only watched: how far a read's end lies behind the time the sample count gives is its
+ * drift.  A read returns some time after its last sample arrived, so the least drift over
+ * a window of reads is taken as the measurement, which leaves scheduling jitter out and
+ * the rate difference between the audio and system clocks, or lost audio, in.
+ * <p>
+ * If the measured drift grows past maxDriftUs, audio was lost upstream and the sample
+ * count skips ahead by the samples missing, keeping timestamps on the sample grid.  That
+ * is counted by {@link #getDiscontinuityCount()}.
+ * <p>
+ * Every sample read has to be passed to {@link #onRead}, including ones then discarded,
+ * or they are taken for lost.  Call onRead from one thread; the metrics can be read from
+ * any.
+ */
+class AudioTimestampEngine {
+    private static final String TAG = "AudioTimestampEngine";
+
+    static final long DEFAULT_MAX_DRIFT_US = 100000;
+    static final int DEFAULT_DRIFT_WINDOW = 32;                  // ~0.75s of 1024 sample reads at 44.1kHz
+
+    private final int mSampleRate;
+    private final long mMaxDriftNs;
+    private final int mDriftWindow;
+
+    private boolean mAnchored;
+    private long mAnchorNs;
+    private long mSamples;
+    private long mWindowMinDriftNs;
+    private int mWindowReads;
+
+    private volatile long mDriftUs;
+    private volatile long mMaxDriftUs;
+    private volatile long mDiscontinuities;
+
+    AudioTimestampEngine(int sampleRate) {
+        this(sampleRate, DEFAULT_MAX_DRIFT_US, DEFAULT_DRIFT_WINDOW);
+    }
+
+    /**
+     * @param maxDriftUs drift beyond which audio is taken to have been lost
+     * @param driftWindow number of reads each drift measurement is taken over
+     */
+    AudioTimestampEngine(int sampleRate, long maxDriftUs, int driftWindow) {
+        if (sampleRate < 1 || maxDriftUs < 1 || driftWindow < 1) {
+            throw new IllegalArgumentException("sampleRate, maxDriftUs and driftWindow must be positive");
+        }
+        mSampleRate = sampleRate;
+        mMaxDriftNs = maxDriftUs * 1000;
+        mDriftWindow = driftWindow;
+        reset();
+    }
+
+    /**
+     * Counts a read of samples, returning when the first of them was captured.
+     *
+     * @param readEndNs when the read returned, on the {@link System#nanoTime()} timebase
+     * @return the timestamp of the read's first sample, in nanoseconds
+     */
+    long onRead(int samples, long readEndNs) {
+        if (!mAnchored) {
+            mAnchorNs = readEndNs - samplesToNs(samples);
+            mAnchored = true;
+        }
+        long ptsNs = mAnchorNs + samplesToNs(mSamples);
+        mSamples += samples;
+
+        long driftNs = readEndNs - (mAnchorNs + samplesToNs(mSamples));
+        mWindowMinDriftNs = Math.min(mWindowMinDriftNs, driftNs);
+        if (++mWindowReads == mDriftWindow) {
+            onDriftMeasured(mWindowMinDriftNs);
+            mWindowMinDriftNs = Long.MAX_VALUE;
+            mWindowReads = 0;
+        }
+        return ptsNs;
+    }
+
+    /**
+     * Anchors again at the next read, and starts the measurements afresh.
+     */
+    void reset() {
+        mAnchored = false;
+        mSamples = 0;
+        mWindowMinDriftNs = Long.MAX_VALUE;
+        mWindowReads = 0;
+        mDriftUs = 0;
+        mMaxDriftUs = 0;
+        mDiscontinuities = 0;
+    }
+
+    /**
+     * The latest drift measured: how far behind the system clock the sample count is.
+     * Negative if the audio clock runs fast.
+     */
+    long getDriftUs() {
+        return mDriftUs;
+    }
+
+    /**
+     * The largest drift measured either way, before any skip it caused.
+     */
+    long getMaxDriftUs() {
+        return mMaxDriftUs;
+    }
+
+    /**
+     * Number of times the sample count skipped ahead over lost audio.
+     */
+    long getDiscontinuityCount() {
+        return mDiscontinuities;
+    }
+
+    private void onDriftMeasured(long driftNs) {
+        long driftUs = driftNs / 1000;
+        mDriftUs = driftUs;
+        if (Math.abs(driftUs) > mMaxDriftUs) {
+            mMaxDriftUs = Math.abs(driftUs);
+        }
+        if (driftNs > mMaxDriftNs) {
+            long lostSamples = (driftNs * mSampleRate + 500000000L) / 1000000000L;
+            Log.w(TAG, "Audio clock " + driftUs + "us behind, skipping " + lostSamples + " lost samples");
+            mSamples += lostSamples;
+            mDiscontinuities++;
+            mDriftUs = (driftNs - samplesToNs(lostSamples)) / 1000;
+        }
+    }
+
+    private long samplesToNs(long samples) {
+        return samples * 1000000000L / mSampleRate;
+    }
+}
@@ -0,0 +1,113 @@
+package demo.camera.library.encoder;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed capacity queue that any number of threads may offer to and poll from without
+ * locking.
+ * <p>
+ * Each slot carries a sequence number telling whether it is ready to be written or read
+ * for a given lap around the ring, so producers and consumers only ever contend on a
+ * compare-and-set of their own position.  {@link #offer} fails instead of waiting when the
+ * queue is full, and {@link #poll} returns null when it is empty.
+ */
+class BoundedQueue<E> {
+    private final int mMask;
+    private final AtomicReferenceArray<E> mSlots;
+    private final AtomicLongArray mSequences;
+    private final AtomicLong mTail = new AtomicLong();
+    private final AtomicLong mHead = new AtomicLong();
+
+    /**
+     * @param capacity minimum number of elements held, rounded up to a power of two
+     */
+    BoundedQueue(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mMask = size - 1;
+        mSlots = new AtomicReferenceArray<>(size);
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mSequences.set(i, i);
+        }
+    }
+
+    int capacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * Adds element to the tail of the queue.
+     *
+     * @return false if the queue is full
+     */
+    boolean offer(E element) {
+        if (element == null) {
+            throw new NullPointerException();
+        }
+        long position = mTail.get();
+        while (true) {
+            int index = (int) position & mMask;
+            long diff = mSequences.get(index) - position;
+            if (diff == 0) {
+                if (mTail.compareAndSet(position, position + 1)) {
+                    mSlots.lazySet(index, element);
+                    // Publishes the element to pollers
+                    mSequences.set(index, position + 1);
+                    return true;
+                }
+                position = mTail.get();
+            } else if (diff < 0) {
+                return false;
+            } else {
+                position = mTail.get();
+            }
+        }
+    }
+
+    /**
+     * Removes the element at the head of the queue.
+     *
+     * @return the element, or null if the queue is empty
+     */
+    E poll() {
+        long position = mHead.get();
+        while (true) {
+            int index = (int) position & mMask;
+            long diff = mSequences.get(index) - (position + 1);
+            if (diff == 0) {
+                if (mHead.compareAndSet(position, position + 1)) {
+                    E element = mSlots.get(index);
+                    mSlots.lazySet(index, null);
+                    // Hands the slot back to offerers one lap ahead
+                    mSequences.set(index, position + mMask + 1);
+                    return element;
+                }
+                position = mHead.get();
+            } else if (diff < 0) {
+                return null;
+            } else {
+                position = mHead.get();
+            }
+        }
+    }
+
+    /**
+     * Number of elements queued.  Only a snapshot while other threads are active.
+     */
+    int size() {
+        long size = mTail.get() - mHead.get();
+        return (int) Math.max(0, Math.min(size, capacity()));
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+}
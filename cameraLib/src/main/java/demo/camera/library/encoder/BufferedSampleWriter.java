@@ -0,0 +1,286 @@
+package demo.camera.library.encoder;
+
+import android.media.MediaCodec;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writer thread for a {@link Muxer} whose format requires buffering.
+ * <p>
+ * Each encoded sample is copied into one of a bounded pool of direct buffers, so the
+ * encoder can have its output buffer back right away.  A dedicated thread then hands the
+ * copies to {@link Muxer#writeSample(int, ByteBuffer, MediaCodec.BufferInfo)} in the order
+ * they were queued, and finally calls {@link Muxer#stop()}.
+ * <p>
+ * The pool holds {@link #DEFAULT_BUFFER_MS} worth of samples by default, so storage can
+ * stall for that long without losing anything.  Buffers are only allocated as the queue
+ * first gets that deep, starting at {@link #INITIAL_BUFFER_CAPACITY} and replaced by larger
+ * ones when a bigger sample (usually a keyframe) arrives, so once storage has been as slow
+ * as it will get no more allocation happens.  The pool is a lock-free {@link BoundedQueue}
+ * shared by all tracks, and each track hands its samples to the writer through its own
+ * {@link SpscRing}, so the audio and video encoders never wait on each other or on
+ * storage.  The writer takes whichever track's oldest sample was queued first.
+ * <p>
+ * If every buffer is in use the sample is dropped instead, and on a video track so is
+ * everything up to the next keyframe, which would otherwise reference the missing frame.
+ * The video encoder is asked for that keyframe right away, rather than leaving the gap to
+ * last until its next scheduled one, up to {@link VideoEncoderCore#IFRAME_INTERVAL} away.
+ * <p>
+ * Queue depth, its high-water mark, dropped samples and late samples (those written more
+ * than {@link #LATE_SAMPLE_MS} after being queued) are counted to tell when storage can't
+ * keep up.
+ */
+class BufferedSampleWriter {
+    private static final String TAG = "BufferedSampleWriter";
+    private static final boolean VERBOSE = false;
+
+    static final long DEFAULT_BUFFER_MS = 2000;
+    static final int DEFAULT_POOL_SIZE =
+            (int) (DEFAULT_BUFFER_MS * PreRollBuffer.SAMPLES_PER_SECOND / 1000);
+    static final int INITIAL_BUFFER_CAPACITY = 64 * 1024;
+    static final long LATE_SAMPLE_MS = 250;
+
+    private final Muxer mMuxer;
+    private final int mPoolSize;
+    private final BoundedQueue<Sample> mFree;
+    private final AtomicInteger mAllocated = new AtomicInteger();
+    // One per track, each fed by that track's encoder thread
+    private final SpscRing<Sample>[] mPending;
+    private final Thread mThread;
+    private volatile boolean mWaiting;
+    private volatile boolean mStopRequested;
+    private volatile PreRollBuffer mPreRoll;
+
+    // Only touched by the thread feeding each track
+    private final boolean[] mAwaitingKeyframe;
+
+    private final AtomicInteger mDepth = new AtomicInteger();
+    private final AtomicInteger mHighWaterMark = new AtomicInteger();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final AtomicLong mLate = new AtomicLong();
+
+    static class Sample {
+        ByteBuffer data;
+        final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        int trackIndex;
+        long queuedNs;
+
+        Sample(int capacity) {
+            data = ByteBuffer.allocateDirect(capacity);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    BufferedSampleWriter(Muxer muxer, int poolSize, int trackCount) {
+        mMuxer = muxer;
+        mPoolSize = poolSize;
+        mFree = new BoundedQueue<>(poolSize);
+        mPending = new SpscRing[trackCount];
+        for (int i = 0; i < trackCount; i++) {
+            mPending[i] = new SpscRing<>(poolSize);
+        }
+        mAwaitingKeyframe = new boolean[trackCount];
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, TAG);
+        mThread.start();
+    }
+
+    /**
+     * Copies the sample between encodedData's position and limit, or drops it if the pool
+     * is exhausted.  Never blocks.  encodedData can be released as soon as this returns.
+     *
+     * @param encoder the track's encoder, asked for a sync frame when video is dropped
+     * @return true if the sample was queued
+     */
+    boolean enqueue(EncoderCodec encoder, int trackIndex, ByteBuffer encodedData,
+            MediaCodec.BufferInfo bufferInfo) {
+        boolean keyframe = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+        if (mAwaitingKeyframe[trackIndex]) {
+            if (!keyframe) {
+                mDropped.incrementAndGet();
+                return false;
+            }
+            mAwaitingKeyframe[trackIndex] = false;
+        }
+        int size = encodedData.remaining();
+        Sample sample = mFree.poll();
+        if (sample == null) {
+            sample = allocate(size);
+        }
+        if (sample == null) {
+            mDropped.incrementAndGet();
+            if (mMuxer.isVideoTrack(trackIndex)) {
+                mAwaitingKeyframe[trackIndex] = true;
+                encoder.requestSyncFrame();
+            }
+            if (VERBOSE) Log.d(TAG, "pool exhausted, dropping sample for track " + trackIndex);
+            return false;
+        }
+
+        if (sample.data.capacity() < size) {
+            if (VERBOSE) Log.d(TAG, "growing pool buffer to " + size);
+            sample.data = ByteBuffer.allocateDirect(size);
+        }
+        sample.data.clear();
+        sample.data.put(encodedData.duplicate());
+        sample.data.flip();
+        sample.info.offset = 0;
+        sample.info.size = size;
+        sample.info.presentationTimeUs = bufferInfo.presentationTimeUs;
+        sample.info.flags = bufferInfo.flags;
+        sample.trackIndex = trackIndex;
+        sample.queuedNs = System.nanoTime();
+
+        updateHighWaterMark(mDepth.incrementAndGet());
+        // Can't fail, each ring can hold the whole pool
+        mPending[trackIndex].offer(sample);
+        if (mWaiting) {
+            LockSupport.unpark(mThread);
+        }
+        return true;
+    }
+
+    /**
+     * Has the writer thread write preRoll's samples ahead of any queued after this call.
+     * preRoll must already be closed.
+     */
+    void writeFirst(PreRollBuffer preRoll) {
+        mPreRoll = preRoll;
+        LockSupport.unpark(mThread);
+    }
+
+    /**
+     * Has the writer thread call {@link Muxer#stop()} after writing everything queued so
+     * far, then exit.
+     */
+    void stopAfterPending() {
+        mStopRequested = true;
+        LockSupport.unpark(mThread);
+    }
+
+    /**
+     * Waits for the writer thread to finish.
+     */
+    void join() throws InterruptedException {
+        mThread.join();
+    }
+
+    /**
+     * Number of samples queued but not yet written.
+     */
+    int getQueueDepth() {
+        return mDepth.get();
+    }
+
+    /**
+     * Most samples that have been waiting to be written at once.
+     */
+    int getHighWaterMark() {
+        return mHighWaterMark.get();
+    }
+
+    long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    long getLateCount() {
+        return mLate.get();
+    }
+
+    private void updateHighWaterMark(int depth) {
+        int highWaterMark;
+        do {
+            highWaterMark = mHighWaterMark.get();
+        } while (depth > highWaterMark && !mHighWaterMark.compareAndSet(highWaterMark, depth));
+    }
+
+    /**
+     * A new pool buffer for a size byte sample, or null if the pool is already full grown.
+     */
+    private Sample allocate(int size) {
+        int allocated;
+        do {
+            allocated = mAllocated.get();
+            if (allocated == mPoolSize) {
+                return null;
+            }
+        } while (!mAllocated.compareAndSet(allocated, allocated + 1));
+        if (VERBOSE) Log.d(TAG, "allocating pool buffer " + (allocated + 1) + "/" + mPoolSize);
+        return new Sample(Math.max(size, INITIAL_BUFFER_CAPACITY));
+    }
+
+    private void writeLoop() {
+        long lateNs = TimeUnit.MILLISECONDS.toNanos(LATE_SAMPLE_MS);
+        while (true) {
+            Sample sample = pollOldest();
+            // Checked after polling: a sample queued after writeFirst() is only seen once
+            // the pre-roll is too, so it can't be written ahead of it
+            PreRollBuffer preRoll = mPreRoll;
+            if (preRoll != null) {
+                mPreRoll = null;
+                mDropped.addAndGet(preRoll.writeTo(mMuxer));
+            }
+            if (sample == null) {
+                if (mStopRequested && allPendingEmpty() && mPreRoll == null) {
+                    break;
+                }
+                mWaiting = true;
+                // Check again in case a sample was queued before mWaiting was seen
+                if (allPendingEmpty() && !mStopRequested && mPreRoll == null) {
+                    LockSupport.park(this);
+                }
+                mWaiting = false;
+                continue;
+            }
+            if (System.nanoTime() - sample.queuedNs > lateNs) {
+                mLate.incrementAndGet();
+            }
+            try {
+                mMuxer.writeSample(sample.trackIndex, sample.data, sample.info);
+            } catch (RuntimeException e) {
+                // Keep draining, or the pool would run dry
+                Log.e(TAG, "Dropping sample for track " + sample.trackIndex, e);
+                mDropped.incrementAndGet();
+            }
+            mDepth.decrementAndGet();
+            mFree.offer(sample);
+        }
+        Log.i(TAG, "Writer done. high-water mark: " + getHighWaterMark() + " dropped: "
+                + getDroppedCount() + " late: " + getLateCount());
+        mMuxer.stop();
+    }
+
+    /**
+     * Removes the sample queued first among the heads of every track's ring.
+     */
+    private Sample pollOldest() {
+        SpscRing<Sample> oldest = null;
+        long oldestNs = 0;
+        for (SpscRing<Sample> ring : mPending) {
+            Sample head = ring.peek();
+            if (head != null && (oldest == null || head.queuedNs - oldestNs < 0)) {
+                oldest = ring;
+                oldestNs = head.queuedNs;
+            }
+        }
+        return oldest == null ? null : oldest.poll();
+    }
+
+    private boolean allPendingEmpty() {
+        for (SpscRing<Sample> ring : mPending) {
+            if (!ring.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,104 @@
+package demo.camera.library.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.view.Surface;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An encoder's codec, as used by {@link AndroidEncoder#drainEncoder(boolean)},
+ * {@link MicrophoneEncoder} and {@link Muxer}.
+ * <p>
+ * Mirrors the {@link MediaCodec} methods of the same names, see {@link MediaCodecWrapper},
+ * so that encoders can be driven by a fake codec in unit tests.  The input methods are
+ * only used by encoders fed with buffers rather than a Surface.
+ * <p>
+ * Output is either polled with {@link #dequeueOutputBuffer} or, after a successful
+ * {@link #setCallback}, pushed to a {@link Callback}.
+ * <p>
+ * {@link #stop}, {@link #configure}, {@link #createInputSurface} and {@link #start} let
+ * {@link EncoderPool} reuse a codec for another recording.
+ * @hide
+ */
+public interface EncoderCodec {
+
+    /**
+     * Receives output in callback mode.  Output buffers are released through
+     * {@link #releaseOutputBuffer(int, boolean)} as when polling.
+     */
+    interface Callback {
+
+        void onOutputBufferAvailable(int index, MediaCodec.BufferInfo info);
+
+        void onOutputFormatChanged(MediaFormat format);
+
+        void onError(Exception e);
+    }
+
+    ByteBuffer[] getInputBuffers();
+
+    /**
+     * @return the index of an input buffer, or -1 if none became available in timeoutUs
+     */
+    int dequeueInputBuffer(long timeoutUs);
+
+    void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags);
+
+    /**
+     * Ends the input of a surface-input encoder, which then flushes its output and finishes
+     * with BUFFER_FLAG_END_OF_STREAM.  Some devices silently ignore it, e.g. Google Glass.
+     *
+     * @throws IllegalStateException if the codec can't take it
+     */
+    void signalEndOfInputStream();
+
+    ByteBuffer[] getOutputBuffers();
+
+    /**
+     * @return the index of an output buffer, or one of MediaCodec.INFO_TRY_AGAIN_LATER,
+     * INFO_OUTPUT_FORMAT_CHANGED or INFO_OUTPUT_BUFFERS_CHANGED
+     */
+    int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs);
+
+    MediaFormat getOutputFormat();
+
+    void releaseOutputBuffer(int index, boolean render);
+
+    /**
+     * Output buffer by index, for use from {@link Callback#onOutputBufferAvailable}.
+     */
+    ByteBuffer getOutputBuffer(int index);
+
+    /**
+     * Switches the codec to callback mode.  Must be called before it is configured.
+     *
+     * @param handler where to deliver callbacks, or null for the codec's default
+     * @return false if callbacks aren't supported, and output has to be polled
+     */
+    boolean setCallback(Callback callback, Handler handler);
+
+    /**
+     * Configures the stopped codec as an encoder.
+     */
+    void configure(MediaFormat format);
+
+    /**
+     * Creates the Surface to feed a surface-input encoder, between configure and start.
+     */
+    Surface createInputSurface();
+
+    void start();
+
+    /**
+     * Asks a video encoder to make one of its next frames a sync frame.  Ignored where the
+     * codec can't, before API 19.
+     */
+    void requestSyncFrame();
+
+    /**
+     * Returns the codec to the state it was in before configure, ending the current stream.
+     */
+    void stop();
+}
@@ -0,0 +1,355 @@
+package demo.camera.library.encoder;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps a configured and started encoder of each kind ready for the next recording, so
+ * starting one doesn't pay for creating a MediaCodec.
+ * <p>
+ * When a recording finishes its encoder is {@link #recycle recycled} rather than released:
+ * on the pool's own thread the codec is stopped and configured and started again with the
+ * same format (see {@link AndroidEncoder#recycle()}), and the encoder waits in the pool for
+ * the next {@link #acquireAudioEncoder acquire} asking for that format, which only needs
+ * to give it a muxer.  An acquire arriving while the previous encoder is still being
+ * recycled waits for it, as that is still quicker than creating one.  Only one encoder of
+ * each kind is kept, as devices support few codec instances at once.
+ * <p>
+ * How long each acquire took is recorded in {@link #getAudioStartLatency()} and
+ * {@link #getVideoStartLatency()}.
+ * @hide
+ */
+public class EncoderPool {
+    private static final String TAG = "EncoderPool";
+    private static final boolean VERBOSE = false;
+
+    static final int AUDIO = 0;
+    static final int VIDEO = 1;
+    static final long RECYCLE_WAIT_MS = 250;
+
+    private static EncoderPool sDefault;
+
+    /**
+     * Creates an encoder for a pool slot.
+     */
+    interface Factory {
+        AndroidEncoder create() throws IOException;
+    }
+
+    /**
+     * The encoder of one kind waiting in the pool, or being recycled to wait there.
+     */
+    private static class Slot {
+        AndroidEncoder encoder;
+        String key;
+        String recyclingKey;
+    }
+
+    private final Slot[] mSlots = { new Slot(), new Slot() };
+    private final LatencyHistogram[] mStartLatency = { new LatencyHistogram(), new LatencyHistogram() };
+    private final AtomicLong mWarmStarts = new AtomicLong();
+    private final AtomicLong mColdStarts = new AtomicLong();
+    private final ExecutorService mExecutor;
+
+    /**
+     * The pool shared by the library's encoders.
+     */
+    public static synchronized EncoderPool getDefault() {
+        if (sDefault == null) {
+            sDefault = new EncoderPool();
+        }
+        return sDefault;
+    }
+
+    EncoderPool() {
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Creates encoders for config's formats in the background, so that even the first
+     * recording starts warm.  Only video's if config has no audio.
+     */
+    public void prewarm(final SessionConfig config) {
+        if (config.isAudioEnabled()) {
+            prewarm(AUDIO, audioKey(config.getNumAudioChannels(), config.getAudioBitrate(),
+                    config.getAudioSamplerate()), new Factory() {
+                @Override
+                public AndroidEncoder create() throws IOException {
+                    return new AudioEncoderCore(config.getNumAudioChannels(), config.getAudioBitrate(),
+                            config.getAudioSamplerate(), null);
+                }
+            });
+        }
+        prewarm(VIDEO, videoKey(config.getVideoWidth(), config.getVideoHeight(),
+                config.getVideoBitrate(), config.shouldUseEncoderCallbacks()), new Factory() {
+            @Override
+            public AndroidEncoder create() throws IOException {
+                return new VideoEncoderCore(config.getVideoWidth(), config.getVideoHeight(),
+                        config.getVideoBitrate(), null, config.shouldUseEncoderCallbacks());
+            }
+        });
+    }
+
+    /**
+     * Returns a started audio encoder writing to muxer, from the pool if there is a
+     * matching one.
+     */
+    public AudioEncoderCore acquireAudioEncoder(final int numChannels, final int bitRate,
+                                                final int sampleRate, Muxer muxer) throws IOException {
+        return (AudioEncoderCore) acquire(AUDIO, audioKey(numChannels, bitRate, sampleRate), muxer,
+                new Factory() {
+                    @Override
+                    public AndroidEncoder create() throws IOException {
+                        return new AudioEncoderCore(numChannels, bitRate, sampleRate, null);
+                    }
+                });
+    }
+
+    /**
+     * Returns a started video encoder writing to muxer, from the pool if there is a
+     * matching one.  Its input surface is new either way.
+     */
+    public VideoEncoderCore acquireVideoEncoder(final int width, final int height, final int bitRate,
+                                                final boolean useCallbacks, Muxer muxer) throws IOException {
+        return (VideoEncoderCore) acquire(VIDEO, videoKey(width, height, bitRate, useCallbacks), muxer,
+                new Factory() {
+                    @Override
+                    public AndroidEncoder create() throws IOException {
+                        return new VideoEncoderCore(width, height, bitRate, null, useCallbacks);
+                    }
+                });
+    }
+
+    /**
+     * Takes back an encoder from {@link #acquireAudioEncoder} or {@link #acquireVideoEncoder}
+     * once its final drain is done.  It is recycled in the background and kept for the next
+     * acquire, replacing any other encoder of its kind, or released if it can't be reused.
+     * Returns right away.
+     */
+    public void recycle(final AndroidEncoder encoder) {
+        final int kind = encoder instanceof VideoEncoderCore ? VIDEO : AUDIO;
+        final String key;
+        synchronized (this) {
+            key = encoder.mPoolKey;
+            if (key == null) {
+                Log.w(TAG, "Releasing an encoder that didn't come from the pool");
+                encoder.release();
+                return;
+            }
+            mSlots[kind].recyclingKey = key;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean reusable;
+                try {
+                    encoder.recycle();
+                    reusable = true;
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Couldn't recycle encoder, releasing it", e);
+                    reusable = false;
+                }
+                AndroidEncoder replaced;
+                synchronized (EncoderPool.this) {
+                    Slot slot = mSlots[kind];
+                    if (key.equals(slot.recyclingKey)) {
+                        slot.recyclingKey = null;
+                    }
+                    if (reusable) {
+                        replaced = slot.encoder;
+                        slot.encoder = encoder;
+                        slot.key = key;
+                    } else {
+                        replaced = encoder;
+                    }
+                    EncoderPool.this.notifyAll();
+                }
+                releaseQuietly(replaced);
+            }
+        });
+    }
+
+    /**
+     * Releases the encoders waiting in the pool, e.g. when the app stops recording for a
+     * while.  Encoders recycled afterwards are kept again.
+     */
+    public void releaseAll() {
+        AndroidEncoder[] released = new AndroidEncoder[mSlots.length];
+        synchronized (this) {
+            for (int i = 0; i < mSlots.length; i++) {
+                released[i] = mSlots[i].encoder;
+                mSlots[i].encoder = null;
+                mSlots[i].key = null;
+            }
+        }
+        for (AndroidEncoder encoder : released) {
+            releaseQuietly(encoder);
+        }
+    }
+
+    /**
+     * How long acquiring an audio encoder took.
+     */
+    public LatencyHistogram getAudioStartLatency() {
+        return mStartLatency[AUDIO];
+    }
+
+    /**
+     * How long acquiring a video encoder took.
+     */
+    public LatencyHistogram getVideoStartLatency() {
+        return mStartLatency[VIDEO];
+    }
+
+    /**
+     * Number of encoders acquired from the pool.
+     */
+    public long getWarmStartCount() {
+        return mWarmStarts.get();
+    }
+
+    /**
+     * Number of encoders that had to be created when acquired.
+     */
+    public long getColdStartCount() {
+        return mColdStarts.get();
+    }
+
+    /**
+     * Waits up to timeoutMs for recycling in progress to finish.  For tests.
+     *
+     * @return false if it didn't
+     */
+    synchronized boolean awaitIdle(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        for (Slot slot : mSlots) {
+            while (slot.recyclingKey != null) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                wait(remaining);
+            }
+        }
+        return true;
+    }
+
+    AndroidEncoder acquire(int kind, String key, Muxer muxer, Factory factory) throws IOException {
+        long startNs = System.nanoTime();
+        AndroidEncoder encoder = takeWarm(kind, key);
+        if (encoder != null) {
+            mWarmStarts.incrementAndGet();
+            if (VERBOSE) Log.d(TAG, "Warm start for " + key);
+        } else {
+            encoder = factory.create();
+            encoder.mPoolKey = key;
+            mColdStarts.incrementAndGet();
+            Log.i(TAG, "Cold start for " + key);
+        }
+        encoder.setMuxer(muxer);
+        mStartLatency[kind].record(System.nanoTime() - startNs, TimeUnit.NANOSECONDS);
+        return encoder;
+    }
+
+    private void prewarm(final int kind, final String key, final Factory factory) {
+        synchronized (this) {
+            if (key.equals(mSlots[kind].key) || key.equals(mSlots[kind].recyclingKey)) {
+                return;
+            }
+            mSlots[kind].recyclingKey = key;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                AndroidEncoder encoder = null;
+                try {
+                    encoder = factory.create();
+                    encoder.mPoolKey = key;
+                } catch (IOException | RuntimeException e) {
+                    Log.w(TAG, "Couldn't prewarm " + key, e);
+                }
+                AndroidEncoder replaced = null;
+                synchronized (EncoderPool.this) {
+                    Slot slot = mSlots[kind];
+                    if (key.equals(slot.recyclingKey)) {
+                        slot.recyclingKey = null;
+                    }
+                    if (encoder != null) {
+                        replaced = slot.encoder;
+                        slot.encoder = encoder;
+                        slot.key = key;
+                    }
+                    EncoderPool.this.notifyAll();
+                }
+                releaseQuietly(replaced);
+            }
+        });
+    }
+
+    /**
+     * Takes the pooled encoder of kind if it was configured for key, first waiting for one
+     * being recycled for key.  An encoder for another key is released, as the app has
+     * moved on from its format.
+     */
+    private AndroidEncoder takeWarm(int kind, String key) {
+        AndroidEncoder stale = null;
+        AndroidEncoder warm = null;
+        synchronized (this) {
+            Slot slot = mSlots[kind];
+            long deadline = System.currentTimeMillis() + RECYCLE_WAIT_MS;
+            long remaining = RECYCLE_WAIT_MS;
+            while (key.equals(slot.recyclingKey) && remaining > 0) {
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+            if (slot.encoder != null) {
+                if (key.equals(slot.key)) {
+                    warm = slot.encoder;
+                } else {
+                    stale = slot.encoder;
+                }
+                slot.encoder = null;
+                slot.key = null;
+            }
+        }
+        releaseQuietly(stale);
+        return warm;
+    }
+
+    private static void releaseQuietly(AndroidEncoder encoder) {
+        if (encoder == null) {
+            return;
+        }
+        try {
+            encoder.release();
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Error releasing encoder", e);
+        }
+    }
+
+    private static String audioKey(int numChannels, int bitRate, int sampleRate) {
+        return "audio " + numChannels + "ch " + bitRate + "bps " + sampleRate + "Hz";
+    }
+
+    private static String videoKey(int width, int height, int bitRate, boolean useCallbacks) {
+        return "video " + width + "x" + height + " " + bitRate + "bps" + (useCallbacks ? " callbacks" : "");
+    }
+}
@@ -0,0 +1,715 @@
+package demo.camera.library.encoder;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import demo.camera.library.utils.BoxWriter;
+
+/**
+ * Pure Java muxer that writes fragmented MP4 straight from
+ * {@link #writeSampleData(EncoderCodec, int, int, ByteBuffer, MediaCodec.BufferInfo)}.
+ * <p>
+ * The ftyp and an empty moov (with mvex) are written as soon as all tracks are added.
+ * Samples are then collected per track and written out as one moof + mdat fragment per
+ * GOP: a fragment is closed whenever a video sync frame arrives.  Without a video track a
+ * fragment is closed about every {@link #MAX_FRAGMENT_DURATION_US}.  Each track's samples
+ * are collected in a direct buffer, written to the file from there, which only grows when
+ * a GOP is bigger than any before it.
+ * <p>
+ * Track IDs are fixed by media type, video 1 and audio 2, and the tracks are written in
+ * that order, so every chunk of a session has the same moov whichever encoder reported its
+ * format first, and the chunks can be joined.
+ * <p>
+ * Because nothing has to be rewritten at stop, an interrupted recording stays playable up
+ * to its last complete fragment, and chunks can be joined by concatenating fragments (see
+ * {@link demo.camera.library.utils.FragmentedMp4Joiner}).
+ * <p>
+ * Supports H.264 ("video/avc") and AAC ("audio/mp4a-latm") tracks.
+ * @hide
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class FragmentedMp4Muxer extends Muxer {
+    private static final String TAG = "FragmentedMp4Muxer";
+    private static final boolean VERBOSE = false;
+
+    private static final String MIME_AVC = "video/avc";
+    private static final String MIME_AAC = "audio/mp4a-latm";
+
+    private static final int VIDEO_TIMESCALE = 90000;
+    static final int VIDEO_TRACK_ID = 1;
+    static final int AUDIO_TRACK_ID = 2;
+    private static final long MAX_FRAGMENT_DURATION_US = 1000000;
+    static final int INITIAL_PAYLOAD_CAPACITY = 256 * 1024;
+
+    private static final int TFHD_DEFAULT_BASE_IS_MOOF = 0x020000;
+    private static final int TRUN_DATA_OFFSET = 0x001;
+    private static final int TRUN_SAMPLE_DURATION = 0x100;
+    private static final int TRUN_SAMPLE_SIZE = 0x200;
+    private static final int TRUN_SAMPLE_FLAGS = 0x400;
+    // sample_depends_on = 2: doesn't depend on other samples
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    // sample_depends_on = 1, sample_is_non_sync_sample = 1
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+    private static final int[] UNITY_MATRIX = {
+            0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000 };
+
+    private final List<Track> mTracks = new ArrayList<>();           // By track index
+    private final List<Track> mTracksById = new ArrayList<>();       // As written
+    private final BoxWriter mHeader = new BoxWriter(16 * 1024);
+    private RandomAccessFile mFile;
+    private FileChannel mChannel;
+    private volatile boolean mStarted;
+    private boolean mHasVideo;
+    private int mSequenceNumber;
+
+    private FragmentedMp4Muxer(String outputFile) {
+        super(outputFile, FORMAT.FRAGMENTED_MPEG4);
+        try {
+            mFile = new RandomAccessFile(outputFile, "rw");
+            mFile.setLength(0);
+            mChannel = mFile.getChannel();
+        } catch (IOException e) {
+            throw new RuntimeException("Output file creation failed", e);
+        }
+        mStarted = false;
+    }
+
+    public static FragmentedMp4Muxer create(String outputFile) {
+        return new FragmentedMp4Muxer(outputFile);
+    }
+
+    @Override
+    public int addTrack(MediaFormat trackFormat) {
+        return addTrack(trackFormat, Track.fromFormat(trackFormat));
+    }
+
+    /**
+     * Adds track, described by trackFormat, which is otherwise only used by the Muxer.
+     */
+    int addTrack(MediaFormat trackFormat, Track track) {
+        for (Track added : mTracks) {
+            if (added.id == track.id) {
+                throw new IllegalArgumentException("Already have a track with id " + track.id);
+            }
+        }
+        int trackIndex = super.addTrack(trackFormat);
+        if (mStarted)
+            throw new RuntimeException("format changed twice");
+        mTracks.add(track);
+        int position = 0;
+        while (position < mTracksById.size() && mTracksById.get(position).id < track.id) {
+            position++;
+        }
+        mTracksById.add(position, track);
+        mHasVideo |= track.isVideo;
+
+        if (allTracksAdded()) {
+            start();
+        }
+        return trackIndex;
+    }
+
+    @Override
+    protected void start() {
+        mHeader.reset();
+        writeFtyp(mHeader);
+        writeMoov(mHeader);
+        write(mHeader);
+        mStarted = true;
+        Log.d(TAG, "Fragmented mp4 muxer start");
+    }
+
+    @Override
+    protected void stop() {
+        if (mChannel == null) {
+            return;
+        }
+        if (mStarted) {
+            writeFragment(true);
+            mStarted = false;
+        }
+        Log.d(TAG, "Fragmented mp4 muxer stop after " + mSequenceNumber + " fragments");
+        release();
+    }
+
+    @Override
+    public void release() {
+        if (mChannel != null) {
+            super.release();
+            try {
+                mFile.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Error closing " + mOutputPath, e);
+            }
+            mFile = null;
+            mChannel = null;
+            Log.d(TAG, "Fragmented mp4 muxer Release");
+        } else {
+            Log.d(TAG, "Fragmented mp4 muxer Release called twice");
+        }
+    }
+
+    @Override
+    public boolean isStarted() {
+        return mStarted;
+    }
+
+    @Override
+    public void writeSampleData(EncoderCodec encoder, int trackIndex, int bufferIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            // The codec config is written to the sample entry from the track format
+            if (VERBOSE) Log.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
+            skipSample(encoder, bufferIndex, bufferInfo);
+        } else if (bufferInfo.size == 0) {
+            if (VERBOSE) Log.d(TAG, "ignoring zero size buffer");
+            skipSample(encoder, bufferIndex, bufferInfo);
+        } else if (!mStarted) {
+            Log.e(TAG, "writeSampleData called before muxer started. Ignoring packet. Track index: " + trackIndex + " tracks added: " + mNumTracks);
+            skipSample(encoder, bufferIndex, bufferInfo);
+        } else {
+            writeOrBufferSample(encoder, trackIndex, bufferIndex, encodedData, bufferInfo);
+        }
+    }
+
+    @Override
+    protected void writeSample(int trackIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+        long timeUs = getNextRelativePts(bufferInfo.presentationTimeUs, trackIndex);
+        Track track = mTracks.get(trackIndex);
+        boolean sync = !track.isVideo
+                || (bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+        long time = track.toTimescale(timeUs);
+
+        if (startsFragment(track, sync, time)) {
+            track.nextTime = time;
+            writeFragment(false);
+        }
+        track.addSample(encodedData, time, sync);
+    }
+
+    @Override
+    public void forceStop() {
+        requestStop();
+        Log.d(TAG, "forceStop");
+    }
+
+    private boolean startsFragment(Track track, boolean sync, long time) {
+        if (track.sampleCount == 0) {
+            return false;
+        }
+        if (mHasVideo) {
+            return track.isVideo && sync;
+        }
+        return track.fromTimescale(time - track.times[0]) >= MAX_FRAGMENT_DURATION_US;
+    }
+
+    // ----- fragments -----
+
+    /**
+     * Writes every sample whose duration is known as one moof + mdat.  A track's last
+     * sample only has a known duration if the time of the sample after it was set, or if
+     * this is the final fragment.
+     */
+    private void writeFragment(boolean last) {
+        BoxWriter moof = mHeader;
+        moof.reset();
+        moof.startBox("moof");
+        moof.startFullBox("mfhd", 0, 0).writeInt(mSequenceNumber + 1).endBox();
+        boolean empty = true;
+        for (Track track : mTracksById) {
+            track.fragmentSamples = last || track.nextTime >= 0
+                    ? track.sampleCount : track.sampleCount - 1;
+            if (track.fragmentSamples > 0) {
+                writeTraf(moof, track, last);
+                empty = false;
+            }
+            track.nextTime = -1;
+        }
+        moof.endBox();
+        if (empty) {
+            return;
+        }
+        mSequenceNumber++;
+
+        long payloadSize = 0;
+        for (Track track : mTracksById) {
+            if (track.fragmentSamples > 0) {
+                moof.putInt(track.dataOffsetPosition, (int) (moof.size() + 8 + payloadSize));
+                payloadSize += track.fragmentBytes();
+            }
+        }
+        moof.writeInt((int) (8 + payloadSize)).writeInt(BoxWriter.fourcc("mdat"));
+        write(moof);
+        for (Track track : mTracksById) {
+            if (track.fragmentSamples > 0) {
+                ByteBuffer payload = track.payload.duplicate();
+                payload.limit(track.payloadStart + (int) track.fragmentBytes());
+                payload.position(track.payloadStart);
+                write(payload);
+                track.removeFragmentSamples();
+            }
+        }
+        if (VERBOSE) Log.d(TAG, "wrote fragment " + mSequenceNumber + ", " + payloadSize + " bytes");
+    }
+
+    private void writeTraf(BoxWriter moof, Track track, boolean last) {
+        int count = track.fragmentSamples;
+        moof.startBox("traf");
+        moof.startFullBox("tfhd", 0, TFHD_DEFAULT_BASE_IS_MOOF).writeInt(track.id).endBox();
+        moof.startFullBox("tfdt", 1, 0).writeLong(track.times[0]).endBox();
+        moof.startFullBox("trun", 0, TRUN_DATA_OFFSET | TRUN_SAMPLE_DURATION
+                | TRUN_SAMPLE_SIZE | TRUN_SAMPLE_FLAGS);
+        moof.writeInt(count);
+        track.dataOffsetPosition = moof.size();
+        moof.writeInt(0);               // data_offset, patched once the moof size is known
+        for (int i = 0; i < count; i++) {
+            long duration;
+            if (i + 1 < track.sampleCount) {
+                duration = track.times[i + 1] - track.times[i];
+            } else if (!last) {
+                duration = track.nextTime - track.times[i];
+            } else {
+                duration = track.lastDuration;
+            }
+            track.lastDuration = duration;
+            moof.writeInt((int) duration);
+            moof.writeInt(track.sizes[i]);
+            moof.writeInt(track.syncs[i] ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+        }
+        moof.endBox();
+        moof.endBox();
+    }
+
+    private void write(BoxWriter writer) {
+        write(writer.asByteBuffer());
+    }
+
+    private void write(ByteBuffer buffer) {
+        try {
+            while (buffer.hasRemaining()) {
+                mChannel.write(buffer);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Writing " + mOutputPath + " failed", e);
+        }
+    }
+
+    // ----- init segment -----
+
+    private static void writeFtyp(BoxWriter writer) {
+        writer.startBox("ftyp");
+        writer.writeInt(BoxWriter.fourcc("iso6")).writeInt(0);
+        writer.writeInt(BoxWriter.fourcc("iso6"));
+        writer.writeInt(BoxWriter.fourcc("isom"));
+        writer.writeInt(BoxWriter.fourcc("mp41"));
+        writer.endBox();
+    }
+
+    private void writeMoov(BoxWriter writer) {
+        writer.startBox("moov");
+        writer.startFullBox("mvhd", 0, 0);
+        writer.writeInt(0).writeInt(0);             // creation, modification time
+        writer.writeInt(1000).writeInt(0);          // timescale, duration
+        writer.writeInt(0x00010000).writeShort(0x0100).writeZeros(10);
+        writeMatrix(writer);
+        writer.writeZeros(24);
+        writer.writeInt(AUDIO_TRACK_ID + 1);        // next_track_ID
+        writer.endBox();
+
+        for (Track track : mTracksById) {
+            writeTrak(writer, track);
+        }
+
+        writer.startBox("mvex");
+        for (Track track : mTracksById) {
+            writer.startFullBox("trex", 0, 0);
+            writer.writeInt(track.id).writeInt(1).writeInt(0).writeInt(0).writeInt(0);
+            writer.endBox();
+        }
+        writer.endBox();
+        writer.endBox();
+    }
+
+    private static void writeTrak(BoxWriter writer, Track track) {
+        writer.startBox("trak");
+        writer.startFullBox("tkhd", 0, 0x7);        // enabled, in movie, in preview
+        writer.writeInt(0).writeInt(0);             // creation, modification time
+        writer.writeInt(track.id).writeInt(0).writeInt(0);
+        writer.writeZeros(8);
+        writer.writeShort(0).writeShort(0);         // layer, alternate_group
+        writer.writeShort(track.isVideo ? 0 : 0x0100).writeShort(0);
+        writeMatrix(writer);
+        writer.writeInt(track.width << 16).writeInt(track.height << 16);
+        writer.endBox();
+
+        writer.startBox("mdia");
+        writer.startFullBox("mdhd", 0, 0);
+        writer.writeInt(0).writeInt(0);
+        writer.writeInt(track.timescale).writeInt(0);
+        writer.writeShort(0x55c4).writeShort(0);    // "und"
+        writer.endBox();
+        writer.startFullBox("hdlr", 0, 0);
+        writer.writeInt(0).writeInt(BoxWriter.fourcc(track.isVideo ? "vide" : "soun"));
+        writer.writeZeros(12);
+        writer.write((track.isVideo ? "VideoHandler" : "SoundHandler").getBytes()).writeByte(0);
+        writer.endBox();
+
+        writer.startBox("minf");
+        if (track.isVideo) {
+            writer.startFullBox("vmhd", 0, 1).writeZeros(8).endBox();
+        } else {
+            writer.startFullBox("smhd", 0, 0).writeZeros(4).endBox();
+        }
+        writer.startBox("dinf");
+        writer.startFullBox("dref", 0, 0).writeInt(1);
+        writer.startFullBox("url ", 0, 1).endBox();   // media is in this file
+        writer.endBox();
+        writer.endBox();
+
+        writer.startBox("stbl");
+        writer.startFullBox("stsd", 0, 0).writeInt(1);
+        if (track.isVideo) {
+            writeAvcSampleEntry(writer, track);
+        } else {
+            writeAacSampleEntry(writer, track);
+        }
+        writer.endBox();
+        writer.startFullBox("stts", 0, 0).writeInt(0).endBox();
+        writer.startFullBox("stsc", 0, 0).writeInt(0).endBox();
+        writer.startFullBox("stsz", 0, 0).writeInt(0).writeInt(0).endBox();
+        writer.startFullBox("stco", 0, 0).writeInt(0).endBox();
+        writer.endBox();
+        writer.endBox();
+        writer.endBox();
+        writer.endBox();
+    }
+
+    private static void writeAvcSampleEntry(BoxWriter writer, Track track) {
+        byte[] sps = track.codecConfig[0];
+        byte[] pps = track.codecConfig[1];
+        writer.startBox("avc1");
+        writer.writeZeros(6).writeShort(1);         // data_reference_index
+        writer.writeZeros(16);
+        writer.writeShort(track.width).writeShort(track.height);
+        writer.writeInt(0x00480000).writeInt(0x00480000).writeInt(0);
+        writer.writeShort(1);                       // frame_count
+        writer.writeZeros(32);                      // compressorname
+        writer.writeShort(0x18).writeShort(0xffff);
+
+        writer.startBox("avcC");
+        writer.writeByte(1).writeByte(sps[1]).writeByte(sps[2]).writeByte(sps[3]);
+        writer.writeByte(0xff);                     // 4 byte NAL unit lengths
+        writer.writeByte(0xe1).writeShort(sps.length).write(sps);
+        writer.writeByte(1).writeShort(pps.length).write(pps);
+        writer.endBox();
+        writer.endBox();
+    }
+
+    private static void writeAacSampleEntry(BoxWriter writer, Track track) {
+        byte[] audioSpecificConfig = track.codecConfig[0];
+        int decoderConfigSize = 13 + 2 + audioSpecificConfig.length;
+        int esSize = 3 + 2 + decoderConfigSize + 3;
+
+        writer.startBox("mp4a");
+        writer.writeZeros(6).writeShort(1);         // data_reference_index
+        writer.writeZeros(8);
+        writer.writeShort(track.channelCount).writeShort(16);
+        writer.writeZeros(4);
+        writer.writeInt(track.timescale << 16);
+
+        writer.startFullBox("esds", 0, 0);
+        writer.writeByte(0x03).writeByte(esSize).writeShort(track.id).writeByte(0);
+        writer.writeByte(0x04).writeByte(decoderConfigSize);
+        writer.writeByte(0x40);                     // MPEG-4 audio
+        writer.writeByte(0x15);                     // audio stream
+        writer.writeZeros(3);                       // bufferSizeDB
+        writer.writeInt(track.bitrate).writeInt(track.bitrate);
+        writer.writeByte(0x05).writeByte(audioSpecificConfig.length).write(audioSpecificConfig);
+        writer.writeByte(0x06).writeByte(1).writeByte(0x02);
+        writer.endBox();
+        writer.endBox();
+    }
+
+    private static void writeMatrix(BoxWriter writer) {
+        for (int value : UNITY_MATRIX) {
+            writer.writeInt(value);
+        }
+    }
+
+    // ----- H.264 -----
+
+    /**
+     * Returns the position of the next 00 00 01 start code at or after from, or end.
+     */
+    private static int findStartCode(ByteBuffer data, int from, int end) {
+        for (int i = from; i + 2 < end; i++) {
+            if ((data.get(i + 2) & 0xff) > 1) {
+                i += 2;
+            } else if (data.get(i) == 0 && data.get(i + 1) == 0 && data.get(i + 2) == 1) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Splits the Annex B byte stream between data's position and limit into NAL units.
+     * Stores the [start, end) pairs in units, as many as fit; a stream without start codes
+     * is one NAL unit.
+     *
+     * @return how many ints the pairs take, which if more than units.length means the
+     * stream has to be split again into a bigger array
+     */
+    private static int findNalUnits(ByteBuffer data, int[] units) {
+        int end = data.limit();
+        int startCode = findStartCode(data, data.position(), end);
+        if (startCode == end) {
+            return addNalUnit(units, 0, data.position(), end);
+        }
+        int count = 0;
+        int nalStart = -1;
+        while (true) {
+            if (nalStart >= 0) {
+                int nalEnd = startCode;
+                // The leading zero of a 4 byte start code trails the previous unit
+                while (nalEnd > nalStart && data.get(nalEnd - 1) == 0) {
+                    nalEnd--;
+                }
+                count = addNalUnit(units, count, nalStart, nalEnd);
+            }
+            if (startCode == end) {
+                break;
+            }
+            nalStart = startCode + 3;
+            startCode = findStartCode(data, nalStart, end);
+        }
+        return count;
+    }
+
+    private static int addNalUnit(int[] units, int count, int start, int end) {
+        if (count + 2 <= units.length) {
+            units[count] = start;
+            units[count + 1] = end;
+        }
+        return count + 2;
+    }
+
+    /**
+     * Returns the SPS and PPS from an AVC track format's csd-0 / csd-1.
+     */
+    private static byte[][] readAvcConfig(MediaFormat format) {
+        byte[] sps = null;
+        byte[] pps = null;
+        for (String key : new String[] { "csd-0", "csd-1" }) {
+            ByteBuffer csd = format.containsKey(key) ? format.getByteBuffer(key) : null;
+            if (csd == null) {
+                continue;
+            }
+            csd = csd.duplicate();
+            int[] units = new int[8];
+            int count = findNalUnits(csd, units);
+            if (count > units.length) {
+                units = new int[count];
+                findNalUnits(csd, units);
+            }
+            for (int i = 0; i < count; i += 2) {
+                byte[] unit = new byte[units[i + 1] - units[i]];
+                csd.position(units[i]);
+                csd.get(unit);
+                int type = unit.length > 0 ? unit[0] & 0x1f : 0;
+                if (type == 7 && sps == null && unit.length >= 4) {
+                    sps = unit;
+                } else if (type == 8 && pps == null) {
+                    pps = unit;
+                }
+            }
+        }
+        if (sps == null || pps == null) {
+            throw new IllegalArgumentException("AVC track format is missing SPS / PPS: " + format);
+        }
+        return new byte[][] { sps, pps };
+    }
+
+    static class Track {
+        final int id;
+        final boolean isVideo;
+        final int timescale;
+        final int width;
+        final int height;
+        final int channelCount;
+        final int bitrate;
+        final byte[][] codecConfig;
+
+        // Samples collected for the next fragment, from payloadStart to payload's position
+        ByteBuffer payload = ByteBuffer.allocateDirect(INITIAL_PAYLOAD_CAPACITY);
+        int payloadStart;
+        long[] times = new long[64];
+        int[] sizes = new int[64];
+        boolean[] syncs = new boolean[64];
+        int sampleCount;
+        int[] nalUnits = new int[16];       // Scratch for findNalUnits, grown as needed
+
+        // Time of the sample following the collected ones, or -1 if not known yet
+        long nextTime = -1;
+        long lastDuration;
+        int fragmentSamples;
+        int dataOffsetPosition;
+
+        static Track fromFormat(MediaFormat format) {
+            String mime = format.getString(MediaFormat.KEY_MIME);
+            int bitrate = format.containsKey(MediaFormat.KEY_BIT_RATE)
+                    ? format.getInteger(MediaFormat.KEY_BIT_RATE) : 0;
+            if (MIME_AVC.equals(mime)) {
+                return video(format.getInteger(MediaFormat.KEY_WIDTH),
+                        format.getInteger(MediaFormat.KEY_HEIGHT), bitrate, readAvcConfig(format));
+            } else if (MIME_AAC.equals(mime)) {
+                ByteBuffer csd = format.getByteBuffer("csd-0");
+                if (csd == null) {
+                    throw new IllegalArgumentException("AAC track format is missing csd-0: " + format);
+                }
+                byte[] audioSpecificConfig = new byte[csd.remaining()];
+                csd.duplicate().get(audioSpecificConfig);
+                return audio(format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                        format.getInteger(MediaFormat.KEY_CHANNEL_COUNT), bitrate,
+                        audioSpecificConfig);
+            }
+            throw new IllegalArgumentException("Unsupported track format: " + mime);
+        }
+
+        /**
+         * @param codecConfig the SPS and the PPS, without start codes
+         */
+        static Track video(int width, int height, int bitrate, byte[][] codecConfig) {
+            return new Track(VIDEO_TRACK_ID, true, VIDEO_TIMESCALE, width, height, 0, bitrate,
+                    codecConfig, VIDEO_TIMESCALE / SessionConfig.FRAME_RATE);
+        }
+
+        static Track audio(int sampleRate, int channelCount, int bitrate,
+                           byte[] audioSpecificConfig) {
+            // 1024 samples per AAC frame
+            return new Track(AUDIO_TRACK_ID, false, sampleRate, 0, 0, channelCount, bitrate,
+                    new byte[][] { audioSpecificConfig }, 1024);
+        }
+
+        private Track(int id, boolean isVideo, int timescale, int width, int height,
+                      int channelCount, int bitrate, byte[][] codecConfig, long lastDuration) {
+            this.id = id;
+            this.isVideo = isVideo;
+            this.timescale = timescale;
+            this.width = width;
+            this.height = height;
+            this.channelCount = channelCount;
+            this.bitrate = bitrate;
+            this.codecConfig = codecConfig;
+            this.lastDuration = lastDuration;
+        }
+
+        long toTimescale(long timeUs) {
+            return timeUs * timescale / 1000000;
+        }
+
+        long fromTimescale(long time) {
+            return time * 1000000 / timescale;
+        }
+
+        void addSample(ByteBuffer data, long time, boolean sync) {
+            if (sampleCount == times.length) {
+                times = Arrays.copyOf(times, sampleCount * 2);
+                sizes = Arrays.copyOf(sizes, sampleCount * 2);
+                syncs = Arrays.copyOf(syncs, sampleCount * 2);
+            }
+            if (isVideo) {
+                // MediaCodec emits Annex B; mp4 wants length prefixed NAL units
+                int count = findNalUnits(data, nalUnits);
+                if (count > nalUnits.length) {
+                    nalUnits = new int[count * 2];
+                    findNalUnits(data, nalUnits);
+                }
+                int[] units = nalUnits;
+                int size = 0;
+                for (int i = 0; i < count; i += 2) {
+                    size += 4 + units[i + 1] - units[i];
+                }
+                ensureCapacity(size);
+                int position = data.position();
+                int limit = data.limit();
+                for (int i = 0; i < count; i += 2) {
+                    data.limit(units[i + 1]).position(units[i]);
+                    payload.putInt(units[i + 1] - units[i]).put(data);
+                }
+                data.limit(limit).position(position);
+                sizes[sampleCount] = size;
+            } else {
+                sizes[sampleCount] = data.remaining();
+                ensureCapacity(sizes[sampleCount]);
+                int position = data.position();
+                payload.put(data);
+                data.position(position);
+            }
+            times[sampleCount] = time;
+            syncs[sampleCount] = sync;
+            sampleCount++;
+        }
+
+        long fragmentBytes() {
+            long bytes = 0;
+            for (int i = 0; i < fragmentSamples; i++) {
+                bytes += sizes[i];
+            }
+            return bytes;
+        }
+
+        /**
+         * Makes room for size more bytes of samples.  The samples held back from the last
+         * fragment are only moved to the front of payload, or to a bigger one, when they're
+         * in the way.
+         */
+        private void ensureCapacity(int size) {
+            if (payload.remaining() >= size) {
+                return;
+            }
+            int held = payload.position() - payloadStart;
+            payload.limit(payload.position()).position(payloadStart);
+            if (held + size <= payload.capacity()) {
+                payload.compact();
+            } else {
+                ByteBuffer grown = ByteBuffer.allocateDirect(
+                        Math.max(payload.capacity() * 2, held + size));
+                if (VERBOSE) Log.d(TAG, "growing track " + id + " payload to " + grown.capacity());
+                grown.put(payload);
+                payload = grown;
+            }
+            payloadStart = 0;
+        }
+
+        /**
+         * Drops the samples just written, keeping any held back for the next fragment where
+         * they are.
+         */
+        void removeFragmentSamples() {
+            int remaining = sampleCount - fragmentSamples;
+            if (remaining > 0) {
+                payloadStart += (int) fragmentBytes();
+                System.arraycopy(times, fragmentSamples, times, 0, remaining);
+                System.arraycopy(sizes, fragmentSamples, sizes, 0, remaining);
+                System.arraycopy(syncs, fragmentSamples, syncs, 0, remaining);
+            } else {
+                payload.clear();
+                payloadStart = 0;
+            }
+            sampleCount = remaining;
+            fragmentSamples = 0;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package demo.camera.library.encoder;
+
+/**
+ * Which camera frames {@link TextureMovieEncoder} gives up on when its encoder thread falls
+ * behind and more frames are waiting than the queue depth allows.
+ */
+public enum FrameDropPolicy {
+    /**
+     * Skip the oldest waiting frames, so the encoder catches up to the camera at the cost
+     * of a jump in the recording.
+     */
+    DROP_OLDEST,
+    /**
+     * Turn away new frames until the encoder has room, so every frame it does render is
+     * contiguous with the last but may already be stale.
+     */
+    DROP_NEWEST,
+    /**
+     * Render only the newest waiting frame, whatever the queue depth, for the least latency.
+     */
+    LATEST
+}
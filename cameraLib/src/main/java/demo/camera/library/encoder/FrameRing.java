@@ -0,0 +1,199 @@
+package demo.camera.library.encoder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed number of preallocated frame descriptors passed from the thread rendering camera
+ * frames to the video encoder thread.
+ * <p>
+ * Exactly one thread writes and one reads, so like {@link AudioRingBuffer} neither side
+ * locks, and nothing is allocated after construction.  The writer claims a descriptor,
+ * fills in the frame's texture transform, timestamp and texture name, and commits it; the
+ * reader peeks at the oldest committed descriptor, renders it, and releases it back to the
+ * writer.
+ * <p>
+ * No more than a queue depth of frames may wait for the reader, and when it falls further
+ * behind than that a {@link FrameDropPolicy} picks which are dropped: the writer turns new
+ * ones away, or the reader skips old ones as it peeks.  Frames released longer after they
+ * were committed than the late threshold are counted as late, whether or not any were
+ * dropped.
+ */
+class FrameRing {
+    static final long DEFAULT_LATE_THRESHOLD_MS = 50;
+
+    /**
+     * What the encoder needs to render one camera frame.  Owned by the writer from
+     * {@link #claim()} to {@link #commit()}, then by the reader until {@link #release()}.
+     */
+    static final class Frame {
+        final float[] transform = new float[16];
+        long timestampNs;
+        int textureId;
+        long committedNs;
+    }
+
+    private final int mMask;
+    private final Frame[] mFrames;
+    private final FrameDropPolicy mPolicy;
+    // Most frames waiting once the reader has peeked
+    private final int mDepth;
+    private final AtomicLong mTail = new AtomicLong();
+    private final AtomicLong mHead = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final AtomicLong mLate = new AtomicLong();
+    private volatile long mLateThresholdNs = TimeUnit.MILLISECONDS.toNanos(DEFAULT_LATE_THRESHOLD_MS);
+
+    /**
+     * A ring that turns new frames away when full.
+     *
+     * @param frames minimum number of frames held, rounded up to a power of two
+     */
+    FrameRing(int frames) {
+        this(roundUp(frames), FrameDropPolicy.DROP_NEWEST);
+    }
+
+    /**
+     * @param depth most frames left waiting for the reader, beyond which policy drops them
+     */
+    FrameRing(int depth, FrameDropPolicy policy) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("depth must be positive");
+        }
+        mPolicy = policy;
+        mDepth = policy == FrameDropPolicy.LATEST ? 1 : depth;
+        // When the reader drops, the writer may get ahead of it by up to twice as many so
+        // that it seldom has to drop frames too
+        int size = roundUp(policy == FrameDropPolicy.DROP_NEWEST ? depth : depth * 2);
+        mMask = size - 1;
+        mFrames = new Frame[size];
+        for (int i = 0; i < size; i++) {
+            mFrames[i] = new Frame();
+        }
+    }
+
+    private static int roundUp(int frames) {
+        if (frames < 1) {
+            throw new IllegalArgumentException("frames must be positive");
+        }
+        int size = Integer.highestOneBit(frames);
+        return size < frames ? size << 1 : size;
+    }
+
+    int capacity() {
+        return mMask + 1;
+    }
+
+    FrameDropPolicy getPolicy() {
+        return mPolicy;
+    }
+
+    int getDepth() {
+        return mDepth;
+    }
+
+    /**
+     * Sets how long after it was committed a frame may be released before it counts as late.
+     */
+    void setLateThreshold(long threshold, TimeUnit unit) {
+        mLateThresholdNs = unit.toNanos(threshold);
+    }
+
+    /**
+     * Returns a free descriptor to fill in for the next frame, or null if there's no room
+     * for it, which is counted as a dropped frame.  With {@link FrameDropPolicy#DROP_NEWEST}
+     * that is once depth frames are waiting; otherwise only if the ring is full because the
+     * reader hasn't peeked in a long while.  The same descriptor is returned again until it
+     * is committed.  Only call from the writer thread.
+     */
+    Frame claim() {
+        long tail = mTail.get();
+        long limit = mPolicy == FrameDropPolicy.DROP_NEWEST ? mDepth : mMask + 1;
+        if (tail - mHead.get() >= limit) {
+            mDropped.incrementAndGet();
+            return null;
+        }
+        return mFrames[(int) tail & mMask];
+    }
+
+    /**
+     * Publishes the descriptor returned by the last {@link #claim()}.  Only call from the
+     * writer thread.
+     */
+    void commit() {
+        long tail = mTail.get();
+        mFrames[(int) tail & mMask].committedNs = System.nanoTime();
+        // A volatile write, so the reader sees everything written to the descriptor
+        mTail.set(tail + 1);
+    }
+
+    /**
+     * Returns the oldest committed descriptor the policy keeps, without giving it back, or
+     * null if the ring is empty.  Any older ones beyond the queue depth are dropped.  Only
+     * call from the reader thread, and not again until the descriptor is released.
+     */
+    Frame peek() {
+        long head = mHead.get();
+        long tail = mTail.get();
+        if (tail - head > mDepth) {
+            // Only ever the case when the reader drops, as the writer stops at depth otherwise
+            mDropped.addAndGet(tail - head - mDepth);
+            head = tail - mDepth;
+            mHead.lazySet(head);
+        }
+        if (head == tail) {
+            return null;
+        }
+        return mFrames[(int) head & mMask];
+    }
+
+    /**
+     * Hands the descriptor returned by the last {@link #peek()} back to the writer.  Only
+     * call from the reader thread.
+     */
+    void release() {
+        long head = mHead.get();
+        if (head == mTail.get()) {
+            throw new IllegalStateException("No frame to release");
+        }
+        if (System.nanoTime() - mFrames[(int) head & mMask].committedNs > mLateThresholdNs) {
+            mLate.incrementAndGet();
+        }
+        // Ordered after the reader is done with the descriptor
+        mHead.lazySet(head + 1);
+    }
+
+    /**
+     * Releases every committed descriptor unread, e.g. ones left over from the last
+     * recording.  Only call from the reader thread.
+     */
+    void clear() {
+        mHead.lazySet(mTail.get());
+    }
+
+    /**
+     * Number of frames committed but not yet released.  Only a snapshot while the other
+     * thread is active.
+     */
+    int size() {
+        return (int) (mTail.get() - mHead.get());
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Number of frames the writer couldn't claim a descriptor for.
+     */
+    long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    /**
+     * Number of frames released later than the late threshold after they were committed.
+     */
+    long getLateCount() {
+        return mLate.get();
+    }
+}
@@ -0,0 +1,400 @@
+package demo.camera.library.encoder;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import demo.camera.library.event.HlsSegmentWrittenEvent;
+import demo.camera.library.utils.BoxWriter;
+
+/**
+ * Writes HLS: MPEG-TS segments plus an .m3u8 playlist that is rewritten as each segment
+ * completes.
+ * <p>
+ * No segment is longer than the target duration, which the playlist declares once and for
+ * all.  Segments are cut on video keyframes, so each one starts with a decodable frame: as
+ * a segment nears the target the video encoder is asked for a sync frame, and the segment
+ * is cut there.  Should none come in time the segment is cut on the last frame that fits
+ * regardless.  Without a video track segments are cut on audio frames instead.  Given
+ * /path/name.m3u8 the segments are written next to it as /path/name0.ts, /path/name1.ts, ...
+ * <p>
+ * The playlist is of type EVENT, listing every segment so far, and gets an
+ * EXT-X-ENDLIST when the muxer stops.  It is replaced atomically, so it can be read at any
+ * time, e.g. by an uploader that subscribes to {@link HlsSegmentWrittenEvent}.
+ * @hide
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class HlsMuxer extends Muxer {
+    private static final String TAG = "HlsMuxer";
+    private static final boolean VERBOSE = false;
+
+    public static final int DEFAULT_TARGET_DURATION_SEC = 6;
+    // How far short of the target duration to ask for the keyframe that starts the next
+    // segment, to cover the encoder's latency
+    private static final long SYNC_FRAME_LEAD_US = 500000;
+
+    private static final String MIME_AVC = "video/avc";
+    private static final String MIME_AAC = "audio/mp4a-latm";
+
+    // Access unit delimiter, required by HLS before each H.264 access unit
+    private static final byte[] AUD = { 0, 0, 0, 1, 0x09, (byte) 0xf0 };
+    private static final int ADTS_HEADER_SIZE = 7;
+    private static final int[] AAC_SAMPLE_RATES = {
+            96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350 };
+
+    private final int mTargetDurationSec;
+    private final long mTargetDurationUs;
+    private final File mPlaylist;
+    private final String mSegmentPrefix;
+    private final List<String> mSegmentEntries = new ArrayList<>();
+
+    private int mVideoTrack = -1;
+    private int mAudioTrack = -1;
+    private byte[] mVideoConfig;            // SPS and PPS, Annex B
+    private int mAacProfile;
+    private int mSampleRateIndex;
+    private int mChannelConfig;
+    private volatile EncoderCodec mVideoEncoder;
+    private long mVideoFrameUs = 1000000 / SessionConfig.FRAME_RATE;
+    private long mAudioFrameUs;
+    private long mLastVideoPtsUs = -1;
+    private long mLastAudioPtsUs = -1;
+    private boolean mSyncFrameRequested;
+
+    private final BoxWriter mPayload = new BoxWriter(256 * 1024);
+    private final byte[] mAdtsHeader = new byte[ADTS_HEADER_SIZE];
+    private MpegTsWriter mTsWriter;
+    private FileOutputStream mSegment;
+    private File mSegmentFile;
+    private int mSegmentIndex;
+    private long mSegmentStartUs;
+    private long mLastPtsUs;
+    private volatile boolean mStarted;
+    private boolean mReleased;
+
+    private HlsMuxer(String outputFile, int targetDurationSec) {
+        super(outputFile, FORMAT.HLS);
+        if (!outputFile.endsWith(".m3u8")) {
+            throw new IllegalArgumentException("HLS output must be an .m3u8 file: " + outputFile);
+        }
+        if (targetDurationSec < 1) {
+            throw new IllegalArgumentException("Target duration must be at least 1s");
+        }
+        mTargetDurationSec = targetDurationSec;
+        mTargetDurationUs = targetDurationSec * 1000000L;
+        mPlaylist = new File(outputFile);
+        String name = mPlaylist.getName();
+        mSegmentPrefix = name.substring(0, name.length() - ".m3u8".length());
+        mStarted = false;
+    }
+
+    public static HlsMuxer create(String outputFile) {
+        return new HlsMuxer(outputFile, DEFAULT_TARGET_DURATION_SEC);
+    }
+
+    public static HlsMuxer create(String outputFile, int targetDurationSec) {
+        return new HlsMuxer(outputFile, targetDurationSec);
+    }
+
+    @Override
+    public int addTrack(MediaFormat trackFormat) {
+        int trackIndex = super.addTrack(trackFormat);
+        if (mStarted)
+            throw new RuntimeException("format changed twice");
+        String mime = trackFormat.getString(MediaFormat.KEY_MIME);
+        if (MIME_AVC.equals(mime)) {
+            mVideoTrack = trackIndex;
+            mVideoConfig = concat(trackFormat.getByteBuffer("csd-0"),
+                    trackFormat.getByteBuffer("csd-1"));
+        } else if (MIME_AAC.equals(mime)) {
+            mAudioTrack = trackIndex;
+            readAudioSpecificConfig(trackFormat);
+            // 1024 samples per AAC frame
+            mAudioFrameUs = 1024 * 1000000L / AAC_SAMPLE_RATES[mSampleRateIndex];
+        } else {
+            throw new IllegalArgumentException("Unsupported track format: " + mime);
+        }
+
+        if (allTracksAdded()) {
+            start();
+        }
+        return trackIndex;
+    }
+
+    @Override
+    protected void start() {
+        mTsWriter = new MpegTsWriter(mVideoTrack >= 0, mAudioTrack >= 0);
+        openSegment(0);
+        mStarted = true;
+        Log.d(TAG, "HLS muxer start");
+    }
+
+    @Override
+    protected void stop() {
+        if (mStarted) {
+            closeSegment(mLastPtsUs);
+            writePlaylist(true);
+            mStarted = false;
+            Log.d(TAG, "HLS muxer stop after " + mSegmentIndex + " segments");
+        }
+        release();
+    }
+
+    @Override
+    public void release() {
+        if (!mReleased) {
+            mReleased = true;
+            if (mSegment != null) {
+                closeQuietly();
+            }
+            super.release();
+            Log.d(TAG, "HLS muxer Release");
+        } else {
+            Log.d(TAG, "HLS muxer Release called twice");
+        }
+    }
+
+    @Override
+    public boolean isStarted() {
+        return mStarted;
+    }
+
+    @Override
+    public void writeSampleData(EncoderCodec encoder, int trackIndex, int bufferIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            // SPS and PPS come from the track format and are repeated before each keyframe
+            if (VERBOSE) Log.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
+            skipSample(encoder, bufferIndex, bufferInfo);
+        } else if (bufferInfo.size == 0) {
+            if (VERBOSE) Log.d(TAG, "ignoring zero size buffer");
+            skipSample(encoder, bufferIndex, bufferInfo);
+        } else if (!mStarted) {
+            Log.e(TAG, "writeSampleData called before muxer started. Ignoring packet. Track index: " + trackIndex + " tracks added: " + mNumTracks);
+            skipSample(encoder, bufferIndex, bufferInfo);
+        } else {
+            if (trackIndex == mVideoTrack) {
+                mVideoEncoder = encoder;
+            }
+            writeOrBufferSample(encoder, trackIndex, bufferIndex, encodedData, bufferInfo);
+        }
+    }
+
+    @Override
+    protected void writeSample(int trackIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+        long ptsUs = getNextRelativePts(bufferInfo.presentationTimeUs, trackIndex);
+        try {
+            if (trackIndex == mVideoTrack) {
+                writeVideo(encodedData, ptsUs,
+                        (bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0);
+            } else {
+                writeAudio(encodedData, ptsUs);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Writing " + mSegmentFile + " failed", e);
+        }
+        mLastPtsUs = Math.max(mLastPtsUs, ptsUs);
+    }
+
+    @Override
+    public void forceStop() {
+        requestStop();
+        Log.d(TAG, "forceStop");
+    }
+
+    private void writeVideo(ByteBuffer encodedData, long ptsUs, boolean keyframe)
+            throws IOException {
+        if (mLastVideoPtsUs >= 0 && ptsUs > mLastVideoPtsUs) {
+            mVideoFrameUs = ptsUs - mLastVideoPtsUs;
+        }
+        mLastVideoPtsUs = ptsUs;
+        long elapsedUs = ptsUs - mSegmentStartUs;
+        long syncFrameDueUs = mTargetDurationUs - SYNC_FRAME_LEAD_US;
+        if (keyframe && elapsedUs > 0 && elapsedUs >= syncFrameDueUs) {
+            startNextSegment(ptsUs);
+            elapsedUs = 0;
+        } else if (elapsedUs + mVideoFrameUs > mTargetDurationUs) {
+            Log.w(TAG, "No keyframe in time, starting " + mSegmentPrefix + (mSegmentIndex + 1)
+                    + ".ts without one");
+            startNextSegment(ptsUs);
+            elapsedUs = 0;
+        }
+        if (!mSyncFrameRequested && elapsedUs >= syncFrameDueUs && mVideoEncoder != null) {
+            mVideoEncoder.requestSyncFrame();
+            mSyncFrameRequested = true;
+        }
+        mPayload.reset();
+        mPayload.write(AUD);
+        if (keyframe) {
+            mPayload.write(mVideoConfig);
+        }
+        mPayload.write(encodedData);
+        mTsWriter.writeVideo(mPayload.asByteBuffer(), toPts(ptsUs), keyframe);
+    }
+
+    private void writeAudio(ByteBuffer encodedData, long ptsUs) throws IOException {
+        if (mLastAudioPtsUs >= 0 && ptsUs > mLastAudioPtsUs) {
+            mAudioFrameUs = ptsUs - mLastAudioPtsUs;
+        }
+        mLastAudioPtsUs = ptsUs;
+        // Cut before the frame that would take the segment past the target
+        if (mVideoTrack < 0 && ptsUs - mSegmentStartUs + mAudioFrameUs > mTargetDurationUs) {
+            startNextSegment(ptsUs);
+        }
+        mPayload.reset();
+        if (formatRequiresADTS()) {
+            writeAdtsHeader(encodedData.remaining());
+            mPayload.write(mAdtsHeader);
+        }
+        mPayload.write(encodedData);
+        mTsWriter.writeAudio(mPayload.asByteBuffer(), toPts(ptsUs));
+    }
+
+    // ----- segments -----
+
+    private void startNextSegment(long ptsUs) {
+        closeSegment(ptsUs);
+        writePlaylist(false);
+        openSegment(ptsUs);
+    }
+
+    private void openSegment(long ptsUs) {
+        mSegmentFile = new File(mPlaylist.getParentFile(), mSegmentPrefix + mSegmentIndex + ".ts");
+        try {
+            mSegment = new FileOutputStream(mSegmentFile);
+            mTsWriter.open(mSegment.getChannel());
+        } catch (IOException e) {
+            throw new RuntimeException("Creating " + mSegmentFile + " failed", e);
+        }
+        mSegmentStartUs = ptsUs;
+        mSyncFrameRequested = false;
+    }
+
+    private void closeSegment(long endUs) {
+        try {
+            mTsWriter.flush();
+            mSegment.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Writing " + mSegmentFile + " failed", e);
+        }
+        mSegment = null;
+
+        double durationSec = (endUs - mSegmentStartUs) / 1000000.0;
+        mSegmentEntries.add(String.format(Locale.US, "#EXTINF:%.3f,\n%s\n", durationSec,
+                mSegmentFile.getName()));
+        mSegmentIndex++;
+        if (VERBOSE) Log.d(TAG, "closed " + mSegmentFile + " " + durationSec + "s");
+        postEvent(new HlsSegmentWrittenEvent(mSegmentFile, mPlaylist, durationSec));
+    }
+
+    /**
+     * Replaces the playlist with one listing every closed segment.  The target duration is
+     * the configured one throughout, as HLS doesn't allow it to change.
+     */
+    private void writePlaylist(boolean finished) {
+        StringBuilder playlist = new StringBuilder();
+        playlist.append("#EXTM3U\n");
+        playlist.append("#EXT-X-VERSION:3\n");
+        playlist.append("#EXT-X-PLAYLIST-TYPE:EVENT\n");
+        playlist.append("#EXT-X-TARGETDURATION:").append(mTargetDurationSec).append('\n');
+        playlist.append("#EXT-X-MEDIA-SEQUENCE:0\n");
+        for (String entry : mSegmentEntries) {
+            playlist.append(entry);
+        }
+        if (finished) {
+            playlist.append("#EXT-X-ENDLIST\n");
+        }
+
+        File temp = new File(mPlaylist.getPath() + ".tmp");
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(temp), "US-ASCII");
+            try {
+                writer.write(playlist.toString());
+            } finally {
+                writer.close();
+            }
+            if (!temp.renameTo(mPlaylist)) {
+                throw new IOException("Unable to replace " + mPlaylist);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Writing playlist failed", e);
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            mSegment.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Error closing " + mSegmentFile, e);
+        }
+        mSegment = null;
+    }
+
+    // ----- codec config -----
+
+    private static long toPts(long ptsUs) {
+        return ptsUs * 90 / 1000;
+    }
+
+    private static byte[] concat(ByteBuffer first, ByteBuffer second) {
+        if (first == null || second == null) {
+            throw new IllegalArgumentException("AVC track format is missing SPS / PPS");
+        }
+        byte[] result = new byte[first.remaining() + second.remaining()];
+        first.duplicate().get(result, 0, first.remaining());
+        second.duplicate().get(result, first.remaining(), second.remaining());
+        return result;
+    }
+
+    /**
+     * Reads the AAC profile, sample rate and channel layout the ADTS headers repeat.
+     */
+    private void readAudioSpecificConfig(MediaFormat format) {
+        ByteBuffer csd = format.getByteBuffer("csd-0");
+        if (csd != null && csd.remaining() >= 2) {
+            int config = ((csd.get(csd.position()) & 0xff) << 8) | (csd.get(csd.position() + 1) & 0xff);
+            mAacProfile = config >>> 11;
+            mSampleRateIndex = (config >>> 7) & 0x0f;
+            mChannelConfig = (config >>> 3) & 0x0f;
+        } else {
+            mAacProfile = 2;        // AAC LC
+            mSampleRateIndex = sampleRateIndex(format.getInteger(MediaFormat.KEY_SAMPLE_RATE));
+            mChannelConfig = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        }
+    }
+
+    private static int sampleRateIndex(int sampleRate) {
+        for (int i = 0; i < AAC_SAMPLE_RATES.length; i++) {
+            if (AAC_SAMPLE_RATES[i] == sampleRate) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unsupported AAC sample rate: " + sampleRate);
+    }
+
+    /**
+     * See http://wiki.multimedia.cx/index.php?title=ADTS
+     */
+    private void writeAdtsHeader(int frameSize) {
+        int length = frameSize + ADTS_HEADER_SIZE;
+        byte[] header = mAdtsHeader;
+        header[0] = (byte) 0xff;
+        header[1] = (byte) 0xf1;                // MPEG-4, no CRC
+        header[2] = (byte) (((mAacProfile - 1) << 6) | (mSampleRateIndex << 2) | (mChannelConfig >> 2));
+        header[3] = (byte) (((mChannelConfig & 3) << 6) | (length >> 11));
+        header[4] = (byte) (length >> 3);
+        header[5] = (byte) (((length & 7) << 5) | 0x1f);
+        header[6] = (byte) 0xfc;
+    }
+}
@@ -0,0 +1,106 @@
+package demo.camera.library.encoder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts latencies in power of two buckets of microseconds, so recording one is a couple
+ * of atomic increments and the histogram never grows.  Bucket 0 holds anything under 2us,
+ * bucket i latencies from 2^i up to 2^(i+1) microseconds.
+ * <p>
+ * Safe to record from any number of threads.  Reads are only a snapshot while others
+ * are recording.
+ * @hide
+ */
+public class LatencyHistogram {
+    static final int BUCKETS = 32;                      // Up to ~35 minutes
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mTotalUs = new AtomicLong();
+    private final AtomicLong mMaxUs = new AtomicLong();
+
+    public void record(long latency, TimeUnit unit) {
+        long us = Math.max(0, unit.toMicros(latency));
+        mCounts.incrementAndGet(bucketOf(us));
+        mCount.incrementAndGet();
+        mTotalUs.addAndGet(us);
+        long max;
+        do {
+            max = mMaxUs.get();
+        } while (us > max && !mMaxUs.compareAndSet(max, us));
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMaxUs() {
+        return mMaxUs.get();
+    }
+
+    public long getMeanUs() {
+        long count = mCount.get();
+        return count == 0 ? 0 : mTotalUs.get() / count;
+    }
+
+    /**
+     * Upper bound of the bucket holding the given percentile, or the largest latency
+     * recorded if that is less, so the true value is at most this.
+     *
+     * @param percentile between 0 and 100
+     * @return 0 if nothing was recorded
+     */
+    public long getPercentileUs(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile must be between 0 and 100: " + percentile);
+        }
+        long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts.get(i);
+            if (seen >= Math.max(rank, 1)) {
+                return Math.min(upperBoundUs(i), getMaxUs());
+            }
+        }
+        return getMaxUs();
+    }
+
+    /**
+     * Number of latencies recorded in bucket.
+     */
+    public long getBucketCount(int bucket) {
+        return mCounts.get(bucket);
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mCounts.set(i, 0);
+        }
+        mCount.set(0);
+        mTotalUs.set(0);
+        mMaxUs.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "n=" + getCount() + " mean=" + getMeanUs() + "us p50<=" + getPercentileUs(50)
+                + "us p99<=" + getPercentileUs(99) + "us max=" + getMaxUs() + "us";
+    }
+
+    static int bucketOf(long us) {
+        if (us < 2) {
+            return 0;
+        }
+        return Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(us));
+    }
+
+    private static long upperBoundUs(int bucket) {
+        return (1L << (bucket + 1)) - 1;
+    }
+}
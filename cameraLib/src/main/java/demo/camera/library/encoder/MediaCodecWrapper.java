@@ -0,0 +1,134 @@
+package demo.camera.library.encoder;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.view.Surface;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link EncoderCodec} backed by a {@link MediaCodec}.
+ * <p>
+ * Callback mode needs {@link MediaCodec#setCallback(MediaCodec.Callback, Handler)}, so on
+ * API levels before 23 output is always polled.
+ * @hide
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class MediaCodecWrapper implements EncoderCodec {
+    private final MediaCodec mCodec;
+
+    public MediaCodecWrapper(MediaCodec codec) {
+        mCodec = codec;
+    }
+
+    @Override
+    public ByteBuffer[] getInputBuffers() {
+        return mCodec.getInputBuffers();
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        return mCodec.dequeueInputBuffer(timeoutUs);
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        mCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        mCodec.signalEndOfInputStream();
+    }
+
+    @Override
+    public ByteBuffer[] getOutputBuffers() {
+        return mCodec.getOutputBuffers();
+    }
+
+    @Override
+    public int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+        return mCodec.dequeueOutputBuffer(info, timeoutUs);
+    }
+
+    @Override
+    public MediaFormat getOutputFormat() {
+        return mCodec.getOutputFormat();
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index, boolean render) {
+        mCodec.releaseOutputBuffer(index, render);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        return mCodec.getOutputBuffer(index);
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    @Override
+    public void requestSyncFrame() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            return;
+        }
+        Bundle sync = new Bundle();
+        sync.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        mCodec.setParameters(sync);
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    @Override
+    public boolean setCallback(final Callback callback, Handler handler) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return false;
+        }
+        mCodec.setCallback(new MediaCodec.Callback() {
+            @Override
+            public void onInputBufferAvailable(MediaCodec codec, int index) {
+                // Input comes from a Surface
+            }
+
+            @Override
+            public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+                callback.onOutputBufferAvailable(index, info);
+            }
+
+            @Override
+            public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+                callback.onError(e);
+            }
+
+            @Override
+            public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+                callback.onOutputFormatChanged(format);
+            }
+        }, handler);
+        return true;
+    }
+
+    @Override
+    public void configure(MediaFormat format) {
+        mCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+    }
+
+    @Override
+    public Surface createInputSurface() {
+        return mCodec.createInputSurface();
+    }
+
+    @Override
+    public void start() {
+        mCodec.start();
+    }
+
+    @Override
+    public void stop() {
+        mCodec.stop();
+    }
+}
@@ -0,0 +1,48 @@
+package demo.camera.library.encoder;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link MuxerSink} backed by a {@link MediaMuxer} writing an MPEG-4 file.
+ * @hide
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class MediaMuxerSink implements MuxerSink {
+    private final MediaMuxer mMuxer;
+
+    public MediaMuxerSink(String outputFile) throws IOException {
+        mMuxer = new MediaMuxer(outputFile, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        return mMuxer.addTrack(format);
+    }
+
+    @Override
+    public void start() {
+        mMuxer.start();
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        mMuxer.writeSampleData(trackIndex, byteBuf, bufferInfo);
+    }
+
+    @Override
+    public void stop() {
+        mMuxer.stop();
+    }
+
+    @Override
+    public void release() {
+        mMuxer.release();
+    }
+}
@@ -4,7 +4,6 @@ import android.annotation.TargetApi;
 import android.media.AudioFormat;
 import android.media.AudioRecord;
 import android.media.MediaCodec;
-import android.media.MediaRecorder;
 import android.os.Build;
 import android.os.Trace;
 import android.util.Log;
@@ -13,9 +12,38 @@ import junit.framework.Assert;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Created by davidbrodsky on 1/23/14.
+ * <p>
+ * Captures from an {@link AudioSource}, by default the camcorder microphone, and feeds an
+ * {@link AudioEncoderCore}.
+ * <p>
+ * Capture runs on a thread of its own, reading into an {@link AudioRingBuffer} that the
+ * encoding thread feeds the codec from, so a codec stall doesn't stop the microphone
+ * being read.  If the stall outlasts the ring, captured frames are discarded and counted
+ * by {@link #getCaptureOverrunCount()}.
+ * <p>
+ * Frames are timestamped on the capture thread by an {@link AudioTimestampEngine}, by
+ * counting every sample read since the session's first, so they are evenly spaced and
+ * stay continuous from one chunk to the next.  Every frame read is also measured by an
+ * {@link AudioLevelMeter}, once it is on its way to the encoder.
+ * <p>
+ * Both threads and the AudioSource last for the whole session, until {@link #release()}.
+ * Each recording is a chunk: {@link #startRecording()} starts feeding the current encoder,
+ * {@link #stopRecording()} ends its stream, and {@link #reset(SessionConfig)} switches to
+ * an encoder for the next chunk.  The microphone keeps being read in between, with what it
+ * returns discarded, so the next chunk starts without waiting for capture to warm up.
+ * <p>
+ * None of those block the caller.  Each posts a command to a {@link RecordingStateMachine},
+ * which the encoding thread carries out in order, going from IDLE to ARMED on a reset,
+ * to RECORDING on a start and through DRAINING back to IDLE on a stop, so a start right
+ * after a stop and reset begins the next chunk once the last has ended.  The encoding
+ * thread never waits on the codec for long, so it keeps taking commands even if the codec
+ * stalls, and a stalled chunk's end is cut off at the muxer's finalize deadline.
  *
  * @hide
  */
@@ -27,180 +55,504 @@ public class MicrophoneEncoder implements Runnable {
 
     protected static final int SAMPLES_PER_FRAME = 1024;                            // AAC frame size. Audio encoder input size is a multiple of this
     protected static final int AUDIO_FORMAT = AudioFormat.ENCODING_PCM_16BIT;
-
-    private final Object mReadyFence = new Object();    // Synchronize audio thread readiness
-    private boolean mThreadReady;                       // Is audio thread ready
-    private boolean mThreadRunning;                     // Is audio thread running
-    private final Object mWaitForRecordingFence = new Object();
-    private final Object mRecordingFence = new Object();
-
-    private AudioRecord mAudioRecord;
-    private AudioEncoderCore mEncoderCore;
-
-    private boolean mRecordingRequested;
+    static final int CAPTURE_RING_FRAMES = 32;                                      // ~0.75s at 44.1kHz
+
+    private static final long COMMAND_WAIT_MS = 500;
+    private static final long CAPTURE_PASS_WAIT_MS = 50;
+    private static final long INPUT_BUFFER_WAIT_US = 10000;
+    private static final long RELEASE_WAIT_MS = 2000;
+
+    private final RecordingStateMachine mMachine = new RecordingStateMachine();
+    private final AtomicLong mCapturePasses = new AtomicLong();  // Reads completed by the capture thread
+    private volatile Thread mCapturePassWaiter;
+
+    private AudioSource mAudioSource;
+    private AudioEncoderCore mEncoderCore;              // Only touched by mEncodeThread
+    private EncoderPool mPool;                          // Where mEncoderCore goes back to, if anywhere
+    private AudioRingBuffer mCaptureRing;
+    private AudioTimestampEngine mTimestamps;
+    private final AudioLevelMeter mLevelMeter = new AudioLevelMeter();
+    private ByteBuffer mOverrunFrame;                   // Read into when the ring is full or not recording
+    private Thread mEncodeThread;
+    private Thread mCaptureThread;
+    private long mUnderrunTimeoutNs;
+    private int mSampleRate;
+    private int mNumChannels;
+    private int mChannelConfig;
+    private int mBytesPerSample;                        // Of all channels together
+    private int mFrameSize;                             // Bytes in SAMPLES_PER_FRAME samples
 
     public MicrophoneEncoder(SessionConfig config) throws IOException {
-        init(config);
+        mPool = EncoderPool.getDefault();
+        init(acquireEncoder(config), null);
     }
 
-    private void init(SessionConfig config) throws IOException {
-        mEncoderCore = new AudioEncoderCore(config.getNumAudioChannels(),
+    /**
+     * Captures from audioSource into encoderCore, instead of from the microphone into a
+     * MediaCodec.  For running the pipeline against fakes.
+     */
+    MicrophoneEncoder(AudioEncoderCore encoderCore, AudioSource audioSource) {
+        init(encoderCore, audioSource);
+    }
+
+    private AudioEncoderCore acquireEncoder(SessionConfig config) throws IOException {
+        return mPool.acquireAudioEncoder(config.getNumAudioChannels(),
                 config.getAudioBitrate(),
                 config.getAudioSamplerate(),
                 config.getMuxer());
-        mMediaCodec = null;
-        mThreadReady = false;
-        mThreadRunning = false;
-        mRecordingRequested = false;
-        startThread();
-        if (VERBOSE) Log.i(TAG, "Finished init. encoder : " + mEncoderCore.mEncoder);
-        Assert.assertNotNull(mEncoderCore.getMediaCodec());
     }
 
-    private void setupAudioRecord() {
-        int minBufferSize = AudioRecord.getMinBufferSize(mEncoderCore.mSampleRate,
-                mEncoderCore.mChannelConfig, AUDIO_FORMAT);
+    private void init(AudioEncoderCore encoderCore, AudioSource audioSource) {
+        Assert.assertNotNull(encoderCore.getCodec());
+        mAudioSource = audioSource;
+        mSampleRate = encoderCore.mSampleRate;
+        mNumChannels = encoderCore.mNumChannels;
+        mChannelConfig = encoderCore.mChannelConfig;
+        mBytesPerSample = mNumChannels * bytesPerChannelSample(AUDIO_FORMAT);
+        mFrameSize = SAMPLES_PER_FRAME * mBytesPerSample;
+        mCaptureRing = new AudioRingBuffer(CAPTURE_RING_FRAMES, mFrameSize);
+        mOverrunFrame = ByteBuffer.allocateDirect(mFrameSize);
+        mTimestamps = new AudioTimestampEngine(mSampleRate);
+        // Waiting for longer than two frames means capture has fallen behind
+        mUnderrunTimeoutNs = 2 * SAMPLES_PER_FRAME * 1000000000L / mSampleRate;
+        mMediaCodec = null;
+        post(RecordingStateMachine.Type.RESET, encoderCore);
+        mEncodeThread = new Thread(this, "MicrophoneEncoder");
+        mEncodeThread.setPriority(Thread.MAX_PRIORITY);
+        mMachine.setOwner(mEncodeThread);
+        mEncodeThread.start();
+        if (VERBOSE) Log.i(TAG, "Finished init. encoder : " + encoderCore.mEncoder);
+    }
 
-        mAudioRecord = new AudioRecord(
-                MediaRecorder.AudioSource.CAMCORDER, // source
-                mEncoderCore.mSampleRate,            // sample rate, hz
-                mEncoderCore.mChannelConfig,         // channels
-                AUDIO_FORMAT,                        // audio format
-                minBufferSize * 4);                  // buffer size (bytes)
+    private void setupAudioSource() {
+        if (mAudioSource == null) {
+            mAudioSource = new AudioRecordSource(mSampleRate, mChannelConfig, AUDIO_FORMAT);
+        }
     }
 
 
+    /**
+     * Starts a chunk, feeding the current encoder from the next audio captured, once the
+     * commands posted before this are done.  Returns right away.
+     */
     public void startRecording() {
         if (VERBOSE) Log.i(TAG, "startRecording");
-        synchronized (mWaitForRecordingFence) {
-            totalSamplesNum = 0;
-            startPTS = 0;
-            mRecordingRequested = true;
-            mWaitForRecordingFence.notify();
-        }
+        post(RecordingStateMachine.Type.START, null);
     }
 
+    /**
+     * Ends the chunk's stream.  Returns right away, while the encoding thread sends what
+     * was captured before this and drains the encoder.
+     */
     public void stopRecording() {
         Log.i(TAG, "stopRecording");
-        synchronized (mWaitForRecordingFence) {
-            mRecordingRequested = false;
-        }
+        post(RecordingStateMachine.Type.STOP, null);
+        // So the encoding thread sees the stop without waiting for the next frame
+        mCaptureRing.wakeReader();
     }
 
-    public void reset(SessionConfig config) throws IOException {
+    /**
+     * Switches to an encoder for config's muxer, for the next chunk, ending any chunk still
+     * recording first.  Returns right away: the encoder is acquired on the audio thread.
+     * The audio thread and source carry on as they are.
+     *
+     * @return false if the audio thread is too far behind to take the reset, in which case
+     * the next chunk has no audio
+     * @throws IllegalArgumentException if config's audio format differs from the session's
+     */
+    public boolean reset(SessionConfig config) {
         if (VERBOSE) Log.i(TAG, "reset");
-        if (mThreadRunning) {
-            Log.e(TAG, "reset called before stop completed");
+        if (config.getNumAudioChannels() != mNumChannels || config.getAudioSamplerate() != mSampleRate) {
+            // Capture carries on in the session's format
+            throw new IllegalArgumentException("Audio format can't change within a session");
+        }
+        boolean posted = post(RecordingStateMachine.Type.RESET, config);
+        mCaptureRing.wakeReader();
+        return posted;
+    }
+
+    /**
+     * Switches to encoderCore for the next chunk.  For tests.
+     */
+    void reset(AudioEncoderCore encoderCore) {
+        if (encoderCore.mNumChannels != mNumChannels || encoderCore.mSampleRate != mSampleRate) {
+            releaseEncoder(encoderCore);
+            throw new IllegalArgumentException("Audio format can't change within a session");
+        }
+        if (!post(RecordingStateMachine.Type.RESET, encoderCore)) {
+            releaseEncoder(encoderCore);
         }
+        mCaptureRing.wakeReader();
+    }
+
+    /**
+     * Ends any chunk in progress, then stops capture and releases the audio source and
+     * encoder.  Blocks until the audio thread has exited, or for at most
+     * {@link #RELEASE_WAIT_MS}, after which the audio thread finishes on its own.
+     */
+    public void release() {
+        Log.i(TAG, "release");
+        post(RecordingStateMachine.Type.RELEASE, null);
+        mCaptureRing.wakeReader();
+        try {
+            mEncodeThread.join(RELEASE_WAIT_MS);
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Interrupted waiting for audio thread to exit", e);
+            Thread.currentThread().interrupt();
+        }
+        if (mEncodeThread.isAlive()) {
+            Log.w(TAG, "Audio thread still busy " + RELEASE_WAIT_MS + "ms after release");
+        }
+    }
 
-        synchronized (mRecordingFence) {
-            Log.e(TAG, "init called in reset");
-            init(config);
+    /**
+     * Posts a command for the encoding thread, logging it if it was dropped.
+     *
+     * @return false if it was dropped, as redundant or because the encoding thread is stuck
+     */
+    private boolean post(RecordingStateMachine.Type type, Object argument) {
+        boolean posted = mMachine.post(type, argument);
+        if (!posted) {
+            Log.w(TAG, "Dropped " + type + " in " + mMachine.getState());
         }
+        return posted;
     }
 
     public boolean isRecording() {
-        return mRecordingRequested;
+        return mMachine.getState() == RecordingStateMachine.State.RECORDING;
     }
 
+    public RecordingStateMachine.State getState() {
+        return mMachine.getState();
+    }
 
-    private void startThread() {
-        synchronized (mReadyFence) {
-            if (mThreadRunning) {
-                Log.w(TAG, "Audio thread running when start requested");
-                return;
+    /**
+     * How long it took from calling the method that led to state until the audio thread
+     * reached it.
+     */
+    public LatencyHistogram getTransitionLatency(RecordingStateMachine.State state) {
+        return mMachine.getTransitionLatency(state);
+    }
+
+    /**
+     * Number of captured frames discarded because the encoder fell too far behind.
+     */
+    public long getCaptureOverrunCount() {
+        return mCaptureRing.getOverrunCount();
+    }
+
+    /**
+     * Number of times the encoder waited more than two frames' time for captured audio.
+     */
+    public long getCaptureUnderrunCount() {
+        return mCaptureRing.getUnderrunCount();
+    }
+
+    /**
+     * Levels of the audio being captured, whether recording or not.
+     */
+    public AudioLevelMeter getLevelMeter() {
+        return mLevelMeter;
+    }
+
+    /**
+     * How far the audio timestamps lag the system clock, as last measured.  See
+     * {@link AudioTimestampEngine#getDriftUs()}.
+     */
+    public long getTimestampDriftUs() {
+        return mTimestamps.getDriftUs();
+    }
+
+    /**
+     * Number of times the audio timestamps skipped ahead over audio lost before capture.
+     */
+    public long getTimestampDiscontinuityCount() {
+        return mTimestamps.getDiscontinuityCount();
+    }
+
+
+    @Override
+    public void run() {
+        setupAudioSource();
+        mAudioSource.startRecording();
+        mCaptureThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                captureAudio();
             }
-            Thread audioThread = new Thread(this, "MicrophoneEncoder");
-            audioThread.setPriority(Thread.MAX_PRIORITY);
-            audioThread.start();
-            while (!mThreadReady) {
-                try {
-                    mReadyFence.wait();
-                } catch (InterruptedException e) {
-                    // ignore
-                }
+        }, "MicrophoneCapture");
+        mCaptureThread.setPriority(Thread.MAX_PRIORITY);
+        mCaptureThread.start();
+
+        while (mMachine.getState() != RecordingStateMachine.State.RELEASED) {
+            RecordingStateMachine.Command command =
+                    mMachine.take(TimeUnit.MILLISECONDS.toNanos(COMMAND_WAIT_MS));
+            if (command != null) {
+                handleCommand(command);
             }
         }
+
+        joinCaptureThread();
+        mAudioSource.stop();
+        mAudioSource.release();
+        mAudioSource = null;
+        Log.i(TAG, "Audio thread exiting. Capture overruns: " + getCaptureOverrunCount()
+                + " underruns: " + getCaptureUnderrunCount() + " timestamp drift: "
+                + getTimestampDriftUs() + "us, max " + mTimestamps.getMaxDriftUs() + "us");
     }
 
-    @Override
-    public void run() {
-        setupAudioRecord();
-        mAudioRecord.startRecording();
-        synchronized (mReadyFence){
-            mThreadReady = true;
-            mReadyFence.notify();
-        }
-
-        synchronized (mWaitForRecordingFence) {
-            while (!mRecordingRequested) {
-                try {
-                    mWaitForRecordingFence.wait();
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+    /**
+     * Carries out command in the current state, which is IDLE or ARMED: recording is
+     * handled by {@link #encodeChunk}.  Runs on mEncodeThread.
+     */
+    private void handleCommand(RecordingStateMachine.Command command) {
+        if (VERBOSE) Log.i(TAG, command + " in " + mMachine.getState());
+        switch (command.type) {
+            case START:
+                if (mEncoderCore == null) {
+                    Log.e(TAG, "reset must be called before recording again");
+                    return;
                 }
-            }
+                mMachine.moveTo(RecordingStateMachine.State.RECORDING, command);
+                RecordingStateMachine.Command end = encodeChunk();
+                if (end.type != RecordingStateMachine.Type.STOP) {
+                    handleCommand(end);
+                }
+                break;
+            case STOP:
+                // Not recording, so there is nothing to end
+                break;
+            case RESET:
+                AudioEncoderCore encoderCore;
+                if (command.argument instanceof SessionConfig) {
+                    try {
+                        // The last chunk's encoder is being recycled, and can be acquired warm
+                        encoderCore = acquireEncoder((SessionConfig) command.argument);
+                    } catch (IOException e) {
+                        Log.e(TAG, "Couldn't acquire an audio encoder", e);
+                        // Otherwise the muxer waits for audio that won't come, and writes nothing
+                        if (((SessionConfig) command.argument).getMuxer().dropExpectedTrack()) {
+                            Log.w(TAG, "Recording the next chunk without audio");
+                        }
+                        return;
+                    }
+                } else {
+                    encoderCore = (AudioEncoderCore) command.argument;
+                }
+                if (mEncoderCore != null) {
+                    // Never started, so there's no stream to end
+                    releaseEncoder(mEncoderCore);
+                }
+                mEncoderCore = encoderCore;
+                mMediaCodec = null;
+                if (mMachine.getState() == RecordingStateMachine.State.IDLE) {
+                    mMachine.moveTo(RecordingStateMachine.State.ARMED, command);
+                }
+                break;
+            case RELEASE:
+                if (mEncoderCore != null) {
+                    // Released outright rather than pooled, as the session is over
+                    mEncoderCore.release();
+                    mEncoderCore = null;
+                }
+                mMachine.moveTo(RecordingStateMachine.State.RELEASED, command);
+                break;
         }
+    }
 
-        Assert.assertNotNull(mEncoderCore.getMediaCodec());
+    /**
+     * Feeds mEncoderCore until a command other than START arrives, then ends its stream and
+     * hands it back.
+     *
+     * @return the command that ended the chunk
+     */
+    private RecordingStateMachine.Command encodeChunk() {
+        Assert.assertNotNull(mEncoderCore.getCodec());
         if (VERBOSE) Log.i(TAG, "Begin Audio transmission to encoder. encoder : " + mEncoderCore.mEncoder);
 
-        synchronized (mRecordingFence) {
-            while (mRecordingRequested) {
+        RecordingStateMachine.Command command;
+        while ((command = mMachine.poll()) == null
+                || command.type == RecordingStateMachine.Type.START) {
+            if (command != null) {
+                Log.w(TAG, "startRecording called while recording");
+            }
 
-                if (TRACE) Trace.beginSection("drainAudio");
-                mEncoderCore.drainEncoder(false);
-                if (TRACE) Trace.endSection();
+            if (TRACE) Trace.beginSection("drainAudio");
+            mEncoderCore.drainEncoder(false);
+            if (TRACE) Trace.endSection();
 
-                if (TRACE) Trace.beginSection("sendAudio");
-                sendAudioToEncoder(false);
-                if (TRACE) Trace.endSection();
+            if (TRACE) Trace.beginSection("sendAudio");
+            sendAudioToEncoder(false);
+            if (TRACE) Trace.endSection();
 
+        }
+
+         /*if (VERBOSE) */ Log.i(TAG, "Exiting audio encode loop. Draining Audio Encoder");
+        if (command.type == RecordingStateMachine.Type.RESET) {
+            Log.w(TAG, "reset called while recording, ending the chunk");
+        }
+        mMachine.moveTo(RecordingStateMachine.State.DRAINING, command);
+        // The video track's final drain runs alongside, against the same deadline
+        long deadlineNs = mEncoderCore.beginFinalize();
+        // Nothing captured after this belongs to the chunk
+        awaitCapturePass();
+        // Send everything captured before the stop, the last frame with end of stream, or
+        // as much as the codec takes by the deadline, when the final drain force stops the
+        // muxer anyway
+        if (TRACE) Trace.beginSection("sendAudio");
+        while (true) {
+            mEncoderCore.drainEncoder(false);
+            boolean last = mCaptureRing.size() <= 1;
+            if (sendAudioToEncoder(last) && last) {
+                break;
+            }
+            if (System.nanoTime() - deadlineNs >= 0) {
+                Log.w(TAG, "Encoder took no input until the finalize deadline, "
+                        + mCaptureRing.size() + " frame(s) unsent");
+                break;
             }
+        }
+        if (TRACE) Trace.endSection();
+        if (TRACE) Trace.beginSection("drainAudioFinal");
+        mEncoderCore.signalEndOfStream();
+        mEncoderCore.drainEncoder(true);
+        if (TRACE) Trace.endSection();
+        releaseEncoder(mEncoderCore);
+        mEncoderCore = null;
+        mMediaCodec = null;
+        mMachine.moveTo(RecordingStateMachine.State.IDLE, command);
+        return command;
+    }
 
-            mThreadReady = false;
-             /*if (VERBOSE) */ Log.i(TAG, "Exiting audio encode loop. Draining Audio Encoder");
-            if (TRACE) Trace.beginSection("sendAudio");
-            sendAudioToEncoder(true);
-            if (TRACE) Trace.endSection();
-            mAudioRecord.stop();
-            if (TRACE) Trace.beginSection("drainAudioFinal");
-            mEncoderCore.signalEndOfStream();
-            mEncoderCore.drainEncoder(true);
-            if (TRACE) Trace.endSection();
-            mEncoderCore.release();
-            mThreadRunning = false;
-            mRecordingFence.notify();
+    static int bytesPerChannelSample(int audioFormat) {
+        switch (audioFormat) {
+            case AudioFormat.ENCODING_PCM_8BIT:
+                return 1;
+            case AudioFormat.ENCODING_PCM_16BIT:
+                return 2;
+            case AudioFormat.ENCODING_PCM_FLOAT:
+                return 4;
+            default:
+                throw new IllegalArgumentException("Unsupported audio format " + audioFormat);
+        }
+    }
+
+    private void releaseEncoder(AudioEncoderCore encoderCore) {
+        if (mPool != null) {
+            mPool.recycle(encoderCore);
+        } else {
+            encoderCore.release();
+        }
+    }
+
+    /**
+     * Reads from mAudioSource until released, into mCaptureRing while recording and
+     * discarding it otherwise.  Runs on mCaptureThread.
+     */
+    private void captureAudio() {
+        while (mMachine.getState() != RecordingStateMachine.State.RELEASED) {
+            boolean recording = mMachine.getState() == RecordingStateMachine.State.RECORDING;
+            ByteBuffer frame = recording ? mCaptureRing.claim() : null;
+            if (frame == null) {
+                // Keep reading, or the source would overrun instead and timestamps drift.
+                // Not logged here, on the capture thread: the ring counts it as an overrun
+                frame = mOverrunFrame;
+                frame.clear();
+            }
+            int length = mAudioSource.read(frame, mFrameSize);
+            if (length == AudioRecord.ERROR_INVALID_OPERATION) {
+                Log.e(TAG, "Audio read error: invalid operation");
+            } else if (length == AudioRecord.ERROR_BAD_VALUE) {
+                Log.e(TAG, "Audio read error: bad value");
+            } else if (length > 0) {
+                // Discarded frames are counted too, so later timestamps leave a gap for them
+                int samples = length / mBytesPerSample;
+                long ptsNs = mTimestamps.onRead(samples, mAudioSource.getLastReadTimeNs());
+                if (frame != mOverrunFrame) {
+                    mCaptureRing.commit(length, ptsNs);
+                }
+                // After the commit, so the encoder needn't wait for it
+                mLevelMeter.analyze(frame, length, ptsNs / 1000, samples * 1000000L / mSampleRate);
+            }
+            mCapturePasses.incrementAndGet();
+            Thread waiter = mCapturePassWaiter;
+            if (waiter != null) {
+                LockSupport.unpark(waiter);
+            }
         }
+    }
 
+    /**
+     * Waits for the capture thread to finish the read it is in, so that everything it
+     * reads afterwards sees recording has stopped and is discarded.
+     */
+    private void awaitCapturePass() {
+        long pass = mCapturePasses.get();
+        mCapturePassWaiter = Thread.currentThread();
+        try {
+            while (mCapturePasses.get() == pass && mCaptureThread.isAlive()) {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(CAPTURE_PASS_WAIT_MS));
+            }
+        } finally {
+            mCapturePassWaiter = null;
+        }
+    }
+
+    private void joinCaptureThread() {
+        try {
+            mCaptureThread.join();
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Interrupted waiting for capture to stop", e);
+            Thread.currentThread().interrupt();
+        }
+        mCaptureThread = null;
+    }
+
+    /**
+     * Waits for a captured frame to send, counting an underrun each time that takes
+     * longer than mUnderrunTimeoutNs.
+     *
+     * @return false if a command arrived first
+     */
+    private boolean awaitCapturedAudio() {
+        while (!mCaptureRing.await(mUnderrunTimeoutNs)) {
+            if (mMachine.hasPendingCommand()) {
+                return false;
+            }
+        }
+        return true;
     }
 
     // Variables recycled between calls to sendAudioToEncoder
-    MediaCodec mMediaCodec;
+    EncoderCodec mMediaCodec;
     int audioInputBufferIndex;
     int audioInputLength;
     long audioAbsolutePtsUs;
 
-    private void sendAudioToEncoder(boolean endOfStream) {
+    /**
+     * Sends the next captured frame to the encoder, waiting for one unless endOfStream.
+     * Waits at most {@link #INPUT_BUFFER_WAIT_US} for an input buffer, so the caller can
+     * drain the encoder and check for commands before trying again.
+     *
+     * @return whether a frame, or at end of stream the last, was queued
+     */
+    private boolean sendAudioToEncoder(boolean endOfStream) {
         if (mMediaCodec == null)
-            mMediaCodec = mEncoderCore.getMediaCodec();
+            mMediaCodec = mEncoderCore.getCodec();
+        // At end of stream send whatever is left, even nothing
+        if (!endOfStream && !awaitCapturedAudio()) {
+            return false;
+        }
         // send current frame data to encoder
         try {
             ByteBuffer[] inputBuffers = mMediaCodec.getInputBuffers();
-            audioInputBufferIndex = mMediaCodec.dequeueInputBuffer(-1);
+            audioInputBufferIndex = mMediaCodec.dequeueInputBuffer(INPUT_BUFFER_WAIT_US);
             if (audioInputBufferIndex >= 0) {
                 ByteBuffer inputBuffer = inputBuffers[audioInputBufferIndex];
                 inputBuffer.clear();
-                audioInputLength = mAudioRecord.read(inputBuffer, SAMPLES_PER_FRAME * 2);
-                audioAbsolutePtsUs = (System.nanoTime()) / 1000L;
-                // We divide audioInputLength by 2 because audio samples are
-                // 16bit.
-                audioAbsolutePtsUs = getJitterFreePTS(audioAbsolutePtsUs, audioInputLength / 2);
-
-                if(audioInputLength == AudioRecord.ERROR_INVALID_OPERATION)
-                    Log.e(TAG, "Audio read error: invalid operation");
-                if (audioInputLength == AudioRecord.ERROR_BAD_VALUE)
-                    Log.e(TAG, "Audio read error: bad value");
+                audioInputLength = mCaptureRing.read(inputBuffer);
+                audioAbsolutePtsUs = mCaptureRing.getLastTimestampNs() / 1000L;
+
 //                if (VERBOSE)
 //                    Log.i(TAG, "queueing " + audioInputLength + " audio bytes with pts " + audioAbsolutePtsUs);
                 if (endOfStream) {
@@ -209,39 +561,12 @@ public class MicrophoneEncoder implements Runnable {
                 } else {
                     mMediaCodec.queueInputBuffer(audioInputBufferIndex, 0, audioInputLength, audioAbsolutePtsUs, 0);
                 }
+                return true;
             }
         } catch (Throwable t) {
             Log.e(TAG, "_offerAudioEncoder exception");
             t.printStackTrace();
         }
-    }
-
-    long startPTS = 0;
-    long totalSamplesNum = 0;
-
-    /**
-     * Ensures that each audio pts differs by a constant amount from the previous one.
-     * @param bufferPts presentation timestamp in us
-     * @param bufferSamplesNum the number of samples of the buffer's frame
-     * @return
-     */
-    private long getJitterFreePTS(long bufferPts, long bufferSamplesNum) {
-        long correctedPts = 0;
-        long bufferDuration = (1000000 * bufferSamplesNum) / (mEncoderCore.mSampleRate);
-        bufferPts -= bufferDuration; // accounts for the delay of acquiring the audio buffer
-        if (totalSamplesNum == 0) {
-            // reset
-            startPTS = bufferPts;
-            totalSamplesNum = 0;
-        }
-        correctedPts = startPTS +  (1000000 * totalSamplesNum) / (mEncoderCore.mSampleRate);
-        if(bufferPts - correctedPts >= 2*bufferDuration) {
-            // reset
-            startPTS = bufferPts;
-            totalSamplesNum = 0;
-            correctedPts = startPTS;
-        }
-        totalSamplesNum += bufferSamplesNum;
-        return correctedPts;
+        return false;
     }
 }
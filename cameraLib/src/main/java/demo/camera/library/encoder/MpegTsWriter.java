@@ -0,0 +1,315 @@
+package demo.camera.library.encoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Packetizes H.264 access units and ADTS framed AAC into an MPEG-2 transport stream.
+ * <p>
+ * One program is written with the video stream on {@link #VIDEO_PID} and the audio
+ * stream on {@link #AUDIO_PID}.  The PCR is carried by the video stream, or by the audio
+ * stream if there is no video.  Each call to {@link #open(WritableByteChannel)} starts a
+ * new segment with its own PAT and PMT, so every segment can be decoded on its own.
+ * <p>
+ * Packets are collected in a fixed buffer and written to the channel when it fills up or
+ * on {@link #flush()}.  This class is not thread-safe.
+ */
+class MpegTsWriter {
+    static final int PACKET_SIZE = 188;
+    static final int PAT_PID = 0x0000;
+    static final int PMT_PID = 0x1000;
+    static final int VIDEO_PID = 0x0100;
+    static final int AUDIO_PID = 0x0101;
+
+    static final int STREAM_TYPE_H264 = 0x1b;
+    static final int STREAM_TYPE_AAC = 0x0f;
+    static final int STREAM_ID_VIDEO = 0xe0;
+    static final int STREAM_ID_AUDIO = 0xc0;
+
+    // Presentation times are pushed this far past the PCR to give decoders buffering room
+    static final long PTS_OFFSET = 63000;       // 0.7s at 90kHz
+
+    private static final int PACKETS_PER_WRITE = 64;
+    private static final int[] CRC_TABLE = createCrcTable();
+
+    private final boolean mHasVideo;
+    private final boolean mHasAudio;
+    private final int mPcrPid;
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(PACKET_SIZE * PACKETS_PER_WRITE);
+    private final byte[] mPesHeader = new byte[14];
+    private final byte[] mSection = new byte[PACKET_SIZE];
+    private WritableByteChannel mOut;
+
+    // Continuity counters, indexed by PAT, PMT, video, audio
+    private final int[] mContinuity = new int[4];
+
+    MpegTsWriter(boolean hasVideo, boolean hasAudio) {
+        if (!hasVideo && !hasAudio) {
+            throw new IllegalArgumentException("Transport stream needs at least one stream");
+        }
+        mHasVideo = hasVideo;
+        mHasAudio = hasAudio;
+        mPcrPid = hasVideo ? VIDEO_PID : AUDIO_PID;
+    }
+
+    /**
+     * Starts writing a new segment to out, beginning with the PAT and PMT.  The previous
+     * segment must have been flushed.
+     */
+    void open(WritableByteChannel out) throws IOException {
+        mOut = out;
+        writePat();
+        writePmt();
+    }
+
+    /**
+     * Writes one H.264 access unit in Annex B form, from its position to its limit.
+     *
+     * @param pts presentation time in 90kHz units
+     */
+    void writeVideo(ByteBuffer accessUnit, long pts, boolean keyframe) throws IOException {
+        if (!mHasVideo) {
+            throw new IllegalStateException("No video stream");
+        }
+        writePes(VIDEO_PID, STREAM_ID_VIDEO, accessUnit, pts, keyframe);
+    }
+
+    /**
+     * Writes one or more ADTS framed AAC frames, from their position to their limit.
+     *
+     * @param pts presentation time in 90kHz units
+     */
+    void writeAudio(ByteBuffer adtsFrames, long pts) throws IOException {
+        if (!mHasAudio) {
+            throw new IllegalStateException("No audio stream");
+        }
+        writePes(AUDIO_PID, STREAM_ID_AUDIO, adtsFrames, pts, !mHasVideo);
+    }
+
+    void flush() throws IOException {
+        mBuffer.flip();
+        while (mBuffer.hasRemaining()) {
+            mOut.write(mBuffer);
+        }
+        mBuffer.clear();
+    }
+
+    // ----- PES -----
+
+    private void writePes(int pid, int streamId, ByteBuffer payload, long pts,
+                          boolean randomAccess) throws IOException {
+        pts += PTS_OFFSET;
+        int payloadSize = payload.remaining();
+        byte[] header = mPesHeader;
+        header[0] = 0;
+        header[1] = 0;
+        header[2] = 1;
+        header[3] = (byte) streamId;
+        // Video PES may exceed 64k, in which case a length of 0 means unbounded
+        int pesLength = payloadSize + 8;
+        if (pesLength > 0xffff) {
+            pesLength = 0;
+        }
+        header[4] = (byte) (pesLength >>> 8);
+        header[5] = (byte) pesLength;
+        header[6] = (byte) 0x80;                // marker bits
+        header[7] = (byte) 0x80;                // PTS only
+        header[8] = 5;                          // PES header data length
+        header[9] = (byte) (0x21 | ((pts >>> 29) & 0x0e));
+        header[10] = (byte) (pts >>> 22);
+        header[11] = (byte) (0x01 | ((pts >>> 14) & 0xfe));
+        header[12] = (byte) (pts >>> 7);
+        header[13] = (byte) (0x01 | ((pts << 1) & 0xfe));
+
+        boolean pcr = pid == mPcrPid;
+        int headerOffset = 0;
+        int position = payload.position();
+        int limit = payload.limit();
+        boolean first = true;
+        while (headerOffset < header.length || position < limit) {
+            int remaining = header.length - headerOffset + limit - position;
+            int minAdaptation = 0;
+            if (first && (pcr || randomAccess)) {
+                minAdaptation = 2 + (pcr ? 6 : 0);
+            }
+            int packetPayload = Math.min(remaining, PACKET_SIZE - 4 - minAdaptation);
+            int adaptation = PACKET_SIZE - 4 - packetPayload;
+
+            ByteBuffer packet = nextPacket();
+            writePacketHeader(packet, pid, first, adaptation > 0);
+            if (adaptation > 0) {
+                packet.put((byte) (adaptation - 1));
+                if (adaptation > 1) {
+                    int flags = 0;
+                    if (first && randomAccess) {
+                        flags |= 0x40;
+                    }
+                    if (first && pcr) {
+                        flags |= 0x10;
+                    }
+                    packet.put((byte) flags);
+                    int written = 2;
+                    if ((flags & 0x10) != 0) {
+                        writePcr(packet, pts - PTS_OFFSET);
+                        written += 6;
+                    }
+                    for (; written < adaptation; written++) {
+                        packet.put((byte) 0xff);
+                    }
+                }
+            }
+
+            int fromHeader = Math.min(packetPayload, header.length - headerOffset);
+            packet.put(header, headerOffset, fromHeader);
+            headerOffset += fromHeader;
+            int fromPayload = packetPayload - fromHeader;
+            if (fromPayload > 0) {
+                ByteBuffer slice = payload.duplicate();
+                slice.position(position).limit(position + fromPayload);
+                packet.put(slice);
+                position += fromPayload;
+            }
+            first = false;
+        }
+    }
+
+    private static void writePcr(ByteBuffer packet, long pcrBase) {
+        packet.put((byte) (pcrBase >>> 25));
+        packet.put((byte) (pcrBase >>> 17));
+        packet.put((byte) (pcrBase >>> 9));
+        packet.put((byte) (pcrBase >>> 1));
+        packet.put((byte) (((pcrBase & 1) << 7) | 0x7e));   // 6 reserved bits
+        packet.put((byte) 0);                               // extension
+    }
+
+    // ----- PSI -----
+
+    private void writePat() throws IOException {
+        byte[] section = mSection;
+        int length = 0;
+        section[length++] = 0x00;                   // table_id
+        length += 2;                                // section_length, below
+        section[length++] = 0x00;
+        section[length++] = 0x01;                   // transport_stream_id
+        section[length++] = (byte) 0xc1;            // version 0, current
+        section[length++] = 0x00;
+        section[length++] = 0x00;
+        section[length++] = 0x00;
+        section[length++] = 0x01;                   // program_number
+        section[length++] = (byte) (0xe0 | (PMT_PID >>> 8));
+        section[length++] = (byte) PMT_PID;
+        writeSection(PAT_PID, section, length);
+    }
+
+    private void writePmt() throws IOException {
+        byte[] section = mSection;
+        int length = 0;
+        section[length++] = 0x02;                   // table_id
+        length += 2;
+        section[length++] = 0x00;
+        section[length++] = 0x01;                   // program_number
+        section[length++] = (byte) 0xc1;
+        section[length++] = 0x00;
+        section[length++] = 0x00;
+        section[length++] = (byte) (0xe0 | (mPcrPid >>> 8));
+        section[length++] = (byte) mPcrPid;
+        section[length++] = (byte) 0xf0;            // program_info_length 0
+        section[length++] = 0x00;
+        if (mHasVideo) {
+            length = writeStreamEntry(section, length, STREAM_TYPE_H264, VIDEO_PID);
+        }
+        if (mHasAudio) {
+            length = writeStreamEntry(section, length, STREAM_TYPE_AAC, AUDIO_PID);
+        }
+        writeSection(PMT_PID, section, length);
+    }
+
+    private static int writeStreamEntry(byte[] section, int length, int streamType, int pid) {
+        section[length++] = (byte) streamType;
+        section[length++] = (byte) (0xe0 | (pid >>> 8));
+        section[length++] = (byte) pid;
+        section[length++] = (byte) 0xf0;            // ES_info_length 0
+        section[length++] = 0x00;
+        return length;
+    }
+
+    /**
+     * Fills in section_length and the CRC, then writes section as a single packet.
+     */
+    private void writeSection(int pid, byte[] section, int length) throws IOException {
+        int sectionLength = length - 3 + 4;
+        section[1] = (byte) (0xb0 | (sectionLength >>> 8));
+        section[2] = (byte) sectionLength;
+        int crc = crc32(section, 0, length);
+        section[length++] = (byte) (crc >>> 24);
+        section[length++] = (byte) (crc >>> 16);
+        section[length++] = (byte) (crc >>> 8);
+        section[length++] = (byte) crc;
+
+        ByteBuffer packet = nextPacket();
+        writePacketHeader(packet, pid, true, false);
+        packet.put((byte) 0);                       // pointer_field
+        packet.put(section, 0, length);
+        while (packet.position() % PACKET_SIZE != 0) {
+            packet.put((byte) 0xff);
+        }
+    }
+
+    // ----- packets -----
+
+    /**
+     * Returns the packet buffer with room for one more packet, flushing it if needed.
+     */
+    private ByteBuffer nextPacket() throws IOException {
+        if (mBuffer.remaining() < PACKET_SIZE) {
+            flush();
+        }
+        return mBuffer;
+    }
+
+    private void writePacketHeader(ByteBuffer packet, int pid, boolean unitStart,
+                                   boolean adaptation) {
+        int counter = continuityIndex(pid);
+        packet.put((byte) 0x47);
+        packet.put((byte) ((unitStart ? 0x40 : 0) | (pid >>> 8)));
+        packet.put((byte) pid);
+        packet.put((byte) ((adaptation ? 0x30 : 0x10) | mContinuity[counter]));
+        mContinuity[counter] = (mContinuity[counter] + 1) & 0x0f;
+    }
+
+    private static int continuityIndex(int pid) {
+        switch (pid) {
+            case PAT_PID:
+                return 0;
+            case PMT_PID:
+                return 1;
+            case VIDEO_PID:
+                return 2;
+            default:
+                return 3;
+        }
+    }
+
+    // ----- CRC-32/MPEG-2 -----
+
+    static int crc32(byte[] data, int offset, int length) {
+        int crc = 0xffffffff;
+        for (int i = offset; i < offset + length; i++) {
+            crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ data[i]) & 0xff];
+        }
+        return crc;
+    }
+
+    private static int[] createCrcTable() {
+        int[] table = new int[256];
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 24;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ 0x04c11db7 : crc << 1;
+            }
+            table[i] = crc;
+        }
+        return table;
+    }
+}
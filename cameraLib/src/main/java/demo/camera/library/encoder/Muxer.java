@@ -2,16 +2,18 @@ package demo.camera.library.encoder;
 
 import android.media.MediaCodec;
 import android.media.MediaFormat;
-import android.os.Build;
 import android.util.Log;
 
 import com.google.common.eventbus.EventBus;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
 
 import demo.camera.library.event.MuxerFinishedEvent;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 
 /**
  * Base Muxer class for interaction with MediaCodec based
@@ -21,9 +23,13 @@ import static com.google.common.base.Preconditions.checkNotNull;
 public abstract class Muxer {
     private static final String TAG = "Muxer";
 
-    public static enum FORMAT { MPEG4, HLS }
+    public static enum FORMAT { MPEG4, FRAGMENTED_MPEG4, HLS }
 
-    private final int mExpectedNumTracks = 2;           // TODO: Make this configurable?
+    static final long DEFAULT_FINALIZE_TIMEOUT_MS = 500;
+
+    static final int MAX_TRACKS = 2;                    // One video and one audio
+
+    private int mExpectedNumTracks = MAX_TRACKS;
 
     protected FORMAT mFormat;
     protected String mOutputPath;
@@ -31,8 +37,19 @@ public abstract class Muxer {
     protected int mNumTracksFinished;
     protected long mFirstPts;
     protected long mLastPts[];
+    private final boolean[] mVideoTracks;
 
     private EventBus mEventBus;
+    private volatile BufferedSampleWriter mWriter;
+    private volatile PreRollBuffer mPreRoll;
+    private volatile boolean mStopRequested;
+    private long mFinalizeTimeoutNs = TimeUnit.MILLISECONDS.toNanos(DEFAULT_FINALIZE_TIMEOUT_MS);
+    private boolean mFinalizing;                        // Since a track began its final drain
+    private volatile long mFinalizeStartNs;
+    private long mFinalizeDeadlineNs;
+    private volatile boolean mForcedStop;               // Stopped before every track ended
+    private volatile boolean mNothingWritten;           // Stopped before every track was added
+    private volatile long mFinalizeLatencyNs = -1;
 
     protected Muxer(String outputPath, FORMAT format){
         Log.i(TAG, "Created muxer for output: " + outputPath);
@@ -41,7 +58,8 @@ public abstract class Muxer {
         mNumTracks = 0;
         mNumTracksFinished = 0;
         mFirstPts = 0;
-        mLastPts = new long[mExpectedNumTracks];
+        mLastPts = new long[MAX_TRACKS];
+        mVideoTracks = new boolean[MAX_TRACKS];
         for(int i=0; i< mLastPts.length; i++) {
             mLastPts[i] = 0;
         }
@@ -51,6 +69,10 @@ public abstract class Muxer {
         mEventBus = eventBus;
     }
 
+    public FORMAT getFormat(){
+        return mFormat;
+    }
+
     /**
      * Returns the absolute output path.
      *
@@ -69,10 +91,23 @@ public abstract class Muxer {
      * @return index of track in output file
      */
     public int addTrack(MediaFormat trackFormat){
+        if (mNumTracks == mExpectedNumTracks) {
+            throw new IllegalStateException("Expected only " + mExpectedNumTracks + " tracks");
+        }
+        String mime = trackFormat.getString(MediaFormat.KEY_MIME);
+        mVideoTracks[mNumTracks] = mime != null && mime.startsWith("video/");
         mNumTracks++;
         return mNumTracks - 1;
     }
 
+    /**
+     * Is trackIndex a video track, whose samples can't be decoded once a
+     * preceding sample is lost until the next keyframe?
+     */
+    protected boolean isVideoTrack(int trackIndex){
+        return mVideoTracks[trackIndex];
+    }
+
     /**
      * Called by the hosting Encoder
      * to notify the Muxer that it should no
@@ -82,9 +117,111 @@ public abstract class Muxer {
     public void onEncoderReleased(int trackIndex){
     }
 
+    /**
+     * Sets how many tracks will be added, 1 for a video only or audio only recording.
+     * The Muxer starts once that many are, so a single track one starts on its encoder's
+     * first format change.  Call before any track is added.
+     */
+    public synchronized void setExpectedTrackCount(int numTracks){
+        checkArgument(numTracks >= 1 && numTracks <= MAX_TRACKS, "numTracks must be 1 or 2");
+        checkState(mNumTracks == 0, "Tracks were already added");
+        mExpectedNumTracks = numTracks;
+    }
+
+    public synchronized int getExpectedTrackCount(){
+        return mExpectedNumTracks;
+    }
+
+    /**
+     * Expects one track fewer, for a track that won't come after all, e.g. audio whose
+     * encoder couldn't be had.  If the other track was already added the Muxer starts now,
+     * so the recording goes ahead without the missing one.
+     *
+     * @return false if every track was added already, only one was expected, or the Muxer
+     * was stopped
+     */
+    public synchronized boolean dropExpectedTrack(){
+        if (allTracksAdded() || mExpectedNumTracks == 1 || mStopRequested) {
+            return false;
+        }
+        mExpectedNumTracks--;
+        if (mNumTracks > 0 && allTracksAdded()) {
+            start();
+        }
+        return true;
+    }
+
+    /**
+     * Starts writing once every expected track is added.  Subclasses call this themselves
+     * from {@link #addTrack(MediaFormat)}; {@link #dropExpectedTrack()} calls it when the
+     * last track it waited for won't come.
+     */
+    protected void start(){
+    }
+
+    /**
+     * Subclasses call this once the output is complete, or once stopped without ever
+     * starting, to report the chunk finished.
+     */
     public void release(){
+        long latencyMs = -1;
+        if (mFinalizeStartNs != 0) {
+            mFinalizeLatencyNs = System.nanoTime() - mFinalizeStartNs;
+            latencyMs = TimeUnit.NANOSECONDS.toMillis(mFinalizeLatencyNs);
+            Log.i(TAG, mOutputPath + " ready " + latencyMs + "ms after stop"
+                    + (mForcedStop ? ", force stopped" : ""));
+        }
+        postEvent(new MuxerFinishedEvent(mOutputPath, mFormat, latencyMs, mForcedStop,
+                mNothingWritten));
+    }
+
+    /**
+     * How long all tracks together may take to drain once the first begins its final
+     * drain, after which the Muxer is force stopped without what is still to come.
+     * Call before recording.
+     */
+    public synchronized void setFinalizeTimeout(long timeout, TimeUnit unit){
+        mFinalizeTimeoutNs = unit.toNanos(timeout);
+    }
+
+    /**
+     * Called by each track's encoder as it begins its final drain.  The first call starts
+     * the clock on the chunk's finalize, and every track's drain waits for its end of
+     * stream until the same deadline, so they finish in parallel within one timeout
+     * instead of one after the other.
+     *
+     * @return the deadline, on the {@link System#nanoTime()} timebase
+     */
+    synchronized long beginFinalize(){
+        if (!mFinalizing) {
+            mFinalizing = true;
+            long now = System.nanoTime();
+            mFinalizeStartNs = now;
+            mFinalizeDeadlineNs = now + mFinalizeTimeoutNs;
+        }
+        return mFinalizeDeadlineNs;
+    }
+
+    /**
+     * Time from the first track beginning its final drain until the output was complete.
+     *
+     * @return -1 until then
+     */
+    public long getFinalizeLatencyMs(){
+        long latencyNs = mFinalizeLatencyNs;
+        return latencyNs < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(latencyNs);
+    }
+
+    /**
+     * Whether the Muxer was stopped before every track's end of stream arrived.
+     */
+    public boolean wasForceStopped(){
+        return mForcedStop;
+    }
+
+    protected void postEvent(Object event){
         if(mEventBus != null)
-            mEventBus.post(new MuxerFinishedEvent());
+            mEventBus.post(event);
     }
 
     public boolean isStarted(){
@@ -92,23 +229,210 @@ public abstract class Muxer {
     }
 
     /**
-     * Write the MediaCodec output buffer. This method <b>must</b>
-     * be overridden by subclasses to release encodedData, transferring
-     * ownership back to encoder, by calling encoder.releaseOutputBuffer(bufferIndex, false);
+     * Keeps the last durationUs of samples from every track instead of writing them, until
+     * {@link #endPreRoll()}, so that a recording can include the moments before it was
+     * started.  Call before any samples are written.
+     *
+     * @param bitrate combined bitrate of all tracks, which sizes the pre-roll store
+     */
+    public synchronized void enablePreRoll(long durationUs, int bitrate){
+        if (mWriter != null || mStopRequested) {
+            throw new IllegalStateException("Pre-roll must be enabled before writing starts");
+        }
+        mPreRoll = PreRollBuffer.create(durationUs, bitrate);
+    }
+
+    public boolean isPreRolling(){
+        return mPreRoll != null;
+    }
+
+    /**
+     * Starts writing, beginning with the samples kept since {@link #enablePreRoll} from the
+     * latest video keyframe at or before the pre-roll duration.  Samples arriving meanwhile
+     * are written after them.  Does nothing if not pre-rolling.
+     * <p>
+     * When buffering, the kept samples are written on the writer thread, so this returns
+     * right away.  A Muxer stopped while still pre-rolling ends the pre-roll first.
+     */
+    public synchronized void endPreRoll(){
+        PreRollBuffer preRoll = mPreRoll;
+        if (preRoll == null) {
+            return;
+        }
+        // Holding the pre-roll's lock, no sample can be added between closing it and
+        // handing it over, and any that arrive after are written after it.  The writer
+        // gets it before mPreRoll is cleared, as an encoder that sees it cleared enqueues
+        // without taking the lock
+        synchronized (preRoll) {
+            preRoll.close();
+            if (formatRequiresBuffering()) {
+                getWriter().writeFirst(preRoll);
+                mPreRoll = null;
+                return;
+            }
+            mPreRoll = null;
+        }
+        preRoll.writeTo(this);
+    }
+
+    /**
+     * Number of samples buffered but not yet written to the output.
+     */
+    public int getQueueDepth(){
+        BufferedSampleWriter writer = mWriter;
+        return writer == null ? 0 : writer.getQueueDepth();
+    }
+
+    /**
+     * Most samples that have been buffered at once. Approaching
+     * {@link BufferedSampleWriter#DEFAULT_POOL_SIZE} means storage can't keep up.
+     */
+    public int getQueueHighWaterMark(){
+        BufferedSampleWriter writer = mWriter;
+        return writer == null ? 0 : writer.getHighWaterMark();
+    }
+
+    /**
+     * Number of samples discarded because the buffer pool was exhausted, or because
+     * they depended on a discarded video frame, or because writing them failed.
+     */
+    public long getDroppedSampleCount(){
+        BufferedSampleWriter writer = mWriter;
+        return writer == null ? 0 : writer.getDroppedCount();
+    }
+
+    /**
+     * Number of samples written more than {@link BufferedSampleWriter#LATE_SAMPLE_MS}
+     * after they were buffered.
+     */
+    public long getLateSampleCount(){
+        BufferedSampleWriter writer = mWriter;
+        return writer == null ? 0 : writer.getLateCount();
+    }
+
+    /**
+     * Write the MediaCodec output buffer. Implementations <b>must</b>
+     * pass every buffer to either {@link #writeOrBufferSample} or {@link #skipSample},
+     * which release encodedData, transferring ownership back to encoder, and count
+     * BUFFER_FLAG_END_OF_STREAM.
+     * <p>
+     * Each track's encoder calls this from its own thread without holding any lock, so
+     * implementations must not touch state shared between tracks outside of
+     * {@link #writeSample}.  Calls to {@link #addTrack(MediaFormat)} are made while
+     * holding this Muxer's monitor.
      *
      * @param trackIndex
      * @param encodedData
      * @param bufferInfo
      */
-    public void writeSampleData(MediaCodec encoder, int trackIndex, int bufferIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo){
+    public abstract void writeSampleData(EncoderCodec encoder, int trackIndex, int bufferIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo);
+
+    public abstract void forceStop();
+
+    /**
+     * Writes the output trailer, if any, and releases the Muxer.  Subclasses call
+     * {@link #requestStop()} rather than calling this directly.
+     */
+    protected abstract void stop();
+
+    /**
+     * Writes one sample whose encoder buffer may already have been released.
+     * <p>
+     * Called from {@link #writeOrBufferSample} on the encoder's thread, or on the writer
+     * thread if {@link #formatRequiresBuffering()}.
+     */
+    protected abstract void writeSample(int trackIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo);
+
+    /**
+     * Writes the sample with {@link #writeSample}, or if {@link #formatRequiresBuffering()}
+     * copies it into a pooled buffer for the writer thread.  Either way the encoder's output
+     * buffer is released before this returns.  When buffering this never blocks, the sample
+     * is dropped if the pool is exhausted.
+     * <p>
+     * While pre-rolling the sample is kept for {@link #endPreRoll()} instead.
+     * <p>
+     * If this is the last track to end, the Muxer is stopped once the sample is written.
+     * A sample arriving once the Muxer is stopping, from a track that missed the finalize
+     * deadline, is discarded.
+     */
+    protected void writeOrBufferSample(EncoderCodec encoder, int trackIndex, int bufferIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo){
+        PreRollBuffer preRoll = mPreRoll;
+        if (mStopRequested) {
+            Log.w(TAG, "Discarding sample for track " + trackIndex + " written after stop");
+        } else if (preRoll != null && preRoll.add(trackIndex, isVideoTrack(trackIndex), encodedData, bufferInfo)) {
+            // Kept until endPreRoll()
+        } else if (formatRequiresBuffering()) {
+            getWriter().enqueue(encoder, trackIndex, encodedData, bufferInfo);
+        } else {
+            synchronized (this) {
+                // Checked again, as stopping without a writer closes the output right away
+                if (!mStopRequested) {
+                    writeSample(trackIndex, encodedData, bufferInfo);
+                }
+            }
+        }
+        encoder.releaseOutputBuffer(bufferIndex, false);
+        checkEndOfTrack(bufferInfo);
+    }
+
+    /**
+     * Releases an output buffer that isn't written, e.g. codec config or an empty
+     * end of stream buffer.
+     */
+    protected void skipSample(EncoderCodec encoder, int bufferIndex, MediaCodec.BufferInfo bufferInfo){
+        encoder.releaseOutputBuffer(bufferIndex, false);
+        checkEndOfTrack(bufferInfo);
+    }
+
+    /**
+     * Counts a track as finished when its end of stream buffer has been handled, and
+     * stops once all tracks are.  Tracks only count themselves finished after their last
+     * sample is queued, so one track can't stop the Muxer ahead of another's final sample.
+     */
+    private synchronized void checkEndOfTrack(MediaCodec.BufferInfo bufferInfo){
         if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
             signalEndOfTrack();
+            if (allTracksFinished()) {
+                requestStop();
+            }
         }
     }
 
-    public abstract void forceStop();
+    /**
+     * Stops the Muxer once every buffered sample is written.  Only the first call has an
+     * effect, so the output is closed exactly once however many tracks force a stop.
+     */
+    protected synchronized void requestStop(){
+        if (mStopRequested) {
+            return;
+        }
+        mForcedStop = !allTracksFinished();
+        mNothingWritten = !allTracksAdded();
+        mStopRequested = true;
+        endPreRoll();
+        if (mWriter != null) {
+            mWriter.stopAfterPending();
+        } else {
+            stop();
+        }
+    }
+
+    private BufferedSampleWriter getWriter(){
+        BufferedSampleWriter writer = mWriter;
+        if (writer == null) {
+            // Only locks until the writer exists, so tracks don't contend per sample
+            synchronized (this) {
+                if (mWriter == null) {
+                    mWriter = new BufferedSampleWriter(this, BufferedSampleWriter.DEFAULT_POOL_SIZE,
+                            mExpectedNumTracks);
+                }
+                writer = mWriter;
+            }
+        }
+        return writer;
+    }
 
-    protected boolean allTracksFinished(){
+    protected synchronized boolean allTracksFinished(){
         return (mNumTracks == mNumTracksFinished);
     }
 
@@ -117,10 +441,10 @@ public abstract class Muxer {
     }
 
     /**
-     * Muxer will call this itself if it detects BUFFER_FLAG_END_OF_STREAM
-     * in writeSampleData.
+     * Muxer will call this itself once it has handled a buffer with
+     * BUFFER_FLAG_END_OF_STREAM.
      */
-    protected void signalEndOfTrack(){
+    protected synchronized void signalEndOfTrack(){
         mNumTracksFinished++;
         Log.d(TAG, "signalEndOfTrack mNumTracksFinished count : " + mNumTracksFinished);
     }
@@ -143,14 +467,16 @@ public abstract class Muxer {
      * Does this Muxer's format require
      * copying and buffering encoder output buffers.
      * Generally speaking, is the output a Socket or File?
+     * Every current format writes to a file, which can stall
+     * for long enough to hold up capture on the other track.
      * @return
      */
     protected boolean formatRequiresBuffering(){
-        if (Build.VERSION.SDK_INT >= 21) return true;
-
         switch(mFormat){
+            case MPEG4:
+            case FRAGMENTED_MPEG4:
             case HLS:
-               return false;
+                return true;
             default:
                 return false;
         }
@@ -160,7 +486,7 @@ public abstract class Muxer {
      * Return a relative pts given an absolute pts and trackIndex.
      *
      * This method advances the state of the Muxer, and must only
-     * be called once per call to {@link #writeSampleData(MediaCodec, int, int, ByteBuffer, MediaCodec.BufferInfo)}.
+     * be called once per call to {@link #writeSampleData(EncoderCodec, int, int, ByteBuffer, MediaCodec.BufferInfo)}.
     */
     protected long getNextRelativePts(long absPts, int trackIndex) {
         if (mFirstPts == 0) {
@@ -0,0 +1,30 @@
+package demo.camera.library.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Where {@link AndroidMuxer} writes its tracks.
+ * <p>
+ * Mirrors the {@link MediaMuxer} methods of the same names, see {@link MediaMuxerSink}, so
+ * that the muxing pipeline can write to memory in unit tests.
+ * @hide
+ */
+public interface MuxerSink {
+
+    /**
+     * @return index of the track, to be passed to {@link #writeSampleData}
+     */
+    int addTrack(MediaFormat format);
+
+    void start();
+
+    void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo);
+
+    void stop();
+
+    void release();
+}
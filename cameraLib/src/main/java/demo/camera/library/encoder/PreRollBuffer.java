@@ -0,0 +1,281 @@
+package demo.camera.library.encoder;
+
+import android.media.MediaCodec;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The most recent encoded samples of every track, kept while a {@link Muxer} is pre-rolling
+ * so a recording can start a few seconds before it was asked to.
+ * <p>
+ * Sample data is copied into one direct buffer allocated up front and used as a circular
+ * allocator, with each sample's track, position, size, pts and flags in parallel arrays, so
+ * nothing is allocated per sample.  Video can only be decoded from a keyframe, so what is
+ * kept starts at the latest video keyframe at or before the duration asked for, and can
+ * reach back up to a keyframe interval further.  If the store fills up before that the
+ * oldest samples are discarded regardless.
+ * <p>
+ * Encoder threads {@link #add} samples concurrently.  Once {@link #close}d the contents no
+ * longer change and {@link #writeTo} can be called from any thread.
+ */
+class PreRollBuffer {
+    private static final String TAG = "PreRollBuffer";
+    private static final boolean VERBOSE = false;
+
+    // Generous for 30fps video plus ~43 AAC frames a second
+    static final int SAMPLES_PER_SECOND = 100;
+
+    private final long mDurationUs;
+    private final ByteBuffer mArena;
+
+    // Indexed by sequence number modulo capacity.  Samples [mHeadSeq, mTailSeq) are kept
+    private final int[] mTracks;
+    private final boolean[] mVideo;
+    private final int[] mOffsets;
+    private final int[] mSizes;
+    private final int[] mFlags;
+    private final long[] mPtsUs;
+    private long mHeadSeq;
+    private long mTailSeq;
+    private int mWritePosition;
+
+    // Sequence numbers of the video keyframes still kept, oldest first
+    private final long[] mKeyframeSeqs;
+    private long mKeyframeHead;
+    private long mKeyframeTail;
+
+    private volatile boolean mClosed;
+    private long mDiscarded;
+
+    /**
+     * @param durationUs how far back to reach from the newest sample
+     * @param capacityBytes size of the sample store
+     * @param maxSamples most samples kept
+     */
+    PreRollBuffer(long durationUs, int capacityBytes, int maxSamples) {
+        if (durationUs <= 0 || capacityBytes < 1 || maxSamples < 1) {
+            throw new IllegalArgumentException("durationUs, capacityBytes and maxSamples must be positive");
+        }
+        mDurationUs = durationUs;
+        mArena = ByteBuffer.allocateDirect(capacityBytes);
+        mTracks = new int[maxSamples];
+        mVideo = new boolean[maxSamples];
+        mOffsets = new int[maxSamples];
+        mSizes = new int[maxSamples];
+        mFlags = new int[maxSamples];
+        mPtsUs = new long[maxSamples];
+        mKeyframeSeqs = new long[maxSamples];
+    }
+
+    /**
+     * Sizes the store for durationUs plus a keyframe interval of output at bitrate, with
+     * half as much again to spare for bitrate peaks.
+     *
+     * @param bitrate combined bitrate of all tracks, in bits per second
+     */
+    static PreRollBuffer create(long durationUs, int bitrate) {
+        long windowUs = durationUs + TimeUnit.SECONDS.toMicros(VideoEncoderCore.IFRAME_INTERVAL);
+        long bytes = bitrate / 8L * windowUs / 1000000 * 3 / 2;
+        int samples = (int) (windowUs * SAMPLES_PER_SECOND / 1000000);
+        return new PreRollBuffer(durationUs, (int) Math.min(bytes, Integer.MAX_VALUE), samples);
+    }
+
+    /**
+     * Copies the sample between encodedData's position and limit, discarding whatever is no
+     * longer needed to make room.  encodedData can be released as soon as this returns.
+     *
+     * @return false if this has been closed, in which case nothing was copied
+     */
+    boolean add(int trackIndex, boolean video, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+        if (mClosed) {
+            return false;
+        }
+        synchronized (this) {
+            if (mClosed) {
+                return false;
+            }
+            int size = encodedData.remaining();
+            if (size > mArena.capacity()) {
+                Log.w(TAG, "Discarding " + size + " byte sample, larger than the whole store");
+                mDiscarded++;
+                return true;
+            }
+            discardExpired(bufferInfo.presentationTimeUs);
+            int offset = allocate(size);
+            while (offset < 0 || mTailSeq - mHeadSeq == mTracks.length) {
+                if (VERBOSE) Log.d(TAG, "store full, discarding oldest sample");
+                discardOldest();
+                mDiscarded++;
+                offset = allocate(size);
+            }
+
+            mArena.limit(offset + size).position(offset);
+            mArena.put(encodedData.duplicate());
+            mWritePosition = offset + size;
+
+            int slot = slot(mTailSeq);
+            mTracks[slot] = trackIndex;
+            mVideo[slot] = video;
+            mOffsets[slot] = offset;
+            mSizes[slot] = size;
+            mFlags[slot] = bufferInfo.flags;
+            mPtsUs[slot] = bufferInfo.presentationTimeUs;
+            if (video && (bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+                mKeyframeSeqs[keyframeSlot(mKeyframeTail++)] = mTailSeq;
+            }
+            mTailSeq++;
+            return true;
+        }
+    }
+
+    /**
+     * Stops further samples being added.  Anything added after this returns false.
+     */
+    synchronized void close() {
+        mClosed = true;
+    }
+
+    /**
+     * Writes what is kept with {@link Muxer#writeSample}: the first video keyframe, then in
+     * the order they were added the video samples after it and the samples of other tracks
+     * no earlier than it.  Without a keyframe only the other tracks are written.
+     *
+     * @return number of samples that failed to write
+     */
+    int writeTo(Muxer muxer) {
+        if (!mClosed) {
+            throw new IllegalStateException("PreRollBuffer must be closed before it is written");
+        }
+        ByteBuffer view = mArena.duplicate();
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        long startSeq = mTailSeq;
+        long startPtsUs = Long.MIN_VALUE;
+        int written = 0;
+        int failed = 0;
+        if (mKeyframeTail > mKeyframeHead) {
+            startSeq = mKeyframeSeqs[keyframeSlot(mKeyframeHead)];
+            startPtsUs = mPtsUs[slot(startSeq)];
+            failed += write(muxer, startSeq, view, info);
+            written++;
+        }
+        for (long seq = mHeadSeq; seq < mTailSeq; seq++) {
+            int slot = slot(seq);
+            if (mVideo[slot] ? seq > startSeq : mPtsUs[slot] >= startPtsUs) {
+                failed += write(muxer, seq, view, info);
+                written++;
+            }
+        }
+        Log.i(TAG, "Wrote " + written + " pre-roll samples from " + startPtsUs + "us, "
+                + mDiscarded + " discarded, " + failed + " failed");
+        return failed;
+    }
+
+    /**
+     * Number of samples kept.
+     */
+    synchronized int size() {
+        return (int) (mTailSeq - mHeadSeq);
+    }
+
+    /**
+     * Number of samples discarded to make room, beyond those that had simply expired.
+     */
+    synchronized long getDiscardedCount() {
+        return mDiscarded;
+    }
+
+    private int write(Muxer muxer, long seq, ByteBuffer view, MediaCodec.BufferInfo info) {
+        int slot = slot(seq);
+        view.limit(mOffsets[slot] + mSizes[slot]).position(mOffsets[slot]);
+        // writeSample may rewrite the pts, so fill info in afresh each time
+        info.offset = 0;
+        info.size = mSizes[slot];
+        info.presentationTimeUs = mPtsUs[slot];
+        info.flags = mFlags[slot];
+        try {
+            muxer.writeSample(mTracks[slot], view.slice(), info);
+            return 0;
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Dropping pre-roll sample for track " + mTracks[slot], e);
+            return 1;
+        }
+    }
+
+    /**
+     * Drops samples older than the latest keyframe that still covers the duration, or
+     * without any keyframes, samples older than the duration itself.
+     */
+    private void discardExpired(long newestPtsUs) {
+        long cutoffUs = newestPtsUs - mDurationUs;
+        if (mKeyframeTail == mKeyframeHead) {
+            while (mHeadSeq < mTailSeq && mPtsUs[slot(mHeadSeq)] < cutoffUs) {
+                discardOldest();
+            }
+            return;
+        }
+        while (mKeyframeTail - mKeyframeHead > 1
+                && mPtsUs[slot(mKeyframeSeqs[keyframeSlot(mKeyframeHead + 1)])] <= cutoffUs) {
+            if (!discardBefore(mKeyframeSeqs[keyframeSlot(mKeyframeHead + 1)])) {
+                break;
+            }
+        }
+        discardBefore(mKeyframeSeqs[keyframeSlot(mKeyframeHead)]);
+    }
+
+    /**
+     * Drops samples added before the keyframe numbered seq, stopping early at a sample of
+     * another track that is still written along with it.
+     *
+     * @return true if every sample before seq was dropped
+     */
+    private boolean discardBefore(long seq) {
+        long keyframePtsUs = mPtsUs[slot(seq)];
+        while (mHeadSeq < seq) {
+            int slot = slot(mHeadSeq);
+            if (!mVideo[slot] && mPtsUs[slot] >= keyframePtsUs) {
+                return false;
+            }
+            discardOldest();
+        }
+        return true;
+    }
+
+    private void discardOldest() {
+        if (mKeyframeTail > mKeyframeHead && mKeyframeSeqs[keyframeSlot(mKeyframeHead)] == mHeadSeq) {
+            mKeyframeHead++;
+        }
+        mHeadSeq++;
+        if (mHeadSeq == mTailSeq) {
+            mWritePosition = 0;
+        }
+    }
+
+    /**
+     * Returns where a sample of size bytes can go without overwriting a kept sample, or -1.
+     */
+    private int allocate(int size) {
+        if (mHeadSeq == mTailSeq) {
+            return 0;
+        }
+        int oldest = mOffsets[slot(mHeadSeq)];
+        if (mWritePosition > oldest) {
+            // Kept samples lie in [oldest, mWritePosition), free space either side
+            if (mArena.capacity() - mWritePosition >= size) {
+                return mWritePosition;
+            }
+            return oldest >= size ? 0 : -1;
+        }
+        // Wrapped, so the free space is the gap between the newest sample and the oldest
+        return oldest - mWritePosition >= size ? mWritePosition : -1;
+    }
+
+    private int slot(long seq) {
+        return (int) (seq % mTracks.length);
+    }
+
+    private int keyframeSlot(long index) {
+        return (int) (index % mKeyframeSeqs.length);
+    }
+}
@@ -0,0 +1,190 @@
+package demo.camera.library.encoder;
+
+import java.util.EnumMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The recording state of an encoder, changed only by the one thread that owns it in
+ * response to commands any thread may post.
+ * <p>
+ * {@link #post} puts a command on a lock-free {@link BoundedQueue} and unparks the owner,
+ * so it never waits for the owner.  If the owner falls behind, redundant commands are
+ * dropped rather than queued, and the last slot is kept for RELEASE, so posting never
+ * blocks the caller's thread however long the owner is stuck; it returns false for a
+ * command that didn't fit.  The owner takes commands in the order posted with
+ * {@link #poll()} or {@link #take}, acts on them, and reports the states it goes through
+ * with {@link #moveTo}, which rejects any transition not in the table below.  The latency
+ * from a command being posted to each state it leads to is recorded in
+ * {@link #getTransitionLatency}, per state.
+ * <pre>
+ *   IDLE -> ARMED -> RECORDING -> DRAINING -> IDLE
+ *     \       \                                 \
+ *      \-------\-----------> RELEASED <----------\
+ * </pre>
+ * The state itself is volatile, so it may be read from any thread.
+ * @hide
+ */
+public class RecordingStateMachine {
+    static final int DEFAULT_QUEUE_CAPACITY = 16;
+
+    public enum State {
+        /** No encoder to record into. */
+        IDLE,
+        /** An encoder is ready for the next recording. */
+        ARMED,
+        /** Feeding the encoder. */
+        RECORDING,
+        /** Ending the encoder's stream. */
+        DRAINING,
+        /** Finished for good. */
+        RELEASED
+    }
+
+    public enum Type {
+        START, STOP, RESET, RELEASE
+    }
+
+    /**
+     * A request to change state, with whatever it needs to carry out.
+     */
+    static final class Command {
+        final Type type;
+        final Object argument;
+        final long postedNs;
+
+        Command(Type type, Object argument) {
+            this.type = type;
+            this.argument = argument;
+            this.postedNs = System.nanoTime();
+        }
+
+        @Override
+        public String toString() {
+            return type.name();
+        }
+    }
+
+    private final BoundedQueue<Command> mCommands;
+    private final EnumMap<State, LatencyHistogram> mLatency = new EnumMap<>(State.class);
+    private volatile State mState = State.IDLE;
+    private volatile Thread mOwner;
+    private Type mLastPosted;               // Guarded by this, which only posters lock
+
+    public RecordingStateMachine() {
+        this(DEFAULT_QUEUE_CAPACITY);
+    }
+
+    RecordingStateMachine(int queueCapacity) {
+        mCommands = new BoundedQueue<>(queueCapacity);
+        for (State state : State.values()) {
+            mLatency.put(state, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * Sets the thread to unpark when a command is posted.  Commands posted before then
+     * wait in the queue.
+     */
+    void setOwner(Thread owner) {
+        mOwner = owner;
+    }
+
+    /**
+     * Queues a command for the owner.  Returns right away.
+     * <p>
+     * A START or STOP is dropped if it repeats the last command posted, which the owner
+     * would only ignore.  Any command but RELEASE is also dropped once the queue has one
+     * slot left, so that RELEASE can always be posted.
+     *
+     * @return false if the command was dropped
+     */
+    synchronized boolean post(Type type, Object argument) {
+        if ((type == Type.START || type == Type.STOP) && type == mLastPosted) {
+            return false;
+        }
+        if (type != Type.RELEASE && mCommands.size() >= mCommands.capacity() - 1) {
+            return false;
+        }
+        if (!mCommands.offer(new Command(type, argument))) {
+            return false;
+        }
+        mLastPosted = type;
+        Thread owner = mOwner;
+        if (owner != null) {
+            LockSupport.unpark(owner);
+        }
+        return true;
+    }
+
+    /**
+     * The next command, or null if none is queued.  Owner only.
+     */
+    Command poll() {
+        return mCommands.poll();
+    }
+
+    /**
+     * Waits up to timeoutNs for the next command.  Owner only.
+     *
+     * @return null if none was posted in time
+     */
+    Command take(long timeoutNs) {
+        long deadline = System.nanoTime() + timeoutNs;
+        Command command;
+        while ((command = mCommands.poll()) == null) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            LockSupport.parkNanos(this, remaining);
+        }
+        return command;
+    }
+
+    boolean hasPendingCommand() {
+        return !mCommands.isEmpty();
+    }
+
+    /**
+     * Changes state, recording how long it took since cause was posted.  Owner only.
+     *
+     * @param cause the command that led here, or null if none did
+     * @throws IllegalStateException if the current state can't lead to state
+     */
+    void moveTo(State state, Command cause) {
+        if (!canMove(mState, state)) {
+            throw new IllegalStateException("Can't go from " + mState + " to " + state);
+        }
+        mState = state;
+        if (cause != null) {
+            mLatency.get(state).record(System.nanoTime() - cause.postedNs, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    public State getState() {
+        return mState;
+    }
+
+    /**
+     * How long it took from posting the command that led to state until reaching it.
+     */
+    public LatencyHistogram getTransitionLatency(State state) {
+        return mLatency.get(state);
+    }
+
+    static boolean canMove(State from, State to) {
+        switch (from) {
+            case IDLE:
+                return to == State.ARMED || to == State.RELEASED;
+            case ARMED:
+                return to == State.RECORDING || to == State.RELEASED;
+            case RECORDING:
+                return to == State.DRAINING;
+            case DRAINING:
+                return to == State.IDLE;
+            default:
+                return false;
+        }
+    }
+}
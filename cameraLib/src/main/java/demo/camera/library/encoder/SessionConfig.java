@@ -1,9 +1,11 @@
 package demo.camera.library.encoder;
 
 import java.io.File;
+import java.util.concurrent.TimeUnit;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 
 /**
  * Configuration information for a Broadcasting or Recording session.
@@ -18,6 +20,9 @@ public class SessionConfig {
     private File mOutputDirectory;
     private Muxer mMuxer;
     private boolean mAttachLocation;
+    private boolean mUseEncoderCallbacks;
+    private boolean mAudioEnabled = true;
+    private long mPreRollMs;
 
     public static final int FRAME_RATE = 30;               // 30fps
     public static final float BPP = 0.10f;
@@ -26,6 +31,9 @@ public class SessionConfig {
 
     public static String sSessionFolderTemp = "session_temp";
     public static String sSessionFolder = "session";
+    public static String sSessionStitchFile = "session_stitch.mp4";
+    public static Muxer.FORMAT sDefaultMuxerFormat = Muxer.FORMAT.MPEG4;
+    public static long sDefaultPreRollMs = 0;
 
 
     public SessionConfig(Muxer muxer, VideoEncoderConfig videoConfig, AudioEncoderConfig audioConfig) {
@@ -52,7 +60,7 @@ public class SessionConfig {
     }
 
     public int getTotalBitrate() {
-        return mVideoConfig.getBitRate() + mAudioConfig.getBitrate();
+        return mVideoConfig.getBitRate() + (mAudioEnabled ? mAudioConfig.getBitrate() : 0);
     }
 
     public int getVideoResolutionWidth() {
@@ -99,6 +107,41 @@ public class SessionConfig {
         this.mAttachLocation = mAttachLocation;
     }
 
+    public boolean shouldUseEncoderCallbacks() {
+        return mUseEncoderCallbacks;
+    }
+
+    public void setUseEncoderCallbacks(boolean useEncoderCallbacks) {
+        mUseEncoderCallbacks = useEncoderCallbacks;
+    }
+
+    /**
+     * Whether the session records an audio track as well as video.
+     */
+    public boolean isAudioEnabled() {
+        return mAudioEnabled;
+    }
+
+    /**
+     * Declares the session's tracks to its Muxer, which must not have any yet: video
+     * alone if audioEnabled is false.
+     */
+    public void setAudioEnabled(boolean audioEnabled) {
+        mAudioEnabled = audioEnabled;
+        mMuxer.setExpectedTrackCount(audioEnabled ? 2 : 1);
+    }
+
+    /**
+     * How far before recording starts it reaches back, or 0 if it starts when asked.
+     */
+    public long getPreRollMs() {
+        return mPreRollMs;
+    }
+
+    public void setPreRollMs(long preRollMs) {
+        mPreRollMs = preRollMs;
+    }
+
     public static class Builder {
         private int mWidth;
         private int mHeight;
@@ -109,12 +152,17 @@ public class SessionConfig {
         private int mNumAudioChannels;
 
         private Muxer mMuxer;
+        private Muxer.FORMAT mMuxerFormat;
+        private String mOutputPath;
 
         private File mOutputDirectory;
         private String mTitle;
         private String mDescription;
         private boolean mPrivate;
         private boolean mAttachLocation;
+        private boolean mUseEncoderCallbacks;
+        private boolean mAudioEnabled;
+        private long mPreRollMs;
 
         /**
          * Configure a SessionConfig quickly with intelligent path interpretation.
@@ -145,13 +193,28 @@ public class SessionConfig {
             setMetaDefaults();
 
             if (outputLocation.contains(".mp4")) {
-                mMuxer = AndroidMuxer.create(createRecordingPath(outputLocation), Muxer.FORMAT.MPEG4);
+                mOutputPath = createRecordingPath(outputLocation);
+                mMuxerFormat = sDefaultMuxerFormat;
+            } else if (outputLocation.endsWith(".m3u8")) {
+                mOutputPath = createRecordingPath(outputLocation);
+                mMuxerFormat = Muxer.FORMAT.HLS;
             } else
-                throw new RuntimeException("Unexpected muxer output. Expected a .mp4, Got: " + outputLocation);
+                throw new RuntimeException("Unexpected muxer output. Expected a .mp4 or .m3u8, Got: " + outputLocation);
 
         }
 
 
+        private static Muxer createMuxer(String outputPath, Muxer.FORMAT format) {
+            switch (format) {
+                case FRAGMENTED_MPEG4:
+                    return FragmentedMp4Muxer.create(outputPath);
+                case HLS:
+                    return HlsMuxer.create(outputPath);
+                default:
+                    return AndroidMuxer.create(outputPath, format);
+            }
+        }
+
         /**
          * @param outputPath a desired storage location like /path/filename.ext
          * @return a File pointing to /path/filename.ext
@@ -173,6 +236,7 @@ public class SessionConfig {
             mAudioSamplerate = 44100;
             mAudioBitrate = 96 * 1000;
             mNumAudioChannels = 1;
+            mAudioEnabled = true;
         }
 
         private void setMetaDefaults() {
@@ -185,6 +249,17 @@ public class SessionConfig {
             return this;
         }
 
+        /**
+         * Selects the container written to an .mp4 recording path.  Ignored if a Muxer
+         * was supplied with {@link #withMuxer(Muxer)}.
+         */
+        public Builder withMuxerFormat(Muxer.FORMAT format) {
+            checkArgument(format == Muxer.FORMAT.MPEG4 || format == Muxer.FORMAT.FRAGMENTED_MPEG4);
+            checkState(mMuxerFormat != Muxer.FORMAT.HLS, "Output location is an .m3u8 playlist");
+            mMuxerFormat = format;
+            return this;
+        }
+
         public Builder withTitle(String title) {
             mTitle = title;
             return this;
@@ -205,6 +280,27 @@ public class SessionConfig {
             return this;
         }
 
+        /**
+         * Has the video encoder deliver output through MediaCodec callbacks (API 23+)
+         * instead of being drained before every frame.  Falls back to draining on older
+         * devices.
+         */
+        public Builder withEncoderCallbacks(boolean useCallbacks) {
+            mUseEncoderCallbacks = useCallbacks;
+            return this;
+        }
+
+        /**
+         * Keeps the last durationMs of encoded audio and video, from the keyframe before it,
+         * while the encoders run ahead of recording, and starts the output with it when
+         * {@link Muxer#endPreRoll()} is called.  0 disables pre-roll.
+         */
+        public Builder withPreRoll(long durationMs) {
+            checkArgument(durationMs >= 0);
+            mPreRollMs = durationMs;
+            return this;
+        }
+
         public Builder withVideoResolution(int width, int height) {
             mWidth = width;
             mHeight = height;
@@ -216,7 +312,11 @@ public class SessionConfig {
             return this;
         }
 
+        /**
+         * @param samplerate in Hz, e.g. 44100 or 48000
+         */
         public Builder withAudioSamplerate(int samplerate) {
+            checkArgument(samplerate >= 8000 && samplerate <= 96000);
             mAudioSamplerate = samplerate;
             return this;
         }
@@ -226,8 +326,21 @@ public class SessionConfig {
             return this;
         }
 
+        /**
+         * Records video only if false, e.g. without permission to record audio.  The Muxer
+         * then starts on the video encoder's first output, and no audio is captured or
+         * encoded.
+         */
+        public Builder withAudio(boolean audioEnabled) {
+            mAudioEnabled = audioEnabled;
+            return this;
+        }
+
+        /**
+         * @param numChannels 1 for mono or 2 for stereo
+         */
         public Builder withAudioChannels(int numChannels) {
-            checkArgument(numChannels == 0 || numChannels == 1);
+            checkArgument(numChannels == 1 || numChannels == 2);
             mNumAudioChannels = numChannels;
             return this;
         }
@@ -235,12 +348,22 @@ public class SessionConfig {
 
 
         public SessionConfig build() {
+            if (mMuxer == null) {
+                mMuxer = createMuxer(mOutputPath, mMuxerFormat);
+            }
             SessionConfig session = new SessionConfig(mMuxer,
                     new VideoEncoderConfig(mWidth, mHeight, mVideoBitrate),
                     new AudioEncoderConfig(mNumAudioChannels, mAudioSamplerate, mAudioBitrate));
 
             session.setAttachLocation(mAttachLocation);
+            session.setUseEncoderCallbacks(mUseEncoderCallbacks);
             session.setOutputDirectory(mOutputDirectory);
+            session.setAudioEnabled(mAudioEnabled);
+            session.setPreRollMs(mPreRollMs);
+            if (mPreRollMs > 0) {
+                mMuxer.enablePreRoll(TimeUnit.MILLISECONDS.toMicros(mPreRollMs),
+                        session.getTotalBitrate());
+            }
 
             return session;
         }
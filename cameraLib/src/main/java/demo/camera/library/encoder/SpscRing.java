@@ -0,0 +1,98 @@
+package demo.camera.library.encoder;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed capacity queue between exactly one producer thread and one consumer thread.
+ * <p>
+ * Only the producer moves the tail and only the consumer moves the head, so neither side
+ * ever retries or locks: an offer or poll is a couple of ordered reads and writes.
+ * {@link #offer} fails when the ring is full and {@link #poll} returns null when it is
+ * empty.
+ */
+class SpscRing<E> {
+    private final int mMask;
+    private final AtomicReferenceArray<E> mSlots;
+    private final AtomicLong mTail = new AtomicLong();
+    private final AtomicLong mHead = new AtomicLong();
+
+    /**
+     * @param capacity minimum number of elements held, rounded up to a power of two
+     */
+    SpscRing(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mMask = size - 1;
+        mSlots = new AtomicReferenceArray<>(size);
+    }
+
+    int capacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * Adds element to the tail.  Only call from the producer thread.
+     *
+     * @return false if the ring is full
+     */
+    boolean offer(E element) {
+        if (element == null) {
+            throw new NullPointerException();
+        }
+        long tail = mTail.get();
+        if (tail - mHead.get() > mMask) {
+            return false;
+        }
+        mSlots.lazySet((int) tail & mMask, element);
+        // Publishes the slot.  A full volatile write, so that a producer checking whether
+        // the consumer is parked afterwards can't miss it
+        mTail.set(tail + 1);
+        return true;
+    }
+
+    /**
+     * Returns the element at the head without removing it, or null if the ring is empty.
+     * Only call from the consumer thread.
+     */
+    E peek() {
+        long head = mHead.get();
+        if (head == mTail.get()) {
+            return null;
+        }
+        return mSlots.get((int) head & mMask);
+    }
+
+    /**
+     * Removes the element at the head, or returns null if the ring is empty.  Only call
+     * from the consumer thread.
+     */
+    E poll() {
+        long head = mHead.get();
+        if (head == mTail.get()) {
+            return null;
+        }
+        int index = (int) head & mMask;
+        E element = mSlots.get(index);
+        mSlots.lazySet(index, null);
+        // Ordered after the slot is cleared, which hands it back to the producer
+        mHead.lazySet(head + 1);
+        return element;
+    }
+
+    /**
+     * Number of elements queued.  Only a snapshot while the other thread is active.
+     */
+    int size() {
+        return (int) (mTail.get() - mHead.get());
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+}
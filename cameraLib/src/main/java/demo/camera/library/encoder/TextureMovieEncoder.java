@@ -22,9 +22,11 @@ import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 import android.util.Log;
+import android.view.Surface;
 
 import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import demo.camera.library.gles.EglCore;
 import demo.camera.library.gles.FullFrameRect;
@@ -53,6 +55,11 @@ import demo.camera.library.gles.WindowSurface;
  * <li>for each frame, after latching it with SurfaceTexture#updateTexImage(),
  *     call TextureMovieEncoder#frameAvailable().
  * </ul>
+ * Alternatively, with no shared EGL context in the EncoderConfig, the caller draws each
+ * frame into TextureMovieEncoder#getInputSurface() from its own context, e.g. with a
+ * {@link demo.camera.library.gles.RenderEngine}, if TextureMovieEncoder#reserveFrame()
+ * allows, and calls TextureMovieEncoder#frameRendered() after each.  The encoder thread
+ * then only drains the encoder, and holds no EGL state at all.
  *
  * TODO: tweak the API (esp. textureId) so it's less awkward for simple use cases.
  */
@@ -63,20 +70,39 @@ public class TextureMovieEncoder implements Runnable {
     private static final int MSG_START_RECORDING = 0;
     private static final int MSG_STOP_RECORDING = 1;
     private static final int MSG_FRAME_AVAILABLE = 2;
-    private static final int MSG_SET_TEXTURE_ID = 3;
     private static final int MSG_UPDATE_SHARED_CONTEXT = 4;
     private static final int MSG_QUIT = 5;
 
+    // Frames the encoder thread may fall behind by before they're dropped
+    public static final int DEFAULT_FRAME_QUEUE_DEPTH = 2;
+
     // ----- accessed exclusively by encoder thread -----
     private WindowSurface mInputWindowSurface;
     private EglCore mEglCore;
     private FullFrameRect mFullScreen;
-    private int mTextureId;
     private int mFrameNum;
     private VideoEncoderCore mVideoEncoder;
+    private boolean mDrawnByCaller;
+
+    // ----- kept between recordings, each on its own encoder thread -----
+    // The EGL context and shader are reused while the context they share with is the same
+    private EglCore mWarmEglCore;
+    private FullFrameRect mWarmFullScreen;
+    private EGLContext mWarmSharedContext;
+
+    // ----- accessed exclusively by the thread calling frameAvailable -----
+    private int mTextureId;
 
     // ----- accessed by multiple threads -----
     private volatile EncoderHandler mHandler;
+    private volatile Surface mInputSurface;
+    // Frames go from the rendering thread to the encoder thread through the ring, and at
+    // most one MSG_FRAME_AVAILABLE is outstanding for however many are in it.  Each
+    // recording gets a new ring, so it keeps counting until the next starts.
+    private volatile FrameRing mFrames;
+    private final AtomicBoolean mFramesSignalled = new AtomicBoolean();
+    private volatile FrameDropPolicy mFrameDropPolicy = FrameDropPolicy.DROP_OLDEST;
+    private volatile int mFrameQueueDepth = DEFAULT_FRAME_QUEUE_DEPTH;
 
     private Object mReadyFence = new Object();      // guards ready/running
     private boolean mReady;
@@ -99,20 +125,34 @@ public class TextureMovieEncoder implements Runnable {
         final int mBitRate;
         final EGLContext mEglContext;
         Muxer mMuxer;
+        final boolean mUseCallbacks;
 
         public EncoderConfig(int width, int height, int bitRate,
                 EGLContext sharedEglContext, Muxer muxer) {
+            this(width, height, bitRate, sharedEglContext, muxer, false);
+        }
+
+        /**
+         * @param sharedEglContext the context the camera texture was created in, for the
+         *                         encoder thread to draw frames from, or null if the caller
+         *                         draws them into {@link #getInputSurface()} itself
+         * @param useCallbacks have the encoder push its output to the muxer through codec
+         *                     callbacks, where supported, instead of draining before each frame
+         */
+        public EncoderConfig(int width, int height, int bitRate,
+                EGLContext sharedEglContext, Muxer muxer, boolean useCallbacks) {
             mWidth = width;
             mHeight = height;
             mBitRate = bitRate;
             mEglContext = sharedEglContext;
             mMuxer = muxer;
+            mUseCallbacks = useCallbacks;
         }
 
         @Override
         public String toString() {
             return "EncoderConfig: " + mWidth + "x" + mHeight + " @" + mBitRate +
-                    "' ctxt=" + mEglContext;
+                    "' ctxt=" + mEglContext + (mUseCallbacks ? " callbacks" : "");
         }
     }
 
@@ -132,6 +172,11 @@ public class TextureMovieEncoder implements Runnable {
                 return;
             }
             mRunning = true;
+            // The last recording's thread has quit, so nothing else touches these.  Frames
+            // the caller draws are in the encoder already, so only new ones can be dropped
+            mFrames = new FrameRing(mFrameQueueDepth, config.mEglContext == null
+                    ? FrameDropPolicy.DROP_NEWEST : mFrameDropPolicy);
+            mFramesSignalled.set(false);
             new Thread(this, "TextureMovieEncoder").start();
             while (!mReady) {
                 try {
@@ -161,6 +206,45 @@ public class TextureMovieEncoder implements Runnable {
         // delay the UI thread though, so we return immediately.
     }
 
+    /**
+     * Sets which frames to drop when the encoder thread can't keep up with the camera, and
+     * how many may wait for it before then.  Takes effect from the next recording.
+     * <p>
+     * The default, {@link FrameDropPolicy#DROP_OLDEST} with a depth of
+     * {@link #DEFAULT_FRAME_QUEUE_DEPTH}, bounds the latency of every frame recorded, e.g.
+     * once the device is throttled, to about that many frame times.  When the caller draws
+     * frames itself the policy is always {@link FrameDropPolicy#DROP_NEWEST}, as frames
+     * already drawn can't be taken back: see {@link #reserveFrame()}.
+     */
+    public void setFrameDropPolicy(FrameDropPolicy policy, int queueDepth) {
+        if (queueDepth < 1) {
+            throw new IllegalArgumentException("queueDepth must be positive");
+        }
+        mFrameDropPolicy = policy;
+        mFrameQueueDepth = queueDepth;
+    }
+
+    public FrameDropPolicy getFrameDropPolicy() {
+        return mFrameDropPolicy;
+    }
+
+    /**
+     * Number of frames dropped in the current or last recording.
+     */
+    public long getDroppedFrameCount() {
+        FrameRing frames = mFrames;
+        return frames == null ? 0 : frames.getDroppedCount();
+    }
+
+    /**
+     * Number of frames in the current or last recording the encoder thread got to more
+     * than 50ms after the camera delivered them.
+     */
+    public long getLateFrameCount() {
+        FrameRing frames = mFrames;
+        return frames == null ? 0 : frames.getLateCount();
+    }
+
     /**
      * Returns true if recording has been started.
      */
@@ -180,7 +264,11 @@ public class TextureMovieEncoder implements Runnable {
     /**
      * Tells the video recorder that a new frame is available.  (Call from non-encoder thread.)
      * <p>
-     * This function sends a message and returns immediately.  This isn't sufficient -- we
+     * The frame's transform and timestamp are copied into a preallocated {@link FrameRing}
+     * descriptor, so nothing is allocated per frame.  If the encoder thread is more than the
+     * queue depth behind, frames are dropped as {@link #setFrameDropPolicy} says.
+     * <p>
+     * This function returns immediately.  This isn't sufficient -- we
      * don't want the caller to latch a new frame until we're done with this one -- but we
      * can get away with it so long as the input frame rate is reasonable and the encoder
      * thread doesn't stall.
@@ -197,8 +285,7 @@ public class TextureMovieEncoder implements Runnable {
             }
         }
 
-        float[] transform = new float[16];      // TODO - avoid alloc every frame
-        st.getTransformMatrix(transform);
+        FrameRing frames = mFrames;
         long timestamp = st.getTimestamp();
         if (timestamp == 0) {
             // Seeing this after device is toggled off/on with power button.  The
@@ -210,23 +297,69 @@ public class TextureMovieEncoder implements Runnable {
             return;
         }
 
-        mHandler.sendMessage(mHandler.obtainMessage(MSG_FRAME_AVAILABLE,
-                (int) (timestamp >> 32), (int) timestamp, transform));
+        FrameRing.Frame frame = frames.claim();
+        if (frame == null) {
+            if (VERBOSE) Log.d(TAG, "encoder behind, dropped frame " + timestamp);
+            return;
+        }
+        st.getTransformMatrix(frame.transform);
+        frame.timestampNs = timestamp;
+        frame.textureId = mTextureId;
+        frames.commit();
+        if (mFramesSignalled.compareAndSet(false, true)) {
+            mHandler.sendEmptyMessage(MSG_FRAME_AVAILABLE);
+        }
     }
 
     /**
-     * Tells the video recorder what texture name to use.  This is the external texture that
-     * we're receiving camera previews in.  (Call from non-encoder thread.)
-     * <p>
-     * TODO: do something less clumsy
+     * The video encoder's input surface, for a caller that draws frames itself, or null
+     * until the encoder thread has set up the encoder.  Only valid until
+     * {@link #stopRecording()}, which the caller must stop drawing into it before.
      */
-    public void setTextureId(int id) {
+    public Surface getInputSurface() {
+        return mInputSurface;
+    }
+
+    /**
+     * Asks to draw the next frame into {@link #getInputSurface()}.  Returns false, counting
+     * the frame as dropped, while the queue depth of frames already drawn are still waiting
+     * for the encoder thread to drain the encoder, in which case the caller should skip the
+     * frame: drawing it would block in eglSwapBuffers until the encoder had room, stalling
+     * the caller's preview as well.  (Call from the thread drawing frames.)
+     */
+    public boolean reserveFrame() {
+        synchronized (mReadyFence) {
+            if (!mReady) {
+                return false;
+            }
+        }
+        return mFrames.claim() != null;
+    }
+
+    /**
+     * Tells the video recorder that the caller drew the frame it reserved with
+     * {@link #reserveFrame()} into {@link #getInputSurface()}.  (Call from the thread
+     * drawing frames.)
+     */
+    public void frameRendered() {
         synchronized (mReadyFence) {
             if (!mReady) {
                 return;
             }
         }
-        mHandler.sendMessage(mHandler.obtainMessage(MSG_SET_TEXTURE_ID, id, 0, null));
+        mFrames.commit();
+        if (mFramesSignalled.compareAndSet(false, true)) {
+            mHandler.sendEmptyMessage(MSG_FRAME_AVAILABLE);
+        }
+    }
+
+    /**
+     * Tells the video recorder what texture name to use.  This is the external texture that
+     * we're receiving camera previews in.  (Call from the thread calling frameAvailable,
+     * which passes it along with each frame.)
+     */
+    public void setTextureId(int id) {
+        mTextureId = id;
     }
 
     /**
@@ -282,12 +415,7 @@ public class TextureMovieEncoder implements Runnable {
                     encoder.handleStopRecording();
                     break;
                 case MSG_FRAME_AVAILABLE:
-                    long timestamp = (((long) inputMessage.arg1) << 32) |
-                            (((long) inputMessage.arg2) & 0xffffffffL);
-                    encoder.handleFrameAvailable((float[]) obj, timestamp);
-                    break;
-                case MSG_SET_TEXTURE_ID:
-                    encoder.handleSetTexture(inputMessage.arg1);
+                    encoder.handleFramesAvailable();
                     break;
                 case MSG_UPDATE_SHARED_CONTEXT:
                     encoder.handleUpdateSharedContext((EGLContext) inputMessage.obj);
@@ -308,7 +436,32 @@ public class TextureMovieEncoder implements Runnable {
         Log.d(TAG, "handleStartRecording " + config);
         mFrameNum = 0;
         prepareEncoder(config.mEglContext, config.mWidth, config.mHeight, config.mBitRate,
-                config.mMuxer);
+                config.mMuxer, config.mUseCallbacks);
+    }
+
+    /**
+     * Renders the frames committed to the ring that its drop policy keeps, oldest first,
+     * or if the caller draws them, drains what it drew and frees their places in the ring.
+     */
+    private void handleFramesAvailable() {
+        // Cleared first, so a frame committed from here on sends another message
+        mFramesSignalled.set(false);
+        FrameRing frames = mFrames;
+        if (mDrawnByCaller) {
+            // Already in the encoder, there's only its output to take
+            if (!mVideoEncoder.isCallbackDriven()) {
+                mVideoEncoder.drainEncoder(false);
+            }
+            while (frames.peek() != null) {
+                frames.release();
+            }
+            return;
+        }
+        FrameRing.Frame frame;
+        while ((frame = frames.peek()) != null) {
+            handleFrameAvailable(frame.transform, frame.timestampNs, frame.textureId);
+            frames.release();
+        }
     }
 
     /**
@@ -319,11 +472,14 @@ public class TextureMovieEncoder implements Runnable {
      * <p>
      * @param transform The texture transform, from SurfaceTexture.
      * @param timestampNanos The frame's timestamp, from SurfaceTexture.
+     * @param textureId The external texture the frame was latched into.
      */
-    private void handleFrameAvailable(float[] transform, long timestampNanos) {
+    private void handleFrameAvailable(float[] transform, long timestampNanos, int textureId) {
         if (VERBOSE) Log.d(TAG, "handleFrameAvailable tr=" + transform);
-        mVideoEncoder.drainEncoder(false);
-        mFullScreen.drawFrame(mTextureId, transform);
+        if (!mVideoEncoder.isCallbackDriven()) {
+            mVideoEncoder.drainEncoder(false);
+        }
+        mFullScreen.drawFrame(textureId, transform);
 
         mInputWindowSurface.setPresentationTime(timestampNanos);
         mInputWindowSurface.swapBuffers();
@@ -333,19 +489,13 @@ public class TextureMovieEncoder implements Runnable {
      * Handles a request to stop encoding.
      */
     private void handleStopRecording() {
-        Log.d(TAG, "handleStopRecording");
+        Log.d(TAG, "handleStopRecording, dropped " + mFrames.getDroppedCount() + " late "
+                + mFrames.getLateCount() + " frames");
+        mVideoEncoder.signalEndOfStream();
         mVideoEncoder.drainEncoder(true);
         releaseEncoder();
     }
 
-    /**
-     * Sets the texture name that SurfaceTexture will use when frames are received.
-     */
-    private void handleSetTexture(int id) {
-        //Log.d(TAG, "handleSetTexture " + id);
-        mTextureId = id;
-    }
-
     /**
      * Tears down the EGL surface and context we've been using to feed the MediaCodec input
      * surface, and replaces it with a new one that shares with the new context.
@@ -355,6 +505,10 @@ public class TextureMovieEncoder implements Runnable {
      */
     private void handleUpdateSharedContext(EGLContext newSharedContext) {
         Log.d(TAG, "handleUpdatedSharedContext " + newSharedContext);
+        if (mDrawnByCaller) {
+            // The caller has to recreate its EGL surface for the input surface
+            return;
+        }
 
         // Release the EGLSurface and EGLContext.
         mInputWindowSurface.releaseEglSurface();
@@ -363,6 +517,7 @@ public class TextureMovieEncoder implements Runnable {
 
         // Create a new EGLContext and recreate the window surface.
         mEglCore = new EglCore(newSharedContext, EglCore.FLAG_RECORDABLE);
+        mWarmSharedContext = newSharedContext;
         mInputWindowSurface.recreate(mEglCore);
         mInputWindowSurface.makeCurrent();
 
@@ -371,33 +526,87 @@ public class TextureMovieEncoder implements Runnable {
                 new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_EXT));
     }
 
-    private void prepareEncoder(EGLContext sharedContext, int width, int height, int bitRate, Muxer muxer) {
+    private void prepareEncoder(EGLContext sharedContext, int width, int height, int bitRate, Muxer muxer,
+                                boolean useCallbacks) {
         try {
-            mVideoEncoder = new VideoEncoderCore(width, height, bitRate, muxer);
+            mVideoEncoder = EncoderPool.getDefault().acquireVideoEncoder(width, height, bitRate,
+                    useCallbacks, muxer);
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
         }
-        mEglCore = new EglCore(sharedContext, EglCore.FLAG_RECORDABLE);
+        mDrawnByCaller = sharedContext == null;
+        if (mDrawnByCaller) {
+            mInputSurface = mVideoEncoder.getInputSurface();
+            return;
+        }
+        if (mWarmEglCore != null && !sharedContext.equals(mWarmSharedContext)) {
+            releaseWarmGl();
+        }
+        boolean warm = mWarmEglCore != null;
+        if (warm) {
+            mEglCore = mWarmEglCore;
+            mFullScreen = mWarmFullScreen;
+            mWarmEglCore = null;
+            mWarmFullScreen = null;
+        } else {
+            mEglCore = new EglCore(sharedContext, EglCore.FLAG_RECORDABLE);
+            mWarmSharedContext = sharedContext;
+        }
         mInputWindowSurface = new WindowSurface(mEglCore, mVideoEncoder.getInputSurface(), true);
         mInputWindowSurface.makeCurrent();
 
-        mFullScreen = new FullFrameRect(
-                new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_EXT));
+        if (!warm) {
+            mFullScreen = new FullFrameRect(
+                    new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_EXT));
+        }
     }
 
+    /**
+     * Hands the encoder back to the pool, and keeps the EGL context and shader for the
+     * next recording's thread.
+     */
     private void releaseEncoder() {
-        mVideoEncoder.release();
         if (mInputWindowSurface != null) {
             mInputWindowSurface.release();
             mInputWindowSurface = null;
         }
-        if (mFullScreen != null) {
-            mFullScreen.release(false);
-            mFullScreen = null;
-        }
+        mInputSurface = null;
+        mDrawnByCaller = false;
+        EncoderPool.getDefault().recycle(mVideoEncoder);
+        mVideoEncoder = null;
         if (mEglCore != null) {
-            mEglCore.release();
+            // Not current anywhere, so the next encoder thread can make it current
+            mEglCore.makeNothingCurrent();
+            mWarmEglCore = mEglCore;
+            mWarmFullScreen = mFullScreen;
             mEglCore = null;
+            mFullScreen = null;
+        }
+    }
+
+    /**
+     * Releases the EGL context and shader kept for the next recording.  Call when done
+     * recording for a while, e.g. when the Activity is destroyed, and not while recording.
+     */
+    public void releaseWarmResources() {
+        synchronized (mReadyFence) {
+            if (mRunning) {
+                Log.w(TAG, "Not releasing warm resources while recording");
+                return;
+            }
+            releaseWarmGl();
+        }
+    }
+
+    private void releaseWarmGl() {
+        if (mWarmFullScreen != null) {
+            // The program goes with the context, which isn't current here
+            mWarmFullScreen.release(false);
+            mWarmFullScreen = null;
+        }
+        if (mWarmEglCore != null) {
+            mWarmEglCore.release();
+            mWarmEglCore = null;
         }
     }
 }
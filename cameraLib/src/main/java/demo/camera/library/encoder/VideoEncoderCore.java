@@ -21,6 +21,8 @@ import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.util.Log;
 import android.view.Surface;
 
@@ -35,6 +37,10 @@ import java.io.IOException;
  * <p/>
  * This class is not thread-safe, with one exception: it is valid to use the input surface
  * on one thread, and drain the output on a different thread.
+ * <p/>
+ * Alternatively, where supported, output can be delivered by codec callbacks on a thread
+ * of its own, in which case drainEncoder() only needs to be called at end of stream.  See
+ * {@link #isCallbackDriven()}.
  */
 @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
 public class VideoEncoderCore extends AndroidEncoder{
@@ -44,14 +50,25 @@ public class VideoEncoderCore extends AndroidEncoder{
     // TODO: these ought to be configurable as well
     private static final String MIME_TYPE = "video/avc";    // H.264 Advanced Video Coding
     private static final int FRAME_RATE = 30;               // 30fps
-    private static final int IFRAME_INTERVAL = 5;           // 5 seconds between I-frames
+    static final int IFRAME_INTERVAL = 5;                   // 5 seconds between I-frames
     private Surface mInputSurface;
+    private HandlerThread mOutputThread;
 
 
     /**
      * Configures encoder and muxer state, and prepares the input Surface.
      */
     public VideoEncoderCore(int width, int height, int bitRate, Muxer muxer) throws IOException {
+        this(width, height, bitRate, muxer, false);
+    }
+
+    /**
+     * Configures encoder and muxer state, and prepares the input Surface.
+     *
+     * @param useCallbacks deliver output through codec callbacks where the device supports
+     *                     them, rather than by polling in drainEncoder()
+     */
+    public VideoEncoderCore(int width, int height, int bitRate, Muxer muxer, boolean useCallbacks) throws IOException {
         mMuxer = muxer;
         mBufferInfo = new MediaCodec.BufferInfo();
 
@@ -64,10 +81,16 @@ public class VideoEncoderCore extends AndroidEncoder{
         format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
         format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, IFRAME_INTERVAL);
         if (VERBOSE) Log.d(TAG, "format: " + format);
+        mFormat = format;
 
         // Create a MediaCodec encoder, and configure it with our format.  Get a Surface
         // we can use for input and wrap it with a class that handles the EGL work.
         mEncoder = MediaCodec.createEncoderByType(MIME_TYPE);
+        if (useCallbacks && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            mOutputThread = new HandlerThread(TAG + "Output");
+            mOutputThread.start();
+            enableCallbacks(new Handler(mOutputThread.getLooper()));
+        }
         mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         mInputSurface = mEncoder.createInputSurface();
         mEncoder.start();
@@ -82,6 +105,33 @@ public class VideoEncoderCore extends AndroidEncoder{
         return mInputSurface;
     }
 
+    /**
+     * Configures the codec again for {@link #recycle()}.  The previous input surface ends
+     * with the stream it fed, so there is a new one, and callbacks are set up afresh as
+     * they have to be before configuring.
+     */
+    @Override
+    protected void restart(EncoderCodec codec) {
+        if (isCallbackDriven()) {
+            enableCallbacks(new Handler(mOutputThread.getLooper()));
+        }
+        codec.configure(mFormat);
+        if (mInputSurface != null) {
+            mInputSurface.release();
+        }
+        mInputSurface = codec.createInputSurface();
+        codec.start();
+    }
+
+    @Override
+    public void release() {
+        super.release();
+        if (mOutputThread != null) {
+            mOutputThread.quitSafely();
+            mOutputThread = null;
+        }
+    }
+
     @Override
     protected boolean isSurfaceInputEncoder() {
         return true;
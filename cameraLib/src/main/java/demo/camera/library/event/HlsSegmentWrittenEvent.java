@@ -0,0 +1,20 @@
+package demo.camera.library.event;
+
+import java.io.File;
+
+/**
+ * Posted when an HLS segment is complete and the playlist lists it.
+ */
+public class HlsSegmentWrittenEvent {
+
+    public final File segment;
+    public final File playlist;
+    public final double durationSec;
+
+    public HlsSegmentWrittenEvent(File segment, File playlist, double durationSec) {
+        this.segment = segment;
+        this.playlist = playlist;
+        this.durationSec = durationSec;
+    }
+
+}
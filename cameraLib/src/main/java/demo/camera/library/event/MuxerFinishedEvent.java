@@ -1,7 +1,27 @@
 package demo.camera.library.event;
 
+import demo.camera.library.encoder.Muxer;
+
 /**
  * Created by davidbrodsky on 2/18/14.
+ * <p>
+ * Posted when a Muxer's output is complete, or when a Muxer that never started is stopped.
  */
 public class MuxerFinishedEvent {
+
+    public final String outputPath;
+    public final Muxer.FORMAT format;
+    public final long finalizeLatencyMs;    // From stop until the output was complete, -1 if unknown
+    public final boolean forceStopped;      // A track's end of stream missed the deadline
+    public final boolean nothingWritten;    // Stopped before it started, so there is no chunk
+
+    public MuxerFinishedEvent(String outputPath, Muxer.FORMAT format, long finalizeLatencyMs,
+                              boolean forceStopped, boolean nothingWritten) {
+        this.outputPath = outputPath;
+        this.format = format;
+        this.finalizeLatencyMs = finalizeLatencyMs;
+        this.forceStopped = forceStopped;
+        this.nothingWritten = nothingWritten;
+    }
+
 }
@@ -48,12 +48,14 @@ public final class EglCore {
     public static final int FLAG_TRY_GLES3 = 0x02;
 
     // Android-specific extension.
-    private static final int EGL_RECORDABLE_ANDROID = 0x3142;
+    static final int EGL_RECORDABLE_ANDROID = 0x3142;
 
     private EGLDisplay mEGLDisplay = EGL14.EGL_NO_DISPLAY;
     private EGLContext mEGLContext = EGL14.EGL_NO_CONTEXT;
     private EGLConfig mEGLConfig = null;
     private int mGlVersion = -1;
+    // False when wrapping a context created elsewhere, e.g. by GLSurfaceView
+    private boolean mOwnsContext = true;
 
 
     /**
@@ -135,6 +137,49 @@ public final class EglCore {
         Log.d(TAG, "EGLContext created, client version " + values[0]);
     }
 
+    /**
+     * Wraps a context created elsewhere.  See {@link #fromCurrentContext()}.
+     */
+    private EglCore(EGLDisplay display, EGLContext context) {
+        mEGLDisplay = display;
+        mEGLContext = context;
+        mOwnsContext = false;
+
+        // Surfaces made current on the context must have the config it was created with
+        int[] values = new int[1];
+        EGL14.eglQueryContext(mEGLDisplay, mEGLContext, EGL14.EGL_CONFIG_ID, values, 0);
+        int[] attribList = {
+                EGL14.EGL_CONFIG_ID, values[0],
+                EGL14.EGL_NONE
+        };
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] numConfigs = new int[1];
+        if (!EGL14.eglChooseConfig(mEGLDisplay, attribList, 0, configs, 0, configs.length,
+                numConfigs, 0) || numConfigs[0] < 1) {
+            throw new RuntimeException("unable to find EGLConfig " + values[0]);
+        }
+        mEGLConfig = configs[0];
+        EGL14.eglQueryContext(mEGLDisplay, mEGLContext, EGL14.EGL_CONTEXT_CLIENT_VERSION,
+                values, 0);
+        mGlVersion = values[0];
+        Log.d(TAG, "EGLContext wrapped, client version " + mGlVersion);
+    }
+
+    /**
+     * Wraps the EGL context current on this thread, e.g. GLSurfaceView's on its renderer
+     * thread, so more surfaces can be created for it and made current on it.
+     * <p>
+     * The context still belongs to whoever created it: {@link #release()} only forgets it.
+     */
+    public static EglCore fromCurrentContext() {
+        EGLDisplay display = EGL14.eglGetCurrentDisplay();
+        EGLContext context = EGL14.eglGetCurrentContext();
+        if (display.equals(EGL14.EGL_NO_DISPLAY) || context.equals(EGL14.EGL_NO_CONTEXT)) {
+            throw new RuntimeException("no EGL context current");
+        }
+        return new EglCore(display, context);
+    }
+
     /**
      * Finds a suitable EGLConfig.
      *
@@ -179,10 +224,11 @@ public final class EglCore {
      * Discards all resources held by this class, notably the EGL context.  This must be
      * called from the thread where the context was created.
      * <p>
-     * On completion, no context will be current.
+     * On completion, no context will be current, unless this wraps a context created
+     * elsewhere, which is left as it is.
      */
     public void release() {
-        if (mEGLDisplay != EGL14.EGL_NO_DISPLAY) {
+        if (mEGLDisplay != EGL14.EGL_NO_DISPLAY && mOwnsContext) {
             // Android is unusual in that it uses a reference-counted EGLDisplay.  So for
             // every eglInitialize() we need an eglTerminate().
             EGL14.eglMakeCurrent(mEGLDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE,
@@ -0,0 +1,74 @@
+package demo.camera.library.gles;
+
+/**
+ * Writes the fragment shader for one 3x3 convolution kernel, with the kernel baked in.
+ * <p>
+ * Every tap with a nonzero weight is its own texture read, unrolled, offset by a whole
+ * number of texels from the single {@link #TEXEL_SIZE_UNIFORM} and scaled by its weight as a
+ * literal.  Taps weighted zero are left out, so sharpen reads five texels and emboss three
+ * where the looping shader read nine, and there are no branches at all.
+ * <p>
+ * Only produces strings, so it needs no GL context.
+ */
+final class KernelShaderGenerator {
+    static final int KERNEL_SIZE = 9;
+    static final String TEXEL_SIZE_UNIFORM = "uTexelSize";
+
+    private KernelShaderGenerator() {
+    }
+
+    /**
+     * @param kernel weights, row by row from the top left, KERNEL_SIZE of them
+     * @param colorAdjust added to every channel of the result
+     */
+    static String generate(float[] kernel, float colorAdjust) {
+        if (kernel.length != KERNEL_SIZE) {
+            throw new IllegalArgumentException("Kernel size is " + kernel.length +
+                    " vs. " + KERNEL_SIZE);
+        }
+        StringBuilder shader = new StringBuilder(512)
+                .append("#extension GL_OES_EGL_image_external : require\n")
+                .append("precision highp float;\n")
+                .append("varying vec2 vTextureCoord;\n")
+                .append("uniform samplerExternalOES sTexture;\n")
+                .append("uniform vec2 ").append(TEXEL_SIZE_UNIFORM).append(";\n")
+                .append("void main() {\n")
+                .append("    vec4 sum = vec4(0.0);\n");
+        for (int i = 0; i < KERNEL_SIZE; i++) {
+            float weight = kernel[i];
+            if (weight == 0f) {
+                continue;
+            }
+            shader.append(weight < 0 ? "    sum -= " : "    sum += ")
+                    .append("texture2D(sTexture, vTextureCoord");
+            int dx = i % 3 - 1;
+            int dy = i / 3 - 1;
+            if (dx != 0 || dy != 0) {
+                shader.append(" + ").append(TEXEL_SIZE_UNIFORM)
+                        .append(" * vec2(").append(dx).append(".0, ").append(dy).append(".0)");
+            }
+            shader.append(')');
+            if (Math.abs(weight) != 1f) {
+                shader.append(" * ").append(literal(Math.abs(weight)));
+            }
+            shader.append(";\n");
+        }
+        if (colorAdjust != 0f) {
+            shader.append("    sum += ").append(literal(colorAdjust)).append(";\n");
+        }
+        return shader.append("    gl_FragColor = sum;\n")
+                .append("}\n")
+                .toString();
+    }
+
+    /**
+     * A GLSL float literal for value, which always has a decimal point.
+     */
+    static String literal(float value) {
+        if (Float.isNaN(value) || Float.isInfinite(value)) {
+            throw new IllegalArgumentException("Not a finite weight: " + value);
+        }
+        // Float.toString always gives a point, and an exponent as GLSL spells it if any
+        return Float.toString(value);
+    }
+}
@@ -0,0 +1,96 @@
+package demo.camera.library.gles;
+
+import android.opengl.GLES20;
+
+/**
+ * An RGBA texture with a framebuffer object to render into it, so a frame can be drawn
+ * once offscreen and then drawn from as an ordinary GL_TEXTURE_2D.
+ * <p>
+ * Create, use, and release it with the same EGL context current.
+ */
+public class OffscreenTexture {
+    private final int mWidth;
+    private final int mHeight;
+    private int mTextureId;
+    private int mFramebuffer;
+
+    public OffscreenTexture(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+
+        int[] values = new int[1];
+        GLES20.glGenTextures(1, values, 0);
+        GlUtil.checkGlError("glGenTextures");
+        mTextureId = values[0];
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureId);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
+                GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
+                GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S,
+                GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T,
+                GLES20.GL_CLAMP_TO_EDGE);
+        GlUtil.checkGlError("glTexImage2D");
+
+        GLES20.glGenFramebuffers(1, values, 0);
+        GlUtil.checkGlError("glGenFramebuffers");
+        mFramebuffer = values[0];
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, mTextureId, 0);
+        int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+            release(true);
+            throw new RuntimeException("Framebuffer not complete, status=0x"
+                    + Integer.toHexString(status));
+        }
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * The texture holding what was last drawn, for a TEXTURE_2D program to draw from.
+     */
+    public int getTextureId() {
+        return mTextureId;
+    }
+
+    /**
+     * Directs drawing into the texture, with a viewport covering all of it.
+     */
+    public void bind() {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer);
+        GLES20.glViewport(0, 0, mWidth, mHeight);
+    }
+
+    /**
+     * Directs drawing back to the current EGL surface.  The caller restores its viewport.
+     */
+    public void unbind() {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+    }
+
+    /**
+     * Releases the texture and framebuffer.  As with {@link FullFrameRect#release}, pass
+     * false if the EGL context is about to be destroyed anyway.
+     */
+    public void release(boolean doEglCleanup) {
+        if (doEglCleanup) {
+            GLES20.glDeleteFramebuffers(1, new int[] { mFramebuffer }, 0);
+            GLES20.glDeleteTextures(1, new int[] { mTextureId }, 0);
+        }
+        mFramebuffer = 0;
+        mTextureId = 0;
+    }
+}
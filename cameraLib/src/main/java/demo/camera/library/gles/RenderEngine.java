@@ -0,0 +1,185 @@
+package demo.camera.library.gles;
+
+import android.opengl.GLES20;
+import android.opengl.GLSurfaceView;
+import android.util.Log;
+import android.view.Surface;
+
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.egl.EGLDisplay;
+
+import demo.camera.library.event.EglStateSaver;
+
+/**
+ * Draws each camera frame into both the preview and the video encoder's input surface from
+ * one EGL context, on the thread it is current on.
+ * <p>
+ * A frame is drawn with the filter only once, into an {@link OffscreenTexture} the size of
+ * the camera frames.  The preview and the encoder each get a plain copy of that, so the
+ * recording looks like the preview at the cost of one filter pass per frame, however
+ * expensive the filter, plus two cheap blits.
+ * <p>
+ * The context is GLSurfaceView's, wrapped with {@link EglCore#fromCurrentContext()}, and
+ * its window surface is the preview.  The encoder's input surface gets an EGL surface in
+ * the same context, so frames are drawn straight into it: there's no second context
+ * sharing the camera texture, no encoder thread drawing the frame again, and when
+ * GLSurfaceView recreates its context only that EGL surface needs recreating.  Moving
+ * between the two surfaces is just a makeCurrent, with the preview's saved and restored by
+ * an {@link EglStateSaver}.
+ * <p>
+ * GLSurfaceView must be given a {@link RecordableConfigChooser}, so the encoder's surface
+ * can share its config.  Not thread-safe; call everything from the renderer thread.
+ */
+public class RenderEngine {
+    private static final String TAG = RenderEngine.class.getSimpleName();
+
+    private final EglCore mEglCore;
+    private final EglStateSaver mPreviewState = new EglStateSaver();
+    private FullFrameRect mBlit;
+    private OffscreenTexture mFrame;
+    private boolean mFrameDrawn;
+    private WindowSurface mEncoderSurface;
+    private int mPreviewWidth;
+    private int mPreviewHeight;
+    private int mFrameWidth;
+    private int mFrameHeight;
+
+    /**
+     * Wraps the EGL context current on this thread.  Call from onSurfaceCreated().
+     */
+    public RenderEngine() {
+        mEglCore = EglCore.fromCurrentContext();
+        mBlit = new FullFrameRect(new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_2D));
+    }
+
+    /**
+     * Records the size of the incoming camera frames, which the filtered frame is drawn at.
+     */
+    public void setFrameSize(int width, int height) {
+        mFrameWidth = width;
+        mFrameHeight = height;
+    }
+
+    /**
+     * Records the size of the preview surface, for the viewport to go back to after drawing
+     * into the encoder's.  Call from onSurfaceChanged().
+     */
+    public void setPreviewSize(int width, int height) {
+        mPreviewWidth = width;
+        mPreviewHeight = height;
+    }
+
+    /**
+     * Starts drawing into surface, the video encoder's input, or stops if surface is null.
+     * Stop before the encoder is released, as an EGL surface keeps its Surface connected.
+     */
+    public void setEncoderSurface(Surface surface) {
+        if (mEncoderSurface != null) {
+            mEncoderSurface.release();
+            mEncoderSurface = null;
+        }
+        if (surface != null) {
+            mEncoderSurface = new WindowSurface(mEglCore, surface, false);
+            Log.d(TAG, "drawing into encoder surface " + mEncoderSurface.getWidth() + "x"
+                    + mEncoderSurface.getHeight());
+        }
+    }
+
+    public boolean hasEncoderSurface() {
+        return mEncoderSurface != null;
+    }
+
+    /**
+     * Draws a camera frame through filter into the offscreen texture, then copies it into
+     * the preview, which must be current.
+     *
+     * @param filter draws the external texture, with whatever filter is selected
+     * @param transform the texture transform, from SurfaceTexture
+     */
+    public void drawFrame(FullFrameRect filter, int textureId, float[] transform) {
+        if (mFrame == null || mFrame.getWidth() != mFrameWidth
+                || mFrame.getHeight() != mFrameHeight) {
+            if (mFrame != null) {
+                mFrame.release(true);
+            }
+            mFrame = new OffscreenTexture(mFrameWidth, mFrameHeight);
+        }
+        mFrame.bind();
+        filter.drawFrame(textureId, transform);
+        mFrame.unbind();
+        mFrameDrawn = true;
+
+        GLES20.glViewport(0, 0, mPreviewWidth, mPreviewHeight);
+        mBlit.drawFrame(mFrame.getTextureId(), GlUtil.IDENTITY_MATRIX);
+    }
+
+    /**
+     * Copies the frame last drawn by {@link #drawFrame} into the encoder's surface and
+     * submits it, then makes the preview current again.  Does nothing if there is no
+     * encoder surface or frame.
+     * <p>
+     * Submitting blocks while the encoder has no room for another frame, so only call this
+     * once {@link demo.camera.library.encoder.TextureMovieEncoder#reserveFrame()} allows.
+     *
+     * @param timestampNs the frame's presentation time, from SurfaceTexture
+     */
+    public void drawFrameToEncoder(long timestampNs) {
+        if (mEncoderSurface == null || !mFrameDrawn) {
+            return;
+        }
+        // Saved every time, as GLSurfaceView may have recreated its surface since
+        mPreviewState.saveEGLState();
+        mEncoderSurface.makeCurrent();
+        GLES20.glViewport(0, 0, mEncoderSurface.getWidth(), mEncoderSurface.getHeight());
+        mBlit.drawFrame(mFrame.getTextureId(), GlUtil.IDENTITY_MATRIX);
+        mEncoderSurface.setPresentationTime(timestampNs);
+        mEncoderSurface.swapBuffers();
+        mPreviewState.makeSavedStateCurrent();
+        GLES20.glViewport(0, 0, mPreviewWidth, mPreviewHeight);
+    }
+
+    /**
+     * Releases the encoder's EGL surface, leaving the context to GLSurfaceView.  Call while
+     * the context is still current, e.g. when the renderer is told it's pausing.  GL objects
+     * are left for the context's destruction to clean up.
+     */
+    public void release() {
+        setEncoderSurface(null);
+        if (mFrame != null) {
+            mFrame.release(false);
+            mFrame = null;
+        }
+        mFrameDrawn = false;
+        mBlit.release(false);
+        mEglCore.release();
+    }
+
+    /**
+     * Has GLSurfaceView create its context with an RGBA8888 GLES 2 config that is also
+     * recordable, so video encoder surfaces can be made current on it.
+     */
+    public static class RecordableConfigChooser implements GLSurfaceView.EGLConfigChooser {
+        private static final int EGL_OPENGL_ES2_BIT = 4;
+
+        @Override
+        public EGLConfig chooseConfig(EGL10 egl, EGLDisplay display) {
+            int[] attribList = {
+                    EGL10.EGL_RED_SIZE, 8,
+                    EGL10.EGL_GREEN_SIZE, 8,
+                    EGL10.EGL_BLUE_SIZE, 8,
+                    EGL10.EGL_ALPHA_SIZE, 8,
+                    EGL10.EGL_RENDERABLE_TYPE, EGL_OPENGL_ES2_BIT,
+                    EglCore.EGL_RECORDABLE_ANDROID, 1,
+                    EGL10.EGL_NONE
+            };
+            EGLConfig[] configs = new EGLConfig[1];
+            int[] numConfigs = new int[1];
+            if (!egl.eglChooseConfig(display, attribList, configs, configs.length, numConfigs)
+                    || numConfigs[0] < 1) {
+                throw new IllegalArgumentException("No recordable RGBA8888 EGLConfig");
+            }
+            return configs[0];
+        }
+    }
+}
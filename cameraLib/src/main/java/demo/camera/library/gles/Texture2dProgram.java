@@ -21,6 +21,8 @@ import android.opengl.GLES20;
 import android.util.Log;
 
 import java.nio.FloatBuffer;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * GL program and supporting functions for textured 2D shapes.
@@ -76,42 +78,10 @@ public class Texture2dProgram {
             "    gl_FragColor = vec4(color, color, color, 1.0);\n" +
             "}\n";
 
-    // Fragment shader with a convolution filter.  The upper-left half will be drawn normally,
-    // the lower-right half will have the filter applied, and a thin red line will be drawn
-    // at the border.
-    //
-    // This is not optimized for performance.  Some things that might make this faster:
-    // - Remove the conditionals.  They're used to present a half & half view with a red
-    //   stripe across the middle, but that's only useful for a demo.
-    // - Unroll the loop.  Ideally the compiler does this for you when it's beneficial.
-    // - Bake the filter kernel into the shader, instead of passing it through a uniform
-    //   array.  That, combined with loop unrolling, should reduce memory accesses.
-    public static final int KERNEL_SIZE = 9;
-    private static final String FRAGMENT_SHADER_EXT_FILT =
-            "#extension GL_OES_EGL_image_external : require\n" +
-            "#define KERNEL_SIZE " + KERNEL_SIZE + "\n" +
-            "precision highp float;\n" +
-            "varying vec2 vTextureCoord;\n" +
-            "uniform samplerExternalOES sTexture;\n" +
-            "uniform float uKernel[KERNEL_SIZE];\n" +
-            "uniform vec2 uTexOffset[KERNEL_SIZE];\n" +
-            "uniform float uColorAdjust;\n" +
-            "void main() {\n" +
-            "    int i = 0;\n" +
-            "    vec4 sum = vec4(0.0);\n" +
-            "    if (vTextureCoord.x < vTextureCoord.y - 0.005) {\n" +
-            "        for (i = 0; i < KERNEL_SIZE; i++) {\n" +
-            "            vec4 texc = texture2D(sTexture, vTextureCoord + uTexOffset[i]);\n" +
-            "            sum += texc * uKernel[i];\n" +
-            "        }\n" +
-            "    sum += uColorAdjust;\n" +
-            "    } else if (vTextureCoord.x > vTextureCoord.y + 0.005) {\n" +
-            "        sum = texture2D(sTexture, vTextureCoord);\n" +
-            "    } else {\n" +
-            "        sum.r = 1.0;\n" +
-            "    }\n" +
-            "    gl_FragColor = sum;\n" +
-            "}\n";
+    // Convolution filters each get a fragment shader with the kernel baked in, written by
+    // KernelShaderGenerator.
+    public static final int KERNEL_SIZE = KernelShaderGenerator.KERNEL_SIZE;
+    private static final float[] IDENTITY_KERNEL = {0f, 0f, 0f,  0f, 1f, 0f,  0f, 0f, 0f};
 
     private ProgramType mProgramType;
 
@@ -119,17 +89,16 @@ public class Texture2dProgram {
     private int mProgramHandle;
     private int muMVPMatrixLoc;
     private int muTexMatrixLoc;
-    private int muKernelLoc;
-    private int muTexOffsetLoc;
-    private int muColorAdjustLoc;
+    private int muTexelSizeLoc;
     private int maPositionLoc;
     private int maTextureCoordLoc;
 
     private int mTextureTarget;
 
-    private float[] mKernel = new float[KERNEL_SIZE];
-    private float[] mTexOffset;
-    private float mColorAdjust;
+    // Programs for each kernel used so far, by shader source; TEXTURE_EXT_FILT only
+    private Map<String, Integer> mKernelPrograms;
+    private float mTexelWidth;
+    private float mTexelHeight;
 
 
     /**
@@ -153,8 +122,11 @@ public class Texture2dProgram {
                 break;
             case TEXTURE_EXT_FILT:
                 mTextureTarget = GLES11Ext.GL_TEXTURE_EXTERNAL_OES;
-                mProgramHandle = GlUtil.createProgram(VERTEX_SHADER, FRAGMENT_SHADER_EXT_FILT);
-                break;
+                mKernelPrograms = new HashMap<>();
+                // The first program is created by setKernel(), or by draw() if that comes
+                // first, so none is compiled here only to be replaced
+                setTexSize(256, 256);
+                return;
             default:
                 throw new RuntimeException("Unhandled type " + programType);
         }
@@ -162,9 +134,13 @@ public class Texture2dProgram {
             throw new RuntimeException("Unable to create program");
         }
         Log.d(TAG, "Created program " + mProgramHandle + " (" + programType + ")");
+        findLocations();
+    }
 
-        // get locations of attributes and uniforms
-
+    /**
+     * Gets locations of attributes and uniforms in mProgramHandle.
+     */
+    private void findLocations() {
         maPositionLoc = GLES20.glGetAttribLocation(mProgramHandle, "aPosition");
         GlUtil.checkLocation(maPositionLoc, "aPosition");
         maTextureCoordLoc = GLES20.glGetAttribLocation(mProgramHandle, "aTextureCoord");
@@ -173,23 +149,9 @@ public class Texture2dProgram {
         GlUtil.checkLocation(muMVPMatrixLoc, "uMVPMatrix");
         muTexMatrixLoc = GLES20.glGetUniformLocation(mProgramHandle, "uTexMatrix");
         GlUtil.checkLocation(muTexMatrixLoc, "uTexMatrix");
-        muKernelLoc = GLES20.glGetUniformLocation(mProgramHandle, "uKernel");
-        if (muKernelLoc < 0) {
-            // no kernel in this one
-            muKernelLoc = -1;
-            muTexOffsetLoc = -1;
-            muColorAdjustLoc = -1;
-        } else {
-            // has kernel, must also have tex offset and color adj
-            muTexOffsetLoc = GLES20.glGetUniformLocation(mProgramHandle, "uTexOffset");
-            GlUtil.checkLocation(muTexOffsetLoc, "uTexOffset");
-            muColorAdjustLoc = GLES20.glGetUniformLocation(mProgramHandle, "uColorAdjust");
-            GlUtil.checkLocation(muColorAdjustLoc, "uColorAdjust");
-
-            // initialize default values
-            setKernel(new float[] {0f, 0f, 0f,  0f, 1f, 0f,  0f, 0f, 0f}, 0f);
-            setTexSize(256, 256);
-        }
+        // -1 if there is no kernel, or it only reads the center texel
+        muTexelSizeLoc = GLES20.glGetUniformLocation(mProgramHandle,
+                KernelShaderGenerator.TEXEL_SIZE_UNIFORM);
     }
 
     /**
@@ -199,8 +161,16 @@ public class Texture2dProgram {
      * the program).
      */
     public void release() {
-        Log.d(TAG, "deleting program " + mProgramHandle);
-        GLES20.glDeleteProgram(mProgramHandle);
+        if (mKernelPrograms != null) {
+            for (int program : mKernelPrograms.values()) {
+                Log.d(TAG, "deleting program " + program);
+                GLES20.glDeleteProgram(program);
+            }
+            mKernelPrograms.clear();
+        } else {
+            Log.d(TAG, "deleting program " + mProgramHandle);
+            GLES20.glDeleteProgram(mProgramHandle);
+        }
         mProgramHandle = -1;
     }
 
@@ -239,34 +209,39 @@ public class Texture2dProgram {
     }
 
     /**
-     * Configures the convolution filter values.
+     * Configures the convolution filter values, by switching to a program with them baked
+     * in.  Each kernel's program is compiled the first time it's used, and kept until
+     * {@link #release()}, so switching back to it is cheap.  Has no effect on programs
+     * without a kernel.
+     * <p>
+     * The appropriate EGL context must be current.
      *
      * @param values Normalized filter values; must be KERNEL_SIZE elements.
      */
     public void setKernel(float[] values, float colorAdj) {
-        if (values.length != KERNEL_SIZE) {
-            throw new IllegalArgumentException("Kernel size is " + values.length +
-                    " vs. " + KERNEL_SIZE);
+        if (mKernelPrograms == null) {
+            return;
+        }
+        String fragmentShader = KernelShaderGenerator.generate(values, colorAdj);
+        Integer program = mKernelPrograms.get(fragmentShader);
+        if (program == null) {
+            program = GlUtil.createProgram(VERTEX_SHADER, fragmentShader);
+            if (program == 0) {
+                throw new RuntimeException("Unable to create program");
+            }
+            Log.d(TAG, "Created program " + program + " (" + mProgramType + ")");
+            mKernelPrograms.put(fragmentShader, program);
         }
-        System.arraycopy(values, 0, mKernel, 0, KERNEL_SIZE);
-        mColorAdjust = colorAdj;
-        //Log.d(TAG, "filt kernel: " + Arrays.toString(mKernel) + ", adj=" + colorAdj);
+        mProgramHandle = program;
+        findLocations();
     }
 
     /**
      * Sets the size of the texture.  This is used to find adjacent texels when filtering.
      */
     public void setTexSize(int width, int height) {
-        float rw = 1.0f / width;
-        float rh = 1.0f / height;
-
-        // Don't need to create a new array here, but it's syntactically convenient.
-        mTexOffset = new float[] {
-            -rw, -rh,   0f, -rh,    rw, -rh,
-            -rw, 0f,    0f, 0f,     rw, 0f,
-            -rw, rh,    0f, rh,     rw, rh
-        };
-        //Log.d(TAG, "filt size: " + width + "x" + height + ": " + Arrays.toString(mTexOffset));
+        mTexelWidth = 1.0f / width;
+        mTexelHeight = 1.0f / height;
     }
 
     /**
@@ -289,6 +264,11 @@ public class Texture2dProgram {
             float[] texMatrix, FloatBuffer texBuffer, int textureId, int texStride) {
         GlUtil.checkGlError("draw start");
 
+        if (mKernelPrograms != null && mKernelPrograms.isEmpty()) {
+            // No kernel was set, so pass frames through unfiltered
+            setKernel(IDENTITY_KERNEL, 0f);
+        }
+
         // Select the program.
         GLES20.glUseProgram(mProgramHandle);
         GlUtil.checkGlError("glUseProgram");
@@ -323,11 +303,10 @@ public class Texture2dProgram {
                 GLES20.GL_FLOAT, false, texStride, texBuffer);
             GlUtil.checkGlError("glVertexAttribPointer");
 
-        // Populate the convolution kernel, if present.
-        if (muKernelLoc >= 0) {
-            GLES20.glUniform1fv(muKernelLoc, KERNEL_SIZE, mKernel, 0);
-            GLES20.glUniform2fv(muTexOffsetLoc, KERNEL_SIZE, mTexOffset, 0);
-            GLES20.glUniform1f(muColorAdjustLoc, mColorAdjust);
+        // Set the texel size for the convolution kernel, if present.  The weights are
+        // baked into the program.
+        if (muTexelSizeLoc >= 0) {
+            GLES20.glUniform2f(muTexelSizeLoc, mTexelWidth, mTexelHeight);
         }
 
         // Draw the rect.
@@ -55,9 +55,11 @@ import java.util.Timer;
 import java.util.TimerTask;
 
 import demo.camera.com.cameraapplication.R;
+import demo.camera.library.encoder.EncoderPool;
 import demo.camera.library.encoder.MicrophoneEncoder;
 import demo.camera.library.encoder.SessionConfig;
 import demo.camera.library.encoder.TextureMovieEncoder;
+import demo.camera.library.gles.RenderEngine;
 import demo.camera.library.utils.AppCameraManager;
 import demo.camera.library.utils.CameraUtils;
 
@@ -67,8 +69,8 @@ import demo.camera.library.utils.CameraUtils;
  * Every time we receive a frame from the camera, we need to:
  * <ul>
  * <li>Render the frame to the SurfaceView, on GLSurfaceView's renderer thread.
- * <li>Render the frame to the mediacodec's input surface, on the encoder thread, if
- *     recording is enabled.
+ * <li>Render the frame to the mediacodec's input surface, on the same thread and in the
+ *     same EGLContext, if recording is enabled.
  * </ul>
  * <p>
  * At any given time there are four things in motion:
@@ -81,32 +83,27 @@ import demo.camera.library.utils.CameraUtils;
  *     SurfaceTexture.  We'll get notifications on the main UI thread unless we define a
  *     Looper on the thread where the SurfaceTexture is created (the GLSurfaceView renderer
  *     thread).
- * <li>The video encoder thread, embodied by TextureMovieEncoder.  This needs to share
- *     the Camera preview external texture with the GLSurfaceView renderer, which means the
- *     EGLContext in this thread must be created with a reference to the renderer thread's
- *     context in hand.
+ * <li>The video encoder thread, embodied by TextureMovieEncoder.  This only drains the
+ *     encoder the renderer thread draws frames into, and has no EGLContext of its own.
  * <li>The GLSurfaceView renderer thread, embodied by CameraSurfaceRenderer.  The thread
  *     is created for us by GLSurfaceView.  We don't get callbacks for pause/resume or
  *     thread startup/shutdown, though we could generate messages from the Activity for most
- *     of these things.  The EGLContext created on this thread must be shared with the
- *     video encoder, and must be used to create a SurfaceTexture that is used by the
- *     Camera.  As the creator of the SurfaceTexture, it must also be the one to call
- *     updateTexImage().  The renderer thread is thus at the center of a multi-thread nexus,
- *     which is a bit awkward since it's the thread we have the least control over.
+ *     of these things.  The EGLContext created on this thread draws into the video
+ *     encoder's input surface as well as the preview, through a RenderEngine, and must be
+ *     used to create a SurfaceTexture that is used by the Camera.  As the creator of the
+ *     SurfaceTexture, it must also be the one to call updateTexImage().  The renderer
+ *     thread is thus at the center of a multi-thread nexus, which is a bit awkward since
+ *     it's the thread we have the least control over.
  * </ol>
  * <p>
- * GLSurfaceView is fairly painful here.  Ideally we'd create the video encoder, create
- * an EGLContext for it, and pass that into GLSurfaceView to share.  The API doesn't allow
- * this, so we have to do it the other way around.  When GLSurfaceView gets torn down
- * (say, because we rotated the device), the EGLContext gets tossed, which means that when
- * it comes back we have to re-create the EGLContext used by the video encoder.  (And, no,
- * the "preserve EGLContext on pause" feature doesn't help.)
- * <p>
- * We could simplify this quite a bit by using TextureView instead of GLSurfaceView, but that
- * comes with a performance hit.  We could also have the renderer thread drive the video
- * encoder directly, allowing them to work from a single EGLContext, but it's useful to
- * decouple the operations, and it's generally unwise to perform disk I/O on the thread that
- * renders your UI.
+ * GLSurfaceView is fairly painful here, as it creates and owns the EGLContext.  Rather than
+ * have the video encoder create a second context sharing the camera texture with it, the
+ * renderer thread draws each frame into the encoder's input surface from GLSurfaceView's
+ * context, switching surfaces with makeCurrent.  When GLSurfaceView gets torn down (say,
+ * because we rotated the device), the EGLContext gets tossed, and when it comes back only
+ * the EGLSurface for the encoder's input needs to be created again.  Draining the encoder
+ * and writing the file stay on the encoder thread, as it's generally unwise to perform disk
+ * I/O on the thread that renders your UI.
  * <p>
  * We want to access Camera from the UI thread (setup, teardown) and the renderer thread
  * (configure SurfaceTexture, start preview), but the API says you can only access the object
@@ -201,22 +198,35 @@ public class CameraCaptureActivity extends ImmersiveActivity
         mCameraHandler = new CameraHandler(this);
         mVideoEncoder = new TextureMovieEncoder();
         mRecordingEnabled = mVideoEncoder.isRecording();
+        EncoderPool.getDefault().prewarm(mSessionConfig);
 
-
-
-        try {
-            mMicEncoder = new MicrophoneEncoder(mSessionConfig);
-        } catch (IOException e) {
-            e.printStackTrace();
+        if (mSessionConfig.isAudioEnabled()) {
+            try {
+                mMicEncoder = new MicrophoneEncoder(mSessionConfig);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
 
         // Configure the GLSurfaceView.  This will start the Renderer thread, with an
         // appropriate EGL context.
         mGLView = (GLSurfaceView) findViewById(R.id.cameraPreview_surfaceView);
         mGLView.setEGLContextClientVersion(2);     // select GLES 2.0
+        // The video encoder's surface is made current on the same context
+        mGLView.setEGLConfigChooser(new RenderEngine.RecordableConfigChooser());
         mRenderer = new CameraSurfaceRenderer(mCameraHandler, mSessionConfig, mVideoEncoder);
         mGLView.setRenderer(mRenderer);
         mGLView.setRenderMode(GLSurfaceView.RENDERMODE_WHEN_DIRTY);
+        if (mSessionConfig.getMuxer().isPreRolling()) {
+            // Encode ahead of the first touch, so it can reach back before it
+            startMicrophone();
+            mGLView.queueEvent(new Runnable() {
+                @Override
+                public void run() {
+                    mRenderer.changeRecordingState(true);
+                }
+            });
+        }
         mCameraManager = new AppCameraManager(this,mSessionConfig);
         setUpUi();
         Log.d(TAG, "onCreate complete: " + this);
@@ -354,38 +364,60 @@ public class CameraCaptureActivity extends ImmersiveActivity
 
     public void startRecording() {
         Log.d(TAG, "Action was DOWN");
-        mMicEncoder.startRecording();
         mRecordButton.setBackgroundResource(R.drawable.red_dot_stop);
         mRecordingEnabled = true;
         mCameraManager.changeRecordingState(mRecordingEnabled);
-        mGLView.queueEvent(new Runnable() {
-            @Override
-            public void run() {
-                // notify the renderer that we want to change the encoder's state
-                mRenderer.changeRecordingState(mRecordingEnabled);
-            }
-        });
+        if (mSessionConfig.getMuxer().isPreRolling()) {
+            // The encoders are already running, so the recording starts a moment ago
+            mSessionConfig.getMuxer().endPreRoll();
+        } else {
+            startMicrophone();
+            mGLView.queueEvent(new Runnable() {
+                @Override
+                public void run() {
+                    // notify the renderer that we want to change the encoder's state
+                    mRenderer.changeRecordingState(true);
+                }
+            });
+        }
         mRecordButton.setBackgroundResource(R.drawable.red_dot_stop);
     }
 
+    /**
+     * Starts audio for the chunk, unless the session is video only.
+     */
+    private void startMicrophone() {
+        if (mMicEncoder != null && mSessionConfig.isAudioEnabled()) {
+            mMicEncoder.startRecording();
+        }
+    }
+
     public void stopRecording() {
         mRecordingEnabled = false;
-        mMicEncoder.stopRecording();
+        if (mMicEncoder != null) {
+            mMicEncoder.stopRecording();
+        }
         handleStopRecording();
         resetConfig();
-        try {
-            mMicEncoder.reset(mSessionConfig);
-            mRenderer.resetSessionConfig(mSessionConfig);
-        } catch (IOException e) {
-            e.printStackTrace();
+        if (mMicEncoder != null && !mMicEncoder.reset(mSessionConfig)) {
+            // Without audio coming, a muxer expecting it would never start
+            Log.w(TAG, "Audio encoder is behind, recording the next chunk without audio");
+            mSessionConfig.setAudioEnabled(false);
         }
 
         mCameraManager.changeRecordingState(mRecordingEnabled);
+        final SessionConfig config = mSessionConfig;
+        // When pre-rolling the encoders go straight on into the next session
+        final boolean encoding = config.getMuxer().isPreRolling();
+        if (encoding) {
+            startMicrophone();
+        }
         mGLView.queueEvent(new Runnable() {
             @Override
             public void run() {
-                // notify the renderer that we want to change the encoder's state
-                mRenderer.changeRecordingState(mRecordingEnabled);
+                // Together, so that no frame sees the new session with the old state
+                mRenderer.resetSessionConfig(config);
+                mRenderer.changeRecordingState(encoding);
             }
         });
     }
@@ -458,14 +490,14 @@ public class CameraCaptureActivity extends ImmersiveActivity
         mDoneButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
+                // Stop first: the stitcher waits for the chunk being recorded to finish
+                if (mCameraManager != null && mCameraManager.isRecording()) {
+                    stopRecording();
+                }
                 AsyncStitcherTask stitcherTask = new AsyncStitcherTask(CameraCaptureActivity.this);
                 stitcherTask.execute("AsyncStitcherTask Task");
                 mDoneButton.setVisibility(View.GONE);
 
-                if (mCameraManager != null && mCameraManager.isRecording()) {
-                    handleStopRecording();
-                }
-
                 mBlockerSpinner.setVisibility(View.VISIBLE);
                 mDonutProgress.setProgress(0);
                 mDonutProgress.setText(CameraUtils.millisecondToTimeString(0));
@@ -497,8 +529,23 @@ public class CameraCaptureActivity extends ImmersiveActivity
             final File outDir = Environment.getExternalStoragePublicDirectory(
                     Environment.DIRECTORY_DCIM);
 
-            CameraUtils.stichVideos(
-                    mContext, inputDir.getPath(), outDir.getPath());
+            File stitched = null;
+            if (mCameraManager != null) {
+                try {
+                    stitched = mCameraManager.finishStitching(
+                            CameraUtils.createStitchedOutputFile(outDir.getPath()));
+                } catch (IOException e) {
+                    Log.w(TAG, "Incremental stitch failed, stitching all chunks", e);
+                }
+            }
+
+            if (stitched != null) {
+                CameraUtils.clearSessionFolders(mContext, true, false);
+                CameraUtils.notifyMediaScanner(mContext, stitched);
+            } else {
+                CameraUtils.stichVideos(
+                        mContext, inputDir.getPath(), outDir.getPath());
+            }
             return true;
         }
 
@@ -529,6 +576,9 @@ public class CameraCaptureActivity extends ImmersiveActivity
                         }
                         mCancleButton.setVisibility(View.INVISIBLE);
                         mDoneButton.setVisibility(View.GONE);
+                        if (mCameraManager != null) {
+                            mCameraManager.discardStitching();
+                        }
                         CameraUtils.clearSessionFolders(mDonutProgress.getContext(), true, false);
                         dialog.dismiss();
                     }
@@ -613,6 +663,14 @@ public class CameraCaptureActivity extends ImmersiveActivity
         Log.d(TAG, "onDestroy");
         super.onDestroy();
         mCameraHandler.invalidateHandler();     // paranoia
+        if (mCameraManager != null) {
+            mCameraManager.discardStitching();
+        }
+        if (mMicEncoder != null) {
+            mMicEncoder.release();
+        }
+        mVideoEncoder.releaseWarmResources();
+        EncoderPool.getDefault().releaseAll();
         CameraUtils.clearSessionFolders(this, true, true);
     }
 
@@ -2,15 +2,16 @@ package demo.camera.library.ui;
 
 
 import android.graphics.SurfaceTexture;
-import android.opengl.EGL14;
 import android.opengl.GLSurfaceView;
 import android.util.Log;
+import android.view.Surface;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
 import demo.camera.library.encoder.SessionConfig;
 import demo.camera.library.gles.FullFrameRect;
+import demo.camera.library.gles.RenderEngine;
 import demo.camera.library.gles.Texture2dProgram;
 import demo.camera.library.encoder.TextureMovieEncoder;
 
@@ -31,6 +32,7 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
     private CameraCaptureActivity.CameraHandler mCameraHandler;
     private TextureMovieEncoder mVideoEncoder;
 
+    private RenderEngine mRenderEngine;
     private FullFrameRect mFullScreen;
 
     private final float[] mSTMatrix = new float[16];
@@ -49,6 +51,7 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
     private int mCurrentFilter;
     private int mNewFilter;
     private SessionConfig mSessionConfig;
+    private SessionConfig mEncoderSessionConfig;    // what the running encoder writes to
 
     /**
      * Constructs CameraSurfaceRenderer.
@@ -89,6 +92,11 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
             mSurfaceTexture.release();
             mSurfaceTexture = null;
         }
+        if (mRenderEngine != null) {
+            // The encoder keeps recording, and gets a surface in the next context
+            mRenderEngine.release();
+            mRenderEngine = null;
+        }
         if (mFullScreen != null) {
             mFullScreen.release(false);     // assume the GLSurfaceView EGL context is about
             mFullScreen = null;             //  to be destroyed
@@ -198,8 +206,8 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
         Log.d(TAG, "onSurfaceCreated");
 
         // We're starting up or coming back.  Either way we've got a new EGLContext that will
-        // need to be shared with the video encoder, so figure out if a recording is already
-        // in progress.
+        // need its own surface for the video encoder's input, so figure out if a recording is
+        // already in progress.
         mRecordingEnabled = mVideoEncoder.isRecording();
         if (mRecordingEnabled) {
             mRecordingStatus = RECORDING_RESUMED;
@@ -207,8 +215,11 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
             mRecordingStatus = RECORDING_OFF;
         }
 
-        // Set up the texture blitter that will be used for on-screen display.  This
-        // is *not* applied to the recording, because that uses a separate shader.
+        // Frames are drawn into the preview and the video encoder from this one context.
+        mRenderEngine = new RenderEngine();
+
+        // Set up the texture blitter that applies the filter.  The render engine draws each
+        // frame through it once, and copies the result to the display and the recording.
         mFullScreen = new FullFrameRect(
                 new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_EXT));
 
@@ -227,6 +238,7 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
     @Override
     public void onSurfaceChanged(GL10 unused, int width, int height) {
         Log.d(TAG, "onSurfaceChanged " + width + "x" + height);
+        mRenderEngine.setPreviewSize(width, height);
         mCameraHandler.sendMessage(mCameraHandler.obtainMessage(
                 CameraCaptureActivity.CameraHandler.MSG_SURFACE_CHANGED, (double) width/ height));
     }
@@ -241,25 +253,39 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
         mSurfaceTexture.updateTexImage();
 
         // If the recording state is changing, take care of it here.  Ideally we wouldn't
-        // be doing all this in onDrawFrame(), but the EGLContext sharing with GLSurfaceView
-        // makes it hard to do elsewhere.
+        // be doing all this in onDrawFrame(), but the encoder's surface has to be made
+        // current on GLSurfaceView's EGLContext, which makes it hard to do elsewhere.
         if (mRecordingEnabled) {
             switch (mRecordingStatus) {
                 case RECORDING_OFF:
+                    if (mVideoEncoder.isRecording()) {
+                        // The previous recording is still finishing, try again next frame
+                        break;
+                    }
                     Log.d(TAG, "START recording");
-                    // start recording
+                    mEncoderSessionConfig = mSessionConfig;
+                    // start recording, drawing frames into the encoder from here
                     mVideoEncoder.startRecording(new TextureMovieEncoder.EncoderConfig(mSessionConfig.getVideoWidth(),
                             mSessionConfig.getVideoHeight(), mSessionConfig.getVideoBitrate(),
-                            EGL14.eglGetCurrentContext(), mSessionConfig.getMuxer()));
+                            null, mSessionConfig.getMuxer(),
+                            mSessionConfig.shouldUseEncoderCallbacks()));
                     mRecordingStatus = RECORDING_ON;
                     break;
                 case RECORDING_RESUMED:
+                    // The encoder surface is attached to this context below
                     Log.d(TAG, "RESUME recording");
-                    mVideoEncoder.updateSharedContext(EGL14.eglGetCurrentContext());
                     mRecordingStatus = RECORDING_ON;
                     break;
                 case RECORDING_ON:
-                    // yay
+                    if (mEncoderSessionConfig != mSessionConfig) {
+                        // The session was reset without recording being turned off, as when
+                        // pre-rolling for the next one.  Finish this one, the next frame
+                        // starts the new one
+                        Log.d(TAG, "RESTART recording");
+                        mRenderEngine.setEncoderSurface(null);
+                        mVideoEncoder.stopRecording();
+                        mRecordingStatus = RECORDING_OFF;
+                    }
                     break;
                 default:
                     throw new RuntimeException("unknown status " + mRecordingStatus);
@@ -270,6 +296,7 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
                 case RECORDING_RESUMED:
                     // stop recording
                     Log.d(TAG, "STOP recording");
+                    mRenderEngine.setEncoderSurface(null);
                     mVideoEncoder.stopRecording();
                     mRecordingStatus = RECORDING_OFF;
                     break;
@@ -281,20 +308,9 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
             }
         }
 
-        // Set the video encoder's texture name.  We only need to do this once, but in the
-        // current implementation it has to happen after the video encoder is started, so
-        // we just do it here.
-        //
-        // TODO: be less lame.
-        mVideoEncoder.setTextureId(mTextureId);
-
-        // Tell the video encoder thread that a new frame is available.
-        // This will be ignored if we're not actually recording.
-        mVideoEncoder.frameAvailable(mSurfaceTexture);
-
         if (mIncomingWidth <= 0 || mIncomingHeight <= 0) {
-            // Texture size isn't set yet.  This is only used for the filters, but to be
-            // safe we can just skip drawing while we wait for the various races to resolve.
+            // Texture size isn't set yet.  It sizes the filters and the offscreen frame, so
+            // we just skip drawing while we wait for the various races to resolve.
             // (This seems to happen if you toggle the screen off/on with power button.)
             Log.i(TAG, "Drawing before incoming texture size set; skipping");
             return;
@@ -305,12 +321,34 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
         }
         if (mIncomingSizeUpdated) {
             mFullScreen.getProgram().setTexSize(mIncomingWidth, mIncomingHeight);
+            mRenderEngine.setFrameSize(mIncomingWidth, mIncomingHeight);
             mIncomingSizeUpdated = false;
         }
 
         // Draw the video frame.
         mSurfaceTexture.getTransformMatrix(mSTMatrix);
-        mFullScreen.drawFrame(mTextureId, mSTMatrix);
+        mRenderEngine.drawFrame(mFullScreen, mTextureId, mSTMatrix);
+
+        // Copy the same frame into the video encoder's input surface, once the encoder thread
+        // has set it up, and tell the encoder thread to take it.  While the encoder thread is
+        // behind the frame is dropped instead, rather than the preview waiting for it.
+        if (mRecordingStatus == RECORDING_ON) {
+            Surface inputSurface = mVideoEncoder.getInputSurface();
+            if (!mRenderEngine.hasEncoderSurface() && inputSurface != null) {
+                mRenderEngine.setEncoderSurface(inputSurface);
+            }
+            long timestamp = mSurfaceTexture.getTimestamp();
+            // A zero timestamp comes after the device is toggled off/on with the power
+            // button, and MPEG4Writer aborts on it
+            if (mRenderEngine.hasEncoderSurface() && timestamp != 0) {
+                if (mVideoEncoder.reserveFrame()) {
+                    mRenderEngine.drawFrameToEncoder(timestamp);
+                    mVideoEncoder.frameRendered();
+                } else if (VERBOSE) {
+                    Log.d(TAG, "encoder behind, dropped frame " + timestamp);
+                }
+            }
+        }
 
     }
 }
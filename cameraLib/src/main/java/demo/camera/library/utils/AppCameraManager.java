@@ -9,9 +9,15 @@ import com.google.common.eventbus.DeadEvent;
 import com.google.common.eventbus.EventBus;
 import com.google.common.eventbus.Subscribe;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
+import demo.camera.library.encoder.Muxer;
 import demo.camera.library.encoder.SessionConfig;
 import demo.camera.library.event.MuxerFinishedEvent;
 
@@ -20,6 +26,8 @@ import demo.camera.library.event.MuxerFinishedEvent;
  */
 public class AppCameraManager {
     public static final String TAG = AppCameraManager.class.getSimpleName();
+    // How long finishing a session waits for the last chunk's muxer, well past its finalize
+    private static final long CHUNK_FINISH_TIMEOUT_MS = 5000;
     private long mRecordingStartTime;
     private long mRecordingStopTime;
     private long mElapsedTime;
@@ -38,6 +46,15 @@ public class AppCameraManager {
     private int mDesiredCamera;
     private int mCameraPreviewWidth, mCameraPreviewHeight;
 
+    private IncrementalStitcher mStitcher;
+    // Output paths of this session's chunks whose MuxerFinishedEvent isn't in yet.  Emptied
+    // when the session is finished or discarded, so a late event can't join the next one:
+    // into mLateChunks if the chunk files are to be stitched instead, else mDiscardedChunks.
+    private final Set<String> mPendingChunks = new HashSet<>();
+    private final Set<String> mLateChunks = new HashSet<>();
+    private final Set<String> mDiscardedChunks = new HashSet<>();
+    private int mLostChunks;                // Finished, but couldn't be handed to mStitcher
+
     public AppCameraManager(Context context, SessionConfig config) {
         mEventBus = new EventBus("CameraManager");
         mEventBus.register(this);
@@ -64,6 +81,9 @@ public class AppCameraManager {
 
 
     public void startRecording() {
+        synchronized (this) {
+            mPendingChunks.add(mSessionConfig.getMuxer().getOutputPath());
+        }
         mIsRecording = true;
         mRecordingStartTime = System.currentTimeMillis();
         mSound.play(MediaActionSound.START_VIDEO_RECORDING);
@@ -123,10 +143,159 @@ public class AppCameraManager {
     }
 
 
+    /**
+     * Called on the muxer's writer thread.  The event says which chunk finished, as by now
+     * mLastSessionConfig may already be a later chunk's.
+     */
     @Subscribe
     public void onMuxerFinished(MuxerFinishedEvent e) {
-        Log.d(TAG, "onMuxerFinished");
-        CameraUtils.moveVideoChunk(mContext, mLastSessionConfig);
+        Log.d(TAG, "onMuxerFinished " + e.outputPath + " " + e.finalizeLatencyMs
+                + "ms after stop" + (e.forceStopped ? ", force stopped" : ""));
+        boolean late;
+        synchronized (this) {
+            late = mLateChunks.remove(e.outputPath);
+            if (mDiscardedChunks.remove(e.outputPath)) {
+                Log.w(TAG, "Deleting " + e.outputPath + ", its session was discarded");
+                new File(e.outputPath).delete();
+                return;
+            } else if (!late && !mPendingChunks.contains(e.outputPath)) {
+                Log.w(TAG, "Ignoring " + e.outputPath + ", it wasn't recorded");
+                return;
+            }
+        }
+        try {
+            if (e.nothingWritten) {
+                // Stopped before every track started, so there is no chunk
+                Log.w(TAG, "Nothing was written to " + e.outputPath);
+                new File(e.outputPath).delete();
+                return;
+            }
+            if (e.format == Muxer.FORMAT.HLS) {
+                // Segments and playlist are final where they were written
+                return;
+            }
+            File chunk = CameraUtils.moveVideoChunk(mContext, e.outputPath);
+            if (late) {
+                // Finishing the session timed out waiting for it, so it is stitched from
+                // the session folder with the others
+                Log.w(TAG, "Kept late chunk " + e.outputPath + " in the session folder");
+                return;
+            }
+            // Fold the chunk into the running output while the user keeps recording.
+            // Fragmented chunks are cheap to join at the end, so they are left alone.
+            if (e.format == Muxer.FORMAT.MPEG4) {
+                IncrementalStitcher stitcher = chunk != null ? getStitcher(e.outputPath) : null;
+                if (stitcher != null) {
+                    stitcher.append(chunk);
+                } else if (chunk != null) {
+                    deleteIfDiscarded(e.outputPath, chunk);
+                } else {
+                    synchronized (this) {
+                        mLostChunks++;
+                    }
+                }
+            }
+        } finally {
+            synchronized (this) {
+                mPendingChunks.remove(e.outputPath);
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * For a chunk whose session ended while it was being moved: deletes it if the session
+     * was discarded, else leaves it in the session folder to be stitched from there.
+     */
+    private synchronized void deleteIfDiscarded(String chunkPath, File chunk) {
+        mLateChunks.remove(chunkPath);
+        if (mDiscardedChunks.remove(chunkPath)) {
+            Log.w(TAG, "Deleting " + chunk.getPath() + ", its session was discarded");
+            chunk.delete();
+        }
+    }
+
+    /**
+     * Returns the session's stitcher, creating it for the first chunk.
+     *
+     * @return null if the session chunkPath belongs to was finished or discarded meanwhile
+     */
+    private synchronized IncrementalStitcher getStitcher(String chunkPath) {
+        if (!mPendingChunks.contains(chunkPath)) {
+            return null;
+        }
+        if (mStitcher == null) {
+            mStitcher = new IncrementalStitcher(CameraUtils.getStitchWorkingFile(mContext));
+        }
+        return mStitcher;
+    }
+
+    /**
+     * Finalizes the incrementally stitched session into outputFile.  Only the index is
+     * written here; the chunks were appended as they finished.
+     * <p>
+     * Blocks until every stopped chunk's muxer has finished and the chunk is appended, so
+     * call after {@link #stopRecording()} and not from the UI thread.  If a chunk doesn't
+     * finish in time or couldn't be appended, the stitch is dropped and this throws, so that
+     * the caller can stitch the chunk files instead before deleting any.  A chunk finishing
+     * after the timeout is still moved into the session folder for that.
+     *
+     * @return outputFile, or null if nothing was stitched
+     * @throws IOException if the stitch would be missing a chunk
+     */
+    public File finishStitching(File outputFile) throws IOException {
+        IncrementalStitcher stitcher;
+        synchronized (this) {
+            long deadlineMs = System.currentTimeMillis() + CHUNK_FINISH_TIMEOUT_MS;
+            while (!mPendingChunks.isEmpty()) {
+                long remainingMs = deadlineMs - System.currentTimeMillis();
+                if (remainingMs <= 0) {
+                    int pending = mPendingChunks.size();
+                    dropStitching();
+                    throw new IOException("Timed out waiting for " + pending + " chunk(s)");
+                }
+                try {
+                    TimeUnit.MILLISECONDS.timedWait(this, remainingMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for the last chunk");
+                }
+            }
+            if (mLostChunks > 0) {
+                int lost = mLostChunks;
+                dropStitching();
+                throw new IOException(lost + " chunk(s) couldn't be moved for stitching");
+            }
+            stitcher = mStitcher;
+            mStitcher = null;
+        }
+        return stitcher != null ? stitcher.finish(outputFile) : null;
+    }
+
+    /**
+     * Drops the incrementally stitched session, e.g. when the user deletes the recording,
+     * and stops waiting for its chunks.  Any still to finish are deleted when they do.
+     */
+    public synchronized void discardStitching() {
+        mDiscardedChunks.addAll(mPendingChunks);
+        mDiscardedChunks.addAll(mLateChunks);
+        mLateChunks.clear();
+        mPendingChunks.clear();
+        dropStitching();
+    }
+
+    /**
+     * Drops the incrementally stitched session so the chunk files can be stitched instead.
+     * Chunks still to finish are moved into the session folder when they do.
+     */
+    private synchronized void dropStitching() {
+        if (mStitcher != null) {
+            mStitcher.discard();
+            mStitcher = null;
+        }
+        mLateChunks.addAll(mPendingChunks);
+        mPendingChunks.clear();
+        mLostChunks = 0;
     }
 
     public int getCameraPreviewWidth() {
@@ -0,0 +1,173 @@
+package demo.camera.library.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Growable, big-endian writer for ISO base media (MP4) boxes.
+ * <p>
+ * Boxes are opened with {@link #startBox(String)} or {@link #startFullBox(String, int, int)}
+ * and closed with {@link #endBox()}, which back-patches the 32 bit size field.  Nested
+ * boxes are supported up to {@link #MAX_DEPTH} levels.
+ * <p>
+ * The writer is meant to be reused: {@link #reset()} keeps the backing array, so writing
+ * the same amount of metadata again does not allocate.
+ * <p>
+ * Only box metadata (moov, moof, ...) is ever written through this class.  Sample payloads
+ * should be copied channel to channel.
+ */
+public class BoxWriter {
+    private static final int MAX_DEPTH = 16;
+
+    private byte[] mData;
+    private int mSize;
+    private final int[] mBoxStarts = new int[MAX_DEPTH];
+    private int mDepth;
+
+    public BoxWriter() {
+        this(4096);
+    }
+
+    public BoxWriter(int initialCapacity) {
+        mData = new byte[initialCapacity];
+    }
+
+    public static int fourcc(String type) {
+        if (type.length() != 4) {
+            throw new IllegalArgumentException("Box type must be four characters: " + type);
+        }
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3);
+    }
+
+    public static String fourccToString(int type) {
+        return new String(new char[] {
+                (char) ((type >>> 24) & 0xff), (char) ((type >>> 16) & 0xff),
+                (char) ((type >>> 8) & 0xff), (char) (type & 0xff) });
+    }
+
+    public BoxWriter startBox(String type) {
+        return startBox(fourcc(type));
+    }
+
+    public BoxWriter startBox(int type) {
+        if (mDepth == MAX_DEPTH) {
+            throw new IllegalStateException("Boxes nested too deeply");
+        }
+        mBoxStarts[mDepth++] = mSize;
+        writeInt(0);                // size, patched in endBox()
+        writeInt(type);
+        return this;
+    }
+
+    public BoxWriter startFullBox(String type, int version, int flags) {
+        startBox(type);
+        writeInt((version << 24) | (flags & 0xffffff));
+        return this;
+    }
+
+    public BoxWriter endBox() {
+        if (mDepth == 0) {
+            throw new IllegalStateException("endBox() without startBox()");
+        }
+        int start = mBoxStarts[--mDepth];
+        putInt(start, mSize - start);
+        return this;
+    }
+
+    public BoxWriter writeByte(int value) {
+        ensureCapacity(1);
+        mData[mSize++] = (byte) value;
+        return this;
+    }
+
+    public BoxWriter writeShort(int value) {
+        ensureCapacity(2);
+        mData[mSize++] = (byte) (value >>> 8);
+        mData[mSize++] = (byte) value;
+        return this;
+    }
+
+    public BoxWriter writeInt(int value) {
+        ensureCapacity(4);
+        putInt(mSize, value);
+        mSize += 4;
+        return this;
+    }
+
+    public BoxWriter writeLong(long value) {
+        writeInt((int) (value >>> 32));
+        writeInt((int) value);
+        return this;
+    }
+
+    public BoxWriter write(byte[] data) {
+        return write(data, 0, data.length);
+    }
+
+    public BoxWriter write(byte[] data, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(data, offset, mData, mSize, length);
+        mSize += length;
+        return this;
+    }
+
+    /**
+     * Copies the remaining bytes of data without changing its position.
+     */
+    public BoxWriter write(ByteBuffer data) {
+        int length = data.remaining();
+        ensureCapacity(length);
+        data.duplicate().get(mData, mSize, length);
+        mSize += length;
+        return this;
+    }
+
+    public BoxWriter writeZeros(int count) {
+        ensureCapacity(count);
+        Arrays.fill(mData, mSize, mSize + count, (byte) 0);
+        mSize += count;
+        return this;
+    }
+
+    /**
+     * Overwrites a previously written 32 bit value at an absolute position.
+     */
+    public void putInt(int position, int value) {
+        mData[position] = (byte) (value >>> 24);
+        mData[position + 1] = (byte) (value >>> 16);
+        mData[position + 2] = (byte) (value >>> 8);
+        mData[position + 3] = (byte) value;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public void reset() {
+        mSize = 0;
+        mDepth = 0;
+    }
+
+    /**
+     * Returns a buffer wrapping the written bytes.  The buffer is only valid until the
+     * next write or reset.
+     */
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(mData, 0, mSize);
+    }
+
+    public void writeTo(WritableByteChannel channel) throws IOException {
+        ByteBuffer buffer = asByteBuffer();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private void ensureCapacity(int extra) {
+        if (mSize + extra > mData.length) {
+            mData = Arrays.copyOf(mData, Math.max(mData.length * 2, mSize + extra));
+        }
+    }
+}
@@ -16,8 +16,10 @@
 
 package demo.camera.library.utils;
 
+import android.Manifest;
 import android.content.Context;
 import android.content.Intent;
+import android.content.pm.PackageManager;
 import android.content.res.Resources;
 import android.hardware.Camera;
 import android.net.Uri;
@@ -28,7 +30,7 @@ import com.google.common.io.Files;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import demo.camera.library.encoder.SessionConfig;
@@ -57,6 +59,10 @@ public class CameraUtils {
                 .withPrivateVisibility(false)
                 .withLocation(true)
                 .withVideoResolution(width, height)
+                .withPreRoll(SessionConfig.sDefaultPreRollMs)
+                // Without the permission audio can't be read, so record video alone
+                .withAudio(context.checkCallingOrSelfPermission(Manifest.permission.RECORD_AUDIO)
+                        == PackageManager.PERMISSION_GRANTED)
                 .build());
     }
 
@@ -148,25 +154,50 @@ public class CameraUtils {
         return guess;
     }
 
-    public static void moveVideoChunk(Context context, SessionConfig config) {
-        SessionConfig oldConfig = config;
-        String path = oldConfig.getOutputPath();
+    /**
+     * Moves the finished chunk at path into the session folder.
+     *
+     * @return the moved chunk, or null if it couldn't be moved
+     */
+    public static File moveVideoChunk(Context context, String path) {
         File outputDirectory = new File(context.getExternalFilesDir(null), SessionConfig.sSessionFolder);
         try {
             outputDirectory.mkdirs();
             File outPutFileName = new File(outputDirectory, System.currentTimeMillis() + ".mp4");
             Files.move(new File(path), outPutFileName);
+            return outPutFileName;
         } catch (IOException e) {
             e.printStackTrace();
+            return null;
         }
     }
 
+    /**
+     * Returns a new, uniquely named file in outputDirPath for a stitched session.
+     */
+    public static File createStitchedOutputFile(String outputDirPath) {
+        return new File(outputDirPath, "testOut" + System.currentTimeMillis() + ".mp4");
+    }
+
+    /**
+     * Returns the file an {@link IncrementalStitcher} keeps the running session in.
+     */
+    public static File getStitchWorkingFile(Context context) {
+        return new File(context.getExternalFilesDir(null), SessionConfig.sSessionStitchFile);
+    }
+
+    public static void notifyMediaScanner(Context context, File file) {
+        Intent broadcastIntent = new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE);
+        broadcastIntent.setData(Uri.fromFile(file));
+        context.sendBroadcast(broadcastIntent);
+    }
+
     public static String stichVideos(Context context, String inputDirPath, String outputDirPath) {
         final File inputDir = new File(inputDirPath);
         final File outDir = new File(outputDirPath);
 
         Log.d(TAG, "path=" + outDir.toString());
-        File outputFile = new File(outDir, "testOut" + System.currentTimeMillis() + ".mp4");
+        File outputFile = createStitchedOutputFile(outputDirPath);
 
         try {
 
@@ -190,18 +221,19 @@ public class CameraUtils {
             }
 
 
-            ArrayList<String> inputVideolist = new ArrayList<>();
-            for (File inputFile : inputDir.listFiles()) {
-                inputVideolist.add(inputFile.getPath());
-            }
+            // Chunks are named by their creation time, so name order is recording order.
+            File[] chunks = inputDir.listFiles();
+            Arrays.sort(chunks);
 
-            if (inputVideolist.size() == 0) {
+            int stitched = chunks.length > 0 && FragmentedMp4Joiner.isFragmented(chunks[0])
+                    ? joinFragmentedChunks(chunks, outputFile)
+                    : stitchChunks(chunks, outputFile);
+            if (stitched == 0) {
                 Log.e(TAG, "no video's found for stiching");
+                outputFile.delete();
                 return null;
             }
 
-            Mp4ParserUtility.stitchVideos(outputFile.getPath(), inputVideolist);
-
             // Removes input files
             for (File inputFile : inputDir.listFiles()) {
                 if (inputFile.exists()) {
@@ -209,18 +241,59 @@ public class CameraUtils {
                 }
             }
 
-            Intent broadcastIntent = new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE);
-            broadcastIntent.setData(Uri.fromFile(outputFile));
-            context.sendBroadcast(broadcastIntent);
+            notifyMediaScanner(context, outputFile);
 
         } catch (IOException e) {
+            // The chunks are kept, so that nothing is lost
             e.printStackTrace();
+            outputFile.delete();
             return null;
         }
 
         return outputFile.getPath();
     }
 
+    /**
+     * @throws IOException if any chunk can't be stitched, rather than leave it out
+     */
+    private static int stitchChunks(File[] chunks, File outputFile) throws IOException {
+        Mp4Stitcher stitcher = new Mp4Stitcher();
+        for (File chunk : chunks) {
+            try {
+                stitcher.append(chunk);
+            } catch (IOException e) {
+                throw new IOException("Couldn't stitch chunk " + chunk.getPath(), e);
+            }
+        }
+        if (stitcher.getChunkCount() > 0) {
+            stitcher.writeTo(outputFile);
+        }
+        return stitcher.getChunkCount();
+    }
+
+    /**
+     * Chunks recorded with {@link demo.camera.library.encoder.FragmentedMp4Muxer} are
+     * joined by concatenating their fragments.
+     *
+     * @throws IOException if any chunk can't be joined, e.g. its tracks don't match the
+     * first chunk's, rather than leave it out
+     */
+    private static int joinFragmentedChunks(File[] chunks, File outputFile) throws IOException {
+        FragmentedMp4Joiner joiner = new FragmentedMp4Joiner(outputFile);
+        try {
+            for (File chunk : chunks) {
+                try {
+                    joiner.append(chunk);
+                } catch (IOException e) {
+                    throw new IOException("Couldn't join chunk " + chunk.getPath(), e);
+                }
+            }
+        } finally {
+            joiner.close();
+        }
+        return joiner.getChunkCount();
+    }
+
     public static float dp2px(Resources resources, float dp) {
         final float scale = resources.getDisplayMetrics().density;
         return  dp * scale + 0.5f;
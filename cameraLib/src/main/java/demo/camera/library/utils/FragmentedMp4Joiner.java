@@ -0,0 +1,394 @@
+package demo.camera.library.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static demo.camera.library.utils.Mp4Stitcher.FTYP;
+import static demo.camera.library.utils.Mp4Stitcher.HDLR;
+import static demo.camera.library.utils.Mp4Stitcher.MAX_UINT32;
+import static demo.camera.library.utils.Mp4Stitcher.MDAT;
+import static demo.camera.library.utils.Mp4Stitcher.MDHD;
+import static demo.camera.library.utils.Mp4Stitcher.MDIA;
+import static demo.camera.library.utils.Mp4Stitcher.MINF;
+import static demo.camera.library.utils.Mp4Stitcher.MOOV;
+import static demo.camera.library.utils.Mp4Stitcher.MVEX;
+import static demo.camera.library.utils.Mp4Stitcher.STBL;
+import static demo.camera.library.utils.Mp4Stitcher.STSD;
+import static demo.camera.library.utils.Mp4Stitcher.TKHD;
+import static demo.camera.library.utils.Mp4Stitcher.TRAK;
+import static demo.camera.library.utils.Mp4Stitcher.child;
+import static demo.camera.library.utils.Mp4Stitcher.children;
+import static demo.camera.library.utils.Mp4Stitcher.requireChild;
+
+/**
+ * Joins fragmented .mp4 chunks, as written by
+ * {@link demo.camera.library.encoder.FragmentedMp4Muxer}, by concatenating their fragments.
+ * <p>
+ * The output starts with the first chunk's ftyp and moov.  Every moof is then copied with
+ * its mfhd sequence number continued and its tfdt moved past the chunks before it.  Sample
+ * data offsets are relative to the moof, so nothing else changes and the mdat boxes are
+ * copied channel to channel untouched.
+ * <p>
+ * A chunk that was cut short, e.g. by a crash, contributes every fragment up to its last
+ * complete one.
+ * <p>
+ * To use:
+ * <pre>
+ *     FragmentedMp4Joiner joiner = new FragmentedMp4Joiner(output);
+ *     try {
+ *         for (File chunk : chunks) {
+ *             joiner.append(chunk);
+ *         }
+ *     } finally {
+ *         joiner.close();
+ *     }
+ * </pre>
+ * This class is not thread-safe.
+ */
+public class FragmentedMp4Joiner {
+
+    static final int MOOF = BoxWriter.fourcc("moof");
+    static final int MFHD = BoxWriter.fourcc("mfhd");
+    static final int TRAF = BoxWriter.fourcc("traf");
+    static final int TFHD = BoxWriter.fourcc("tfhd");
+    static final int TFDT = BoxWriter.fourcc("tfdt");
+    static final int TRUN = BoxWriter.fourcc("trun");
+    static final int TREX = BoxWriter.fourcc("trex");
+
+    private static final int TFHD_BASE_DATA_OFFSET = 0x01;
+    private static final int TFHD_SAMPLE_DESCRIPTION_INDEX = 0x02;
+    private static final int TFHD_DEFAULT_SAMPLE_DURATION = 0x08;
+    private static final int TRUN_DATA_OFFSET = 0x001;
+    private static final int TRUN_FIRST_SAMPLE_FLAGS = 0x004;
+    private static final int TRUN_SAMPLE_DURATION = 0x100;
+    private static final int TRUN_PER_SAMPLE_FIELDS = 0xf00;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mOut;
+    private final ByteBuffer mHeader = ByteBuffer.allocate(16);
+    private List<Track> mTracks;
+    private int mSequenceNumber;
+    private int mChunkCount;
+    // Duration of the chunks joined so far
+    private long mDurationUs;
+
+    /**
+     * Joins chunks, in order, into output.
+     */
+    public static void join(File output, List<File> chunks) throws IOException {
+        FragmentedMp4Joiner joiner = new FragmentedMp4Joiner(output);
+        try {
+            for (File chunk : chunks) {
+                joiner.append(chunk);
+            }
+        } finally {
+            joiner.close();
+        }
+    }
+
+    /**
+     * Returns true if file is an mp4 whose samples are described by movie fragments.
+     */
+    public static boolean isFragmented(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            ByteBuffer moov = new HeaderReader(in.getChannel()).readMoov();
+            return moov != null && child(moov, 8, MVEX) != null;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @param output file the joined movie is written to.  Any existing content is replaced.
+     */
+    public FragmentedMp4Joiner(File output) throws IOException {
+        mFile = new RandomAccessFile(output, "rw");
+        mFile.setLength(0);
+        mOut = mFile.getChannel();
+    }
+
+    /**
+     * Appends the fragments of chunk to the end of the movie.
+     *
+     * @throws IOException if the chunk can't be read, isn't fragmented or its tracks don't
+     *                     match the first chunk's.  Nothing is written in that case.
+     */
+    public void append(File chunk) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(chunk, "r");
+        try {
+            append(chunk, in.getChannel());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the number of chunks appended so far.
+     */
+    public int getChunkCount() {
+        return mChunkCount;
+    }
+
+    public void close() throws IOException {
+        mFile.close();
+    }
+
+    private void append(File source, FileChannel in) throws IOException {
+        HeaderReader reader = new HeaderReader(in);
+        ByteBuffer moov = reader.readMoov();
+        if (moov == null) {
+            throw new IOException(source + " has no moov box");
+        }
+        if (child(moov, 8, MVEX) == null) {
+            throw new IOException(source + " is not fragmented");
+        }
+        List<Track> tracks;
+        try {
+            tracks = readTracks(moov);
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException(source + ": malformed moov", e);
+        }
+
+        if (mTracks == null) {
+            mTracks = tracks;
+            write(ByteBuffer.wrap(reader.ftyp != null ? reader.ftyp : Mp4Stitcher.DEFAULT_FTYP));
+            write(moov.duplicate());
+        } else if (!mTracks.equals(tracks)) {
+            throw new IOException(source + " doesn't match the tracks of the first chunk");
+        }
+        for (Track track : tracks) {
+            track.shift = mDurationUs * track.timescale / 1000000;
+        }
+
+        long chunkEndUs = 0;
+        long position = reader.position;
+        while (true) {
+            long moofSize = readBoxHeader(in, position, mHeader);
+            if (moofSize < 0) {
+                break;
+            }
+            if (mHeader.getInt(4) != MOOF) {
+                position += moofSize;       // sidx, mfra, free, ...
+                continue;
+            }
+            long mdatPosition = position + moofSize;
+            long mdatSize = readBoxHeader(in, mdatPosition, mHeader);
+            if (mdatSize < 0 || mHeader.getInt(4) != MDAT) {
+                break;                      // fragment incomplete
+            }
+
+            ByteBuffer moof = Mp4Stitcher.readBox(in, position, moofSize);
+            long endUs;
+            try {
+                endUs = patchMoof(moof, tracks, mSequenceNumber + 1);
+            } catch (IOException | IndexOutOfBoundsException e) {
+                break;                      // keep the fragments before it
+            }
+            write(moof);
+            Mp4Stitcher.transferFully(in, mdatPosition, mdatSize, mOut);
+            mSequenceNumber++;
+            chunkEndUs = Math.max(chunkEndUs, endUs);
+            position = mdatPosition + mdatSize;
+        }
+        mDurationUs += chunkEndUs;
+        mChunkCount++;
+    }
+
+    /**
+     * Renumbers moof and shifts its tfdt boxes in place.
+     *
+     * @return the end time of the latest sample in moof before shifting, in microseconds
+     */
+    private static long patchMoof(ByteBuffer moof, List<Track> tracks, int sequenceNumber)
+            throws IOException {
+        requireChild(moof, 8, MFHD).putInt(12, sequenceNumber);
+
+        long endUs = 0;
+        for (ByteBuffer traf : children(moof, 8, TRAF)) {
+            ByteBuffer tfhd = requireChild(traf, 8, TFHD);
+            int flags = tfhd.getInt(8) & 0xffffff;
+            Track track = findTrack(tracks, tfhd.getInt(12));
+            if ((flags & TFHD_BASE_DATA_OFFSET) != 0) {
+                throw new IOException("Absolute base data offsets can't be moved");
+            }
+            long defaultDuration = track.defaultDuration;
+            if ((flags & TFHD_DEFAULT_SAMPLE_DURATION) != 0) {
+                int offset = (flags & TFHD_SAMPLE_DESCRIPTION_INDEX) != 0 ? 20 : 16;
+                defaultDuration = tfhd.getInt(offset) & MAX_UINT32;
+            }
+
+            ByteBuffer tfdt = requireChild(traf, 8, TFDT);
+            long time;
+            if (tfdt.get(8) == 1) {
+                time = tfdt.getLong(12);
+                tfdt.putLong(12, time + track.shift);
+            } else {
+                time = tfdt.getInt(12) & MAX_UINT32;
+                if (time + track.shift > MAX_UINT32) {
+                    throw new IOException("tfdt overflows 32 bits");
+                }
+                tfdt.putInt(12, (int) (time + track.shift));
+            }
+
+            long duration = 0;
+            for (ByteBuffer trun : children(traf, 8, TRUN)) {
+                int trunFlags = trun.getInt(8) & 0xffffff;
+                int count = trun.getInt(12);
+                if ((trunFlags & TRUN_SAMPLE_DURATION) == 0) {
+                    duration += count * defaultDuration;
+                    continue;
+                }
+                int offset = 16;
+                if ((trunFlags & TRUN_DATA_OFFSET) != 0) {
+                    offset += 4;
+                }
+                if ((trunFlags & TRUN_FIRST_SAMPLE_FLAGS) != 0) {
+                    offset += 4;
+                }
+                // The duration is the first of the per sample fields
+                int stride = 4 * Integer.bitCount(trunFlags & TRUN_PER_SAMPLE_FIELDS);
+                for (int i = 0; i < count; i++) {
+                    duration += trun.getInt(offset + i * stride) & MAX_UINT32;
+                }
+            }
+            endUs = Math.max(endUs, (time + duration) * 1000000 / track.timescale);
+        }
+        return endUs;
+    }
+
+    private static Track findTrack(List<Track> tracks, int id) throws IOException {
+        for (Track track : tracks) {
+            if (track.id == id) {
+                return track;
+            }
+        }
+        throw new IOException("Fragment for unknown track " + id);
+    }
+
+    private static List<Track> readTracks(ByteBuffer moov) throws IOException {
+        List<Track> tracks = new ArrayList<>();
+        for (ByteBuffer trak : children(moov, 8, TRAK)) {
+            Track track = new Track();
+            ByteBuffer tkhd = requireChild(trak, 8, TKHD);
+            track.id = tkhd.getInt(tkhd.get(8) == 1 ? 28 : 20);
+            ByteBuffer mdia = requireChild(trak, 8, MDIA);
+            ByteBuffer mdhd = requireChild(mdia, 8, MDHD);
+            track.timescale = mdhd.getInt(mdhd.get(8) == 1 ? 28 : 20);
+            if (track.timescale <= 0) {
+                throw new IOException("Invalid timescale for track " + track.id);
+            }
+            track.handler = requireChild(mdia, 8, HDLR).getInt(16);
+            ByteBuffer stsd = requireChild(requireChild(requireChild(mdia, 8, MINF), 8, STBL),
+                    8, STSD);
+            track.stsd = new byte[stsd.remaining()];
+            stsd.duplicate().get(track.stsd);
+            tracks.add(track);
+        }
+        for (ByteBuffer trex : children(requireChild(moov, 8, MVEX), 8, TREX)) {
+            findTrack(tracks, trex.getInt(12)).defaultDuration = trex.getInt(20) & MAX_UINT32;
+        }
+        return tracks;
+    }
+
+    /**
+     * Returns the size of the box at position and leaves its header in header, or returns
+     * -1 if there is no complete box there.
+     */
+    private static long readBoxHeader(FileChannel in, long position, ByteBuffer header)
+            throws IOException {
+        long fileSize = in.size();
+        if (position + 8 > fileSize) {
+            return -1;
+        }
+        header.clear();
+        header.limit((int) Math.min(16, fileSize - position));
+        Mp4Stitcher.readFully(in, header, position);
+        long size = header.getInt(0) & MAX_UINT32;
+        int headerSize = 8;
+        if (size == 1) {
+            if (header.limit() < 16) {
+                return -1;
+            }
+            size = header.getLong(8);
+            headerSize = 16;
+        } else if (size == 0) {
+            size = fileSize - position;
+        }
+        if (size < headerSize || position + size > fileSize) {
+            return -1;
+        }
+        return size;
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            mOut.write(buffer);
+        }
+    }
+
+    /**
+     * Reads the top level boxes of a chunk up to and including its moov.
+     */
+    private static class HeaderReader {
+        final FileChannel in;
+        final ByteBuffer header = ByteBuffer.allocate(16);
+        byte[] ftyp;
+        // Position of the first box after the moov
+        long position;
+
+        HeaderReader(FileChannel in) {
+            this.in = in;
+        }
+
+        ByteBuffer readMoov() throws IOException {
+            while (true) {
+                long size = readBoxHeader(in, position, header);
+                if (size < 0) {
+                    return null;
+                }
+                int type = header.getInt(4);
+                long start = position;
+                position += size;
+                if (type == FTYP && ftyp == null) {
+                    ByteBuffer box = Mp4Stitcher.readBox(in, start, size);
+                    ftyp = new byte[box.remaining()];
+                    box.get(ftyp);
+                } else if (type == MOOV) {
+                    return Mp4Stitcher.readBox(in, start, size);
+                }
+            }
+        }
+    }
+
+    private static class Track {
+        int id;
+        int handler;
+        int timescale;
+        byte[] stsd;
+        long defaultDuration;
+        // Added to every tfdt of the chunk being appended
+        long shift;
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Track)) {
+                return false;
+            }
+            Track other = (Track) o;
+            return id == other.id && handler == other.handler
+                    && timescale == other.timescale && Arrays.equals(stsd, other.stsd);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * id + Arrays.hashCode(stsd);
+        }
+    }
+}
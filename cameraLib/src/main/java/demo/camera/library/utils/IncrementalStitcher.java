@@ -0,0 +1,230 @@
+package demo.camera.library.utils;
+
+import android.util.Log;
+
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Stitches chunks into a running output while the user is still recording.
+ * <p>
+ * Each appended chunk is folded in on a background thread: its sample tables are merged
+ * (see {@link Mp4Stitcher}) and its mdat payload is copied to the end of a working file laid
+ * out as ftyp, mdat.  {@link #finish(File)} then only writes the moov after the payload and
+ * patches the mdat size, so the time from "Done" to a shareable file no longer depends on
+ * how much was recorded.
+ * <p>
+ * A chunk that can't be appended is rolled back out of the working file, and makes
+ * {@link #finish(File)} fail rather than produce a movie missing it, so the caller can fall
+ * back to stitching the chunks it still has.
+ * <p>
+ * An instance stitches one session.  After {@link #finish(File)} or {@link #discard()} it
+ * can't be used again.  Methods may be called from any thread.
+ */
+public class IncrementalStitcher {
+    private static final String TAG = IncrementalStitcher.class.getSimpleName();
+
+    // The mdat always gets a 64 bit size so it can be patched for any payload length.
+    private static final int MDAT_HEADER_SIZE = 16;
+
+    private final File mWorkingFile;
+    private final ExecutorService mExecutor;
+
+    // ----- accessed exclusively by the stitcher thread -----
+    private final Mp4Stitcher mTables = new Mp4Stitcher();
+    private RandomAccessFile mFile;
+    private long mMdatStart;
+    private int mSkippedChunks;
+
+    /**
+     * @param workingFile file the running output is kept in.  Any existing content is
+     *                    overwritten when the first chunk arrives.
+     */
+    public IncrementalStitcher(File workingFile) {
+        mWorkingFile = workingFile;
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, TAG);
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Queues chunk to be folded into the running output.  Returns immediately.
+     *
+     * @return a future that yields false if the chunk couldn't be used and was skipped
+     */
+    public Future<Boolean> append(final File chunk) {
+        return mExecutor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return appendNow(chunk);
+            }
+        });
+    }
+
+    /**
+     * Waits for queued chunks, then writes the index and moves the stitched movie to
+     * output.
+     *
+     * @return output, or null if no chunk was stitched
+     * @throws IOException if any chunk was skipped, in which case nothing is written
+     */
+    public File finish(final File output) throws IOException {
+        Future<File> result = mExecutor.submit(new Callable<File>() {
+            @Override
+            public File call() throws IOException {
+                return finishNow(output);
+            }
+        });
+        mExecutor.shutdown();
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while finishing stitch");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Drops everything stitched so far and deletes the working file.  Returns immediately.
+     */
+    public void discard() {
+        mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                closeQuietly();
+                mWorkingFile.delete();
+            }
+        });
+        mExecutor.shutdown();
+    }
+
+    private boolean appendNow(File chunk) {
+        RandomAccessFile in = null;
+        long previousLength = -1;
+        try {
+            in = new RandomAccessFile(chunk, "r");
+            Mp4Stitcher.Chunk parsed = mTables.readChunk(chunk, in.getChannel(),
+                    mTables.getPayloadSize());
+            if (mFile == null) {
+                startWorkingFile(parsed.ftyp);
+            }
+
+            FileChannel out = mFile.getChannel();
+            previousLength = out.size();
+            out.position(previousLength);
+            for (Mp4Stitcher.Segment segment : parsed.segments) {
+                Mp4Stitcher.transferFully(in.getChannel(), segment.start, segment.length, out);
+            }
+            mTables.merge(parsed);
+            Log.d(TAG, "Appended " + chunk.getName() + ", payload now " +
+                    mTables.getPayloadSize() + " bytes");
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Skipping chunk " + chunk.getPath(), e);
+            mSkippedChunks++;
+            if (previousLength >= 0) {
+                // Drop whatever part of the payload made it in.
+                try {
+                    mFile.getChannel().truncate(previousLength);
+                } catch (IOException truncateFailure) {
+                    Log.e(TAG, "Unable to roll back working file", truncateFailure);
+                }
+            }
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                    // read-only
+                }
+            }
+        }
+    }
+
+    private void startWorkingFile(byte[] ftyp) throws IOException {
+        mFile = new RandomAccessFile(mWorkingFile, "rw");
+        mFile.setLength(0);
+        BoxWriter writer = new BoxWriter(64);
+        writer.write(ftyp != null ? ftyp : Mp4Stitcher.DEFAULT_FTYP);
+        mMdatStart = writer.size();
+        writeMdatHeader(writer, 0);
+        writer.writeTo(mFile.getChannel());
+    }
+
+    private File finishNow(File output) throws IOException {
+        if (mSkippedChunks > 0) {
+            closeQuietly();
+            mWorkingFile.delete();
+            throw new IOException(mSkippedChunks + " chunk(s) couldn't be appended");
+        }
+        if (mFile == null || mTables.isEmpty()) {
+            closeQuietly();
+            mWorkingFile.delete();
+            return null;
+        }
+        try {
+            FileChannel channel = mFile.getChannel();
+            long payloadStart = mMdatStart + MDAT_HEADER_SIZE;
+            long payloadSize = mTables.getPayloadSize();
+
+            // The moov goes after the payload, so only the payload has to be addressable.
+            BoxWriter writer = new BoxWriter(64 * 1024);
+            mTables.writeMoov(writer, payloadStart,
+                    payloadStart + payloadSize > Mp4Stitcher.MAX_UINT32);
+            channel.truncate(payloadStart + payloadSize);
+            channel.position(payloadStart + payloadSize);
+            writer.writeTo(channel);
+
+            writer.reset();
+            writeMdatHeader(writer, payloadSize);
+            ByteBuffer header = writer.asByteBuffer();
+            long position = mMdatStart;
+            while (header.hasRemaining()) {
+                position += channel.write(header, position);
+            }
+        } finally {
+            closeQuietly();
+        }
+        Files.move(mWorkingFile, output);
+        Log.d(TAG, "Finished " + output.getPath() + " from " + mTables.getChunkCount() + " chunks");
+        return output;
+    }
+
+    private static void writeMdatHeader(BoxWriter writer, long payloadSize) {
+        writer.writeInt(1).writeInt(Mp4Stitcher.MDAT).writeLong(MDAT_HEADER_SIZE + payloadSize);
+    }
+
+    private void closeQuietly() {
+        if (mFile != null) {
+            try {
+                mFile.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Error closing working file", e);
+            }
+            mFile = null;
+        }
+    }
+}
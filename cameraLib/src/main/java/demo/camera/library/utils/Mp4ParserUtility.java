@@ -28,6 +28,14 @@ import java.util.List;
  */
 public class Mp4ParserUtility {
 
+    /**
+     * Rebuilds every chunk as an isoparser Movie and appends them.  Memory and time grow with
+     * the total session length.
+     *
+     * @deprecated Use {@link Mp4Stitcher}, which only merges the sample tables and copies
+     * mdat payloads channel to channel.
+     */
+    @Deprecated
     public static void stitchVideos(String outFile, ArrayList<String> videoUris) throws IOException {
         List<Movie> inMovies = new ArrayList<>();
         for (String videoUri : videoUris) {
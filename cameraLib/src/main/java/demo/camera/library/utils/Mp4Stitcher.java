@@ -0,0 +1,1018 @@
+package demo.camera.library.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Joins the .mp4 chunks written by {@link android.media.MediaMuxer} into a single movie
+ * without rebuilding it.
+ * <p>
+ * Unlike {@link Mp4ParserUtility#stitchVideos(String, ArrayList)} no isoparser Movie is
+ * created.  Only each chunk's moov is read; its sample tables are merged per track (tracks
+ * are matched by handler type, "vide" / "soun"), one moov is written for the result and the
+ * mdat payloads are then copied channel to channel with {@link FileChannel#transferTo}.
+ * Sample bytes never pass through the Java heap, so memory use only depends on the number
+ * of samples, not on the size of the session.
+ * <p>
+ * Each chunk starts where the longest track of the ones before it ended, so tracks stay in
+ * sync however their lengths differ within a chunk.  A track that is behind has its last
+ * sample stretched to meet the next chunk, and a track first seen in a later chunk starts
+ * with an empty edit.  The chunks' own edit lists, e.g. an audio encoder's priming delay,
+ * are folded in the same way.
+ * <p>
+ * The output uses the "fast start" layout: ftyp, moov, mdat.
+ * <p>
+ * To use:
+ * <pre>
+ *     Mp4Stitcher stitcher = new Mp4Stitcher();
+ *     for (File chunk : chunks) {
+ *         stitcher.append(chunk);
+ *     }
+ *     stitcher.writeTo(output);
+ * </pre>
+ * This class is not thread-safe.
+ */
+public class Mp4Stitcher {
+
+    static final int FTYP = BoxWriter.fourcc("ftyp");
+    static final int MOOV = BoxWriter.fourcc("moov");
+    static final int MDAT = BoxWriter.fourcc("mdat");
+    static final int MVHD = BoxWriter.fourcc("mvhd");
+    static final int UDTA = BoxWriter.fourcc("udta");
+    static final int TRAK = BoxWriter.fourcc("trak");
+    static final int TKHD = BoxWriter.fourcc("tkhd");
+    static final int MDIA = BoxWriter.fourcc("mdia");
+    static final int MDHD = BoxWriter.fourcc("mdhd");
+    static final int HDLR = BoxWriter.fourcc("hdlr");
+    static final int MINF = BoxWriter.fourcc("minf");
+    static final int STBL = BoxWriter.fourcc("stbl");
+    static final int STSD = BoxWriter.fourcc("stsd");
+    static final int STTS = BoxWriter.fourcc("stts");
+    static final int CTTS = BoxWriter.fourcc("ctts");
+    static final int STSS = BoxWriter.fourcc("stss");
+    static final int STSZ = BoxWriter.fourcc("stsz");
+    static final int STSC = BoxWriter.fourcc("stsc");
+    static final int STCO = BoxWriter.fourcc("stco");
+    static final int CO64 = BoxWriter.fourcc("co64");
+    static final int MVEX = BoxWriter.fourcc("mvex");
+    static final int EDTS = BoxWriter.fourcc("edts");
+    static final int ELST = BoxWriter.fourcc("elst");
+
+    static final long MAX_UINT32 = 0xffffffffL;
+    static final long US_PER_SECOND = 1000000L;
+
+    // Default ftyp, only used if the first chunk doesn't carry one.
+    static final byte[] DEFAULT_FTYP = {
+            0, 0, 0, 24, 'f', 't', 'y', 'p', 'i', 's', 'o', 'm', 0, 0, 0, 0,
+            'i', 's', 'o', 'm', 'm', 'p', '4', '2' };
+
+    private byte[] mFtyp;
+    private byte[] mMvhd;
+    private byte[] mUdta;
+    private final List<Track> mTracks = new ArrayList<>();
+    private final List<Segment> mSegments = new ArrayList<>();
+    private long mPayloadSize;
+    private long mDurationUs;
+
+    /**
+     * Stitches chunks, in order, into output.
+     */
+    public static void stitch(File output, List<File> chunks) throws IOException {
+        Mp4Stitcher stitcher = new Mp4Stitcher();
+        for (File chunk : chunks) {
+            stitcher.append(chunk);
+        }
+        stitcher.writeTo(output);
+    }
+
+    /**
+     * Appends the samples of chunk to the end of the movie.
+     * <p>
+     * The chunk is validated completely before anything is merged, so if this throws the
+     * stitcher is left untouched and further chunks can still be appended.
+     *
+     * @throws IOException if the chunk can't be read or isn't a complete, non-fragmented mp4
+     */
+    public void append(File chunk) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(chunk, "r");
+        try {
+            Chunk parsed = readChunk(chunk, file.getChannel(), mPayloadSize);
+            merge(parsed);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Returns the number of chunks appended so far.
+     */
+    public int getChunkCount() {
+        int count = 0;
+        File last = null;
+        for (Segment segment : mSegments) {
+            if (segment.file != last) {
+                count++;
+                last = segment.file;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the total number of mdat payload bytes appended so far.
+     */
+    public long getPayloadSize() {
+        return mPayloadSize;
+    }
+
+    boolean isEmpty() {
+        return mTracks.isEmpty();
+    }
+
+    /**
+     * Writes the stitched movie to output, replacing any existing file.
+     */
+    public void writeTo(File output) throws IOException {
+        if (isEmpty()) {
+            throw new IOException("Nothing to stitch");
+        }
+        int mdatHeaderSize = mPayloadSize + 8 > MAX_UINT32 ? 16 : 8;
+
+        // Chunk offset fields have a fixed width, so the moov size only depends on whether
+        // 64 bit offsets are needed -- which in turn depends on the moov size.
+        BoxWriter writer = new BoxWriter(64 * 1024);
+        writeHeader(writer, 0, false);
+        boolean co64 = writer.size() + mdatHeaderSize + mPayloadSize > MAX_UINT32;
+        if (co64) {
+            writer.reset();
+            writeHeader(writer, 0, true);
+        }
+        long payloadStart = writer.size() + mdatHeaderSize;
+        writer.reset();
+        writeHeader(writer, payloadStart, co64);
+
+        RandomAccessFile file = new RandomAccessFile(output, "rw");
+        try {
+            file.setLength(0);
+            FileChannel out = file.getChannel();
+            writer.writeTo(out);
+
+            writer.reset();
+            if (mdatHeaderSize == 16) {
+                writer.writeInt(1).writeInt(MDAT).writeLong(mPayloadSize + 16);
+            } else {
+                writer.writeInt((int) (mPayloadSize + 8)).writeInt(MDAT);
+            }
+            writer.writeTo(out);
+
+            transferSegments(out);
+        } finally {
+            file.close();
+        }
+    }
+
+    private void writeHeader(BoxWriter writer, long payloadStart, boolean co64) {
+        writer.write(mFtyp != null ? mFtyp : DEFAULT_FTYP);
+        writeMoov(writer, payloadStart, co64);
+    }
+
+    private void transferSegments(FileChannel out) throws IOException {
+        File openFile = null;
+        RandomAccessFile in = null;
+        try {
+            for (Segment segment : mSegments) {
+                if (segment.file != openFile) {
+                    if (in != null) {
+                        in.close();
+                    }
+                    in = new RandomAccessFile(segment.file, "r");
+                    openFile = segment.file;
+                }
+                transferFully(in.getChannel(), segment.start, segment.length, out);
+            }
+        } finally {
+            if (in != null) {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * FileChannel#transferTo may move fewer bytes than requested, so loop until done.
+     */
+    static void transferFully(FileChannel in, long position, long count, FileChannel out)
+            throws IOException {
+        while (count > 0) {
+            long transferred = in.transferTo(position, count, out);
+            if (transferred <= 0) {
+                throw new IOException("transferTo made no progress at " + position);
+            }
+            position += transferred;
+            count -= transferred;
+        }
+    }
+
+    // ----- reading -----
+
+    /**
+     * Reads the top level boxes of a chunk and parses its moov.
+     *
+     * @param payloadBase offset of this chunk's first mdat byte in the stitched payload
+     */
+    Chunk readChunk(File source, FileChannel channel, long payloadBase) throws IOException {
+        long fileSize = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(16);
+        Chunk chunk = new Chunk();
+        ByteBuffer moov = null;
+
+        long position = 0;
+        while (position + 8 <= fileSize) {
+            header.clear();
+            header.limit((int) Math.min(16, fileSize - position));
+            readFully(channel, header, position);
+            long size = header.getInt(0) & MAX_UINT32;
+            int type = header.getInt(4);
+            int headerSize = 8;
+            if (size == 1) {
+                if (header.limit() < 16) {
+                    throw new IOException(source + ": truncated box header at " + position);
+                }
+                size = header.getLong(8);
+                headerSize = 16;
+            } else if (size == 0) {
+                size = fileSize - position;
+            }
+            if (size < headerSize || position + size > fileSize) {
+                throw new IOException(source + ": truncated " + BoxWriter.fourccToString(type) +
+                        " box at " + position);
+            }
+
+            if (type == MDAT) {
+                chunk.addSegment(source, position + headerSize, size - headerSize);
+            } else if (type == MOOV) {
+                moov = readBox(channel, position, size);
+            } else if (type == FTYP && mFtyp == null) {
+                chunk.ftyp = toArray(readBox(channel, position, size));
+            }
+            position += size;
+        }
+
+        if (moov == null) {
+            throw new IOException(source + " has no moov box");
+        }
+        if (child(moov, 8, MVEX) != null) {
+            throw new IOException(source + " is fragmented, join it with FragmentedMp4Joiner");
+        }
+        ByteBuffer mvhd = requireChild(moov, 8, MVHD);
+        chunk.mvhd = toArray(mvhd);
+        long movieTimescale = mvhd.getInt(mvhd.get(8) == 1 ? 28 : 20) & MAX_UINT32;
+        if (movieTimescale == 0) {
+            throw new IOException(source + ": movie with zero timescale");
+        }
+        ByteBuffer udta = child(moov, 8, UDTA);
+        chunk.udta = udta != null ? toArray(udta) : null;
+
+        try {
+            for (ByteBuffer trak : children(moov, 8, TRAK)) {
+                ChunkTrack track = readTrack(source, trak, chunk, payloadBase, movieTimescale);
+                chunk.tracks.add(track);
+                chunk.durationUs = Math.max(chunk.durationUs, track.presentationUs);
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException(source + ": sample table runs past its box", e);
+        }
+        return chunk;
+    }
+
+    private static ChunkTrack readTrack(File source, ByteBuffer trak, Chunk chunk,
+                                        long payloadBase, long movieTimescale)
+            throws IOException {
+        ChunkTrack track = new ChunkTrack();
+        track.tkhd = toArray(requireChild(trak, 8, TKHD));
+
+        ByteBuffer mdia = requireChild(trak, 8, MDIA);
+        ByteBuffer mdhd = requireChild(mdia, 8, MDHD);
+        track.mdhd = toArray(mdhd);
+        track.timescale = mdhd.getInt(mdhd.get(8) == 1 ? 28 : 20) & MAX_UINT32;
+        if (track.timescale == 0) {
+            throw new IOException(source + ": track with zero timescale");
+        }
+        ByteBuffer hdlr = requireChild(mdia, 8, HDLR);
+        track.handler = hdlr.getInt(16);
+        track.mdiaExtras = concatChildren(mdia, 8, MDHD, MINF);
+
+        ByteBuffer minf = requireChild(mdia, 8, MINF);
+        track.minfExtras = concatChildren(minf, 8, STBL, STBL);
+        ByteBuffer stbl = requireChild(minf, 8, STBL);
+
+        ByteBuffer stsd = requireChild(stbl, 8, STSD);
+        for (ByteBuffer entry : children(stsd, 16, 0)) {
+            track.sampleEntries.add(toArray(entry));
+        }
+
+        ByteBuffer stsz = requireChild(stbl, 8, STSZ);
+        int constantSize = stsz.getInt(12);
+        int sampleCount = stsz.getInt(16);
+        track.sizes = new int[sampleCount];
+        for (int i = 0; i < sampleCount; i++) {
+            track.sizes[i] = constantSize != 0 ? constantSize : stsz.getInt(20 + 4 * i);
+        }
+
+        ByteBuffer stts = requireChild(stbl, 8, STTS);
+        int entries = stts.getInt(12);
+        track.sttsCounts = new int[entries];
+        track.sttsDeltas = new int[entries];
+        long sttsSamples = 0;
+        long mediaDuration = 0;
+        for (int i = 0; i < entries; i++) {
+            track.sttsCounts[i] = stts.getInt(16 + 8 * i);
+            track.sttsDeltas[i] = stts.getInt(20 + 8 * i);
+            sttsSamples += track.sttsCounts[i] & MAX_UINT32;
+            mediaDuration += (track.sttsCounts[i] & MAX_UINT32) * track.sttsDeltas[i];
+        }
+        if (sttsSamples != sampleCount) {
+            throw new IOException(source + ": stts covers " + sttsSamples + " of " +
+                    sampleCount + " samples");
+        }
+        readEdits(source, trak, track, movieTimescale);
+        track.presentationUs = track.emptyUs +
+                (mediaDuration - track.mediaStart) * US_PER_SECOND / track.timescale;
+
+        ByteBuffer ctts = child(stbl, 8, CTTS);
+        if (ctts != null) {
+            entries = ctts.getInt(12);
+            track.cttsCounts = new int[entries];
+            track.cttsOffsets = new int[entries];
+            for (int i = 0; i < entries; i++) {
+                track.cttsCounts[i] = ctts.getInt(16 + 8 * i);
+                track.cttsOffsets[i] = ctts.getInt(20 + 8 * i);
+            }
+        }
+
+        ByteBuffer stss = child(stbl, 8, STSS);
+        if (stss != null) {
+            entries = stss.getInt(12);
+            track.syncSamples = new int[entries];
+            for (int i = 0; i < entries; i++) {
+                track.syncSamples[i] = stss.getInt(16 + 4 * i);
+            }
+        }
+
+        ByteBuffer stco = child(stbl, 8, STCO);
+        ByteBuffer co64 = child(stbl, 8, CO64);
+        if (stco == null && co64 == null) {
+            throw new IOException(source + ": track without chunk offsets");
+        }
+        int chunkCount = stco != null ? stco.getInt(12) : co64.getInt(12);
+        track.chunkOffsets = new long[chunkCount];
+        for (int i = 0; i < chunkCount; i++) {
+            long offset = stco != null ? stco.getInt(16 + 4 * i) & MAX_UINT32
+                    : co64.getLong(16 + 8 * i);
+            track.chunkOffsets[i] = chunk.toPayloadOffset(source, offset, payloadBase);
+        }
+
+        // Expand stsc to one (sample count, description) pair per chunk.
+        ByteBuffer stsc = requireChild(stbl, 8, STSC);
+        entries = stsc.getInt(12);
+        track.chunkSampleCounts = new int[chunkCount];
+        track.chunkDescriptions = new int[chunkCount];
+        long stscSamples = 0;
+        for (int i = 0; i < entries; i++) {
+            int first = stsc.getInt(16 + 12 * i) - 1;
+            int last = i + 1 < entries ? stsc.getInt(16 + 12 * (i + 1)) - 1 : chunkCount;
+            int samplesPerChunk = stsc.getInt(20 + 12 * i);
+            int description = stsc.getInt(24 + 12 * i);
+            if (first < 0 || last > chunkCount || description < 1 ||
+                    description > track.sampleEntries.size()) {
+                throw new IOException(source + ": malformed stsc");
+            }
+            for (int c = first; c < last; c++) {
+                track.chunkSampleCounts[c] = samplesPerChunk;
+                track.chunkDescriptions[c] = description;
+                stscSamples += samplesPerChunk;
+            }
+        }
+        if (stscSamples != sampleCount) {
+            throw new IOException(source + ": stsc covers " + stscSamples + " of " +
+                    sampleCount + " samples");
+        }
+        return track;
+    }
+
+    /**
+     * Reads the leading empty edit and the media time the track starts playing from.  Only
+     * the single-edit lists MediaMuxer writes are understood: any edits after the first
+     * non-empty one are taken to continue it.
+     */
+    private static void readEdits(File source, ByteBuffer trak, ChunkTrack track,
+                                  long movieTimescale) throws IOException {
+        ByteBuffer edts = child(trak, 8, EDTS);
+        ByteBuffer elst = edts != null ? child(edts, 8, ELST) : null;
+        if (elst == null) {
+            return;
+        }
+        boolean version1 = elst.get(8) == 1;
+        int entries = elst.getInt(12);
+        int position = 16;
+        for (int i = 0; i < entries; i++) {
+            long segmentDuration = version1 ? elst.getLong(position)
+                    : elst.getInt(position) & MAX_UINT32;
+            long mediaTime = version1 ? elst.getLong(position + 8) : elst.getInt(position + 4);
+            position += version1 ? 20 : 12;
+            if (mediaTime != -1) {
+                if (mediaTime < 0) {
+                    throw new IOException(source + ": malformed elst");
+                }
+                track.mediaStart = mediaTime;
+                return;
+            }
+            track.emptyUs += segmentDuration * US_PER_SECOND / movieTimescale;
+        }
+    }
+
+    static ByteBuffer readBox(FileChannel channel, long position, long size)
+            throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Box too large to read: " + size);
+        }
+        ByteBuffer box = ByteBuffer.allocate((int) size);
+        readFully(channel, box, position);
+        box.flip();
+        return box;
+    }
+
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file at " + position);
+            }
+            position += read;
+        }
+    }
+
+    // ----- box navigation -----
+
+    /**
+     * Returns the children of box, starting contentOffset bytes into it, whose type is
+     * type; or every child if type is 0.  Each child is a slice that starts at its header.
+     */
+    static List<ByteBuffer> children(ByteBuffer box, int contentOffset, int type)
+            throws IOException {
+        List<ByteBuffer> result = new ArrayList<>();
+        int position = contentOffset;
+        int end = box.limit();
+        while (position + 8 <= end) {
+            long size = box.getInt(position) & MAX_UINT32;
+            int childType = box.getInt(position + 4);
+            if (size == 1) {
+                size = box.getLong(position + 8);
+            } else if (size == 0) {
+                size = end - position;
+            }
+            if (size < 8 || position + size > end) {
+                throw new IOException("Malformed " + BoxWriter.fourccToString(childType) + " box");
+            }
+            if (type == 0 || childType == type) {
+                ByteBuffer child = box.duplicate();
+                child.position(position);
+                child.limit(position + (int) size);
+                result.add(child.slice());
+            }
+            position += (int) size;
+        }
+        return result;
+    }
+
+    static ByteBuffer child(ByteBuffer box, int contentOffset, int type) throws IOException {
+        List<ByteBuffer> matches = children(box, contentOffset, type);
+        return matches.isEmpty() ? null : matches.get(0);
+    }
+
+    static ByteBuffer requireChild(ByteBuffer box, int contentOffset, int type)
+            throws IOException {
+        ByteBuffer child = child(box, contentOffset, type);
+        if (child == null) {
+            throw new IOException("Missing " + BoxWriter.fourccToString(type) + " box");
+        }
+        return child;
+    }
+
+    /**
+     * Concatenates the raw bytes of every child except the two excluded types.
+     */
+    private static byte[] concatChildren(ByteBuffer box, int contentOffset, int excluded1,
+                                         int excluded2) throws IOException {
+        BoxWriter writer = new BoxWriter(256);
+        for (ByteBuffer child : children(box, contentOffset, 0)) {
+            int type = child.getInt(4);
+            if (type != excluded1 && type != excluded2) {
+                writer.write(child);
+            }
+        }
+        return Arrays.copyOf(writer.asByteBuffer().array(), writer.size());
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    // ----- merging -----
+
+    void merge(Chunk chunk) {
+        if (mFtyp == null) {
+            mFtyp = chunk.ftyp;
+        }
+        if (mMvhd == null) {
+            mMvhd = chunk.mvhd;
+            mUdta = chunk.udta;
+        }
+        for (ChunkTrack chunkTrack : chunk.tracks) {
+            Track track = null;
+            for (Track candidate : mTracks) {
+                if (candidate.handler == chunkTrack.handler) {
+                    track = candidate;
+                    break;
+                }
+            }
+            if (track == null) {
+                track = new Track(chunkTrack);
+                mTracks.add(track);
+            }
+            track.append(chunkTrack, mDurationUs);
+        }
+        mSegments.addAll(chunk.segments);
+        mPayloadSize += chunk.payloadSize;
+        mDurationUs += chunk.durationUs;
+    }
+
+    // ----- writing -----
+
+    /**
+     * Writes the merged moov, with chunk offsets rebased onto payloadStart.
+     */
+    void writeMoov(BoxWriter writer, long payloadStart, boolean co64) {
+        long movieTimescale = ByteBuffer.wrap(mMvhd).getInt(mMvhd[8] == 1 ? 28 : 20) & MAX_UINT32;
+        long movieDuration = 0;
+        for (Track track : mTracks) {
+            movieDuration = Math.max(movieDuration, track.getDuration(movieTimescale));
+        }
+
+        writer.startBox(MOOV);
+        int mvhd = writer.size();
+        writer.write(mMvhd);
+        patchVersionedField(writer, mvhd, mMvhd[8] == 1, 24, 32, movieDuration);
+        // next_track_ID is the last field of mvhd.
+        writer.putInt(mvhd + mMvhd.length - 4, mTracks.size() + 1);
+
+        for (int i = 0; i < mTracks.size(); i++) {
+            mTracks.get(i).writeTrak(writer, i + 1, movieTimescale, payloadStart, co64);
+        }
+        if (mUdta != null) {
+            writer.write(mUdta);
+        }
+        writer.endBox();
+    }
+
+    /**
+     * Overwrites a duration-like field whose offset and width depend on the box version.
+     */
+    private static void patchVersionedField(BoxWriter writer, int boxStart, boolean version1,
+                                            int offsetV0, int offsetV1, long value) {
+        if (version1) {
+            writer.putInt(boxStart + offsetV1, (int) (value >>> 32));
+            writer.putInt(boxStart + offsetV1 + 4, (int) value);
+        } else {
+            writer.putInt(boxStart + offsetV0, (int) Math.min(value, MAX_UINT32));
+        }
+    }
+
+    // ----- data holders -----
+
+    /**
+     * A byte range of a chunk's mdat payload, in stitched payload order.
+     */
+    static class Segment {
+        final File file;
+        final long start;
+        final long length;
+
+        Segment(File file, long start, long length) {
+            this.file = file;
+            this.start = start;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Everything read from a single chunk, before merging.
+     */
+    static class Chunk {
+        byte[] ftyp;
+        byte[] mvhd;
+        byte[] udta;
+        final List<ChunkTrack> tracks = new ArrayList<>();
+        final List<Segment> segments = new ArrayList<>();
+        long payloadSize;
+        long durationUs;
+
+        void addSegment(File file, long start, long length) {
+            segments.add(new Segment(file, start, length));
+            payloadSize += length;
+        }
+
+        /**
+         * Maps an absolute offset in the chunk file to an offset in the stitched payload.
+         */
+        long toPayloadOffset(File source, long fileOffset, long payloadBase) throws IOException {
+            long cumulative = 0;
+            for (Segment segment : segments) {
+                if (fileOffset >= segment.start && fileOffset < segment.start + segment.length) {
+                    return payloadBase + cumulative + (fileOffset - segment.start);
+                }
+                cumulative += segment.length;
+            }
+            throw new IOException(source + ": chunk offset " + fileOffset + " is outside mdat");
+        }
+    }
+
+    static class ChunkTrack {
+        int handler;
+        long timescale;
+        byte[] tkhd;
+        byte[] mdhd;
+        byte[] mdiaExtras;
+        byte[] minfExtras;
+        final List<byte[]> sampleEntries = new ArrayList<>();
+        int[] sizes;
+        int[] sttsCounts;
+        int[] sttsDeltas;
+        int[] cttsCounts;
+        int[] cttsOffsets;
+        int[] syncSamples;
+        long[] chunkOffsets;
+        int[] chunkSampleCounts;
+        int[] chunkDescriptions;
+        // From the edit list: how long the track waits before playing, and from where
+        long emptyUs;
+        long mediaStart;
+        long presentationUs;
+    }
+
+    /**
+     * Merged sample tables for one output track.  Chunk offsets are kept relative to the
+     * start of the stitched payload and rebased when the moov is written.
+     * <p>
+     * The track plays after emptyDuration, from mediaStart on, both in its own timescale;
+     * they become its edit list.
+     */
+    static class Track {
+        final int handler;
+        final long timescale;
+        final byte[] tkhd;
+        final byte[] mdhd;
+        final byte[] mdiaExtras;
+        final byte[] minfExtras;
+        final List<byte[]> sampleEntries = new ArrayList<>();
+
+        final IntList sizes = new IntList();
+        final IntList sttsCounts = new IntList();
+        final IntList sttsDeltas = new IntList();
+        final IntList cttsCounts = new IntList();
+        final IntList cttsOffsets = new IntList();
+        boolean hasCtts;
+        final IntList syncSamples = new IntList();
+        boolean hasSync;
+        final LongList chunkOffsets = new LongList();
+        final IntList chunkSampleCounts = new IntList();
+        final IntList chunkDescriptions = new IntList();
+        long duration;
+        long emptyDuration;
+        long mediaStart;
+
+        Track(ChunkTrack template) {
+            handler = template.handler;
+            timescale = template.timescale;
+            tkhd = template.tkhd;
+            mdhd = template.mdhd;
+            mdiaExtras = template.mdiaExtras;
+            minfExtras = template.minfExtras;
+        }
+
+        int getSampleCount() {
+            return sizes.size();
+        }
+
+        /**
+         * Returns how long the track plays for, edits included, in targetTimescale.
+         */
+        long getDuration(long targetTimescale) {
+            return (emptyDuration + duration - mediaStart) * targetTimescale / timescale;
+        }
+
+        /**
+         * Appends chunk's samples so that they start playing startUs into the movie, plus
+         * the chunk's own empty edit if it has one.
+         */
+        void append(ChunkTrack chunk, long startUs) {
+            int sampleBase = sizes.size();
+            int sampleCount = chunk.sizes.length;
+
+            long start = (startUs + chunk.emptyUs) * timescale / US_PER_SECOND;
+            long chunkMediaStart = rescale(chunk.mediaStart, chunk.timescale);
+            if (sampleBase == 0) {
+                emptyDuration = start;
+                mediaStart = chunkMediaStart;
+            } else {
+                // Where the chunk's first played sample would land if simply appended
+                long appended = emptyDuration + duration - mediaStart + chunkMediaStart;
+                stretchLastSample(start - appended);
+            }
+
+            // Map the chunk's sample descriptions onto ours, adding any we haven't seen.
+            int[] descriptionMap = new int[chunk.sampleEntries.size() + 1];
+            for (int i = 0; i < chunk.sampleEntries.size(); i++) {
+                byte[] entry = chunk.sampleEntries.get(i);
+                int index = -1;
+                for (int j = 0; j < sampleEntries.size(); j++) {
+                    if (Arrays.equals(sampleEntries.get(j), entry)) {
+                        index = j;
+                        break;
+                    }
+                }
+                if (index < 0) {
+                    sampleEntries.add(entry);
+                    index = sampleEntries.size() - 1;
+                }
+                descriptionMap[i + 1] = index + 1;
+            }
+
+            sizes.addAll(chunk.sizes);
+
+            for (int i = 0; i < chunk.sttsCounts.length; i++) {
+                int delta = (int) rescale(chunk.sttsDeltas[i], chunk.timescale);
+                addRun(sttsCounts, sttsDeltas, chunk.sttsCounts[i], delta);
+                duration += (chunk.sttsCounts[i] & MAX_UINT32) * delta;
+            }
+
+            if (chunk.cttsCounts != null) {
+                if (!hasCtts && sampleBase > 0) {
+                    addRun(cttsCounts, cttsOffsets, sampleBase, 0);
+                }
+                hasCtts = true;
+                for (int i = 0; i < chunk.cttsCounts.length; i++) {
+                    addRun(cttsCounts, cttsOffsets, chunk.cttsCounts[i],
+                            (int) rescale(chunk.cttsOffsets[i], chunk.timescale));
+                }
+            } else if (hasCtts && sampleCount > 0) {
+                addRun(cttsCounts, cttsOffsets, sampleCount, 0);
+            }
+
+            // A missing stss means every sample is a sync sample.
+            if (chunk.syncSamples != null) {
+                if (!hasSync) {
+                    for (int i = 1; i <= sampleBase; i++) {
+                        syncSamples.add(i);
+                    }
+                }
+                hasSync = true;
+                for (int sample : chunk.syncSamples) {
+                    syncSamples.add(sampleBase + sample);
+                }
+            } else if (hasSync) {
+                for (int i = 1; i <= sampleCount; i++) {
+                    syncSamples.add(sampleBase + i);
+                }
+            }
+
+            chunkOffsets.addAll(chunk.chunkOffsets);
+            chunkSampleCounts.addAll(chunk.chunkSampleCounts);
+            for (int description : chunk.chunkDescriptions) {
+                chunkDescriptions.add(descriptionMap[description]);
+            }
+        }
+
+        private long rescale(long value, long sourceTimescale) {
+            if (sourceTimescale == timescale) {
+                return value;
+            }
+            return (value * timescale + sourceTimescale / 2) / sourceTimescale;
+        }
+
+        /**
+         * Lengthens the last sample by shift, or shortens it down to a single tick if shift is
+         * negative, so that whatever comes next plays shift later.
+         */
+        private void stretchLastSample(long shift) {
+            int last = sttsCounts.size() - 1;
+            if (shift == 0 || last < 0) {
+                return;
+            }
+            int delta = sttsDeltas.get(last);
+            int stretched = (int) Math.max(1, Math.min(Integer.MAX_VALUE, delta + shift));
+            int count = sttsCounts.get(last);
+            if (count == 1) {
+                sttsDeltas.set(last, stretched);
+            } else {
+                sttsCounts.set(last, count - 1);
+                sttsCounts.add(1);
+                sttsDeltas.add(stretched);
+            }
+            duration += stretched - delta;
+        }
+
+        private static void addRun(IntList counts, IntList values, int count, int value) {
+            int last = counts.size() - 1;
+            if (last >= 0 && values.get(last) == value) {
+                counts.set(last, counts.get(last) + count);
+            } else {
+                counts.add(count);
+                values.add(value);
+            }
+        }
+
+        void writeTrak(BoxWriter writer, int trackId, long movieTimescale, long payloadStart,
+                       boolean co64) {
+            writer.startBox(TRAK);
+
+            int tkhdStart = writer.size();
+            writer.write(tkhd);
+            boolean v1 = tkhd[8] == 1;
+            writer.putInt(tkhdStart + (v1 ? 28 : 20), trackId);
+            patchVersionedField(writer, tkhdStart, v1, 28, 36, getDuration(movieTimescale));
+            if (emptyDuration > 0 || mediaStart > 0) {
+                writeEdits(writer, movieTimescale);
+            }
+
+            writer.startBox(MDIA);
+            int mdhdStart = writer.size();
+            writer.write(mdhd);
+            patchVersionedField(writer, mdhdStart, mdhd[8] == 1, 24, 32, duration);
+            writer.write(mdiaExtras);
+
+            writer.startBox(MINF);
+            writer.write(minfExtras);
+            writer.startBox(STBL);
+            writeSampleTables(writer, payloadStart, co64);
+            writer.endBox();    // stbl
+            writer.endBox();    // minf
+            writer.endBox();    // mdia
+            writer.endBox();    // trak
+        }
+
+        private void writeEdits(BoxWriter writer, long movieTimescale) {
+            long empty = emptyDuration * movieTimescale / timescale;
+            long played = (duration - mediaStart) * movieTimescale / timescale;
+            boolean v1 = Math.max(empty, played) > MAX_UINT32 || mediaStart > Integer.MAX_VALUE;
+            writer.startBox(EDTS);
+            writer.startFullBox("elst", v1 ? 1 : 0, 0).writeInt(empty > 0 ? 2 : 1);
+            if (empty > 0) {
+                writeEdit(writer, v1, empty, -1);
+            }
+            writeEdit(writer, v1, played, mediaStart);
+            writer.endBox();    // elst
+            writer.endBox();    // edts
+        }
+
+        private static void writeEdit(BoxWriter writer, boolean v1, long segmentDuration,
+                                      long mediaTime) {
+            if (v1) {
+                writer.writeLong(segmentDuration).writeLong(mediaTime);
+            } else {
+                writer.writeInt((int) segmentDuration).writeInt((int) mediaTime);
+            }
+            // media_rate 1.0
+            writer.writeInt(0x00010000);
+        }
+
+        private void writeSampleTables(BoxWriter writer, long payloadStart, boolean co64) {
+            writer.startFullBox("stsd", 0, 0).writeInt(sampleEntries.size());
+            for (byte[] entry : sampleEntries) {
+                writer.write(entry);
+            }
+            writer.endBox();
+
+            writer.startFullBox("stts", 0, 0).writeInt(sttsCounts.size());
+            for (int i = 0; i < sttsCounts.size(); i++) {
+                writer.writeInt(sttsCounts.get(i)).writeInt(sttsDeltas.get(i));
+            }
+            writer.endBox();
+
+            if (hasCtts) {
+                boolean negative = false;
+                for (int i = 0; i < cttsOffsets.size() && !negative; i++) {
+                    negative = cttsOffsets.get(i) < 0;
+                }
+                writer.startFullBox("ctts", negative ? 1 : 0, 0).writeInt(cttsCounts.size());
+                for (int i = 0; i < cttsCounts.size(); i++) {
+                    writer.writeInt(cttsCounts.get(i)).writeInt(cttsOffsets.get(i));
+                }
+                writer.endBox();
+            }
+
+            if (hasSync && syncSamples.size() < sizes.size()) {
+                writer.startFullBox("stss", 0, 0).writeInt(syncSamples.size());
+                for (int i = 0; i < syncSamples.size(); i++) {
+                    writer.writeInt(syncSamples.get(i));
+                }
+                writer.endBox();
+            }
+
+            writer.startFullBox("stsz", 0, 0).writeInt(0).writeInt(sizes.size());
+            for (int i = 0; i < sizes.size(); i++) {
+                writer.writeInt(sizes.get(i));
+            }
+            writer.endBox();
+
+            // Collapse the per-chunk layout back into stsc runs.
+            int runsPosition;
+            writer.startFullBox("stsc", 0, 0);
+            runsPosition = writer.size();
+            writer.writeInt(0);
+            int runs = 0;
+            for (int i = 0; i < chunkSampleCounts.size(); i++) {
+                if (i == 0 || chunkSampleCounts.get(i) != chunkSampleCounts.get(i - 1) ||
+                        chunkDescriptions.get(i) != chunkDescriptions.get(i - 1)) {
+                    writer.writeInt(i + 1).writeInt(chunkSampleCounts.get(i))
+                            .writeInt(chunkDescriptions.get(i));
+                    runs++;
+                }
+            }
+            writer.putInt(runsPosition, runs);
+            writer.endBox();
+
+            writer.startFullBox(co64 ? "co64" : "stco", 0, 0).writeInt(chunkOffsets.size());
+            for (int i = 0; i < chunkOffsets.size(); i++) {
+                long offset = payloadStart + chunkOffsets.get(i);
+                if (co64) {
+                    writer.writeLong(offset);
+                } else {
+                    writer.writeInt((int) offset);
+                }
+            }
+            writer.endBox();
+        }
+    }
+
+    static class IntList {
+        private int[] mValues = new int[64];
+        private int mSize;
+
+        void add(int value) {
+            if (mSize == mValues.length) {
+                mValues = Arrays.copyOf(mValues, mSize * 2);
+            }
+            mValues[mSize++] = value;
+        }
+
+        void addAll(int[] values) {
+            if (mSize + values.length > mValues.length) {
+                mValues = Arrays.copyOf(mValues, Math.max(mValues.length * 2, mSize + values.length));
+            }
+            System.arraycopy(values, 0, mValues, mSize, values.length);
+            mSize += values.length;
+        }
+
+        int get(int index) {
+            return mValues[index];
+        }
+
+        void set(int index, int value) {
+            mValues[index] = value;
+        }
+
+        int size() {
+            return mSize;
+        }
+    }
+
+    static class LongList {
+        private long[] mValues = new long[64];
+        private int mSize;
+
+        void addAll(long[] values) {
+            if (mSize + values.length > mValues.length) {
+                mValues = Arrays.copyOf(mValues, Math.max(mValues.length * 2, mSize + values.length));
+            }
+            System.arraycopy(values, 0, mValues, mSize, values.length);
+            mSize += values.length;
+        }
+
+        long get(int index) {
+            return mValues[index];
+        }
+
+        int size() {
+            return mSize;
+        }
+    }
+}
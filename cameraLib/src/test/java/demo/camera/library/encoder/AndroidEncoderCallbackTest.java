@@ -0,0 +1,106 @@
+package demo.camera.library.encoder;
+
+import android.media.MediaCodec;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AndroidEncoderCallbackTest {
+    private static final int SAMPLES = 50;
+    // Paces the fake codec so the muxer's writer thread keeps up and nothing is dropped
+    private static final long DEQUEUE_WAIT_US = 1000;
+
+    @Test
+    public void callbacksPushOutputWithoutDraining() throws InterruptedException {
+        CountingMuxer muxer = new CountingMuxer();
+        final FakeEncoderCodec codec = new FakeEncoderCodec(SAMPLES, 100, DEQUEUE_WAIT_US);
+        FakeEncoder encoder = new FakeEncoder(muxer, codec, true);
+        assertTrue(encoder.enableCallbacks(null));
+        assertTrue(encoder.isCallbackDriven());
+
+        // Per frame drains are no-ops
+        encoder.drainEncoder(false);
+        assertEquals(0, codec.getDequeueCount());
+
+        Thread output = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                codec.deliverAll();
+            }
+        });
+        output.start();
+        output.join();
+        // Returns once the end of stream buffer has been delivered
+        encoder.drainEncoder(true);
+
+        assertEquals(0, codec.getDequeueCount());
+        assertEquals(SAMPLES, codec.getReleasedCount());
+        assertTrue(muxer.stopped.await(5, TimeUnit.SECONDS));
+        assertEquals(SAMPLES, muxer.written.get());
+    }
+
+    @Test
+    public void fallsBackToPollingWithoutCallbackSupport() throws InterruptedException {
+        CountingMuxer muxer = new CountingMuxer();
+        FakeEncoderCodec codec = new FakeEncoderCodec(SAMPLES, 100, DEQUEUE_WAIT_US);
+        codec.setCallbacksSupported(false);
+        FakeEncoder encoder = new FakeEncoder(muxer, codec, true);
+        assertFalse(encoder.enableCallbacks(null));
+        assertFalse(encoder.isCallbackDriven());
+
+        for (int i = 0; i < SAMPLES - 1; i++) {
+            encoder.drainEncoder(false);
+        }
+        encoder.drainEncoder(true);
+
+        assertTrue(codec.getDequeueCount() > SAMPLES);
+        assertEquals(SAMPLES, codec.getReleasedCount());
+        assertTrue(muxer.stopped.await(5, TimeUnit.SECONDS));
+        assertEquals(SAMPLES, muxer.written.get());
+    }
+
+    /**
+     * A single track muxer that counts what it writes.
+     */
+    private static class CountingMuxer extends Muxer {
+        final AtomicInteger written = new AtomicInteger();
+        final CountDownLatch stopped = new CountDownLatch(1);
+
+        CountingMuxer() {
+            super("callbacks.mp4", FORMAT.MPEG4);
+        }
+
+        @Override
+        public void writeSampleData(EncoderCodec encoder, int trackIndex, int bufferIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+            writeOrBufferSample(encoder, trackIndex, bufferIndex, encodedData, bufferInfo);
+        }
+
+        @Override
+        protected boolean allTracksFinished() {
+            return mNumTracks == 1 && mNumTracksFinished == 1;
+        }
+
+        @Override
+        protected void writeSample(int trackIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+            written.incrementAndGet();
+        }
+
+        @Override
+        protected void stop() {
+            stopped.countDown();
+        }
+
+        @Override
+        public void forceStop() {
+            requestStop();
+        }
+    }
+}
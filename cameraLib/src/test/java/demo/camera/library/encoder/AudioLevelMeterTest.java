@@ -0,0 +1,90 @@
+package demo.camera.library.encoder;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AudioLevelMeterTest {
+    private static final int SAMPLES = 1024;
+    private static final long FRAME_US = 23220;
+
+    @Test
+    public void measuresRmsAndPeak() {
+        AudioLevelMeter meter = new AudioLevelMeter();
+        ByteBuffer frame = ByteBuffer.allocateDirect(SAMPLES * 2);
+        fillSine(frame, 32767);
+        meter.analyze(frame, SAMPLES * 2, 0, FRAME_US);
+
+        long snapshot = meter.getSnapshot();
+        assertEquals(0.7071f, AudioLevelMeter.rmsOf(snapshot), 0.001f);
+        assertEquals(1f, AudioLevelMeter.peakOf(snapshot), 0.001f);
+        assertEquals(-3.01f, AudioLevelMeter.toDbfs(AudioLevelMeter.rmsOf(snapshot)), 0.05f);
+        // Untouched, so the frame can still be encoded as it was read
+        assertEquals(0, frame.position());
+        assertEquals(SAMPLES * 2, frame.limit());
+
+        // Negative full scale counts as a peak too
+        frame.clear();
+        for (int i = 0; i < SAMPLES; i++) {
+            frame.putShort(i * 2, Short.reverseBytes(i == 10 ? Short.MIN_VALUE : 0));
+        }
+        meter.analyze(frame, SAMPLES * 2, FRAME_US, FRAME_US);
+        assertEquals(1f, AudioLevelMeter.peakOf(meter.getSnapshot()), 0f);
+    }
+
+    @Test
+    public void tracksTrailingSilence() {
+        AudioLevelMeter meter = new AudioLevelMeter();
+        ByteBuffer loud = ByteBuffer.allocateDirect(SAMPLES * 2);
+        fillSine(loud, 10000);
+        ByteBuffer quiet = ByteBuffer.allocateDirect(SAMPLES * 2);
+        fillSine(quiet, 10);
+
+        meter.analyze(loud, SAMPLES * 2, 0, FRAME_US);
+        assertEquals(Long.MIN_VALUE, meter.getSilentSinceUs());
+        assertEquals(0, meter.getSilenceDuration(TimeUnit.MICROSECONDS));
+        for (int i = 1; i <= 4; i++) {
+            meter.analyze(quiet, SAMPLES * 2, i * FRAME_US, FRAME_US);
+        }
+        assertEquals(FRAME_US, meter.getSilentSinceUs());
+        assertEquals(4 * FRAME_US, meter.getSilenceDuration(TimeUnit.MICROSECONDS));
+
+        meter.analyze(loud, SAMPLES * 2, 5 * FRAME_US, FRAME_US);
+        assertEquals(Long.MIN_VALUE, meter.getSilentSinceUs());
+    }
+
+    @Test
+    public void analyzingAllocatesNothing() {
+        AudioLevelMeter meter = new AudioLevelMeter();
+        ByteBuffer frame = ByteBuffer.allocateDirect(SAMPLES * 4);
+        fillSine(frame, 20000);
+        for (int i = 0; i < 10000; i++) {
+            meter.analyze(frame, SAMPLES * 4, i * FRAME_US, FRAME_US);
+        }
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 10000; i++) {
+            meter.analyze(frame, SAMPLES * 4, i * FRAME_US, FRAME_US);
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+        assertTrue("allocated " + allocated + " bytes", allocated < 1024);
+    }
+
+    /**
+     * Fills frame with a little endian sine wave of amplitude, a whole number of cycles long.
+     */
+    private static void fillSine(ByteBuffer frame, int amplitude) {
+        int samples = frame.capacity() / 2;
+        for (int i = 0; i < samples; i++) {
+            short sample = (short) Math.round(amplitude * Math.sin(2 * Math.PI * 8 * i / samples));
+            frame.putShort(i * 2, Short.reverseBytes(sample));
+        }
+    }
+}
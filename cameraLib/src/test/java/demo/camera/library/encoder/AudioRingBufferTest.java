@@ -0,0 +1,145 @@
+package demo.camera.library.encoder;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AudioRingBufferTest {
+    private static final int FRAME_CAPACITY = 64;
+
+    @Test
+    public void framesComeOutWithTheirLengthAndTimestamp() {
+        AudioRingBuffer ring = new AudioRingBuffer(3, FRAME_CAPACITY);
+        assertEquals(4, ring.capacity());
+        ByteBuffer dst = ByteBuffer.allocate(FRAME_CAPACITY);
+        assertEquals(0, ring.read(dst));
+        // Wrap around the ring a few times
+        for (int frame = 0; frame < 10; frame++) {
+            ByteBuffer slot = ring.claim();
+            for (int i = 0; i <= frame; i++) {
+                slot.put(i, (byte) (frame + i));
+            }
+            ring.commit(frame + 1, frame * 1000L);
+
+            dst.clear();
+            assertEquals(frame + 1, ring.read(dst));
+            assertEquals(frame * 1000L, ring.getLastTimestampNs());
+            assertEquals(frame + 1, dst.position());
+            for (int i = 0; i <= frame; i++) {
+                assertEquals((byte) (frame + i), dst.get(i));
+            }
+            assertTrue(ring.isEmpty());
+        }
+        assertEquals(0, ring.getOverrunCount());
+    }
+
+    @Test
+    public void fullRingCountsOverrunsAndFreesSlotsAsTheyAreRead() {
+        AudioRingBuffer ring = new AudioRingBuffer(4, FRAME_CAPACITY);
+        for (int i = 0; i < 4; i++) {
+            ring.claim().put(0, (byte) i);
+            ring.commit(1, i);
+        }
+        assertNull(ring.claim());
+        assertNull(ring.claim());
+        assertEquals(2, ring.getOverrunCount());
+
+        ByteBuffer dst = ByteBuffer.allocate(FRAME_CAPACITY);
+        assertEquals(1, ring.read(dst));
+        assertEquals(0, dst.get(0));
+        assertNotNull(ring.claim());
+        assertEquals(2, ring.getOverrunCount());
+        assertEquals(3, ring.size());
+    }
+
+    @Test
+    public void awaitWakesOnCommitAndCountsUnderrunsOnTimeout() throws InterruptedException {
+        final AudioRingBuffer ring = new AudioRingBuffer(4, FRAME_CAPACITY);
+        assertFalse(ring.await(0));
+        assertEquals(0, ring.getUnderrunCount());
+        assertFalse(ring.await(TimeUnit.MILLISECONDS.toNanos(5)));
+        assertEquals(1, ring.getUnderrunCount());
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                ring.claim().put(0, (byte) 1);
+                ring.commit(1, 1);
+            }
+        });
+        writer.start();
+        long start = System.nanoTime();
+        assertTrue(ring.await(TimeUnit.SECONDS.toNanos(5)));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+        writer.join();
+        assertEquals(1, ring.getUnderrunCount());
+    }
+
+    @Test
+    public void wakeReaderEndsWaitWithoutUnderrun() throws InterruptedException {
+        final AudioRingBuffer ring = new AudioRingBuffer(4, FRAME_CAPACITY);
+        // Before the wait, it's ended as soon as it starts
+        ring.wakeReader();
+        assertFalse(ring.await(TimeUnit.SECONDS.toNanos(5)));
+
+        Thread waker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                ring.wakeReader();
+            }
+        });
+        waker.start();
+        long start = System.nanoTime();
+        assertFalse(ring.await(TimeUnit.SECONDS.toNanos(5)));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+        waker.join();
+        assertEquals(0, ring.getUnderrunCount());
+    }
+
+    @Test
+    public void readerSeesEveryFrameInOrder() throws InterruptedException {
+        final int frames = 200000;
+        final AudioRingBuffer ring = new AudioRingBuffer(8, FRAME_CAPACITY);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < frames; i++) {
+                    ByteBuffer slot;
+                    while ((slot = ring.claim()) == null) {
+                        Thread.yield();
+                    }
+                    slot.putInt(0, i);
+                    ring.commit(4, i);
+                }
+            }
+        });
+        writer.start();
+        ByteBuffer dst = ByteBuffer.allocate(FRAME_CAPACITY);
+        for (int i = 0; i < frames; i++) {
+            assertTrue(ring.await(TimeUnit.SECONDS.toNanos(5)));
+            dst.clear();
+            assertEquals(4, ring.read(dst));
+            assertEquals(i, dst.getInt(0));
+            assertEquals(i, ring.getLastTimestampNs());
+        }
+        writer.join();
+        assertTrue(ring.isEmpty());
+    }
+}
@@ -0,0 +1,82 @@
+package demo.camera.library.encoder;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AudioTimestampEngineTest {
+    private static final int SAMPLE_RATE = 44100;
+    private static final int FRAME = 1024;
+    private static final long FRAME_NS = FRAME * 1000000000L / SAMPLE_RATE;
+    private static final long START_NS = 5000000000L;
+
+    @Test
+    public void jitteryReadsGetEvenlySpacedTimestamps() {
+        AudioTimestampEngine engine = new AudioTimestampEngine(SAMPLE_RATE);
+        Random random = new Random(1);
+        long previousNs = 0;
+        for (int i = 0; i < 1000; i++) {
+            // Reads return up to 5ms after their last sample was captured
+            long readEndNs = START_NS + (i + 1) * FRAME_NS + random.nextInt(5000000);
+            long ptsNs = engine.onRead(FRAME, readEndNs);
+            if (i == 0) {
+                assertTrue(ptsNs <= readEndNs - FRAME_NS);
+            } else {
+                assertNear(FRAME_NS, ptsNs - previousNs, 1);
+            }
+            previousNs = ptsNs;
+        }
+        assertEquals(0, engine.getDiscontinuityCount());
+        assertTrue(Math.abs(engine.getDriftUs()) < 5000);
+    }
+
+    @Test
+    public void measuresClockDrift() {
+        AudioTimestampEngine engine = new AudioTimestampEngine(SAMPLE_RATE);
+        // The audio clock runs 0.1% slow against the system clock, over ~23s
+        int reads = 1000;
+        long ptsNs = 0;
+        for (int i = 0; i < reads; i++) {
+            ptsNs = engine.onRead(FRAME, START_NS + (i + 1) * FRAME_NS * 1001 / 1000);
+        }
+        assertNear(START_NS + (reads - 1) * FRAME_NS * 1001 / 1000, ptsNs, reads * FRAME_NS / 1000 + 1000);
+        long expectedDriftUs = reads * FRAME_NS / 1000 / 1000;
+        assertNear(expectedDriftUs, engine.getDriftUs(), expectedDriftUs / 10);
+        assertEquals(engine.getDriftUs(), engine.getMaxDriftUs());
+        assertEquals(0, engine.getDiscontinuityCount());
+    }
+
+    @Test
+    public void skipsAheadOverLostAudio() {
+        AudioTimestampEngine engine = new AudioTimestampEngine(SAMPLE_RATE, 50000, 8);
+        long lostNs = 10 * FRAME_NS;
+        long ptsNs = 0;
+        for (int i = 0; i < 100; i++) {
+            long readEndNs = START_NS + (i + 1) * FRAME_NS + (i >= 50 ? lostNs : 0);
+            ptsNs = engine.onRead(FRAME, readEndNs);
+        }
+        assertEquals(1, engine.getDiscontinuityCount());
+        // Back in step with the clock, and still on the sample grid
+        assertNear(START_NS + 99 * FRAME_NS + lostNs, ptsNs, 1000);
+        long samples = ((ptsNs - START_NS) * SAMPLE_RATE + 500000000L) / 1000000000L;
+        assertNear(START_NS + samples * 1000000000L / SAMPLE_RATE, ptsNs, 1);
+        assertTrue(engine.getMaxDriftUs() >= lostNs / 1000 - 1);
+    }
+
+    @Test
+    public void resetAnchorsAgain() {
+        AudioTimestampEngine engine = new AudioTimestampEngine(SAMPLE_RATE);
+        engine.onRead(FRAME, START_NS + FRAME_NS);
+        engine.onRead(FRAME, START_NS + 2 * FRAME_NS);
+        engine.reset();
+        assertEquals(2 * START_NS, engine.onRead(FRAME, 2 * START_NS + FRAME_NS));
+    }
+
+    private static void assertNear(long expected, long actual, long tolerance) {
+        assertTrue("expected " + expected + " +/- " + tolerance + " but was " + actual,
+                Math.abs(expected - actual) <= tolerance);
+    }
+}
@@ -0,0 +1,205 @@
+package demo.camera.library.encoder;
+
+import android.media.MediaCodec;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BufferedSampleWriterTest {
+    private static final int SAMPLES = 40;
+    private static final int POOL_SIZE = 4;
+    private static final int VIDEO = 0;
+    private static final int AUDIO = 1;
+
+    private final FakeEncoderCodec mEncoder = new FakeEncoderCodec(0, 1, 0);
+
+    @Test
+    public void writesCopiesInOrderThenStops() throws InterruptedException {
+        RecordingMuxer muxer = new RecordingMuxer(0);
+        // Big enough that nothing is dropped however far the writer falls behind
+        BufferedSampleWriter writer = new BufferedSampleWriter(muxer, SAMPLES, 2);
+        ByteBuffer encoded = ByteBuffer.allocate(BufferedSampleWriter.INITIAL_BUFFER_CAPACITY * 2);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        for (int i = 0; i < SAMPLES; i++) {
+            // Every tenth sample is bigger than a pool buffer, as a keyframe might be
+            int size = i % 10 == 0 ? encoded.capacity() : 100 + i;
+            encoded.clear();
+            for (int b = 0; b < size; b++) {
+                encoded.put((byte) (i + b));
+            }
+            encoded.flip();
+            info.presentationTimeUs = i * 1000L;
+            info.flags = i % 10 == 0 ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
+            assertTrue(writer.enqueue(mEncoder, i % 2, encoded, info));
+            // The caller's buffer may be reused as soon as enqueue returns
+            encoded.clear();
+            encoded.put(new byte[encoded.capacity()]);
+        }
+        writer.stopAfterPending();
+        writer.join();
+
+        assertTrue(muxer.stopped);
+        assertEquals(SAMPLES, muxer.written.size());
+        for (int i = 0; i < SAMPLES; i++) {
+            String expected = describe(i % 2, i * 1000L,
+                    i % 10 == 0 ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0,
+                    i % 10 == 0 ? encoded.capacity() : 100 + i, (byte) i);
+            assertEquals(expected, muxer.written.get(i));
+        }
+    }
+
+    @Test
+    public void exhaustedPoolDropsVideoUntilNextKeyframe() throws InterruptedException {
+        RecordingMuxer muxer = new RecordingMuxer(0);
+        muxer.blockWrites();
+        BufferedSampleWriter writer = new BufferedSampleWriter(muxer, POOL_SIZE, 2);
+        ByteBuffer encoded = ByteBuffer.allocate(100);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < POOL_SIZE; i++) {
+            info.flags = i == 0 ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
+            assertTrue(writer.enqueue(mEncoder, VIDEO, encoded.duplicate(), info));
+        }
+        info.flags = 0;
+        assertFalse(writer.enqueue(mEncoder, VIDEO, encoded.duplicate(), info));
+        // The encoder is asked for the keyframe video will resume from
+        assertEquals(1, mEncoder.getSyncFrameRequests());
+        assertFalse(writer.enqueue(mEncoder, AUDIO, encoded.duplicate(), info));
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+        assertTrue("enqueue blocked for " + elapsedMs + "ms", elapsedMs < 50);
+        assertEquals(POOL_SIZE, writer.getHighWaterMark());
+
+        muxer.unblockWrites();
+        while (writer.getQueueDepth() > 0) {
+            Thread.sleep(1);
+        }
+        // Audio resumes right away, video only from the next keyframe
+        assertTrue(writer.enqueue(mEncoder, AUDIO, encoded.duplicate(), info));
+        assertFalse(writer.enqueue(mEncoder, VIDEO, encoded.duplicate(), info));
+        assertEquals(1, mEncoder.getSyncFrameRequests());
+        info.flags = MediaCodec.BUFFER_FLAG_SYNC_FRAME;
+        assertTrue(writer.enqueue(mEncoder, VIDEO, encoded.duplicate(), info));
+        info.flags = 0;
+        assertTrue(writer.enqueue(mEncoder, VIDEO, encoded.duplicate(), info));
+
+        writer.stopAfterPending();
+        writer.join();
+        assertTrue(muxer.stopped);
+        assertEquals(POOL_SIZE + 3, muxer.written.size());
+        assertEquals(3, writer.getDroppedCount());
+        assertEquals(0, writer.getQueueDepth());
+    }
+
+    @Test
+    public void defaultPoolRidesOutAStallOfDefaultBufferMs() throws InterruptedException {
+        RecordingMuxer muxer = new RecordingMuxer(0);
+        muxer.blockWrites();
+        BufferedSampleWriter writer = new BufferedSampleWriter(muxer,
+                BufferedSampleWriter.DEFAULT_POOL_SIZE, 2);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        // 30fps video and 44.1kHz AAC, with storage taking no writes at all meanwhile
+        long stallUs = BufferedSampleWriter.DEFAULT_BUFFER_MS * 1000;
+        long audioUs = 0;
+        for (long videoUs = 0; videoUs < stallUs; videoUs += FakeEncoderCodec.FRAME_INTERVAL_US) {
+            info.presentationTimeUs = videoUs;
+            info.flags = videoUs == 0 ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
+            assertTrue(writer.enqueue(mEncoder, VIDEO, ByteBuffer.allocate(100), info));
+            info.flags = 0;
+            for (; audioUs <= videoUs; audioUs += 1024 * 1000000L / 44100) {
+                info.presentationTimeUs = audioUs;
+                assertTrue(writer.enqueue(mEncoder, AUDIO, ByteBuffer.allocate(10), info));
+            }
+        }
+        muxer.unblockWrites();
+        writer.stopAfterPending();
+        writer.join();
+        assertEquals(0, writer.getDroppedCount());
+        assertEquals(0, mEncoder.getSyncFrameRequests());
+    }
+
+    @Test
+    public void countsSamplesWrittenLate() throws InterruptedException {
+        RecordingMuxer muxer = new RecordingMuxer(BufferedSampleWriter.LATE_SAMPLE_MS);
+        BufferedSampleWriter writer = new BufferedSampleWriter(muxer, POOL_SIZE, 2);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(writer.enqueue(mEncoder, AUDIO, ByteBuffer.allocate(10), info));
+        }
+        writer.stopAfterPending();
+        writer.join();
+        // The first sample is written right away, the others wait on the slow write
+        assertEquals(2, writer.getLateCount());
+    }
+
+    private static String describe(int track, long ptsUs, int flags, int size, byte first) {
+        return track + "/" + ptsUs + "/" + flags + "/" + size + "/" + first;
+    }
+
+    /**
+     * Records what reaches the writer thread, taking writeDelayMs per sample like a slow
+     * sdcard would.  Track 0 is video.
+     */
+    private static class RecordingMuxer extends Muxer {
+        final List<String> written = Collections.synchronizedList(new ArrayList<String>());
+        volatile boolean stopped;
+        private final long mWriteDelayMs;
+        private volatile CountDownLatch mUnblocked = new CountDownLatch(1);
+
+        RecordingMuxer(long writeDelayMs) {
+            super("test.mp4", FORMAT.MPEG4);
+            mWriteDelayMs = writeDelayMs;
+            mUnblocked.countDown();
+        }
+
+        void blockWrites() {
+            mUnblocked = new CountDownLatch(1);
+        }
+
+        void unblockWrites() {
+            mUnblocked.countDown();
+        }
+
+        @Override
+        protected boolean isVideoTrack(int trackIndex) {
+            return trackIndex == VIDEO;
+        }
+
+        @Override
+        public void writeSampleData(EncoderCodec encoder, int trackIndex, int bufferIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+            writeOrBufferSample(encoder, trackIndex, bufferIndex, encodedData, bufferInfo);
+        }
+
+        @Override
+        protected void writeSample(int trackIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+            try {
+                mUnblocked.await();
+                Thread.sleep(mWriteDelayMs);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            assertFalse(stopped);
+            written.add(describe(trackIndex, bufferInfo.presentationTimeUs, bufferInfo.flags,
+                    encodedData.remaining(), encodedData.get(encodedData.position())));
+        }
+
+        @Override
+        protected void stop() {
+            stopped = true;
+        }
+
+        @Override
+        public void forceStop() {
+            requestStop();
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package demo.camera.library.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs capture, encoding and muxing of both tracks on their real threads, with the
+ * microphone, codecs and MediaMuxer replaced by fakes, at {@link #SPEEDUP} times real time.
+ * Checks that nothing is dropped or late and that timestamps come out evenly spaced.  How
+ * fast the pipeline runs is measured by CaptureEncodeMuxBenchmark in the benchmarks module.
+ */
+public class CaptureEncodeMuxPipelineTest {
+    private static final int SPEEDUP = 10;
+    static final int SAMPLE_RATE = 44100;
+    static final int FRAMES = 90;
+    private static final long FRAME_INTERVAL_US = 33333;
+    static final long START_TIME_NS = TimeUnit.SECONDS.toNanos(1000);
+    static final int VIDEO_FRAME_SIZE = 16 * 1024;
+    private static final int VIDEO = 0;
+    private static final int AUDIO = 1;
+
+    @Test
+    public void pipelineDropsNothingAtTenTimesRealTime() throws Exception {
+        InMemoryMuxerSink sink = new InMemoryMuxerSink();
+        Muxer muxer = AndroidMuxer.create("pipeline.mp4", Muxer.FORMAT.MPEG4, sink);
+
+        LoopbackEncoderCodec videoCodec = new LoopbackEncoderCodec(4, VIDEO_FRAME_SIZE, new MediaFormat());
+        FakeEncoder video = new FakeEncoder(muxer, videoCodec, true);
+        LoopbackEncoderCodec audioCodec = new LoopbackEncoderCodec(4, 8192, new MediaFormat());
+        FakeAudioSource audioSource = new FakeAudioSource(SAMPLE_RATE, START_TIME_NS, SPEEDUP);
+        MicrophoneEncoder microphone = new MicrophoneEncoder(
+                new AudioEncoderCore(1, SAMPLE_RATE, muxer, audioCodec), audioSource);
+
+        recordChunk(microphone, muxer, video, videoCodec, SPEEDUP);
+        assertTrue(sink.awaitRelease(5000));
+        microphone.release();
+        assertTrue(audioSource.isReleased());
+
+        assertTrue(sink.isStopped());
+        assertEquals(2, sink.getTrackCount());
+        assertEquals(0, microphone.getCaptureOverrunCount());
+        assertEquals(0, microphone.getCaptureUnderrunCount());
+        assertEquals(0, muxer.getDroppedSampleCount());
+        assertEquals(0, muxer.getLateSampleCount());
+
+        // Every buffer handed to the muxer was written
+        assertEquals(FRAMES, videoCodec.getReleasedCount());
+        assertEquals(FRAMES, sink.getPresentationTimesUs(VIDEO).size());
+        assertEquals((long) FRAMES * VIDEO_FRAME_SIZE, sink.getBytesWritten(VIDEO));
+        List<Long> audioPtsUs = sink.getPresentationTimesUs(AUDIO);
+        // All but an empty end of stream, if capture stopped between frames
+        assertEquals(audioCodec.getReleasedCount() - audioCodec.getEmptyCount(), audioPtsUs.size());
+        assertTrue(audioPtsUs.size() > FRAMES);
+
+        assertSpacing(sink.getPresentationTimesUs(VIDEO), FRAME_INTERVAL_US, FRAME_INTERVAL_US);
+        long audioFrameUs = MicrophoneEncoder.SAMPLES_PER_FRAME * 1000000L / SAMPLE_RATE;
+        assertSpacing(audioPtsUs, audioFrameUs, audioFrameUs + 1);
+    }
+
+    @Test
+    public void chunksShareOneAudioSource() throws Exception {
+        FakeAudioSource audioSource = new FakeAudioSource(SAMPLE_RATE, START_TIME_NS, SPEEDUP);
+        MicrophoneEncoder microphone = null;
+        for (int chunk = 0; chunk < 3; chunk++) {
+            InMemoryMuxerSink sink = new InMemoryMuxerSink();
+            Muxer muxer = AndroidMuxer.create("chunk" + chunk + ".mp4", Muxer.FORMAT.MPEG4, sink);
+            LoopbackEncoderCodec audioCodec = new LoopbackEncoderCodec(4, 8192, new MediaFormat());
+            AudioEncoderCore audio = new AudioEncoderCore(1, SAMPLE_RATE, muxer, audioCodec);
+            if (microphone == null) {
+                microphone = new MicrophoneEncoder(audio, audioSource);
+            } else {
+                microphone.reset(audio);
+            }
+            LoopbackEncoderCodec videoCodec = new LoopbackEncoderCodec(4, VIDEO_FRAME_SIZE, new MediaFormat());
+            recordChunk(microphone, muxer, new FakeEncoder(muxer, videoCodec, true), videoCodec,
+                    SPEEDUP);
+
+            assertTrue(sink.awaitRelease(5000));
+            assertTrue(sink.isStopped());
+            List<Long> audioPtsUs = sink.getPresentationTimesUs(AUDIO);
+            assertEquals(audioCodec.getReleasedCount() - audioCodec.getEmptyCount(), audioPtsUs.size());
+            assertTrue(audioPtsUs.size() > FRAMES);
+            long audioFrameUs = MicrophoneEncoder.SAMPLES_PER_FRAME * 1000000L / SAMPLE_RATE;
+            assertSpacing(audioPtsUs, audioFrameUs, audioFrameUs + 1);
+        }
+        assertEquals(1, audioSource.getStartCount());
+        assertFalse(audioSource.isReleased());
+        microphone.release();
+        assertTrue(audioSource.isReleased());
+        assertEquals(RecordingStateMachine.State.RELEASED, microphone.getState());
+        // Every chunk went through the whole cycle
+        assertEquals(3, microphone.getTransitionLatency(RecordingStateMachine.State.RECORDING).getCount());
+        assertEquals(3, microphone.getTransitionLatency(RecordingStateMachine.State.IDLE).getCount());
+        assertEquals(0, microphone.getCaptureOverrunCount());
+        // The fake source's clock is exact, and nothing read between chunks is lost
+        assertEquals(0, microphone.getTimestampDriftUs());
+        assertEquals(0, microphone.getTimestampDiscontinuityCount());
+    }
+
+    @Test
+    public void stereoAt48kHzIsCapturedWithoutPerFrameAllocation() throws Exception {
+        int sampleRate = 48000;
+        InMemoryMuxerSink sink = new InMemoryMuxerSink();
+        Muxer muxer = AndroidMuxer.create("stereo.mp4", Muxer.FORMAT.MPEG4, sink);
+        LoopbackEncoderCodec audioCodec = new LoopbackEncoderCodec(4, 8192, new MediaFormat());
+        FakeAudioSource audioSource = new FakeAudioSource(sampleRate, 2, START_TIME_NS, SPEEDUP);
+        MicrophoneEncoder microphone = new MicrophoneEncoder(
+                new AudioEncoderCore(2, sampleRate, muxer, audioCodec), audioSource);
+        LoopbackEncoderCodec videoCodec = new LoopbackEncoderCodec(4, VIDEO_FRAME_SIZE, new MediaFormat());
+
+        // The audio threads start in the background, capture before the first command
+        while (microphone.getState() != RecordingStateMachine.State.ARMED) {
+            Thread.sleep(1);
+        }
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long captureThreadId = findThread("MicrophoneCapture").getId();
+        long allocatedBefore = threads.getThreadAllocatedBytes(captureThreadId);
+        recordChunk(microphone, muxer, new FakeEncoder(muxer, videoCodec, true), videoCodec,
+                SPEEDUP);
+        assertTrue(sink.awaitRelease(5000));
+        long allocated = threads.getThreadAllocatedBytes(captureThreadId) - allocatedBefore;
+        microphone.release();
+
+        int frameSize = MicrophoneEncoder.SAMPLES_PER_FRAME * 2 * 2;
+        List<Long> audioPtsUs = sink.getPresentationTimesUs(AUDIO);
+        assertTrue(audioPtsUs.size() > FRAMES);
+        // Whole stereo frames, each passed on as read
+        assertEquals((long) audioPtsUs.size() * frameSize, sink.getBytesWritten(AUDIO));
+        long audioFrameUs = MicrophoneEncoder.SAMPLES_PER_FRAME * 1000000L / sampleRate;
+        assertSpacing(audioPtsUs, audioFrameUs, audioFrameUs + 1);
+        assertEquals(0, microphone.getCaptureOverrunCount());
+        // Capture reads straight into the ring, so frames cost it nothing
+        assertTrue("capture allocated " + allocated + " bytes for " + audioPtsUs.size() + " frames",
+                allocated < frameSize);
+    }
+
+    @Test
+    public void stalledCodecDoesntHoldUpCommandsOrRelease() throws Exception {
+        InMemoryMuxerSink sink = new InMemoryMuxerSink();
+        Muxer muxer = AndroidMuxer.create("stalled.mp4", Muxer.FORMAT.MPEG4, sink);
+        muxer.setExpectedTrackCount(1);
+        LoopbackEncoderCodec audioCodec = new LoopbackEncoderCodec(4, 8192, new MediaFormat()) {
+            @Override
+            public int dequeueInputBuffer(long timeoutUs) {
+                // Never has an input buffer free, as if the codec had hung
+                LockSupport.parkNanos(timeoutUs < 0
+                        ? Long.MAX_VALUE : TimeUnit.MICROSECONDS.toNanos(timeoutUs));
+                return MediaCodec.INFO_TRY_AGAIN_LATER;
+            }
+        };
+        MicrophoneEncoder microphone = new MicrophoneEncoder(
+                new AudioEncoderCore(1, SAMPLE_RATE, muxer, audioCodec),
+                new FakeAudioSource(SAMPLE_RATE, START_TIME_NS, SPEEDUP));
+        microphone.startRecording();
+        while (microphone.getState() != RecordingStateMachine.State.RECORDING) {
+            Thread.sleep(1);
+        }
+        // Far more taps than the command queue holds, while the chunk is stuck
+        for (int i = 0; i < 100; i++) {
+            microphone.stopRecording();
+            microphone.startRecording();
+        }
+        microphone.release();
+
+        // Released within release()'s wait, rather than stuck feeding the codec
+        assertEquals(RecordingStateMachine.State.RELEASED, microphone.getState());
+        assertTrue(sink.isStopped());
+        assertTrue(muxer.wasForceStopped());
+    }
+
+    private static Thread findThread(String name) {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (name.equals(thread.getName()) && thread.isAlive()) {
+                return thread;
+            }
+        }
+        throw new AssertionError("No thread named " + name);
+    }
+
+    /**
+     * Records FRAMES video frames from video and the audio captured meanwhile into muxer,
+     * at speedup times real time, stopping the microphone at the end.
+     */
+    static void recordChunk(MicrophoneEncoder microphone, Muxer muxer, FakeEncoder video,
+                            LoopbackEncoderCodec videoCodec, int speedup) throws InterruptedException {
+        // Add the video track first, so that the muxer starts as soon as audio's is added
+        // and no sample arrives before it
+        video.drainEncoder(false);
+        long start = System.nanoTime();
+        microphone.startRecording();
+        while (!muxer.isStarted()) {
+            Thread.sleep(1);
+        }
+        feedVideo(video, videoCodec, start, speedup);
+        microphone.stopRecording();
+    }
+
+    /**
+     * Queues FRAMES video frames at speedup times the frame rate, draining after each as
+     * TextureMovieEncoder does, the last with end of stream.
+     */
+    private static void feedVideo(FakeEncoder video, LoopbackEncoderCodec codec, long startNs,
+                                  int speedup) {
+        long frameWallNs = TimeUnit.MICROSECONDS.toNanos(FRAME_INTERVAL_US) / speedup;
+        for (int i = 0; i < FRAMES; i++) {
+            long remainingNs;
+            while ((remainingNs = startNs + i * frameWallNs - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(remainingNs);
+            }
+            int index = codec.dequeueInputBuffer(0);
+            ByteBuffer input = codec.getInputBuffers()[index];
+            input.clear();
+            input.put(0, (byte) i);
+            int flags = i % 30 == 0 ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
+            boolean last = i == FRAMES - 1;
+            if (last) {
+                flags |= MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+            }
+            codec.queueInputBuffer(index, 0, VIDEO_FRAME_SIZE,
+                    START_TIME_NS / 1000 + i * FRAME_INTERVAL_US, flags);
+            video.drainEncoder(last);
+        }
+    }
+
+    private static void assertSpacing(List<Long> ptsUs, long minUs, long maxUs) {
+        // Both tracks start at the same time, so whichever reaches the muxer second has its
+        // first sample nudged to keep timestamps increasing.  Spacing is even from then on
+        for (int i = 2; i < ptsUs.size(); i++) {
+            long delta = ptsUs.get(i) - ptsUs.get(i - 1);
+            assertTrue("sample " + i + " is " + delta + "us after the previous one",
+                    delta >= minUs && delta <= maxUs);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package demo.camera.library.encoder;
+
+import android.media.MediaCodec;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drains a fake video and a fake audio encoder on their own threads, and checks that both
+ * can be waiting in dequeueOutputBuffer at once, which they couldn't while drainEncoder
+ * held the muxer's lock.  How much that saves is measured by DrainContentionBenchmark in
+ * the benchmarks module.
+ */
+public class ConcurrentDrainTest {
+    private static final int SAMPLES = 20;
+    private static final int SAMPLE_SIZE = 4096;
+    private static final long MEET_TIMEOUT_SEC = 5;
+
+    @Test
+    public void tracksWaitOnTheirCodecsAtTheSameTime() throws InterruptedException {
+        CountingMuxer muxer = new CountingMuxer();
+        CountDownLatch bothDequeuing = new CountDownLatch(2);
+        MeetingCodec videoCodec = new MeetingCodec(SAMPLE_SIZE, bothDequeuing);
+        MeetingCodec audioCodec = new MeetingCodec(SAMPLE_SIZE / 16, bothDequeuing);
+
+        Thread videoThread = startDraining(new FakeEncoder(muxer, videoCodec, true));
+        Thread audioThread = startDraining(new FakeEncoder(muxer, audioCodec, false));
+        videoThread.join();
+        audioThread.join();
+
+        assertTrue("video drain never overlapped audio's", videoCodec.met);
+        assertTrue("audio drain never overlapped video's", audioCodec.met);
+        assertTrue(muxer.stopped.await(MEET_TIMEOUT_SEC, TimeUnit.SECONDS));
+        assertEquals(SAMPLES, videoCodec.getReleasedCount());
+        assertEquals(SAMPLES, audioCodec.getReleasedCount());
+        assertEquals(2 * SAMPLES, muxer.written.get() + muxer.getDroppedSampleCount());
+    }
+
+    private static Thread startDraining(final FakeEncoder encoder) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // The first drain also sees the format change.  The last sample comes with
+                // end of stream
+                for (int i = 0; i < SAMPLES - 1; i++) {
+                    encoder.drainEncoder(false);
+                }
+                encoder.drainEncoder(true);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Holds its first sample's dequeue until the other track's codec is dequeuing too.
+     */
+    private static class MeetingCodec extends FakeEncoderCodec {
+        private final CountDownLatch mBothDequeuing;
+        private boolean mArrived;
+        volatile boolean met;
+
+        MeetingCodec(int sampleSize, CountDownLatch bothDequeuing) {
+            super(SAMPLES, sampleSize, 0);
+            mBothDequeuing = bothDequeuing;
+        }
+
+        @Override
+        public int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+            int index = super.dequeueOutputBuffer(info, timeoutUs);
+            if (index >= 0 && !mArrived) {
+                mArrived = true;
+                mBothDequeuing.countDown();
+                try {
+                    met = mBothDequeuing.await(MEET_TIMEOUT_SEC, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return index;
+        }
+    }
+
+    private static class CountingMuxer extends Muxer {
+        final AtomicInteger written = new AtomicInteger();
+        final CountDownLatch stopped = new CountDownLatch(1);
+
+        CountingMuxer() {
+            super("drain.mp4", FORMAT.MPEG4);
+        }
+
+        @Override
+        public void writeSampleData(EncoderCodec encoder, int trackIndex, int bufferIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+            writeOrBufferSample(encoder, trackIndex, bufferIndex, encodedData, bufferInfo);
+        }
+
+        @Override
+        protected void writeSample(int trackIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+            written.incrementAndGet();
+        }
+
+        @Override
+        protected void stop() {
+            stopped.countDown();
+        }
+
+        @Override
+        public void forceStop() {
+            requestStop();
+        }
+    }
+}
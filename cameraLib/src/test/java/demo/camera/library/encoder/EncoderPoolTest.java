@@ -0,0 +1,95 @@
+package demo.camera.library.encoder;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class EncoderPoolTest {
+
+    @Test
+    public void recycledEncoderIsReusedWarm() throws IOException, InterruptedException {
+        EncoderPool pool = new EncoderPool();
+        CountingFactory factory = new CountingFactory();
+        AndroidEncoder first = pool.acquire(EncoderPool.AUDIO, "a", null, factory);
+        pool.recycle(first);
+        assertTrue(pool.awaitIdle(1000));
+
+        Muxer muxer = AndroidMuxer.create("test.mp4", Muxer.FORMAT.MPEG4, new InMemoryMuxerSink());
+        AndroidEncoder second = pool.acquire(EncoderPool.AUDIO, "a", muxer, factory);
+        assertSame(first, second);
+        assertSame(muxer, second.mMuxer);
+        assertEquals(1, factory.created.size());
+        // Stopped and started again rather than created
+        assertEquals(2, factory.codecs.get(0).getStartCount());
+        assertEquals(1, pool.getWarmStartCount());
+        assertEquals(1, pool.getColdStartCount());
+        assertEquals(2, pool.getAudioStartLatency().getCount());
+        assertEquals(0, pool.getVideoStartLatency().getCount());
+    }
+
+    @Test
+    public void differentFormatStartsColdAndReleasesStale() throws IOException, InterruptedException {
+        EncoderPool pool = new EncoderPool();
+        CountingFactory factory = new CountingFactory();
+        AndroidEncoder first = pool.acquire(EncoderPool.AUDIO, "a", null, factory);
+        pool.recycle(first);
+        assertTrue(pool.awaitIdle(1000));
+
+        AndroidEncoder second = pool.acquire(EncoderPool.AUDIO, "b", null, factory);
+        assertNotSame(first, second);
+        assertNull(first.getCodec());
+        assertNotNull(second.getCodec());
+        assertEquals(0, pool.getWarmStartCount());
+        assertEquals(2, pool.getColdStartCount());
+    }
+
+    @Test
+    public void encoderFromElsewhereIsReleased() throws InterruptedException {
+        EncoderPool pool = new EncoderPool();
+        AndroidEncoder encoder = new AudioEncoderCore(1, 44100, null, new LoopbackEncoderCodec(2, 100, null));
+        pool.recycle(encoder);
+        assertTrue(pool.awaitIdle(1000));
+        assertNull(encoder.getCodec());
+    }
+
+    @Test
+    public void releaseAllEmptiesPool() throws IOException, InterruptedException {
+        EncoderPool pool = new EncoderPool();
+        CountingFactory factory = new CountingFactory();
+        AndroidEncoder first = pool.acquire(EncoderPool.AUDIO, "a", null, factory);
+        pool.recycle(first);
+        assertTrue(pool.awaitIdle(1000));
+        pool.releaseAll();
+
+        assertNull(first.getCodec());
+        assertNotSame(first, pool.acquire(EncoderPool.AUDIO, "a", null, factory));
+        assertEquals(2, pool.getColdStartCount());
+    }
+
+    /**
+     * Creates audio encoders over loopback codecs, keeping each.
+     */
+    private static class CountingFactory implements EncoderPool.Factory {
+        final List<AndroidEncoder> created = new ArrayList<>();
+        final List<LoopbackEncoderCodec> codecs = new ArrayList<>();
+
+        @Override
+        public AndroidEncoder create() {
+            LoopbackEncoderCodec codec = new LoopbackEncoderCodec(2, 100, null);
+            codec.start();
+            AndroidEncoder encoder = new AudioEncoderCore(1, 44100, null, codec);
+            codecs.add(codec);
+            created.add(encoder);
+            return encoder;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package demo.camera.library.encoder;
+
+import android.media.AudioRecord;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Stands in for the microphone with 16 bit PCM, a ramp repeated in every channel so that
+ * every read's contents are predictable.
+ * <p>
+ * Capture time is simulated: the audio is timestamped as if it were captured in real
+ * time from startTimeNs, but reads only block for the real duration divided by speedup.
+ */
+class FakeAudioSource implements AudioSource {
+    private static final int BYTES_PER_SAMPLE = 2;
+
+    private final int mSampleRate;
+    private final int mChannels;
+    private final long mStartTimeNs;
+    private final int mSpeedup;
+    private long mWallStartNs;
+    private long mSamplesRead;
+    private boolean mRecording;
+    private volatile int mStartCount;
+    private volatile boolean mReleased;
+
+    FakeAudioSource(int sampleRate, long startTimeNs, int speedup) {
+        this(sampleRate, 1, startTimeNs, speedup);
+    }
+
+    FakeAudioSource(int sampleRate, int channels, long startTimeNs, int speedup) {
+        mSampleRate = sampleRate;
+        mChannels = channels;
+        mStartTimeNs = startTimeNs;
+        mSpeedup = speedup;
+    }
+
+    @Override
+    public void startRecording() {
+        mStartCount++;
+        mRecording = true;
+        mWallStartNs = System.nanoTime();
+    }
+
+    @Override
+    public int read(ByteBuffer audioBuffer, int sizeInBytes) {
+        if (!mRecording) {
+            return AudioRecord.ERROR_INVALID_OPERATION;
+        }
+        int samples = Math.min(sizeInBytes, audioBuffer.remaining()) / (BYTES_PER_SAMPLE * mChannels);
+        // Written from the position without moving it, as AudioRecord does
+        int offset = audioBuffer.position();
+        for (int i = 0; i < samples; i++) {
+            short sample = (short) (mSamplesRead + i);
+            for (int channel = 0; channel < mChannels; channel++) {
+                audioBuffer.put(offset++, (byte) sample);
+                audioBuffer.put(offset++, (byte) (sample >> 8));
+            }
+        }
+        mSamplesRead += samples;
+
+        // Wait until the last sample would have been captured, sped up
+        long deadlineNs = mWallStartNs + samplesToNs(mSamplesRead) / mSpeedup;
+        long remainingNs;
+        while ((remainingNs = deadlineNs - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remainingNs);
+        }
+        return samples * BYTES_PER_SAMPLE * mChannels;
+    }
+
+    @Override
+    public long getLastReadTimeNs() {
+        return mStartTimeNs + samplesToNs(mSamplesRead);
+    }
+
+    @Override
+    public void stop() {
+        mRecording = false;
+    }
+
+    @Override
+    public void release() {
+        mReleased = true;
+    }
+
+    int getStartCount() {
+        return mStartCount;
+    }
+
+    boolean isReleased() {
+        return mReleased;
+    }
+
+    private long samplesToNs(long samples) {
+        return samples * TimeUnit.SECONDS.toNanos(1) / mSampleRate;
+    }
+}
@@ -0,0 +1,25 @@
+package demo.camera.library.encoder;
+
+import android.media.MediaCodec;
+
+/**
+ * An {@link AndroidEncoder} around any {@link EncoderCodec}, e.g. a
+ * {@link LoopbackEncoderCodec} or {@link FakeEncoderCodec}, writing to muxer.  video only
+ * decides which kind of encoder it claims to be.
+ */
+class FakeEncoder extends AndroidEncoder {
+    private final boolean mVideo;
+
+    FakeEncoder(Muxer muxer, EncoderCodec codec, boolean video) {
+        mMuxer = muxer;
+        mCodec = codec;
+        mVideo = video;
+        mBufferInfo = new MediaCodec.BufferInfo();
+        mTrackIndex = -1;
+    }
+
+    @Override
+    protected boolean isSurfaceInputEncoder() {
+        return mVideo;
+    }
+}
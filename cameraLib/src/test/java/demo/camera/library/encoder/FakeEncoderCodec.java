@@ -0,0 +1,226 @@
+package demo.camera.library.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.view.Surface;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Stands in for an encoder's MediaCodec.  The first dequeue reports the output format, then
+ * dequeues alternate between a sample and INFO_TRY_AGAIN_LATER, as when the drain catches
+ * up with the encoder.  Every dequeue takes dequeueWaitUs, like a real codec waiting on its
+ * hardware, and the last sample carries BUFFER_FLAG_END_OF_STREAM.
+ * <p>
+ * In callback mode the same sequence is pushed to the callback by {@link #deliverAll()}.
+ * <p>
+ * Every KEYFRAME_INTERVAL-th sample is a sync frame, as is the next one after
+ * {@link #requestSyncFrame()}.
+ * <p>
+ * {@link #stop()} rewinds to the start of the sequence, as a stopped and restarted codec
+ * begins a new stream.
+ */
+class FakeEncoderCodec implements EncoderCodec {
+    static final long FRAME_INTERVAL_US = 33333;
+    static final int KEYFRAME_INTERVAL = 30;
+
+    private final ByteBuffer[] mOutputBuffers = new ByteBuffer[4];
+    private final boolean[] mDequeued = new boolean[mOutputBuffers.length];
+    private final int mSamples;
+    private final long mDequeueWaitNs;
+    private boolean mFormatReported;
+    private boolean mSampleDue = true;
+    private int mNextSample;
+    private int mReleased;
+    private int mDequeueCount;
+    private int mStartCount;
+    private volatile boolean mSyncFrameRequested;
+    private int mSyncFrameRequests;
+    private boolean mCallbacksSupported = true;
+    private Callback mCallback;
+
+    FakeEncoderCodec(int samples, int sampleSize, long dequeueWaitUs) {
+        mSamples = samples;
+        mDequeueWaitNs = TimeUnit.MICROSECONDS.toNanos(dequeueWaitUs);
+        for (int i = 0; i < mOutputBuffers.length; i++) {
+            mOutputBuffers[i] = ByteBuffer.allocateDirect(sampleSize);
+        }
+    }
+
+    @Override
+    public ByteBuffer[] getInputBuffers() {
+        throw new UnsupportedOperationException("input comes from a Surface");
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        throw new UnsupportedOperationException("input comes from a Surface");
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        throw new UnsupportedOperationException("input comes from a Surface");
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        // The last sample always carries the end of stream
+    }
+
+    @Override
+    public ByteBuffer[] getOutputBuffers() {
+        return mOutputBuffers;
+    }
+
+    @Override
+    public int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+        mDequeueCount++;
+        if (mDequeueWaitNs > 0) {
+            LockSupport.parkNanos(mDequeueWaitNs);
+        }
+        if (!mFormatReported) {
+            mFormatReported = true;
+            return MediaCodec.INFO_OUTPUT_FORMAT_CHANGED;
+        }
+        int index = nextFreeBuffer();
+        if (!mSampleDue || mNextSample == mSamples || index < 0) {
+            mSampleDue = true;
+            return MediaCodec.INFO_TRY_AGAIN_LATER;
+        }
+        mSampleDue = false;
+        mDequeued[index] = true;
+        ByteBuffer buffer = mOutputBuffers[index];
+        buffer.clear();
+        buffer.put(0, (byte) mNextSample);
+        info.offset = 0;
+        info.size = buffer.capacity();
+        info.presentationTimeUs = mNextSample * FRAME_INTERVAL_US;
+        boolean sync = mNextSample % KEYFRAME_INTERVAL == 0 || mSyncFrameRequested;
+        mSyncFrameRequested = false;
+        info.flags = sync ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
+        if (mNextSample == mSamples - 1) {
+            info.flags |= MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+        }
+        mNextSample++;
+        return index;
+    }
+
+    @Override
+    public MediaFormat getOutputFormat() {
+        return new MediaFormat();
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index, boolean render) {
+        if (!mDequeued[index]) {
+            throw new IllegalStateException("buffer " + index + " released twice");
+        }
+        mDequeued[index] = false;
+        mReleased++;
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        return mOutputBuffers[index];
+    }
+
+    @Override
+    public boolean setCallback(Callback callback, Handler handler) {
+        if (!mCallbacksSupported) {
+            return false;
+        }
+        mCallback = callback;
+        return true;
+    }
+
+    @Override
+    public void configure(MediaFormat format) {
+    }
+
+    @Override
+    public Surface createInputSurface() {
+        return null;
+    }
+
+    @Override
+    public void start() {
+        mStartCount++;
+    }
+
+    @Override
+    public synchronized void requestSyncFrame() {
+        mSyncFrameRequested = true;
+        mSyncFrameRequests++;
+    }
+
+    @Override
+    public void stop() {
+        mFormatReported = false;
+        mSampleDue = true;
+        mNextSample = 0;
+        for (int i = 0; i < mDequeued.length; i++) {
+            mDequeued[i] = false;
+        }
+    }
+
+    void setCallbacksSupported(boolean supported) {
+        mCallbacksSupported = supported;
+    }
+
+    /**
+     * In callback mode, delivers the format change and every sample, each taking
+     * dequeueWaitUs.
+     */
+    void deliverAll() {
+        while (mNextSample < mSamples) {
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            int status = dequeueOutputBuffer(info, 0);
+            mDequeueCount--;
+            if (status == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                mCallback.onOutputFormatChanged(getOutputFormat());
+            } else if (status >= 0) {
+                mCallback.onOutputBufferAvailable(status, info);
+            }
+        }
+    }
+
+    /**
+     * Number of times output was polled for.
+     */
+    int getDequeueCount() {
+        return mDequeueCount;
+    }
+
+    /**
+     * Number of times start() was called.
+     */
+    int getStartCount() {
+        return mStartCount;
+    }
+
+    /**
+     * Number of times a sync frame was asked for.
+     */
+    synchronized int getSyncFrameRequests() {
+        return mSyncFrameRequests;
+    }
+
+    /**
+     * Number of output buffers given back by the muxer.
+     */
+    int getReleasedCount() {
+        return mReleased;
+    }
+
+    private int nextFreeBuffer() {
+        for (int i = 0; i < mDequeued.length; i++) {
+            if (!mDequeued[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,233 @@
+package demo.camera.library.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import demo.camera.library.utils.BoxWriter;
+import demo.camera.library.utils.FragmentedMp4Joiner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FragmentedMp4MuxerTest {
+    private static final int VIDE = BoxWriter.fourcc("vide");
+    private static final int SOUN = BoxWriter.fourcc("soun");
+    private static final byte[][] AVC_CONFIG = {
+            { 0x67, 0x42, (byte) 0x80, 0x1e }, { 0x68, (byte) 0xce, 0x06, (byte) 0xe2 } };
+    private static final byte[] AAC_CONFIG = { 0x12, 0x10 };
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("fragmented-muxer", "");
+        assertTrue(mDir.delete());
+        assertTrue(mDir.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : mDir.listFiles()) {
+            file.delete();
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void trackIdsDontDependOnWhichFormatArrivesFirst() throws IOException {
+        File videoFirst = writeChunk("video-first.mp4", true);
+        File audioFirst = writeChunk("audio-first.mp4", false);
+
+        for (File chunk : Arrays.asList(videoFirst, audioFirst)) {
+            ByteBuffer moov = readTopLevelBoxes(chunk, "moov").get(0);
+            List<ByteBuffer> traks = children(moov, "trak");
+            assertEquals(2, traks.size());
+            assertEquals(FragmentedMp4Muxer.VIDEO_TRACK_ID, trackId(traks.get(0)));
+            assertEquals(VIDE, handler(traks.get(0)));
+            assertEquals(FragmentedMp4Muxer.AUDIO_TRACK_ID, trackId(traks.get(1)));
+            assertEquals(SOUN, handler(traks.get(1)));
+
+            List<ByteBuffer> trafs = children(readTopLevelBoxes(chunk, "moof").get(0), "traf");
+            assertEquals(FragmentedMp4Muxer.VIDEO_TRACK_ID,
+                    children(trafs.get(0), "tfhd").get(0).getInt(12));
+            assertEquals(FragmentedMp4Muxer.AUDIO_TRACK_ID,
+                    children(trafs.get(1), "tfhd").get(0).getInt(12));
+        }
+
+        // Such chunks used to be skipped by the joiner as having different tracks
+        File joined = new File(mDir, "joined.mp4");
+        FragmentedMp4Joiner.join(joined, Arrays.asList(videoFirst, audioFirst));
+        assertEquals(2, readTopLevelBoxes(joined, "moof").size());
+    }
+
+    @Test
+    public void rejectsASecondTrackOfTheSameType() {
+        FragmentedMp4Muxer muxer =
+                FragmentedMp4Muxer.create(new File(mDir, "twice.mp4").getPath());
+        muxer.addTrack(new MediaFormat(), FragmentedMp4Muxer.Track.audio(44100, 1, 0, AAC_CONFIG));
+        try {
+            muxer.addTrack(new MediaFormat(), FragmentedMp4Muxer.Track.audio(48000, 1, 0, AAC_CONFIG));
+            fail("Added two audio tracks");
+        } catch (IllegalArgumentException expected) {
+        }
+        muxer.release();
+    }
+
+    @Test
+    public void fragmentsPointAtTheirSamplesAcrossBufferGrowth() throws IOException {
+        File chunk = new File(mDir, "gops.mp4");
+        FragmentedMp4Muxer muxer = FragmentedMp4Muxer.create(chunk.getPath());
+        int video = muxer.addTrack(new MediaFormat(),
+                FragmentedMp4Muxer.Track.video(640, 480, 0, AVC_CONFIG));
+        int audio = muxer.addTrack(new MediaFormat(),
+                FragmentedMp4Muxer.Track.audio(44100, 1, 0, AAC_CONFIG));
+        // GOPs bigger than the initial buffer, with audio held back between fragments
+        int videoSize = FragmentedMp4Muxer.INITIAL_PAYLOAD_CAPACITY / 10;
+        int frames = 90;
+        for (int i = 0; i < frames; i++) {
+            writeSample(muxer, video, i * 33333L, i % 30 == 0, videoSize, i);
+            writeSample(muxer, audio, i * 23220L, true, 300, i);
+        }
+        muxer.stop();
+
+        RandomAccessFile in = new RandomAccessFile(chunk, "r");
+        byte[] bytes = new byte[(int) in.length()];
+        try {
+            in.readFully(bytes);
+        } finally {
+            in.close();
+        }
+        ByteBuffer file = ByteBuffer.wrap(bytes);
+        List<ByteBuffer> moofs = boxes(file, 0, "moof");
+        assertEquals(3, moofs.size());
+        int[] next = new int[3];        // By track id
+        for (ByteBuffer moof : moofs) {
+            int moofStart = moof.arrayOffset();
+            for (ByteBuffer traf : children(moof, "traf")) {
+                int trackId = children(traf, "tfhd").get(0).getInt(12);
+                ByteBuffer trun = children(traf, "trun").get(0);
+                int count = trun.getInt(12);
+                int offset = moofStart + trun.getInt(16);
+                for (int i = 0; i < count; i++) {
+                    int size = trun.getInt(20 + i * 12 + 4);
+                    int sample = next[trackId]++;
+                    if (trackId == FragmentedMp4Muxer.VIDEO_TRACK_ID) {
+                        // Length prefixed in place of the Annex B start code
+                        assertEquals(videoSize + 4, size);
+                        assertEquals(videoSize, file.getInt(offset));
+                        assertEquals((byte) (sample + 1), file.get(offset + 4));
+                        assertEquals((byte) (sample + 1), file.get(offset + size - 1));
+                    } else {
+                        assertEquals(300, size);
+                        assertEquals((byte) (sample + 1), file.get(offset));
+                        assertEquals((byte) (sample + 1), file.get(offset + size - 1));
+                    }
+                    offset += size;
+                }
+            }
+        }
+        assertEquals(frames, next[FragmentedMp4Muxer.VIDEO_TRACK_ID]);
+        assertEquals(frames, next[FragmentedMp4Muxer.AUDIO_TRACK_ID]);
+    }
+
+    /**
+     * Writes a one fragment chunk, adding the video track first or second.
+     */
+    private File writeChunk(String name, boolean videoFirst) {
+        File chunk = new File(mDir, name);
+        FragmentedMp4Muxer muxer = FragmentedMp4Muxer.create(chunk.getPath());
+        FragmentedMp4Muxer.Track video = FragmentedMp4Muxer.Track.video(640, 480, 0, AVC_CONFIG);
+        FragmentedMp4Muxer.Track audio = FragmentedMp4Muxer.Track.audio(44100, 1, 0, AAC_CONFIG);
+        int first = muxer.addTrack(new MediaFormat(), videoFirst ? video : audio);
+        int second = muxer.addTrack(new MediaFormat(), videoFirst ? audio : video);
+        assertTrue(muxer.isStarted());
+        int videoIndex = videoFirst ? first : second;
+        int audioIndex = videoFirst ? second : first;
+
+        for (int i = 0; i < 3; i++) {
+            writeSample(muxer, videoIndex, i * 33333L, i == 0);
+            writeSample(muxer, audioIndex, i * 23220L, true);
+        }
+        muxer.stop();
+        return chunk;
+    }
+
+    private static void writeSample(Muxer muxer, int trackIndex, long ptsUs, boolean sync) {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.offset = 0;
+        info.size = 16;
+        info.presentationTimeUs = ptsUs;
+        info.flags = sync ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
+        muxer.writeSample(trackIndex, ByteBuffer.allocate(info.size), info);
+    }
+
+    /**
+     * Writes a size byte sample filled with sample + 1, so each is recognizable and, for
+     * video, a single NAL unit without start codes.
+     */
+    private static void writeSample(Muxer muxer, int trackIndex, long ptsUs, boolean sync,
+                                    int size, int sample) {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.offset = 0;
+        info.size = size;
+        info.presentationTimeUs = ptsUs;
+        info.flags = sync ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
+        ByteBuffer data = ByteBuffer.allocateDirect(size);
+        while (data.hasRemaining()) {
+            data.put((byte) (sample + 1));
+        }
+        data.flip();
+        muxer.writeSample(trackIndex, data, info);
+    }
+
+    private static int trackId(ByteBuffer trak) {
+        ByteBuffer tkhd = children(trak, "tkhd").get(0);
+        return tkhd.getInt(tkhd.get(8) == 1 ? 28 : 20);
+    }
+
+    private static int handler(ByteBuffer trak) {
+        return children(children(trak, "mdia").get(0), "hdlr").get(0).getInt(16);
+    }
+
+    private static List<ByteBuffer> readTopLevelBoxes(File file, String type) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) in.length()];
+            in.readFully(bytes);
+            return boxes(ByteBuffer.wrap(bytes), 0, type);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static List<ByteBuffer> children(ByteBuffer box, String type) {
+        return boxes(box, 8, type);
+    }
+
+    private static List<ByteBuffer> boxes(ByteBuffer parent, int from, String type) {
+        List<ByteBuffer> found = new ArrayList<>();
+        for (int position = from; position + 8 <= parent.limit(); ) {
+            int size = parent.getInt(position);
+            if (parent.getInt(position + 4) == BoxWriter.fourcc(type)) {
+                ByteBuffer box = parent.duplicate();
+                box.position(position).limit(position + size);
+                found.add(box.slice());
+            }
+            position += size;
+        }
+        return found;
+    }
+}
@@ -0,0 +1,211 @@
+package demo.camera.library.encoder;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FrameRingTest {
+    private static final int FRAMES = 100000;
+
+    @Test
+    public void framesComeOutInOrderWithTheirDescriptors() {
+        FrameRing ring = new FrameRing(3);
+        assertEquals(4, ring.capacity());
+        assertNull(ring.peek());
+        // Wrap around the ring a few times
+        for (int i = 0; i < 10; i++) {
+            FrameRing.Frame frame = ring.claim();
+            frame.transform[0] = i;
+            frame.timestampNs = i * 1000L;
+            frame.textureId = i + 1;
+            ring.commit();
+
+            FrameRing.Frame read = ring.peek();
+            assertSame(frame, read);
+            assertEquals(i, read.transform[0], 0f);
+            assertEquals(i * 1000L, read.timestampNs);
+            assertEquals(i + 1, read.textureId);
+            ring.release();
+            assertTrue(ring.isEmpty());
+        }
+        assertEquals(0, ring.getDroppedCount());
+    }
+
+    @Test
+    public void fullRingDropsFrames() {
+        FrameRing ring = new FrameRing(2);
+        for (int i = 0; i < 2; i++) {
+            ring.claim().timestampNs = i;
+            ring.commit();
+        }
+        assertNull(ring.claim());
+        assertNull(ring.claim());
+        assertEquals(2, ring.getDroppedCount());
+
+        assertEquals(0, ring.peek().timestampNs);
+        ring.release();
+        assertNotNull(ring.claim());
+        ring.clear();
+        assertTrue(ring.isEmpty());
+        try {
+            ring.release();
+            fail("Released a frame from an empty ring");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void dropOldestSkipsToTheNewestFramesWithinDepth() {
+        FrameRing ring = new FrameRing(2, FrameDropPolicy.DROP_OLDEST);
+        assertEquals(4, commit(ring, 0, 4));
+        assertEquals(2, ring.peek().timestampNs);
+        assertEquals(2, ring.getDroppedCount());
+        ring.release();
+        assertEquals(3, ring.peek().timestampNs);
+        ring.release();
+        assertNull(ring.peek());
+    }
+
+    @Test
+    public void dropNewestTurnsAwayFramesBeyondDepth() {
+        FrameRing ring = new FrameRing(2, FrameDropPolicy.DROP_NEWEST);
+        assertEquals(2, commit(ring, 0, 5));
+        assertEquals(3, ring.getDroppedCount());
+        assertEquals(0, ring.peek().timestampNs);
+        ring.release();
+        assertEquals(1, ring.peek().timestampNs);
+        ring.release();
+        assertNull(ring.peek());
+    }
+
+    @Test
+    public void latestRendersOnlyTheNewestFrame() {
+        FrameRing ring = new FrameRing(4, FrameDropPolicy.LATEST);
+        assertEquals(1, ring.getDepth());
+        commit(ring, 0, 3);
+        assertEquals(2, ring.peek().timestampNs);
+        ring.release();
+        assertNull(ring.peek());
+        assertEquals(2, ring.getDroppedCount());
+    }
+
+    @Test
+    public void slowReaderStaysWithinDepth() {
+        // The writer commits three frames for every one the reader gets to, as when the
+        // encoder is throttled, and the backlog still never grows past the depth
+        FrameRing ring = new FrameRing(3, FrameDropPolicy.DROP_OLDEST);
+        long next = 0;
+        long lastRead = -1;
+        for (int i = 0; i < 100; i++) {
+            next += commit(ring, next, 3);
+            FrameRing.Frame frame = ring.peek();
+            assertTrue(ring.size() <= 3);
+            assertTrue(frame.timestampNs > lastRead);
+            assertTrue(next - frame.timestampNs <= 3);
+            lastRead = frame.timestampNs;
+            ring.release();
+        }
+    }
+
+    @Test
+    public void framesReleasedPastTheThresholdAreLate() throws InterruptedException {
+        FrameRing ring = new FrameRing(4, FrameDropPolicy.DROP_OLDEST);
+        ring.setLateThreshold(10, TimeUnit.MILLISECONDS);
+        commit(ring, 0, 2);
+        ring.peek();
+        ring.release();
+        assertEquals(0, ring.getLateCount());
+        Thread.sleep(20);
+        ring.peek();
+        ring.release();
+        assertEquals(1, ring.getLateCount());
+        assertEquals(0, ring.getDroppedCount());
+    }
+
+    @Test
+    public void handOffAllocatesNothingPerFrame() throws InterruptedException {
+        final FrameRing ring = new FrameRing(8);
+        final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long[] readerAllocated = new long[1];
+        final long[] read = new long[1];
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long threadId = Thread.currentThread().getId();
+                long before = -1;
+                long lastTimestampNs = -1;
+                while (lastTimestampNs < 2L * FRAMES - 1) {
+                    FrameRing.Frame frame = ring.peek();
+                    if (frame == null) {
+                        Thread.yield();
+                        continue;
+                    }
+                    if (frame.timestampNs < lastTimestampNs) {
+                        throw new AssertionError("out of order at " + frame.timestampNs);
+                    }
+                    lastTimestampNs = frame.timestampNs;
+                    ring.release();
+                    // The first half warms up
+                    if (lastTimestampNs >= FRAMES) {
+                        if (before < 0) {
+                            before = threads.getThreadAllocatedBytes(threadId);
+                        }
+                        read[0]++;
+                    }
+                }
+                readerAllocated[0] = threads.getThreadAllocatedBytes(threadId) - before;
+            }
+        });
+        reader.start();
+
+        long threadId = Thread.currentThread().getId();
+        long before = 0;
+        for (long i = 0; i < 2L * FRAMES; i++) {
+            if (i == FRAMES) {
+                before = threads.getThreadAllocatedBytes(threadId);
+            }
+            FrameRing.Frame frame;
+            while ((frame = ring.claim()) == null) {
+                Thread.yield();
+            }
+            frame.transform[12] = i;
+            frame.timestampNs = i;
+            frame.textureId = 1;
+            ring.commit();
+        }
+        long writerAllocated = threads.getThreadAllocatedBytes(threadId) - before;
+        reader.join(10000);
+
+        assertEquals(FRAMES, read[0]);
+        // A fixed few bytes at most for the measuring itself, nothing per frame
+        assertTrue("writer allocated " + writerAllocated + " bytes", writerAllocated < 1024);
+        assertTrue("reader allocated " + readerAllocated[0] + " bytes", readerAllocated[0] < 1024);
+    }
+
+    /**
+     * Offers count frames timestamped from first on, committing those the ring has room for.
+     *
+     * @return the number committed
+     */
+    private static int commit(FrameRing ring, long first, int count) {
+        int committed = 0;
+        for (int i = 0; i < count; i++) {
+            FrameRing.Frame frame = ring.claim();
+            if (frame != null) {
+                frame.timestampNs = first + i;
+                ring.commit();
+                committed++;
+            }
+        }
+        return committed;
+    }
+}
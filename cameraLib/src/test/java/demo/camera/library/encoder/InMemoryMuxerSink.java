@@ -0,0 +1,88 @@
+package demo.camera.library.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records what would have been written to a file, and checks it's called in the order
+ * MediaMuxer requires.
+ */
+class InMemoryMuxerSink implements MuxerSink {
+    private final List<MediaFormat> mTracks = new ArrayList<>();
+    private final List<List<Long>> mPresentationTimesUs = new ArrayList<>();
+    private final List<Long> mBytes = new ArrayList<>();
+    private final CountDownLatch mReleased = new CountDownLatch(1);
+    private boolean mStarted;
+    private boolean mStopped;
+
+    @Override
+    public synchronized int addTrack(MediaFormat format) {
+        if (mStarted) {
+            throw new IllegalStateException("track added after start");
+        }
+        mTracks.add(format);
+        mPresentationTimesUs.add(new ArrayList<Long>());
+        mBytes.add(0L);
+        return mTracks.size() - 1;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (mStarted) {
+            throw new IllegalStateException("started twice");
+        }
+        mStarted = true;
+    }
+
+    @Override
+    public synchronized void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        if (!mStarted || mStopped) {
+            throw new IllegalStateException("sample written while not started");
+        }
+        mPresentationTimesUs.get(trackIndex).add(bufferInfo.presentationTimeUs);
+        mBytes.set(trackIndex, mBytes.get(trackIndex) + bufferInfo.size);
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (!mStarted) {
+            throw new IllegalStateException("stopped before start");
+        }
+        mStopped = true;
+    }
+
+    @Override
+    public void release() {
+        mReleased.countDown();
+    }
+
+    boolean awaitRelease(long timeoutMs) throws InterruptedException {
+        return mReleased.await(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized boolean isStopped() {
+        return mStopped;
+    }
+
+    synchronized int getTrackCount() {
+        return mTracks.size();
+    }
+
+    /**
+     * Presentation times, relative to the start of the recording, of every sample written
+     * to trackIndex in order.
+     */
+    synchronized List<Long> getPresentationTimesUs(int trackIndex) {
+        return new ArrayList<>(mPresentationTimesUs.get(trackIndex));
+    }
+
+    synchronized long getBytesWritten(int trackIndex) {
+        return mBytes.get(trackIndex);
+    }
+}
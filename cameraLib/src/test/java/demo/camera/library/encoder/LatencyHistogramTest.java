@@ -0,0 +1,43 @@
+package demo.camera.library.encoder;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsArePowersOfTwo() {
+        assertEquals(0, LatencyHistogram.bucketOf(0));
+        assertEquals(0, LatencyHistogram.bucketOf(1));
+        assertEquals(1, LatencyHistogram.bucketOf(2));
+        assertEquals(1, LatencyHistogram.bucketOf(3));
+        assertEquals(10, LatencyHistogram.bucketOf(1024));
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucketOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void percentilesBoundRecordedLatencies() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentileUs(50));
+        for (int i = 0; i < 99; i++) {
+            histogram.record(1, TimeUnit.MILLISECONDS);
+        }
+        histogram.record(100, TimeUnit.MILLISECONDS);
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(100000, histogram.getMaxUs());
+        assertEquals((99 * 1000 + 100000) / 100, histogram.getMeanUs());
+        // 1000us falls in [512, 1024)
+        assertEquals(1023, histogram.getPercentileUs(50));
+        assertEquals(1023, histogram.getPercentileUs(99));
+        assertEquals(100000, histogram.getPercentileUs(100));
+        assertEquals(99, histogram.getBucketCount(LatencyHistogram.bucketOf(1000)));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMaxUs());
+    }
+}
@@ -0,0 +1,226 @@
+package demo.camera.library.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.view.Surface;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Stands in for a buffer-input MediaCodec by passing each queued input buffer straight
+ * through as an output buffer with the same contents, timestamp and flags.  The first
+ * dequeue reports the output format.
+ * <p>
+ * Input buffers are copied as they're queued, so one is always free, as with a codec
+ * keeping up with its input.  Thread safe, so input can be queued on one thread while
+ * output is drained on another.  {@link #stop()} discards anything not yet dequeued and
+ * reports the format again, as a restarted codec would.
+ * <p>
+ * {@link #signalEndOfInputStream()} queues an empty end of stream buffer, unless
+ * {@link #setHonorsEndOfInput(boolean)} says to ignore it.
+ */
+class LoopbackEncoderCodec implements EncoderCodec {
+    private final ByteBuffer[] mInputBuffers;
+    private final boolean[] mInputDequeued;
+    private final ByteBuffer[] mOutputBuffers;
+    private final boolean[] mOutputDequeued;
+    private final ArrayDeque<Pending> mPending = new ArrayDeque<>();
+    private final MediaFormat mOutputFormat;
+    private boolean mFormatReported;
+    private int mQueued;
+    private int mReleased;
+    private int mEmpty;
+    private int mStartCount;
+    private boolean mHonorsEndOfInput = true;
+
+    private static class Pending {
+        final byte[] data;
+        final long presentationTimeUs;
+        final int flags;
+
+        Pending(byte[] data, long presentationTimeUs, int flags) {
+            this.data = data;
+            this.presentationTimeUs = presentationTimeUs;
+            this.flags = flags;
+        }
+    }
+
+    LoopbackEncoderCodec(int bufferCount, int bufferSize, MediaFormat outputFormat) {
+        mInputBuffers = new ByteBuffer[bufferCount];
+        mInputDequeued = new boolean[bufferCount];
+        mOutputBuffers = new ByteBuffer[bufferCount];
+        mOutputDequeued = new boolean[bufferCount];
+        for (int i = 0; i < bufferCount; i++) {
+            mInputBuffers[i] = ByteBuffer.allocateDirect(bufferSize);
+            mOutputBuffers[i] = ByteBuffer.allocateDirect(bufferSize);
+        }
+        mOutputFormat = outputFormat;
+    }
+
+    @Override
+    public synchronized ByteBuffer[] getInputBuffers() {
+        return mInputBuffers;
+    }
+
+    @Override
+    public synchronized int dequeueInputBuffer(long timeoutUs) {
+        int index = firstFree(mInputDequeued);
+        if (index >= 0) {
+            mInputDequeued[index] = true;
+        }
+        return index;
+    }
+
+    @Override
+    public synchronized void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        if (!mInputDequeued[index]) {
+            throw new IllegalStateException("input buffer " + index + " wasn't dequeued");
+        }
+        ByteBuffer input = mInputBuffers[index].duplicate();
+        input.clear();
+        input.position(offset);
+        byte[] data = new byte[Math.max(size, 0)];
+        input.get(data);
+        mPending.add(new Pending(data, presentationTimeUs, flags));
+        mInputDequeued[index] = false;
+        mQueued++;
+    }
+
+    @Override
+    public synchronized void signalEndOfInputStream() {
+        if (mHonorsEndOfInput) {
+            mPending.add(new Pending(new byte[0], 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM));
+        }
+    }
+
+    @Override
+    public synchronized ByteBuffer[] getOutputBuffers() {
+        return mOutputBuffers;
+    }
+
+    @Override
+    public synchronized int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+        if (!mFormatReported) {
+            mFormatReported = true;
+            return MediaCodec.INFO_OUTPUT_FORMAT_CHANGED;
+        }
+        int index = firstFree(mOutputDequeued);
+        if (mPending.isEmpty() || index < 0) {
+            return MediaCodec.INFO_TRY_AGAIN_LATER;
+        }
+        Pending pending = mPending.poll();
+        mOutputDequeued[index] = true;
+        ByteBuffer buffer = mOutputBuffers[index];
+        buffer.clear();
+        buffer.put(pending.data);
+        buffer.flip();
+        info.offset = 0;
+        info.size = pending.data.length;
+        if (info.size == 0) {
+            mEmpty++;
+        }
+        info.presentationTimeUs = pending.presentationTimeUs;
+        info.flags = pending.flags;
+        return index;
+    }
+
+    @Override
+    public synchronized MediaFormat getOutputFormat() {
+        return mOutputFormat;
+    }
+
+    @Override
+    public synchronized void releaseOutputBuffer(int index, boolean render) {
+        if (!mOutputDequeued[index]) {
+            throw new IllegalStateException("buffer " + index + " released twice");
+        }
+        mOutputDequeued[index] = false;
+        mReleased++;
+    }
+
+    @Override
+    public synchronized ByteBuffer getOutputBuffer(int index) {
+        return mOutputBuffers[index];
+    }
+
+    @Override
+    public boolean setCallback(Callback callback, Handler handler) {
+        return false;
+    }
+
+    @Override
+    public void configure(MediaFormat format) {
+    }
+
+    @Override
+    public Surface createInputSurface() {
+        throw new UnsupportedOperationException("input is queued in buffers");
+    }
+
+    @Override
+    public synchronized void start() {
+        mStartCount++;
+    }
+
+    @Override
+    public void requestSyncFrame() {
+        // Output carries whatever flags its input was queued with
+    }
+
+    @Override
+    public synchronized void stop() {
+        mPending.clear();
+        mFormatReported = false;
+        for (int i = 0; i < mOutputDequeued.length; i++) {
+            mInputDequeued[i] = false;
+            mOutputDequeued[i] = false;
+        }
+    }
+
+    /**
+     * Whether signalEndOfInputStream() ends the output with an empty end of stream buffer,
+     * or is ignored as on some devices.
+     */
+    synchronized void setHonorsEndOfInput(boolean honors) {
+        mHonorsEndOfInput = honors;
+    }
+
+    /**
+     * Number of times start() was called.
+     */
+    synchronized int getStartCount() {
+        return mStartCount;
+    }
+
+    /**
+     * Number of input buffers queued.
+     */
+    synchronized int getQueuedCount() {
+        return mQueued;
+    }
+
+    /**
+     * Number of output buffers given back by the muxer.
+     */
+    synchronized int getReleasedCount() {
+        return mReleased;
+    }
+
+    /**
+     * Number of empty output buffers dequeued, such as an end of stream with no data.
+     */
+    synchronized int getEmptyCount() {
+        return mEmpty;
+    }
+
+    private static int firstFree(boolean[] dequeued) {
+        for (int i = 0; i < dequeued.length; i++) {
+            if (!dequeued[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
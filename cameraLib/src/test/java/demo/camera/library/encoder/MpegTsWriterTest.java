@@ -0,0 +1,107 @@
+package demo.camera.library.encoder;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MpegTsWriterTest {
+
+    @Test
+    public void packetizesVideoAndAudioIntoValidPackets() throws IOException {
+        byte[] accessUnit = pattern(5000, 1);
+        byte[] audioFrame = pattern(371, 2);
+        long videoPts = 90000;
+        long audioPts = 91000;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MpegTsWriter writer = new MpegTsWriter(true, true);
+        writer.open(Channels.newChannel(out));
+        writer.writeVideo(ByteBuffer.wrap(accessUnit), videoPts, true);
+        writer.writeAudio(ByteBuffer.wrap(audioFrame), audioPts);
+        writer.flush();
+        byte[] stream = out.toByteArray();
+
+        assertEquals(0, stream.length % MpegTsWriter.PACKET_SIZE);
+        Map<Integer, Integer> continuity = new HashMap<>();
+        Map<Integer, ByteArrayOutputStream> pes = new HashMap<>();
+        boolean sawPcr = false;
+        for (int offset = 0; offset < stream.length; offset += MpegTsWriter.PACKET_SIZE) {
+            assertEquals(0x47, stream[offset] & 0xff);
+            int pid = ((stream[offset + 1] & 0x1f) << 8) | (stream[offset + 2] & 0xff);
+            int counter = stream[offset + 3] & 0x0f;
+            if (continuity.containsKey(pid)) {
+                assertEquals((continuity.get(pid) + 1) & 0x0f, counter);
+            }
+            continuity.put(pid, counter);
+
+            int payloadStart = offset + 4;
+            if ((stream[offset + 3] & 0x20) != 0) {
+                int adaptationLength = stream[offset + 4] & 0xff;
+                if (adaptationLength > 0 && pid == MpegTsWriter.VIDEO_PID
+                        && (stream[offset + 5] & 0x10) != 0) {
+                    assertTrue("keyframe packet flags random access", (stream[offset + 5] & 0x40) != 0);
+                    sawPcr = true;
+                }
+                payloadStart += 1 + adaptationLength;
+            }
+            if (pid == MpegTsWriter.PAT_PID || pid == MpegTsWriter.PMT_PID) {
+                assertSectionCrc(stream, payloadStart);
+            } else {
+                if (!pes.containsKey(pid)) {
+                    pes.put(pid, new ByteArrayOutputStream());
+                }
+                pes.get(pid).write(stream, payloadStart, offset + MpegTsWriter.PACKET_SIZE - payloadStart);
+            }
+        }
+        assertTrue(sawPcr);
+
+        assertPes(pes.get(MpegTsWriter.VIDEO_PID).toByteArray(), MpegTsWriter.STREAM_ID_VIDEO,
+                videoPts, accessUnit);
+        assertPes(pes.get(MpegTsWriter.AUDIO_PID).toByteArray(), MpegTsWriter.STREAM_ID_AUDIO,
+                audioPts, audioFrame);
+    }
+
+    @Test
+    public void crcMatchesMpeg2CheckValue() {
+        byte[] check = "123456789".getBytes();
+        assertEquals(0x0376e6e7, MpegTsWriter.crc32(check, 0, check.length));
+    }
+
+    private static void assertSectionCrc(byte[] stream, int payloadStart) {
+        int section = payloadStart + 1 + (stream[payloadStart] & 0xff);
+        int sectionLength = ((stream[section + 1] & 0x0f) << 8) | (stream[section + 2] & 0xff);
+        // Running the CRC over a section including its CRC leaves 0
+        assertEquals(0, MpegTsWriter.crc32(stream, section, 3 + sectionLength));
+    }
+
+    private static void assertPes(byte[] pes, int streamId, long pts, byte[] payload) {
+        assertEquals(0, pes[0]);
+        assertEquals(0, pes[1]);
+        assertEquals(1, pes[2]);
+        assertEquals(streamId, pes[3] & 0xff);
+        long decoded = ((long) (pes[9] & 0x0e) << 29) | ((pes[10] & 0xff) << 22)
+                | ((pes[11] & 0xfe) << 14) | ((pes[12] & 0xff) << 7) | ((pes[13] & 0xfe) >>> 1);
+        assertEquals(pts + MpegTsWriter.PTS_OFFSET, decoded);
+        int headerSize = 9 + (pes[8] & 0xff);
+        assertArrayEquals(payload, Arrays.copyOfRange(pes, headerSize, headerSize + payload.length));
+        assertEquals(headerSize + payload.length, pes.length);
+    }
+
+    private static byte[] pattern(int size, int seed) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 31 + seed);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,220 @@
+package demo.camera.library.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import com.google.common.eventbus.EventBus;
+import com.google.common.eventbus.Subscribe;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import demo.camera.library.event.MuxerFinishedEvent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MuxerFinalizeTest {
+    private static final int SAMPLE_SIZE = 1024;
+    private static final int SAMPLES = 5;
+    private static final long FINALIZE_TIMEOUT_MS = 200;
+    private static final long LONG_FINALIZE_TIMEOUT_MS = 2000;
+
+    @Test
+    public void tracksDrainInParallelAndCloseOnce() throws InterruptedException {
+        InMemoryMuxerSink sink = new InMemoryMuxerSink();
+        Muxer muxer = AndroidMuxer.create("finalize.mp4", Muxer.FORMAT.MPEG4, sink);
+        FinishedEvents events = new FinishedEvents(muxer);
+        final LoopbackEncoderCodec videoCodec = new LoopbackEncoderCodec(4, SAMPLE_SIZE, new MediaFormat());
+        final LoopbackEncoderCodec audioCodec = new LoopbackEncoderCodec(4, SAMPLE_SIZE, new MediaFormat());
+        final FakeEncoder video = new FakeEncoder(muxer, videoCodec, true);
+        final FakeEncoder audio = new FakeEncoder(muxer, audioCodec, false);
+        startTracks(muxer, video, audio);
+
+        // Fewer samples than the muxer's writer pools, so none can be dropped
+        Thread videoDrain = finalDrain(video, videoCodec, SAMPLES);
+        Thread audioDrain = finalDrain(audio, audioCodec, SAMPLES);
+        videoDrain.join();
+        audioDrain.join();
+
+        assertTrue(sink.awaitRelease(5000));
+        assertTrue(sink.isStopped());
+        assertFalse(muxer.wasForceStopped());
+        long latencyMs = muxer.getFinalizeLatencyMs();
+        assertTrue("finalize took " + latencyMs + "ms", latencyMs >= 0 && latencyMs < FINALIZE_TIMEOUT_MS);
+        assertEquals(1, events.received.size());
+        assertEquals("finalize.mp4", events.received.get(0).outputPath);
+        assertEquals(latencyMs, events.received.get(0).finalizeLatencyMs);
+        assertFalse(events.received.get(0).nothingWritten);
+        assertEquals(SAMPLES, sink.getPresentationTimesUs(0).size());
+        assertEquals(SAMPLES, sink.getPresentationTimesUs(1).size());
+    }
+
+    @Test
+    public void lateTrackIsCutOffAtTheSharedDeadline() throws InterruptedException {
+        InMemoryMuxerSink sink = new InMemoryMuxerSink();
+        Muxer muxer = AndroidMuxer.create("late.mp4", Muxer.FORMAT.MPEG4, sink);
+        FinishedEvents events = new FinishedEvents(muxer);
+        LoopbackEncoderCodec videoCodec = new LoopbackEncoderCodec(4, SAMPLE_SIZE, new MediaFormat());
+        LoopbackEncoderCodec audioCodec = new LoopbackEncoderCodec(4, SAMPLE_SIZE, new MediaFormat());
+        FakeEncoder video = new FakeEncoder(muxer, videoCodec, true);
+        FakeEncoder audio = new FakeEncoder(muxer, audioCodec, false);
+        startTracks(muxer, video, audio);
+
+        long stopNs = System.nanoTime();
+        queue(videoCodec, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        video.drainEncoder(true);
+        assertFalse(sink.isStopped());
+        Thread.sleep(FINALIZE_TIMEOUT_MS / 2);
+        // Audio's end of stream never comes, and it gets what is left of video's deadline
+        long audioStartNs = System.nanoTime();
+        audio.drainEncoder(true);
+        long audioWaitMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - audioStartNs);
+        long totalMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - stopNs);
+        assertTrue("audio waited " + audioWaitMs + "ms", audioWaitMs < FINALIZE_TIMEOUT_MS - 10);
+        assertTrue("finalize took " + totalMs + "ms", totalMs >= FINALIZE_TIMEOUT_MS);
+
+        assertTrue(sink.awaitRelease(5000));
+        assertTrue(muxer.wasForceStopped());
+        assertTrue(muxer.getFinalizeLatencyMs() >= FINALIZE_TIMEOUT_MS);
+        // Arriving after the stop, the end of stream is discarded without closing again
+        queue(audioCodec, 1000, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        audio.drainEncoder(false);
+        assertEquals(1, events.received.size());
+        assertTrue(events.received.get(0).forceStopped);
+        assertEquals(audioCodec.getQueuedCount(), audioCodec.getReleasedCount());
+    }
+
+    @Test
+    public void videoEndsOnceToldToEndItsInput() throws InterruptedException {
+        InMemoryMuxerSink sink = new InMemoryMuxerSink();
+        Muxer muxer = AndroidMuxer.create("eos.mp4", Muxer.FORMAT.MPEG4, sink);
+        FinishedEvents events = new FinishedEvents(muxer);
+        LoopbackEncoderCodec videoCodec = new LoopbackEncoderCodec(4, SAMPLE_SIZE, new MediaFormat());
+        LoopbackEncoderCodec audioCodec = new LoopbackEncoderCodec(4, SAMPLE_SIZE, new MediaFormat());
+        FakeEncoder video = new FakeEncoder(muxer, videoCodec, true);
+        FakeEncoder audio = new FakeEncoder(muxer, audioCodec, false);
+        startTracks(muxer, video, audio);
+        muxer.setFinalizeTimeout(LONG_FINALIZE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        queue(videoCodec, 0, 0);
+        long stopNs = System.nanoTime();
+        video.signalEndOfStream();
+        video.drainEncoder(true);
+        long videoWaitMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - stopNs);
+        queue(audioCodec, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        audio.drainEncoder(true);
+
+        assertTrue("video waited " + videoWaitMs + "ms", videoWaitMs < LONG_FINALIZE_TIMEOUT_MS / 2);
+        assertTrue(sink.awaitRelease(5000));
+        assertFalse(muxer.wasForceStopped());
+        assertEquals(1, events.received.size());
+        assertFalse(events.received.get(0).forceStopped);
+        assertEquals(1, sink.getPresentationTimesUs(0).size());
+    }
+
+    @Test
+    public void videoIgnoringEndOfInputIsCutOffOnceIdle() throws InterruptedException {
+        InMemoryMuxerSink sink = new InMemoryMuxerSink();
+        Muxer muxer = AndroidMuxer.create("idle.mp4", Muxer.FORMAT.MPEG4, sink);
+        FinishedEvents events = new FinishedEvents(muxer);
+        LoopbackEncoderCodec videoCodec = new LoopbackEncoderCodec(4, SAMPLE_SIZE, new MediaFormat());
+        LoopbackEncoderCodec audioCodec = new LoopbackEncoderCodec(4, SAMPLE_SIZE, new MediaFormat());
+        videoCodec.setHonorsEndOfInput(false);
+        FakeEncoder video = new FakeEncoder(muxer, videoCodec, true);
+        FakeEncoder audio = new FakeEncoder(muxer, audioCodec, false);
+        startTracks(muxer, video, audio);
+        muxer.setFinalizeTimeout(LONG_FINALIZE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        queue(videoCodec, 0, 0);
+        long stopNs = System.nanoTime();
+        video.signalEndOfStream();
+        // The video codec never ends its stream, but isn't waited on until the deadline
+        video.drainEncoder(true);
+        long videoWaitMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - stopNs);
+
+        assertTrue("video waited " + videoWaitMs + "ms", videoWaitMs < LONG_FINALIZE_TIMEOUT_MS / 2);
+        assertTrue(sink.awaitRelease(5000));
+        assertTrue(muxer.wasForceStopped());
+        assertEquals(1, events.received.size());
+        assertTrue(events.received.get(0).forceStopped);
+    }
+
+    @Test
+    public void muxerStoppedBeforeStartingStillFinishes() throws InterruptedException {
+        InMemoryMuxerSink sink = new InMemoryMuxerSink();
+        Muxer muxer = AndroidMuxer.create("empty.mp4", Muxer.FORMAT.MPEG4, sink);
+        FinishedEvents events = new FinishedEvents(muxer);
+        LoopbackEncoderCodec audioCodec = new LoopbackEncoderCodec(4, SAMPLE_SIZE, new MediaFormat());
+        FakeEncoder audio = new FakeEncoder(muxer, audioCodec, false);
+        muxer.setFinalizeTimeout(FINALIZE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        // Stopped before video's format came in, so the muxer never started
+        audio.drainEncoder(false);
+        queue(audioCodec, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        audio.drainEncoder(true);
+
+        assertTrue(sink.awaitRelease(5000));
+        assertFalse(sink.isStopped());
+        assertEquals(1, events.received.size());
+        assertEquals("empty.mp4", events.received.get(0).outputPath);
+        assertTrue(events.received.get(0).nothingWritten);
+    }
+
+    /**
+     * Adds both tracks, starting muxer, and gives it a short finalize deadline.
+     */
+    private static void startTracks(Muxer muxer, FakeEncoder video, FakeEncoder audio) {
+        muxer.setFinalizeTimeout(FINALIZE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        video.drainEncoder(false);
+        audio.drainEncoder(false);
+        assertTrue(muxer.isStarted());
+    }
+
+    /**
+     * Starts a thread queueing samples, the last with end of stream, then draining them
+     * all at end of stream.
+     */
+    private static Thread finalDrain(final FakeEncoder encoder, final LoopbackEncoderCodec codec,
+                                     final int samples) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < samples; i++) {
+                    boolean last = i == samples - 1;
+                    queue(codec, i * 33000, last ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0);
+                    encoder.drainEncoder(last);
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static void queue(LoopbackEncoderCodec codec, long ptsUs, int flags) {
+        int index = codec.dequeueInputBuffer(0);
+        ByteBuffer input = codec.getInputBuffers()[index];
+        input.clear();
+        codec.queueInputBuffer(index, 0, SAMPLE_SIZE, ptsUs, flags);
+    }
+
+    public static class FinishedEvents {
+        final List<MuxerFinishedEvent> received = new CopyOnWriteArrayList<>();
+
+        FinishedEvents(Muxer muxer) {
+            EventBus eventBus = new EventBus();
+            eventBus.register(this);
+            muxer.setEventBus(eventBus);
+        }
+
+        @Subscribe
+        public void onMuxerFinished(MuxerFinishedEvent e) {
+            received.add(e);
+        }
+    }
+}
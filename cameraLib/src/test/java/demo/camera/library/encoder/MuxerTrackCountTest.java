@@ -0,0 +1,96 @@
+package demo.camera.library.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MuxerTrackCountTest {
+    private static final int SAMPLE_SIZE = 1024;
+    private static final int SAMPLES = 5;
+
+    @Test
+    public void singleTrackStartsOnFirstFormatChange() throws InterruptedException {
+        InMemoryMuxerSink sink = new InMemoryMuxerSink();
+        Muxer muxer = AndroidMuxer.create("video-only.mp4", Muxer.FORMAT.MPEG4, sink);
+        muxer.setExpectedTrackCount(1);
+        LoopbackEncoderCodec codec = new LoopbackEncoderCodec(4, SAMPLE_SIZE, new MediaFormat());
+        FakeEncoder video = new FakeEncoder(muxer, codec, true);
+
+        video.drainEncoder(false);
+        assertTrue(muxer.isStarted());
+        for (int i = 0; i < SAMPLES; i++) {
+            boolean last = i == SAMPLES - 1;
+            int flags = MediaCodec.BUFFER_FLAG_SYNC_FRAME | (last ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0);
+            queue(codec, i * 33000, flags);
+            video.drainEncoder(last);
+        }
+
+        assertTrue(sink.awaitRelease(5000));
+        assertTrue(sink.isStopped());
+        assertFalse(muxer.wasForceStopped());
+        assertEquals(1, sink.getTrackCount());
+        assertEquals(SAMPLES, sink.getPresentationTimesUs(0).size());
+    }
+
+    @Test
+    public void twoTracksAreExpectedByDefault() {
+        InMemoryMuxerSink sink = new InMemoryMuxerSink();
+        Muxer muxer = AndroidMuxer.create("av.mp4", Muxer.FORMAT.MPEG4, sink);
+        assertEquals(2, muxer.getExpectedTrackCount());
+        new FakeEncoder(muxer, new LoopbackEncoderCodec(4, SAMPLE_SIZE, new MediaFormat()), true).drainEncoder(false);
+        assertFalse(muxer.isStarted());
+        new FakeEncoder(muxer, new LoopbackEncoderCodec(4, SAMPLE_SIZE, new MediaFormat()), true).drainEncoder(false);
+        assertTrue(muxer.isStarted());
+    }
+
+    @Test
+    public void droppingTheMissingTrackStartsTheMuxer() {
+        InMemoryMuxerSink sink = new InMemoryMuxerSink();
+        Muxer muxer = AndroidMuxer.create("no-audio.mp4", Muxer.FORMAT.MPEG4, sink);
+        new FakeEncoder(muxer, new LoopbackEncoderCodec(4, SAMPLE_SIZE, new MediaFormat()), true).drainEncoder(false);
+        assertFalse(muxer.isStarted());
+
+        assertTrue(muxer.dropExpectedTrack());
+        assertTrue(muxer.isStarted());
+        assertEquals(1, muxer.getExpectedTrackCount());
+        // The one track left can't be dropped
+        assertFalse(muxer.dropExpectedTrack());
+    }
+
+    @Test
+    public void trackCountIsFixedOnceTracksAreAdded() {
+        Muxer muxer = AndroidMuxer.create("fixed.mp4", Muxer.FORMAT.MPEG4, new InMemoryMuxerSink());
+        try {
+            muxer.setExpectedTrackCount(3);
+            fail("Accepted 3 tracks");
+        } catch (IllegalArgumentException expected) {
+        }
+        muxer.setExpectedTrackCount(1);
+        muxer.addTrack(new MediaFormat());
+        try {
+            muxer.setExpectedTrackCount(2);
+            fail("Changed the track count after a track was added");
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            muxer.addTrack(new MediaFormat());
+            fail("Added a track beyond the expected count");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    private static void queue(LoopbackEncoderCodec codec, long ptsUs, int flags) {
+        int index = codec.dequeueInputBuffer(0);
+        ByteBuffer input = codec.getInputBuffers()[index];
+        input.clear();
+        codec.queueInputBuffer(index, 0, SAMPLE_SIZE, ptsUs, flags);
+    }
+}
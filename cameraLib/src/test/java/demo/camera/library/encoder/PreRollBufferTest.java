@@ -0,0 +1,286 @@
+package demo.camera.library.encoder;
+
+import android.media.MediaCodec;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PreRollBufferTest {
+    private static final int VIDEO = 0;
+    private static final int AUDIO = 1;
+    private static final long FRAME_US = 33333;
+    private static final int GOP = 30;
+
+    @Test
+    public void startsAtKeyframeCoveringDuration() {
+        // 1s pre-roll over 3s of 1 keyframe a second video and interleaved audio
+        PreRollBuffer preRoll = new PreRollBuffer(1000000, 1024 * 1024, 1000);
+        for (int i = 0; i < 3 * GOP; i++) {
+            addVideo(preRoll, i, 100);
+            addAudio(preRoll, i * FRAME_US + 1000, 10);
+        }
+        long newestUs = (3 * GOP - 1) * FRAME_US + 1000;
+        RecordingMuxer muxer = new RecordingMuxer();
+        preRoll.close();
+        assertEquals(0, preRoll.writeTo(muxer));
+
+        // The keyframe at 1s is the latest at or before newest - 1s
+        assertEquals("0/" + GOP * FRAME_US + "/sync", muxer.written.get(0));
+        assertTrue(muxer.firstPtsUs(AUDIO) >= GOP * FRAME_US);
+        assertTrue(muxer.firstPtsUs(AUDIO) <= newestUs - 1000000);
+        assertEquals(2 * GOP, muxer.count(VIDEO));
+        assertEquals(0, preRoll.getDiscardedCount());
+    }
+
+    @Test
+    public void writesAudioQueuedAheadOfSlowerVideo() {
+        PreRollBuffer preRoll = new PreRollBuffer(100000, 1024 * 1024, 1000);
+        // Audio for the keyframe's time arrives before the encoder delivers the keyframe
+        addAudio(preRoll, 0, 10);
+        addAudio(preRoll, FRAME_US, 10);
+        addVideo(preRoll, 0, 100);
+        addVideo(preRoll, 1, 100);
+        RecordingMuxer muxer = new RecordingMuxer();
+        preRoll.close();
+        preRoll.writeTo(muxer);
+
+        assertEquals("0/0/sync", muxer.written.get(0));
+        assertEquals(2, muxer.count(AUDIO));
+        assertEquals(2, muxer.count(VIDEO));
+        // Order within each track is kept
+        assertEquals("1/0/", muxer.written.get(1));
+        assertEquals("1/" + FRAME_US + "/", muxer.written.get(2));
+    }
+
+    @Test
+    public void discardsOldestWhenStoreFills() {
+        // Room for 10 samples of 100 bytes, but a 10s duration
+        PreRollBuffer preRoll = new PreRollBuffer(10000000, 1000, 1000);
+        for (int i = 0; i < 25; i++) {
+            addVideo(preRoll, i, 100);
+        }
+        assertEquals(10, preRoll.size());
+        assertEquals(15, preRoll.getDiscardedCount());
+
+        // Mixed sizes wrap around the store without overwriting what is kept
+        preRoll = new PreRollBuffer(10000000, 1000, 1000);
+        for (int i = 0; i < 50; i++) {
+            addAudio(preRoll, i * FRAME_US, 70 + i % 5 * 60);
+        }
+        RecordingMuxer muxer = new RecordingMuxer();
+        preRoll.close();
+        preRoll.writeTo(muxer);
+        assertEquals(preRoll.size(), muxer.written.size());
+        assertEquals("1/" + 49 * FRAME_US + "/", muxer.written.get(muxer.written.size() - 1));
+        assertTrue(muxer.contentMatched);
+    }
+
+    @Test
+    public void limitsSampleCount() {
+        PreRollBuffer preRoll = new PreRollBuffer(10000000, 1024 * 1024, 8);
+        for (int i = 0; i < 20; i++) {
+            addAudio(preRoll, i * FRAME_US, 10);
+        }
+        assertEquals(8, preRoll.size());
+    }
+
+    @Test
+    public void refusesSamplesOnceClosed() {
+        PreRollBuffer preRoll = new PreRollBuffer(1000000, 1024, 10);
+        addVideo(preRoll, 0, 100);
+        preRoll.close();
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        assertFalse(preRoll.add(AUDIO, false, ByteBuffer.allocate(10), info));
+        assertEquals(1, preRoll.size());
+    }
+
+    @Test
+    public void muxerWritesPreRollBeforeLiveSamples() throws InterruptedException {
+        RecordingMuxer muxer = new RecordingMuxer();
+        muxer.enablePreRoll(1000000, 1000000);
+        LoopbackEncoderCodec encoder = new LoopbackEncoderCodec(2, 100, null);
+        for (int i = 0; i < GOP; i++) {
+            encode(muxer, encoder, i * FRAME_US, i == 0 ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0);
+        }
+        assertTrue(muxer.isPreRolling());
+        assertTrue(muxer.written.isEmpty());
+
+        muxer.endPreRoll();
+        assertFalse(muxer.isPreRolling());
+        encode(muxer, encoder, GOP * FRAME_US, 0);
+        muxer.forceStop();
+        muxer.awaitStop();
+
+        assertEquals(GOP + 1, muxer.written.size());
+        for (int i = 0; i <= GOP; i++) {
+            assertTrue(muxer.written.get(i).startsWith("0/" + i * FRAME_US + "/"));
+        }
+        assertTrue(muxer.contentMatched);
+    }
+
+    @Test
+    public void liveSamplesRacingEndPreRollAreWrittenAfterIt() throws Exception {
+        for (int run = 0; run < 200; run++) {
+            final RecordingMuxer muxer = new RecordingMuxer();
+            muxer.enablePreRoll(1000000, 1000000);
+            final LoopbackEncoderCodec encoder = new LoopbackEncoderCodec(2, 100, null);
+            for (int i = 0; i < GOP; i++) {
+                encode(muxer, encoder, i * FRAME_US, i == 0 ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0);
+            }
+            final CountDownLatch started = new CountDownLatch(1);
+            Thread live = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    for (int i = GOP; i < GOP + 10; i++) {
+                        encode(muxer, encoder, i * FRAME_US, 0);
+                    }
+                }
+            });
+            live.start();
+            started.await();
+            muxer.endPreRoll();
+            live.join();
+            muxer.forceStop();
+            muxer.awaitStop();
+
+            long lastPtsUs = -1;
+            for (String sample : muxer.written) {
+                long ptsUs = Long.parseLong(sample.split("/")[1]);
+                assertTrue("run " + run + ": " + muxer.written, ptsUs > lastPtsUs);
+                lastPtsUs = ptsUs;
+            }
+            assertTrue(muxer.written.get(0).endsWith("/sync"));
+        }
+    }
+
+    @Test
+    public void stoppingWhilePreRollingWritesWhatWasKept() throws InterruptedException {
+        RecordingMuxer muxer = new RecordingMuxer();
+        muxer.enablePreRoll(1000000, 1000000);
+        LoopbackEncoderCodec encoder = new LoopbackEncoderCodec(2, 100, null);
+        encode(muxer, encoder, 0, MediaCodec.BUFFER_FLAG_SYNC_FRAME);
+        muxer.forceStop();
+        muxer.awaitStop();
+        assertEquals(1, muxer.written.size());
+    }
+
+    /**
+     * Passes a 100 byte video sample through encoder into muxer.
+     */
+    private static void encode(Muxer muxer, LoopbackEncoderCodec encoder, long ptsUs, int flags) {
+        int index = encoder.dequeueInputBuffer(0);
+        ByteBuffer input = encoder.getInputBuffers()[index];
+        input.clear();
+        input.put(sample(ptsUs, 100));
+        encoder.queueInputBuffer(index, 0, 100, ptsUs, flags);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        do {
+            index = encoder.dequeueOutputBuffer(info, 0);
+        } while (index < 0);
+        muxer.writeSampleData(encoder, VIDEO, index, encoder.getOutputBuffers()[index], info);
+    }
+
+    private static void addVideo(PreRollBuffer preRoll, int frame, int size) {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.presentationTimeUs = frame * FRAME_US;
+        info.flags = frame % GOP == 0 ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
+        assertTrue(preRoll.add(VIDEO, true, sample(info.presentationTimeUs, size), info));
+    }
+
+    private static void addAudio(PreRollBuffer preRoll, long ptsUs, int size) {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.presentationTimeUs = ptsUs;
+        assertTrue(preRoll.add(AUDIO, false, sample(ptsUs, size), info));
+    }
+
+    /**
+     * size bytes derived from ptsUs, so what is written can be checked against it.
+     */
+    private static ByteBuffer sample(long ptsUs, int size) {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (int i = 0; i < size; i++) {
+            buffer.put((byte) (ptsUs + i));
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Records samples written, checking their content.  Track 0 is video.
+     */
+    private static class RecordingMuxer extends Muxer {
+        final List<String> written = Collections.synchronizedList(new ArrayList<String>());
+        volatile boolean contentMatched = true;
+        private boolean mStopped;
+
+        RecordingMuxer() {
+            super("test.mp4", FORMAT.MPEG4);
+        }
+
+        int count(int trackIndex) {
+            int count = 0;
+            for (String sample : written) {
+                if (sample.startsWith(trackIndex + "/")) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        long firstPtsUs(int trackIndex) {
+            for (String sample : written) {
+                if (sample.startsWith(trackIndex + "/")) {
+                    return Long.parseLong(sample.split("/")[1]);
+                }
+            }
+            return -1;
+        }
+
+        synchronized void awaitStop() throws InterruptedException {
+            while (!mStopped) {
+                wait();
+            }
+        }
+
+        @Override
+        protected boolean isVideoTrack(int trackIndex) {
+            return trackIndex == VIDEO;
+        }
+
+        @Override
+        public void writeSampleData(EncoderCodec encoder, int trackIndex, int bufferIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+            writeOrBufferSample(encoder, trackIndex, bufferIndex, encodedData, bufferInfo);
+        }
+
+        @Override
+        protected void writeSample(int trackIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+            ByteBuffer expected = sample(bufferInfo.presentationTimeUs, encodedData.remaining());
+            if (!expected.equals(encodedData)) {
+                contentMatched = false;
+            }
+            boolean sync = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+            written.add(trackIndex + "/" + bufferInfo.presentationTimeUs + "/" + (sync ? "sync" : ""));
+        }
+
+        @Override
+        protected synchronized void stop() {
+            mStopped = true;
+            notifyAll();
+        }
+
+        @Override
+        public void forceStop() {
+            requestStop();
+        }
+    }
+}
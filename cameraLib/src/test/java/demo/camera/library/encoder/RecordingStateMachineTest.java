@@ -0,0 +1,148 @@
+package demo.camera.library.encoder;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import demo.camera.library.encoder.RecordingStateMachine.Command;
+import demo.camera.library.encoder.RecordingStateMachine.State;
+import demo.camera.library.encoder.RecordingStateMachine.Type;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RecordingStateMachineTest {
+
+    @Test
+    public void followsTheRecordingCycle() {
+        RecordingStateMachine machine = new RecordingStateMachine();
+        assertEquals(State.IDLE, machine.getState());
+        State[] cycle = { State.ARMED, State.RECORDING, State.DRAINING, State.IDLE, State.ARMED, State.RELEASED };
+        for (State state : cycle) {
+            machine.moveTo(state, null);
+            assertEquals(state, machine.getState());
+        }
+    }
+
+    @Test
+    public void rejectsTransitionsOutsideTheCycle() {
+        for (State from : State.values()) {
+            for (State to : State.values()) {
+                boolean legal = (from == State.IDLE && (to == State.ARMED || to == State.RELEASED))
+                        || (from == State.ARMED && (to == State.RECORDING || to == State.RELEASED))
+                        || (from == State.RECORDING && to == State.DRAINING)
+                        || (from == State.DRAINING && to == State.IDLE);
+                assertEquals(from + " -> " + to, legal, RecordingStateMachine.canMove(from, to));
+            }
+        }
+        RecordingStateMachine machine = new RecordingStateMachine();
+        try {
+            machine.moveTo(State.RECORDING, null);
+            fail("Recorded without an encoder");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(State.IDLE, machine.getState());
+    }
+
+    @Test
+    public void commandsAreTakenInOrderPosted() {
+        RecordingStateMachine machine = new RecordingStateMachine();
+        Object config = new Object();
+        machine.post(Type.STOP, null);
+        machine.post(Type.RESET, config);
+        machine.post(Type.START, null);
+        assertTrue(machine.hasPendingCommand());
+        assertEquals(Type.STOP, machine.poll().type);
+        Command reset = machine.poll();
+        assertEquals(Type.RESET, reset.type);
+        assertSame(config, reset.argument);
+        assertEquals(Type.START, machine.poll().type);
+        assertNull(machine.poll());
+        assertFalse(machine.hasPendingCommand());
+    }
+
+    @Test
+    public void postDropsRepeatedStartsAndStops() {
+        RecordingStateMachine machine = new RecordingStateMachine();
+        assertTrue(machine.post(Type.START, null));
+        assertFalse(machine.post(Type.START, null));
+        assertTrue(machine.post(Type.STOP, null));
+        assertFalse(machine.post(Type.STOP, null));
+        assertTrue(machine.post(Type.RESET, null));
+        assertTrue(machine.post(Type.RESET, null));
+        assertTrue(machine.post(Type.STOP, null));
+        assertEquals(Type.START, machine.poll().type);
+        assertEquals(Type.STOP, machine.poll().type);
+        assertEquals(Type.RESET, machine.poll().type);
+        assertEquals(Type.RESET, machine.poll().type);
+        assertEquals(Type.STOP, machine.poll().type);
+        assertNull(machine.poll());
+    }
+
+    @Test
+    public void postDropsRatherThanThrowWhenFullButKeepsRoomToRelease() {
+        RecordingStateMachine machine = new RecordingStateMachine(4);
+        assertTrue(machine.post(Type.START, null));
+        assertTrue(machine.post(Type.STOP, null));
+        assertTrue(machine.post(Type.RESET, null));
+        assertFalse(machine.post(Type.START, null));
+        assertTrue(machine.post(Type.RELEASE, null));
+        assertFalse(machine.post(Type.RELEASE, null));
+
+        assertEquals(Type.START, machine.poll().type);
+        assertEquals(Type.STOP, machine.poll().type);
+        assertEquals(Type.RESET, machine.poll().type);
+        assertEquals(Type.RELEASE, machine.poll().type);
+        assertNull(machine.poll());
+    }
+
+    @Test
+    public void postWakesTheOwner() throws InterruptedException {
+        final RecordingStateMachine machine = new RecordingStateMachine();
+        final Command[] taken = new Command[1];
+        Thread owner = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                taken[0] = machine.take(TimeUnit.SECONDS.toNanos(10));
+            }
+        });
+        machine.setOwner(owner);
+        owner.start();
+        Thread.sleep(20);
+        long postedNs = System.nanoTime();
+        machine.post(Type.START, null);
+        owner.join(5000);
+        assertFalse(owner.isAlive());
+        assertEquals(Type.START, taken[0].type);
+        // Woken by the post rather than the timeout
+        assertTrue(System.nanoTime() - postedNs < TimeUnit.SECONDS.toNanos(5));
+        assertNull(machine.take(TimeUnit.MILLISECONDS.toNanos(1)));
+    }
+
+    @Test
+    public void recordsLatencyFromPostToState() throws InterruptedException {
+        RecordingStateMachine machine = new RecordingStateMachine();
+        machine.post(Type.RESET, null);
+        Thread.sleep(5);
+        machine.moveTo(State.ARMED, machine.poll());
+        LatencyHistogram armed = machine.getTransitionLatency(State.ARMED);
+        assertEquals(1, armed.getCount());
+        assertTrue(armed.getMaxUs() >= 5000);
+
+        machine.moveTo(State.RECORDING, null);
+        assertEquals(0, machine.getTransitionLatency(State.RECORDING).getCount());
+        // A stop leads through draining back to idle, each timed from the stop
+        machine.post(Type.STOP, null);
+        Command stop = machine.poll();
+        machine.moveTo(State.DRAINING, stop);
+        machine.moveTo(State.IDLE, stop);
+        assertEquals(1, machine.getTransitionLatency(State.DRAINING).getCount());
+        assertEquals(1, machine.getTransitionLatency(State.IDLE).getCount());
+        assertTrue(machine.getTransitionLatency(State.IDLE).getMaxUs()
+                >= machine.getTransitionLatency(State.DRAINING).getMaxUs());
+    }
+}
@@ -0,0 +1,56 @@
+package demo.camera.library.encoder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SpscRingTest {
+
+    @Test
+    public void offerFailsWhenFullAndPollWhenEmpty() {
+        SpscRing<Integer> ring = new SpscRing<>(2);
+        assertEquals(2, ring.capacity());
+        assertNull(ring.peek());
+        assertNull(ring.poll());
+        for (int lap = 0; lap < 3; lap++) {
+            assertTrue(ring.offer(lap * 10));
+            assertTrue(ring.offer(lap * 10 + 1));
+            assertFalse(ring.offer(-1));
+            assertEquals(Integer.valueOf(lap * 10), ring.peek());
+            assertEquals(Integer.valueOf(lap * 10), ring.poll());
+            assertEquals(Integer.valueOf(lap * 10 + 1), ring.poll());
+            assertTrue(ring.isEmpty());
+        }
+    }
+
+    @Test
+    public void consumerSeesEverythingInOrder() throws InterruptedException {
+        final int count = 200000;
+        final SpscRing<Integer> ring = new SpscRing<>(8);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < count; i++) {
+                    while (!ring.offer(i)) {
+                        Thread.yield();
+                    }
+                }
+            }
+        });
+        producer.start();
+        for (int i = 0; i < count; ) {
+            Integer element = ring.poll();
+            if (element == null) {
+                Thread.yield();
+                continue;
+            }
+            assertEquals(i, element.intValue());
+            i++;
+        }
+        producer.join();
+        assertNull(ring.poll());
+    }
+}
@@ -0,0 +1,118 @@
+package demo.camera.library.gles;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class KernelShaderGeneratorTest {
+    private static final float[] BLUR = {
+            1f/16f, 2f/16f, 1f/16f,
+            2f/16f, 4f/16f, 2f/16f,
+            1f/16f, 2f/16f, 1f/16f };
+    private static final float[] SHARPEN = {
+            0f, -1f, 0f,
+            -1f, 5f, -1f,
+            0f, -1f, 0f };
+    private static final float[] EDGE_DETECT = {
+            -1f, -1f, -1f,
+            -1f, 8f, -1f,
+            -1f, -1f, -1f };
+    private static final float[] EMBOSS = {
+            2f, 0f, 0f,
+            0f, -1f, 0f,
+            0f, 0f, -1f };
+
+    @Test
+    public void sharpenIsUnrolledWithItsWeightsBakedIn() {
+        assertEquals(
+                "#extension GL_OES_EGL_image_external : require\n" +
+                "precision highp float;\n" +
+                "varying vec2 vTextureCoord;\n" +
+                "uniform samplerExternalOES sTexture;\n" +
+                "uniform vec2 uTexelSize;\n" +
+                "void main() {\n" +
+                "    vec4 sum = vec4(0.0);\n" +
+                "    sum -= texture2D(sTexture, vTextureCoord + uTexelSize * vec2(0.0, -1.0));\n" +
+                "    sum -= texture2D(sTexture, vTextureCoord + uTexelSize * vec2(-1.0, 0.0));\n" +
+                "    sum += texture2D(sTexture, vTextureCoord) * 5.0;\n" +
+                "    sum -= texture2D(sTexture, vTextureCoord + uTexelSize * vec2(1.0, 0.0));\n" +
+                "    sum -= texture2D(sTexture, vTextureCoord + uTexelSize * vec2(0.0, 1.0));\n" +
+                "    gl_FragColor = sum;\n" +
+                "}\n",
+                KernelShaderGenerator.generate(SHARPEN, 0f));
+    }
+
+    @Test
+    public void everyFilterIsBranchFreeAndReadsOnlyNonzeroTaps() {
+        float[][] kernels = { BLUR, SHARPEN, EDGE_DETECT, EMBOSS };
+        int[] taps = { 9, 5, 9, 3 };
+        for (int i = 0; i < kernels.length; i++) {
+            String shader = KernelShaderGenerator.generate(kernels[i], 0f);
+            assertEquals(taps[i], count(shader, "texture2D("));
+            assertFalse(shader.contains("if ("));
+            assertFalse(shader.contains("for ("));
+            assertFalse(shader.contains("uKernel"));
+        }
+    }
+
+    @Test
+    public void blurWeightsAreExactLiterals() {
+        String shader = KernelShaderGenerator.generate(BLUR, 0f);
+        assertEquals(4, count(shader, ") * 0.0625;"));
+        assertEquals(4, count(shader, ") * 0.125;"));
+        assertTrue(shader.contains("texture2D(sTexture, vTextureCoord) * 0.25;"));
+    }
+
+    @Test
+    public void colorAdjustIsAddedOnce() {
+        String shader = KernelShaderGenerator.generate(EMBOSS, 0.5f);
+        assertEquals(1, count(shader, "sum += 0.5;"));
+        assertTrue(shader.contains("vec2(-1.0, -1.0)) * 2.0;"));
+        assertFalse(KernelShaderGenerator.generate(EMBOSS, 0f).contains("sum += 0"));
+    }
+
+    @Test
+    public void identityReadsOnlyTheCenterTexel() {
+        String shader = KernelShaderGenerator.generate(
+                new float[] {0f, 0f, 0f,  0f, 1f, 0f,  0f, 0f, 0f}, 0f);
+        assertEquals(1, count(shader, "texture2D("));
+        assertTrue(shader.contains("    sum += texture2D(sTexture, vTextureCoord);\n"));
+    }
+
+    @Test
+    public void sourceIdentifiesTheKernel() {
+        // Texture2dProgram caches compiled programs by source
+        assertEquals(KernelShaderGenerator.generate(BLUR.clone(), 0f),
+                KernelShaderGenerator.generate(BLUR, 0f));
+        assertFalse(KernelShaderGenerator.generate(EMBOSS, 0.5f)
+                .equals(KernelShaderGenerator.generate(EMBOSS, 0f)));
+        assertFalse(KernelShaderGenerator.generate(SHARPEN, 0f)
+                .equals(KernelShaderGenerator.generate(EDGE_DETECT, 0f)));
+    }
+
+    @Test
+    public void rejectsBadKernels() {
+        try {
+            KernelShaderGenerator.generate(new float[4], 0f);
+            fail("Accepted a 2x2 kernel");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            KernelShaderGenerator.generate(
+                    new float[] {0f, 0f, 0f,  0f, Float.NaN, 0f,  0f, 0f, 0f}, 0f);
+            fail("Accepted a NaN weight");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static int count(String haystack, String needle) {
+        int count = 0;
+        for (int i = haystack.indexOf(needle); i >= 0; i = haystack.indexOf(needle, i + 1)) {
+            count++;
+        }
+        return count;
+    }
+}
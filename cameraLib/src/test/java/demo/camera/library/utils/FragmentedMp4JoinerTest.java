@@ -0,0 +1,198 @@
+package demo.camera.library.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FragmentedMp4JoinerTest {
+    private static final int FRAGMENTS = 3;
+    private static final int SAMPLES = 30;
+    private static final int SAMPLE_DURATION = 3000;    // 90kHz, 30fps
+    private static final int SAMPLE_SIZE = 100;
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("fragmented", "");
+        assertTrue(mDir.delete());
+        assertTrue(mDir.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : mDir.listFiles()) {
+            file.delete();
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void joinRenumbersFragmentsAndShiftsDecodeTimes() throws IOException {
+        List<File> chunks = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            chunks.add(writeChunk(i, FRAGMENTS));
+        }
+        File output = new File(mDir, "out.mp4");
+        FragmentedMp4Joiner.join(output, chunks);
+
+        assertTrue(FragmentedMp4Joiner.isFragmented(output));
+        List<ByteBuffer> moofs = new ArrayList<>();
+        List<ByteBuffer> mdats = new ArrayList<>();
+        readFragments(output, moofs, mdats);
+
+        assertEquals(3 * FRAGMENTS, moofs.size());
+        for (int i = 0; i < moofs.size(); i++) {
+            ByteBuffer moof = moofs.get(i);
+            assertEquals(i + 1, Mp4Stitcher.requireChild(moof, 8, FragmentedMp4Joiner.MFHD).getInt(12));
+            ByteBuffer traf = Mp4Stitcher.requireChild(moof, 8, FragmentedMp4Joiner.TRAF);
+            ByteBuffer tfdt = Mp4Stitcher.requireChild(traf, 8, FragmentedMp4Joiner.TFDT);
+            assertEquals((long) i * SAMPLES * SAMPLE_DURATION, tfdt.getLong(12));
+            // Payloads are copied untouched
+            assertEquals(i / FRAGMENTS, mdats.get(i).get(8));
+            assertEquals(i % FRAGMENTS, mdats.get(i).get(9));
+        }
+    }
+
+    @Test
+    public void truncatedChunkKeepsCompleteFragments() throws IOException {
+        File first = writeChunk(0, FRAGMENTS);
+        File second = writeChunk(1, FRAGMENTS);
+        // Cut the last mdat short, as a crash while recording would
+        RandomAccessFile file = new RandomAccessFile(second, "rw");
+        file.setLength(file.length() - 10);
+        file.close();
+
+        File output = new File(mDir, "out.mp4");
+        FragmentedMp4Joiner.join(output, Arrays.asList(first, second));
+
+        List<ByteBuffer> moofs = new ArrayList<>();
+        readFragments(output, moofs, new ArrayList<ByteBuffer>());
+        assertEquals(2 * FRAGMENTS - 1, moofs.size());
+    }
+
+    @Test
+    public void rejectsChunkWithDifferentTracks() throws IOException {
+        File output = new File(mDir, "out.mp4");
+        FragmentedMp4Joiner joiner = new FragmentedMp4Joiner(output);
+        try {
+            joiner.append(writeChunk(0, FRAGMENTS));
+            long length = output.length();
+            try {
+                joiner.append(writeChunk(1, FRAGMENTS, 48000));
+                fail("expected IOException");
+            } catch (IOException expected) {
+                // timescale differs
+            }
+            assertEquals(length, output.length());
+            assertEquals(1, joiner.getChunkCount());
+        } finally {
+            joiner.close();
+        }
+    }
+
+    @Test
+    public void plainMp4IsNotFragmented() throws IOException {
+        assertFalse(FragmentedMp4Joiner.isFragmented(Mp4StitcherTest.writeChunk(mDir, 0)));
+    }
+
+    private File writeChunk(int index, int fragments) throws IOException {
+        return writeChunk(index, fragments, 90000);
+    }
+
+    /**
+     * Writes a single track fragmented mp4 whose fragments each hold SAMPLES samples.  The
+     * first two payload bytes of every fragment are the chunk and fragment index.
+     */
+    private File writeChunk(int index, int fragments, int timescale) throws IOException {
+        BoxWriter writer = new BoxWriter();
+        writer.write(Mp4Stitcher.DEFAULT_FTYP);
+        writer.startBox("moov");
+        writer.startFullBox("mvhd", 0, 0).writeZeros(96).endBox();
+        writer.startBox("trak");
+        writer.startFullBox("tkhd", 0, 7).writeZeros(8).writeInt(1).writeZeros(68).endBox();
+        writer.startBox("mdia");
+        writer.startFullBox("mdhd", 0, 0).writeZeros(8).writeInt(timescale).writeZeros(8).endBox();
+        writer.startFullBox("hdlr", 0, 0).writeInt(0).writeInt(BoxWriter.fourcc("vide"))
+                .writeZeros(13).endBox();
+        writer.startBox("minf").startBox("stbl");
+        writer.startFullBox("stsd", 0, 0).writeInt(1).startBox("avc1").writeZeros(78)
+                .endBox().endBox();
+        writer.endBox().endBox();
+        writer.endBox().endBox();
+        writer.startBox("mvex");
+        writer.startFullBox("trex", 0, 0).writeInt(1).writeInt(1).writeInt(0).writeInt(0)
+                .writeInt(0).endBox();
+        writer.endBox();
+        writer.endBox();
+
+        for (int f = 0; f < fragments; f++) {
+            int moofStart = writer.size();
+            writer.startBox("moof");
+            writer.startFullBox("mfhd", 0, 0).writeInt(f + 1).endBox();
+            writer.startBox("traf");
+            writer.startFullBox("tfhd", 0, 0x020000).writeInt(1).endBox();
+            writer.startFullBox("tfdt", 1, 0).writeLong((long) f * SAMPLES * SAMPLE_DURATION)
+                    .endBox();
+            writer.startFullBox("trun", 0, 0x301).writeInt(SAMPLES);
+            int dataOffsetPosition = writer.size();
+            writer.writeInt(0);
+            for (int s = 0; s < SAMPLES; s++) {
+                writer.writeInt(SAMPLE_DURATION).writeInt(SAMPLE_SIZE);
+            }
+            writer.endBox().endBox().endBox();
+            writer.putInt(dataOffsetPosition, writer.size() - moofStart + 8);
+
+            writer.writeInt(8 + SAMPLES * SAMPLE_SIZE).writeInt(Mp4Stitcher.MDAT);
+            writer.writeByte(index).writeByte(f).writeZeros(SAMPLES * SAMPLE_SIZE - 2);
+        }
+
+        File chunk = new File(mDir, "chunk" + index + ".mp4");
+        FileOutputStream out = new FileOutputStream(chunk);
+        try {
+            writer.writeTo(out.getChannel());
+        } finally {
+            out.close();
+        }
+        return chunk;
+    }
+
+    private static void readFragments(File file, List<ByteBuffer> moofs, List<ByteBuffer> mdats)
+            throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            long position = 0;
+            ByteBuffer header = ByteBuffer.allocate(8);
+            while (position < channel.size()) {
+                header.clear();
+                Mp4Stitcher.readFully(channel, header, position);
+                int size = header.getInt(0);
+                int type = header.getInt(4);
+                if (type == FragmentedMp4Joiner.MOOF) {
+                    moofs.add(Mp4Stitcher.readBox(channel, position, size));
+                } else if (type == Mp4Stitcher.MDAT) {
+                    mdats.add(Mp4Stitcher.readBox(channel, position, size));
+                }
+                position += size;
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
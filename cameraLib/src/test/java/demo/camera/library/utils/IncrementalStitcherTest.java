@@ -0,0 +1,94 @@
+package demo.camera.library.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class IncrementalStitcherTest {
+    private static final int CHUNKS = 20;
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("incremental", "");
+        assertTrue(mDir.delete());
+        assertTrue(mDir.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : mDir.listFiles()) {
+            file.delete();
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void finishWritesIndexAfterAppendedPayloads() throws Exception {
+        File working = new File(mDir, "working.mp4");
+        IncrementalStitcher stitcher = new IncrementalStitcher(working);
+        for (int i = 0; i < CHUNKS; i++) {
+            assertTrue(stitcher.append(Mp4StitcherTest.writeChunk(mDir, i)).get());
+        }
+
+        File output = new File(mDir, "out.mp4");
+        assertEquals(output, stitcher.finish(output));
+        assertFalse(working.exists());
+
+        RandomAccessFile file = new RandomAccessFile(output, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            ByteBuffer moov = Mp4StitcherTest.readTopLevelBox(channel, Mp4Stitcher.MOOV);
+            assertNotNull(moov);
+            List<ByteBuffer> traks = Mp4Stitcher.children(moov, 8, Mp4Stitcher.TRAK);
+            assertEquals(2, traks.size());
+            for (ByteBuffer trak : traks) {
+                Mp4StitcherTest.verifyTrack(channel, trak, CHUNKS);
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void finishFailsIfAChunkWasSkipped() throws Exception {
+        File working = new File(mDir, "working.mp4");
+        IncrementalStitcher stitcher = new IncrementalStitcher(working);
+        assertTrue(stitcher.append(Mp4StitcherTest.writeChunk(mDir, 0)).get());
+        File corrupt = new File(mDir, "corrupt.mp4");
+        new RandomAccessFile(corrupt, "rw").close();
+        assertFalse(stitcher.append(corrupt).get());
+        assertTrue(stitcher.append(Mp4StitcherTest.writeChunk(mDir, 1)).get());
+
+        File output = new File(mDir, "out.mp4");
+        try {
+            stitcher.finish(output);
+            fail("Finished without the skipped chunk");
+        } catch (IOException expected) {
+            // The caller stitches the chunks it still has instead
+        }
+        assertFalse(output.exists());
+        assertFalse(working.exists());
+    }
+
+    @Test
+    public void finishWithoutChunksReturnsNull() throws IOException {
+        IncrementalStitcher stitcher = new IncrementalStitcher(new File(mDir, "working.mp4"));
+        assertNull(stitcher.finish(new File(mDir, "out.mp4")));
+    }
+}
@@ -0,0 +1,400 @@
+package demo.camera.library.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Stitches synthetic MediaMuxer-like chunks and checks every sample of the output.
+ */
+public class Mp4StitcherTest {
+    private static final int CHUNKS = 200;
+    private static final int VIDEO_SAMPLES = 30;
+    private static final int VIDEO_SAMPLE_SIZE = 8192;
+    private static final int VIDEO_DELTA = 3000;            // 30fps @ 90kHz
+    private static final int AUDIO_SAMPLES = 43;
+    private static final int AUDIO_SAMPLE_SIZE = 372;
+    private static final int AUDIO_DELTA = 1024;
+    private static final int SAMPLES_PER_MP4_CHUNK = 10;
+
+    private static final int VIDE = BoxWriter.fourcc("vide");
+    private static final int SOUN = BoxWriter.fourcc("soun");
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("stitch", "");
+        assertTrue(mDir.delete());
+        assertTrue(mDir.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : mDir.listFiles()) {
+            file.delete();
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void stitchesTwoHundredChunksWithBoundedHeap() throws IOException {
+        List<File> chunks = new ArrayList<>();
+        long payload = 0;
+        for (int i = 0; i < CHUNKS; i++) {
+            chunks.add(writeChunk(mDir, i));
+            payload += VIDEO_SAMPLES * VIDEO_SAMPLE_SIZE + AUDIO_SAMPLES * AUDIO_SAMPLE_SIZE;
+        }
+        File output = new File(mDir, "out.mp4");
+
+        long allocatedBefore = allocatedBytes();
+        Mp4Stitcher.stitch(output, chunks);
+        long allocated = allocatedBytes() - allocatedBefore;
+
+        if (allocatedBefore >= 0) {
+            // Only sample tables should be on the heap; payload is ~50MB.
+            assertTrue("stitching allocated " + allocated + " bytes for " + payload +
+                    " bytes of samples", allocated < 8 * 1024 * 1024);
+        }
+
+        RandomAccessFile file = new RandomAccessFile(output, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            ByteBuffer moov = readTopLevelBox(channel, Mp4Stitcher.MOOV);
+            assertNotNull(moov);
+            List<ByteBuffer> traks = Mp4Stitcher.children(moov, 8, Mp4Stitcher.TRAK);
+            assertEquals(2, traks.size());
+            for (ByteBuffer trak : traks) {
+                verifyTrack(channel, trak, CHUNKS);
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void lateTrackAndPrimingEditsStayInSync() throws IOException {
+        List<File> chunks = new ArrayList<>();
+        chunks.add(writeChunk(mDir, 0, false, 0));
+        chunks.add(writeChunk(mDir, 1, true, AUDIO_DELTA));
+        chunks.add(writeChunk(mDir, 2, true, AUDIO_DELTA));
+        File output = new File(mDir, "out.mp4");
+        Mp4Stitcher.stitch(output, chunks);
+
+        RandomAccessFile file = new RandomAccessFile(output, "r");
+        try {
+            ByteBuffer moov = readTopLevelBox(file.getChannel(), Mp4Stitcher.MOOV);
+            ByteBuffer mvhd = Mp4Stitcher.requireChild(moov, 8, Mp4Stitcher.MVHD);
+            assertEquals(3000, mvhd.getInt(24));
+            ByteBuffer video = null;
+            ByteBuffer audio = null;
+            for (ByteBuffer trak : Mp4Stitcher.children(moov, 8, Mp4Stitcher.TRAK)) {
+                ByteBuffer mdia = Mp4Stitcher.requireChild(trak, 8, Mp4Stitcher.MDIA);
+                if (Mp4Stitcher.requireChild(mdia, 8, Mp4Stitcher.HDLR).getInt(16) == VIDE) {
+                    video = trak;
+                } else {
+                    audio = trak;
+                }
+            }
+            assertEquals(null, Mp4Stitcher.child(video, 8, Mp4Stitcher.EDTS));
+
+            // Audio waits out the video-only chunk, then skips its priming
+            ByteBuffer elst = Mp4Stitcher.requireChild(
+                    Mp4Stitcher.requireChild(audio, 8, Mp4Stitcher.EDTS), 8, Mp4Stitcher.ELST);
+            assertEquals(2, elst.getInt(12));
+            assertEquals(1000, elst.getInt(16));
+            assertEquals(-1, elst.getInt(20));
+            long played = (2L * AUDIO_SAMPLES * AUDIO_DELTA + 68 - AUDIO_DELTA) * 1000 / 44100;
+            assertEquals(played, elst.getInt(28));
+            assertEquals(AUDIO_DELTA, elst.getInt(32));
+
+            // The first audio chunk is stretched so the second's priming lands on 2s
+            ByteBuffer stbl = Mp4Stitcher.requireChild(Mp4Stitcher.requireChild(
+                    Mp4Stitcher.requireChild(audio, 8, Mp4Stitcher.MDIA), 8, Mp4Stitcher.MINF),
+                    8, Mp4Stitcher.STBL);
+            ByteBuffer stts = Mp4Stitcher.requireChild(stbl, 8, Mp4Stitcher.STTS);
+            assertEquals(3, stts.getInt(12));
+            assertEquals(AUDIO_SAMPLES - 1, stts.getInt(16));
+            assertEquals(1, stts.getInt(24));
+            assertEquals(AUDIO_DELTA + 68, stts.getInt(28));
+            assertEquals(AUDIO_SAMPLES, stts.getInt(32));
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void rejectsTruncatedChunkWithoutTouchingState() throws IOException {
+        File good = writeChunk(mDir, 0);
+        File truncated = new File(mDir, "truncated.mp4");
+        RandomAccessFile file = new RandomAccessFile(truncated, "rw");
+        file.setLength(1000);
+        file.close();
+
+        Mp4Stitcher stitcher = new Mp4Stitcher();
+        stitcher.append(good);
+        try {
+            stitcher.append(truncated);
+            fail("truncated chunk accepted");
+        } catch (IOException expected) {
+            // a chunk without moov is rejected as a whole
+        }
+        assertEquals(1, stitcher.getChunkCount());
+        stitcher.writeTo(new File(mDir, "out.mp4"));
+    }
+
+    /**
+     * Checks the tables of a stitched track and that every sample carries its original
+     * identity.
+     */
+    static void verifyTrack(FileChannel channel, ByteBuffer trak, int chunks)
+            throws IOException {
+        ByteBuffer mdia = Mp4Stitcher.requireChild(trak, 8, Mp4Stitcher.MDIA);
+        int handler = Mp4Stitcher.requireChild(mdia, 8, Mp4Stitcher.HDLR).getInt(16);
+        ByteBuffer stbl = Mp4Stitcher.requireChild(
+                Mp4Stitcher.requireChild(mdia, 8, Mp4Stitcher.MINF), 8, Mp4Stitcher.STBL);
+        boolean video = handler == VIDE;
+        int perChunk = video ? VIDEO_SAMPLES : AUDIO_SAMPLES;
+        int total = chunks * perChunk;
+
+        ByteBuffer stsz = Mp4Stitcher.requireChild(stbl, 8, Mp4Stitcher.STSZ);
+        assertEquals(total, stsz.getInt(16));
+
+        // Each chunk is a second long; audio is a little short and has its last sample
+        // stretched to meet the next chunk
+        ByteBuffer stts = Mp4Stitcher.requireChild(stbl, 8, Mp4Stitcher.STTS);
+        assertEquals(video ? VIDEO_DELTA : AUDIO_DELTA, stts.getInt(20));
+        long sttsSamples = 0;
+        long duration = 0;
+        for (int i = 0; i < stts.getInt(12); i++) {
+            sttsSamples += stts.getInt(16 + 8 * i);
+            duration += (long) stts.getInt(16 + 8 * i) * stts.getInt(20 + 8 * i);
+        }
+        assertEquals(total, sttsSamples);
+        assertEquals(video ? chunks * 90000L : (chunks - 1) * 44100L + perChunk * AUDIO_DELTA,
+                duration);
+
+        ByteBuffer stss = Mp4Stitcher.child(stbl, 8, Mp4Stitcher.STSS);
+        ByteBuffer ctts = Mp4Stitcher.child(stbl, 8, Mp4Stitcher.CTTS);
+        if (video) {
+            assertEquals(chunks * 2, stss.getInt(12));
+            assertEquals(1 + VIDEO_SAMPLES, stss.getInt(16 + 8));
+            int cttsSamples = 0;
+            for (int i = 0; ctts != null && i < ctts.getInt(12); i++) {
+                cttsSamples += ctts.getInt(16 + 8 * i);
+            }
+            assertEquals(chunks > 1 ? total : 0, cttsSamples);
+        } else {
+            assertEquals(null, stss);
+            assertEquals(null, ctts);
+        }
+
+        // Walk stsc/stco.
+        ByteBuffer stsc = Mp4Stitcher.requireChild(stbl, 8, Mp4Stitcher.STSC);
+        ByteBuffer stco = Mp4Stitcher.requireChild(stbl, 8, Mp4Stitcher.STCO);
+        int chunkCount = stco.getInt(12);
+        int runs = stsc.getInt(12);
+        int sample = 0;
+        ByteBuffer identity = ByteBuffer.allocate(12);
+        for (int run = 0; run < runs; run++) {
+            int first = stsc.getInt(16 + 12 * run) - 1;
+            int last = run + 1 < runs ? stsc.getInt(16 + 12 * (run + 1)) - 1 : chunkCount;
+            int samplesPerChunk = stsc.getInt(20 + 12 * run);
+            for (int c = first; c < last; c++) {
+                long offset = stco.getInt(16 + 4 * c) & 0xffffffffL;
+                for (int s = 0; s < samplesPerChunk; s++) {
+                    identity.clear();
+                    channel.read(identity, offset);
+                    assertEquals(sample / perChunk, identity.getInt(0));
+                    assertEquals(handler, identity.getInt(4));
+                    assertEquals(sample % perChunk, identity.getInt(8));
+                    offset += stsz.getInt(20 + 4 * sample);
+                    sample++;
+                }
+            }
+        }
+        assertEquals(total, sample);
+    }
+
+    /**
+     * Writes a chunk laid out the way MediaMuxer does it: ftyp, mdat, moov, with the
+     * tracks interleaved in runs of SAMPLES_PER_MP4_CHUNK samples.
+     */
+    static File writeChunk(File dir, int index) throws IOException {
+        return writeChunk(dir, index, true, 0);
+    }
+
+    /**
+     * @param audioMediaTime where the audio's edit starts playing, or 0 for no edit list
+     */
+    static File writeChunk(File dir, int index, boolean withAudio, int audioMediaTime)
+            throws IOException {
+        File chunk = new File(dir, String.format("%05d.mp4", index));
+        RandomAccessFile file = new RandomAccessFile(chunk, "rw");
+        try {
+            FileChannel channel = file.getChannel();
+            BoxWriter writer = new BoxWriter();
+            writer.startBox("ftyp").writeInt(BoxWriter.fourcc("mp42")).writeInt(0)
+                    .writeInt(BoxWriter.fourcc("isom")).endBox();
+            writer.writeTo(channel);
+            long position = writer.size();
+
+            long mdatStart = position;
+            position += 8;
+            List<Long> videoOffsets = new ArrayList<>();
+            List<Long> audioOffsets = new ArrayList<>();
+            ByteBuffer video = ByteBuffer.allocate(VIDEO_SAMPLE_SIZE);
+            ByteBuffer audio = ByteBuffer.allocate(AUDIO_SAMPLE_SIZE);
+            int v = 0;
+            int a = 0;
+            while (v < VIDEO_SAMPLES || withAudio && a < AUDIO_SAMPLES) {
+                if (v < VIDEO_SAMPLES) {
+                    videoOffsets.add(position);
+                    for (int end = Math.min(v + SAMPLES_PER_MP4_CHUNK, VIDEO_SAMPLES); v < end; v++) {
+                        position += writeSample(channel, video, position, index, VIDE, v);
+                    }
+                }
+                if (withAudio && a < AUDIO_SAMPLES) {
+                    audioOffsets.add(position);
+                    for (int end = Math.min(a + SAMPLES_PER_MP4_CHUNK, AUDIO_SAMPLES); a < end; a++) {
+                        position += writeSample(channel, audio, position, index, SOUN, a);
+                    }
+                }
+            }
+            writer.reset();
+            writer.writeInt((int) (position - mdatStart)).writeInt(Mp4Stitcher.MDAT);
+            channel.write(writer.asByteBuffer(), mdatStart);
+
+            writer.reset();
+            writer.startBox("moov");
+            writer.startFullBox("mvhd", 0, 0).writeInt(0).writeInt(0).writeInt(1000)
+                    .writeInt(1000).writeZeros(76).writeInt(3).endBox();
+            writeTrak(writer, 1, VIDE, 90000, VIDEO_SAMPLES, VIDEO_SAMPLE_SIZE, VIDEO_DELTA,
+                    videoOffsets, index % 2 == 1, 0);
+            if (withAudio) {
+                writeTrak(writer, 2, SOUN, 44100, AUDIO_SAMPLES, AUDIO_SAMPLE_SIZE, AUDIO_DELTA,
+                        audioOffsets, false, audioMediaTime);
+            }
+            writer.endBox();
+            channel.write(writer.asByteBuffer(), position);
+        } finally {
+            file.close();
+        }
+        return chunk;
+    }
+
+    private static int writeSample(FileChannel channel, ByteBuffer sample, long position,
+                                   int chunk, int handler, int index) throws IOException {
+        sample.clear();
+        sample.putInt(0, chunk).putInt(4, handler).putInt(8, index);
+        while (sample.hasRemaining()) {
+            channel.write(sample, position + sample.position());
+        }
+        return sample.capacity();
+    }
+
+    private static void writeTrak(BoxWriter writer, int trackId, int handler, int timescale,
+                                  int samples, int sampleSize, int delta, List<Long> offsets,
+                                  boolean withCtts, int mediaTime) {
+        boolean video = handler == VIDE;
+        writer.startBox("trak");
+        writer.startFullBox("tkhd", 0, 7).writeInt(0).writeInt(0).writeInt(trackId).writeInt(0)
+                .writeInt(0).writeZeros(60).endBox();
+        if (mediaTime > 0) {
+            writer.startBox("edts");
+            writer.startFullBox("elst", 0, 0).writeInt(1)
+                    .writeInt((int) ((samples * delta - mediaTime) * 1000L / timescale))
+                    .writeInt(mediaTime).writeInt(0x00010000).endBox();
+            writer.endBox();
+        }
+        writer.startBox("mdia");
+        writer.startFullBox("mdhd", 0, 0).writeInt(0).writeInt(0).writeInt(timescale)
+                .writeInt(samples * delta).writeInt(0).endBox();
+        writer.startFullBox("hdlr", 0, 0).writeInt(0).writeInt(handler).writeZeros(12)
+                .writeByte(0).endBox();
+        writer.startBox("minf");
+        writer.startFullBox(video ? "vmhd" : "smhd", 0, 1).writeZeros(video ? 8 : 4).endBox();
+        writer.startBox("stbl");
+        writer.startFullBox("stsd", 0, 0).writeInt(1);
+        writer.startBox(video ? "avc1" : "mp4a").writeZeros(16).endBox();
+        writer.endBox();
+        writer.startFullBox("stts", 0, 0).writeInt(1).writeInt(samples).writeInt(delta).endBox();
+        if (withCtts) {
+            writer.startFullBox("ctts", 0, 0).writeInt(1).writeInt(samples).writeInt(delta).endBox();
+        }
+        if (video) {
+            writer.startFullBox("stss", 0, 0).writeInt(2).writeInt(1).writeInt(16).endBox();
+            writer.startFullBox("stsz", 0, 0).writeInt(0).writeInt(samples);
+            for (int i = 0; i < samples; i++) {
+                writer.writeInt(sampleSize);
+            }
+            writer.endBox();
+        } else {
+            writer.startFullBox("stsz", 0, 0).writeInt(sampleSize).writeInt(samples).endBox();
+        }
+        int full = samples / SAMPLES_PER_MP4_CHUNK;
+        int rest = samples % SAMPLES_PER_MP4_CHUNK;
+        writer.startFullBox("stsc", 0, 0).writeInt(rest == 0 ? 1 : 2)
+                .writeInt(1).writeInt(SAMPLES_PER_MP4_CHUNK).writeInt(1);
+        if (rest != 0) {
+            writer.writeInt(full + 1).writeInt(rest).writeInt(1);
+        }
+        writer.endBox();
+        writer.startFullBox("stco", 0, 0).writeInt(offsets.size());
+        for (long offset : offsets) {
+            writer.writeInt((int) offset);
+        }
+        writer.endBox();
+        writer.endBox();    // stbl
+        writer.endBox();    // minf
+        writer.endBox();    // mdia
+        writer.endBox();    // trak
+    }
+
+    static ByteBuffer readTopLevelBox(FileChannel channel, int type) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(16);
+        long position = 0;
+        while (position < channel.size()) {
+            header.clear();
+            channel.read(header, position);
+            long size = header.getInt(0) & 0xffffffffL;
+            if (size == 1) {
+                size = header.getLong(8);
+            }
+            if (header.getInt(4) == type) {
+                ByteBuffer box = ByteBuffer.allocate((int) size);
+                channel.read(box, position);
+                box.flip();
+                return box;
+            }
+            position += size;
+        }
+        return null;
+    }
+
+    /**
+     * Bytes allocated by this thread so far, or -1 if the JVM can't tell.
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}